@@ -0,0 +1,309 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.SQLite;
+
+import org.blaez.ziosgram.FileLog;
+import org.blaez.tgnet.NativeByteBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transparent compression of TL blobs. Statements that write the data of messages, media, users or chats
+ * deflate their blobs with a preset dictionary trained on the cache itself, cursors inflate any blob that
+ * starts with the codec header. Blobs keep the id of the dictionary they were written with, so retraining
+ * never makes older rows unreadable as long as the old dictionaries are kept.
+ */
+public class SQLiteBlobCodec {
+
+    private static final int MAGIC = 0x3f9d5a2c;
+    private static final int HEADER_SIZE = 12;
+    private static final int MIN_SIZE = 96;
+    private static final int SHINGLE = 8;
+
+    public static final int MAX_DICTIONARY_SIZE = 16 * 1024;
+
+    private static final Pattern compressedStatement = Pattern.compile("^\\s*(?:(?:INSERT|REPLACE)(?:\\s+OR\\s+\\w+)?\\s+INTO\\s+(?:messages|media_v2|users|chats)\\b|UPDATE\\s+(?:messages|media_v2|users|chats)\\s+SET\\s+data\\b)", Pattern.CASE_INSENSITIVE);
+
+    private static final HashMap<Integer, byte[]> dictionaries = new HashMap<>();
+    private static volatile boolean enabled;
+    private static volatile int currentVersion;
+    private static volatile byte[] currentDictionary;
+
+    private static long rawBytes;
+    private static long storedBytes;
+    private static long encodedCount;
+    private static long encodeTime;
+    private static long decodedCount;
+    private static long decodeTime;
+
+    private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private static final ThreadLocal<byte[]> tempBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    public static void putDictionary(int version, byte[] dictionary) {
+        synchronized (dictionaries) {
+            dictionaries.put(version, dictionary);
+            if (version >= currentVersion) {
+                currentVersion = version;
+                currentDictionary = dictionary;
+            }
+        }
+    }
+
+    public static void clearDictionaries() {
+        synchronized (dictionaries) {
+            dictionaries.clear();
+            currentVersion = 0;
+            currentDictionary = null;
+        }
+    }
+
+    public static int getCurrentVersion() {
+        return currentVersion;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static boolean isEnabled() {
+        return enabled && currentDictionary != null;
+    }
+
+    static boolean isCompressedStatement(String sql) {
+        return compressedStatement.matcher(sql).find();
+    }
+
+    private static byte[] getDictionary(int version) {
+        synchronized (dictionaries) {
+            return dictionaries.get(version);
+        }
+    }
+
+    private static byte[] ensureTempBuffer(int size) {
+        byte[] buffer = tempBuffer.get();
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length * 2)];
+            tempBuffer.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Deflates length bytes of source into target, which is reallocated if it's too small.
+     *
+     * @return the buffer to bind, or null if the blob should be stored as is.
+     */
+    static ByteBuffer encode(ByteBuffer source, int length, ByteBuffer target) {
+        byte[] dictionary = currentDictionary;
+        int version = currentVersion;
+        if (!enabled || dictionary == null || length < MIN_SIZE) {
+            return null;
+        }
+        long time = System.nanoTime();
+        byte[] input = ensureTempBuffer(length * 2);
+        ByteBuffer duplicate = source.duplicate();
+        duplicate.position(0);
+        duplicate.get(input, 0, length);
+
+        Deflater compressor = deflater.get();
+        compressor.reset();
+        compressor.setDictionary(dictionary);
+        compressor.setInput(input, 0, length);
+        compressor.finish();
+        int outputOffset = length;
+        int outputLength = length - HEADER_SIZE;
+        int compressed = 0;
+        while (!compressor.finished() && compressed < outputLength) {
+            compressed += compressor.deflate(input, outputOffset + compressed, outputLength - compressed);
+        }
+        if (!compressor.finished()) {
+            return null;
+        }
+        int size = HEADER_SIZE + compressed;
+        if (target == null || target.capacity() < size) {
+            target = ByteBuffer.allocateDirect(Math.max(size, 1024));
+            target.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        target.clear();
+        target.putInt(MAGIC);
+        target.putInt(version);
+        target.putInt(length);
+        target.put(input, outputOffset, compressed);
+        target.flip();
+        time = System.nanoTime() - time;
+        synchronized (SQLiteBlobCodec.class) {
+            rawBytes += length;
+            storedBytes += size;
+            encodedCount++;
+            encodeTime += time;
+        }
+        return target;
+    }
+
+    /**
+     * Returns the buffer itself if it isn't compressed, otherwise reuses it and returns a new buffer
+     * with the inflated blob.
+     */
+    static NativeByteBuffer decode(NativeByteBuffer data) {
+        ByteBuffer buffer = data.buffer;
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (limit - start < HEADER_SIZE || buffer.getInt(start) != MAGIC) {
+            return data;
+        }
+        long time = System.nanoTime();
+        int version = buffer.getInt(start + 4);
+        int length = buffer.getInt(start + 8);
+        byte[] dictionary = getDictionary(version);
+        int compressed = limit - start - HEADER_SIZE;
+        if (dictionary == null || length <= 0) {
+            FileLog.e("can't decode blob with dictionary " + version);
+            return data;
+        }
+        byte[] input = ensureTempBuffer(compressed + length);
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(start + HEADER_SIZE);
+        duplicate.get(input, 0, compressed);
+
+        NativeByteBuffer result = null;
+        try {
+            Inflater decompressor = inflater.get();
+            decompressor.reset();
+            decompressor.setInput(input, 0, compressed);
+            int inflated = 0;
+            while (inflated < length && !decompressor.finished()) {
+                int count = decompressor.inflate(input, compressed + inflated, length - inflated);
+                if (count == 0) {
+                    if (decompressor.needsDictionary()) {
+                        decompressor.setDictionary(dictionary);
+                    } else {
+                        break;
+                    }
+                }
+                inflated += count;
+            }
+            if (inflated != length) {
+                throw new DataFormatException("inflated " + inflated + " of " + length);
+            }
+            result = new NativeByteBuffer(length);
+            result.writeBytes(input, compressed, length);
+            result.position(0);
+        } catch (Exception e) {
+            FileLog.e(e);
+            if (result != null) {
+                result.reuse();
+            }
+            return data;
+        }
+        data.reuse();
+        time = System.nanoTime() - time;
+        synchronized (SQLiteBlobCodec.class) {
+            decodedCount++;
+            decodeTime += time;
+        }
+        return result;
+    }
+
+    public static synchronized String getStats() {
+        return String.format("stored %d of %d bytes in %d blobs, encode %d us avg, decode %d us avg in %d blobs",
+                storedBytes, rawBytes, encodedCount,
+                encodedCount != 0 ? encodeTime / encodedCount / 1000 : 0,
+                decodedCount != 0 ? decodeTime / decodedCount / 1000 : 0, decodedCount);
+    }
+
+    /**
+     * Builds a preset dictionary from sample blobs. Samples are scored by how many of their 8 byte
+     * sequences are shared with other samples, and the best ones are concatenated so they end up at
+     * the end of the dictionary, where deflate reaches them with the shortest distances.
+     */
+    public static byte[] trainDictionary(ArrayList<byte[]> samples, int maxSize) {
+        HashMap<Long, Integer> frequencies = new HashMap<>();
+        for (int a = 0; a < samples.size(); a++) {
+            byte[] sample = samples.get(a);
+            for (int b = 0; b + SHINGLE <= sample.length; b += 2) {
+                long key = getShingle(sample, b);
+                Integer count = frequencies.get(key);
+                frequencies.put(key, count == null ? 1 : count + 1);
+            }
+        }
+        final HashMap<byte[], Float> scores = new HashMap<>();
+        ArrayList<byte[]> candidates = new ArrayList<>();
+        for (int a = 0; a < samples.size(); a++) {
+            byte[] sample = samples.get(a);
+            if (sample.length < SHINGLE || sample.length > maxSize / 4) {
+                continue;
+            }
+            long score = 0;
+            for (int b = 0; b + SHINGLE <= sample.length; b += 2) {
+                score += frequencies.get(getShingle(sample, b)) - 1;
+            }
+            scores.put(sample, score / (float) sample.length);
+            candidates.add(sample);
+        }
+        Collections.sort(candidates, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] lhs, byte[] rhs) {
+                return Float.compare(scores.get(rhs), scores.get(lhs));
+            }
+        });
+        ArrayList<byte[]> selected = new ArrayList<>();
+        int size = 0;
+        for (int a = 0; a < candidates.size() && size < maxSize; a++) {
+            byte[] sample = candidates.get(a);
+            if (size + sample.length > maxSize) {
+                continue;
+            }
+            selected.add(sample);
+            size += sample.length;
+        }
+        byte[] dictionary = new byte[size];
+        int offset = 0;
+        for (int a = selected.size() - 1; a >= 0; a--) {
+            byte[] sample = selected.get(a);
+            System.arraycopy(sample, 0, dictionary, offset, sample.length);
+            offset += sample.length;
+        }
+        return dictionary;
+    }
+
+    private static long getShingle(byte[] data, int offset) {
+        long value = 0;
+        for (int a = 0; a < SHINGLE; a++) {
+            value = (value << 8) | (data[offset + a] & 0xff);
+        }
+        return value;
+    }
+}
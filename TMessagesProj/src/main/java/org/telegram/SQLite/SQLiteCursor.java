@@ -60,7 +60,7 @@ public class SQLiteCursor {
 		checkRow();
 		int ptr = columnByteBufferValue(preparedStatement.getStatementHandle(), columnIndex);
 		if (ptr != 0) {
-			return NativeByteBuffer.wrap(ptr);
+			return SQLiteBlobCodec.decode(NativeByteBuffer.wrap(ptr));
 		}
 		return null;
 	}
@@ -71,7 +71,7 @@ public class SQLiteCursor {
 	}
 
 	public boolean next() throws SQLiteException {
-		int res = preparedStatement.step(preparedStatement.getStatementHandle());
+		int res = preparedStatement.step();
 		if(res == -1) {
             int repeatCount = 6;
             while (repeatCount-- != 0) {
@@ -9,6 +9,7 @@
 package org.blaez.SQLite;
 
 import org.blaez.ziosgram.FileLog;
+import org.blaez.ziosgram.MetricsRegistry;
 import org.blaez.tgnet.NativeByteBuffer;
 
 import java.nio.ByteBuffer;
@@ -18,6 +19,10 @@ public class SQLitePreparedStatement {
 	private boolean isFinalized = false;
 	private int sqliteStatementHandle;
 	private boolean finalizeAfterQuery = false;
+	private boolean compressBlobs;
+	private ByteBuffer[] compressedBuffers;
+
+	private static final MetricsRegistry.Histogram stepHistogram = MetricsRegistry.histogram("sqlite.step", 50000);
 
     //private static HashMap<SQLitePreparedStatement, String> hashMap;
 
@@ -28,6 +33,7 @@ public class SQLitePreparedStatement {
 	public SQLitePreparedStatement(SQLiteDatabase db, String sql, boolean finalize) throws SQLiteException {
 		finalizeAfterQuery = finalize;
 		sqliteStatementHandle = prepare(db.getSQLiteHandle(), sql);
+		compressBlobs = SQLiteBlobCodec.isCompressedStatement(sql);
         /*if (BuildVars.DEBUG_VERSION) {
             if (hashMap == null) {
                 hashMap = new HashMap<>();
@@ -69,11 +75,17 @@ public class SQLitePreparedStatement {
     }
 
     public int step() throws SQLiteException {
-        return step(sqliteStatementHandle);
+        if (!MetricsRegistry.enabled) {
+            return step(sqliteStatementHandle);
+        }
+        long startTime = System.nanoTime();
+        int result = step(sqliteStatementHandle);
+        stepHistogram.recordSince(startTime);
+        return result;
     }
 
     public SQLitePreparedStatement stepThis() throws SQLiteException {
-        step(sqliteStatementHandle);
+        step();
         return this;
     }
 
@@ -122,6 +134,21 @@ public class SQLitePreparedStatement {
     }
 
     public void bindByteBuffer(int index, NativeByteBuffer value) throws SQLiteException {
+        if (compressBlobs && SQLiteBlobCodec.isEnabled()) {
+            if (compressedBuffers == null || compressedBuffers.length <= index) {
+                ByteBuffer[] buffers = new ByteBuffer[index + 1];
+                if (compressedBuffers != null) {
+                    System.arraycopy(compressedBuffers, 0, buffers, 0, compressedBuffers.length);
+                }
+                compressedBuffers = buffers;
+            }
+            ByteBuffer compressed = SQLiteBlobCodec.encode(value.buffer, value.limit(), compressedBuffers[index]);
+            if (compressed != null) {
+                compressedBuffers[index] = compressed;
+                bindByteBuffer(sqliteStatementHandle, index, compressed, compressed.limit());
+                return;
+            }
+        }
         bindByteBuffer(sqliteStatementHandle, index, value.buffer, value.limit());
     }
 
@@ -43,6 +43,7 @@ public class ApplicationLoader extends Application {
     public static volatile Context applicationContext;
     public static volatile Handler applicationHandler;
     private static volatile boolean applicationInited = false;
+    private static volatile StartupGraph startupGraph;
 
     public static volatile boolean isScreenOn = false;
     public static volatile boolean mainInterfacePaused = true;
@@ -116,81 +117,147 @@ public class ApplicationLoader extends Application {
         }
 
         applicationInited = true;
-        convertConfig();
 
-        try {
-            LocaleController.getInstance();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        try {
-            final IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
-            filter.addAction(Intent.ACTION_SCREEN_OFF);
-            final BroadcastReceiver mReceiver = new ScreenReceiver();
-            applicationContext.registerReceiver(mReceiver, filter);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        startupGraph = new StartupGraph();
+        startupGraph.add("config", false, new Runnable() {
+            @Override
+            public void run() {
+                convertConfig();
+            }
+        });
+        startupGraph.add("locale", false, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LocaleController.getInstance();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        startupGraph.add("screen", true, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+                    filter.addAction(Intent.ACTION_SCREEN_OFF);
+                    final BroadcastReceiver mReceiver = new ScreenReceiver();
+                    applicationContext.registerReceiver(mReceiver, filter);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
 
-        try {
-            PowerManager pm = (PowerManager)ApplicationLoader.applicationContext.getSystemService(Context.POWER_SERVICE);
-            isScreenOn = pm.isScreenOn();
-            FileLog.e("screen state = " + isScreenOn);
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
+                try {
+                    PowerManager pm = (PowerManager)ApplicationLoader.applicationContext.getSystemService(Context.POWER_SERVICE);
+                    isScreenOn = pm.isScreenOn();
+                    FileLog.e("screen state = " + isScreenOn);
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+            }
+        });
+        startupGraph.add("userConfig", true, new Runnable() {
+            @Override
+            public void run() {
+                UserConfig.loadConfig();
+            }
+        });
+        startupGraph.add("messagesController", false, new Runnable() {
+            @Override
+            public void run() {
+                MessagesController.getInstance();
+            }
+        }, "userConfig");
+        startupGraph.add("connections", false, new Runnable() {
+            @Override
+            public void run() {
+                String deviceModel;
+                String langCode;
+                String appVersion;
+                String systemVersion;
+                String configPath = getFilesDirFixed().toString();
+
+                try {
+                    langCode = LocaleController.getLocaleStringIso639();
+                    deviceModel = Build.MANUFACTURER + Build.MODEL;
+                    PackageInfo pInfo = ApplicationLoader.applicationContext.getPackageManager().getPackageInfo(ApplicationLoader.applicationContext.getPackageName(), 0);
+                    appVersion = pInfo.versionName + " (" + pInfo.versionCode + ")";
+                    systemVersion = "SDK " + Build.VERSION.SDK_INT;
+                } catch (Exception e) {
+                    langCode = "en";
+                    deviceModel = "Android unknown";
+                    appVersion = "App version unknown";
+                    systemVersion = "SDK " + Build.VERSION.SDK_INT;
+                }
+                if (langCode.trim().length() == 0) {
+                    langCode = "en";
+                }
+                if (deviceModel.trim().length() == 0) {
+                    deviceModel = "Android unknown";
+                }
+                if (appVersion.trim().length() == 0) {
+                    appVersion = "App version unknown";
+                }
+                if (systemVersion.trim().length() == 0) {
+                    systemVersion = "SDK Unknown";
+                }
 
-        UserConfig.loadConfig();
-        String deviceModel;
-        String langCode;
-        String appVersion;
-        String systemVersion;
-        String configPath = getFilesDirFixed().toString();
+                SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Activity.MODE_PRIVATE);
+                boolean enablePushConnection = preferences.getBoolean("pushConnection", true);
 
-        try {
-            langCode = LocaleController.getLocaleStringIso639();
-            deviceModel = Build.MANUFACTURER + Build.MODEL;
-            PackageInfo pInfo = ApplicationLoader.applicationContext.getPackageManager().getPackageInfo(ApplicationLoader.applicationContext.getPackageName(), 0);
-            appVersion = pInfo.versionName + " (" + pInfo.versionCode + ")";
-            systemVersion = "SDK " + Build.VERSION.SDK_INT;
-        } catch (Exception e) {
-            langCode = "en";
-            deviceModel = "Android unknown";
-            appVersion = "App version unknown";
-            systemVersion = "SDK " + Build.VERSION.SDK_INT;
-        }
-        if (langCode.trim().length() == 0) {
-            langCode = "en";
-        }
-        if (deviceModel.trim().length() == 0) {
-            deviceModel = "Android unknown";
-        }
-        if (appVersion.trim().length() == 0) {
-            appVersion = "App version unknown";
-        }
-        if (systemVersion.trim().length() == 0) {
-            systemVersion = "SDK Unknown";
-        }
+                ConnectionsManager.getInstance().init(BuildVars.BUILD_VERSION, TLRPC.LAYER, BuildVars.APP_ID, deviceModel, systemVersion, appVersion, langCode, configPath, FileLog.getNetworkLogPath(), UserConfig.getClientUserId(), enablePushConnection);
+            }
+        }, "config", "locale", "userConfig", "messagesController");
+        startupGraph.add("account", false, new Runnable() {
+            @Override
+            public void run() {
+                if (UserConfig.getCurrentUser() != null) {
+                    MessagesController.getInstance().putUser(UserConfig.getCurrentUser(), true);
+                    ConnectionsManager.getInstance().applyCountryPortNumber(UserConfig.getCurrentUser().phone);
+                    MessagesController.getInstance().getBlockedUsers(true);
+                    SendMessagesHelper.getInstance().checkUnsentMessages();
+                }
 
-        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("Notifications", Activity.MODE_PRIVATE);
-        boolean enablePushConnection = preferences.getBoolean("pushConnection", true);
+                ApplicationLoader app = (ApplicationLoader)ApplicationLoader.applicationContext;
+                app.initPlayServices();
+                FileLog.e("app initied");
+            }
+        }, "connections");
+        startupGraph.addDeferred("contactsAccount", false, new Runnable() {
+            @Override
+            public void run() {
+                ContactsController.getInstance().checkAppAccount();
+            }
+        }, "account");
+        startupGraph.addDeferred("media", false, new Runnable() {
+            @Override
+            public void run() {
+                MediaController.getInstance();
+            }
+        }, "account");
+        Utilities.globalQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                Emoji.preload();
+            }
+        });
+        startupGraph.run();
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                onFirstFrame();
+            }
+        }, 3000);
+    }
 
-        MessagesController.getInstance();
-        ConnectionsManager.getInstance().init(BuildVars.BUILD_VERSION, TLRPC.LAYER, BuildVars.APP_ID, deviceModel, systemVersion, appVersion, langCode, configPath, FileLog.getNetworkLogPath(), UserConfig.getClientUserId(), enablePushConnection);
-        if (UserConfig.getCurrentUser() != null) {
-            MessagesController.getInstance().putUser(UserConfig.getCurrentUser(), true);
-            ConnectionsManager.getInstance().applyCountryPortNumber(UserConfig.getCurrentUser().phone);
-            MessagesController.getInstance().getBlockedUsers(true);
-            SendMessagesHelper.getInstance().checkUnsentMessages();
+    /**
+     * Starts the init work that was put off until the UI is up, called by the first drawn activity.
+     * When the process starts without UI it runs anyway a few seconds after init.
+     */
+    public static void onFirstFrame() {
+        if (startupGraph != null) {
+            startupGraph.release();
         }
-
-        ApplicationLoader app = (ApplicationLoader)ApplicationLoader.applicationContext;
-        app.initPlayServices();
-        FileLog.e("app initied");
-
-        ContactsController.getInstance().checkAppAccount();
-        MediaController.getInstance();
     }
 
     @Override
@@ -47,7 +47,9 @@ public class ContactsController {
     private final Object observerLock = new Object();
     public boolean contactsLoaded = false;
     private boolean contactsBookLoaded = false;
-    private String lastContactsVersions = "";
+    private IntIntHashMap contactsVersions;
+    private ArrayList<Integer> changedContactIds = new ArrayList<>();
+    private ArrayList<Integer> deletedContactIds = new ArrayList<>();
     private ArrayList<Integer> delayedContactsUpdate = new ArrayList<>();
     private String inviteText;
     private boolean updatingInviteText = false;
@@ -102,6 +104,8 @@ public class ContactsController {
 
     private int completedRequestsCount;
 
+    private static final int MAX_INCREMENTAL_CONTACTS = 500;
+
     private static volatile ContactsController Instance = null;
 
     public static ContactsController getInstance() {
@@ -163,7 +167,7 @@ public class ContactsController {
         contactsSyncInProgress = false;
         contactsLoaded = false;
         contactsBookLoaded = false;
-        lastContactsVersions = "";
+        contactsVersions = null;
         loadingDeleteInfo = 0;
         deleteAccountTTL = 0;
         loadingLastSeenInfo = 0;
@@ -282,8 +286,22 @@ public class ContactsController {
             @Override
             public void run() {
                 if (checkContactsInternal()) {
-                    FileLog.e("detected contacts change");
-                    ContactsController.getInstance().performSyncPhoneBook(ContactsController.getInstance().getContactsCopy(ContactsController.getInstance().contactsBook), true, false, true, false);
+                    FileLog.e("detected contacts change, changed = " + changedContactIds.size() + " deleted = " + deletedContactIds.size());
+                    if (contactsBookLoaded && changedContactIds.size() + deletedContactIds.size() <= MAX_INCREMENTAL_CONTACTS) {
+                        HashMap<Integer, Contact> book = contactsBook;
+                        HashMap<Integer, Contact> oldContacts = new HashMap<>();
+                        ArrayList<Integer> replacedIds = new ArrayList<>(changedContactIds);
+                        replacedIds.addAll(deletedContactIds);
+                        for (int a = 0; a < replacedIds.size(); a++) {
+                            Contact contact = book.get(replacedIds.get(a));
+                            if (contact != null) {
+                                oldContacts.put(contact.id, contact);
+                            }
+                        }
+                        performSyncPhoneBook(getContactsCopy(oldContacts), new ArrayList<>(changedContactIds), replacedIds, true, false, true, false);
+                    } else {
+                        performSyncPhoneBook(getContactsCopy(contactsBook), true, false, true, false);
+                    }
                 }
             }
         });
@@ -298,8 +316,15 @@ public class ContactsController {
         });
     }
 
+    /**
+     * Compares the version of every phonebook contact with the previous check, the version of a contact
+     * is a digest of the versions of its raw contacts. Fills changedContactIds and deletedContactIds,
+     * the first call only remembers the versions.
+     */
     private boolean checkContactsInternal() {
         boolean reload = false;
+        changedContactIds.clear();
+        deletedContactIds.clear();
         try {
             if (!hasContactsPermission()) {
                 return false;
@@ -307,18 +332,40 @@ public class ContactsController {
             ContentResolver cr = ApplicationLoader.applicationContext.getContentResolver();
             Cursor pCur = null;
             try {
-                pCur = cr.query(ContactsContract.RawContacts.CONTENT_URI, new String[]{ContactsContract.RawContacts.VERSION}, null, null, null);
+                pCur = cr.query(ContactsContract.RawContacts.CONTENT_URI, new String[]{ContactsContract.RawContacts._ID, ContactsContract.RawContacts.CONTACT_ID, ContactsContract.RawContacts.VERSION}, ContactsContract.RawContacts.DELETED + " = 0", null, null);
                 if (pCur != null) {
-                    StringBuilder currentVersion = new StringBuilder();
+                    IntIntHashMap newVersions = new IntIntHashMap(contactsVersions != null ? contactsVersions.size() : 16);
+                    IntHashSet ids = new IntHashSet();
+                    ArrayList<Integer> idsArr = new ArrayList<>();
                     while (pCur.moveToNext()) {
-                        int col = pCur.getColumnIndex(ContactsContract.RawContacts.VERSION);
-                        currentVersion.append(pCur.getString(col));
+                        int id = pCur.getInt(1);
+                        if (id == 0) {
+                            continue;
+                        }
+                        int hash = pCur.getInt(0) * 0x9e3779b9 ^ pCur.getInt(2) * 0x85ebca6b;
+                        newVersions.put(id, newVersions.get(id) + hash);
+                        if (ids.add(id)) {
+                            idsArr.add(id);
+                        }
                     }
-                    String newContactsVersion = currentVersion.toString();
-                    if (lastContactsVersions.length() != 0 && !lastContactsVersions.equals(newContactsVersion)) {
-                        reload = true;
+                    IntIntHashMap oldVersions = contactsVersions;
+                    if (oldVersions != null) {
+                        for (int a = 0; a < idsArr.size(); a++) {
+                            int id = idsArr.get(a);
+                            if (!oldVersions.containsKey(id) || oldVersions.get(id) != newVersions.get(id)) {
+                                changedContactIds.add(id);
+                            }
+                        }
+                        if (oldVersions.size() + changedContactIds.size() != idsArr.size()) {
+                            for (Integer id : contactsBook.keySet()) {
+                                if (!ids.contains(id)) {
+                                    deletedContactIds.add(id);
+                                }
+                            }
+                        }
+                        reload = !changedContactIds.isEmpty() || !deletedContactIds.isEmpty();
                     }
-                    lastContactsVersions = newContactsVersion;
+                    contactsVersions = newVersions;
                 }
             } catch (Exception e) {
                 FileLog.e(e);
@@ -355,17 +402,21 @@ public class ContactsController {
         });
     }
 
-    private HashMap<Integer, Contact> readContactsFromPhoneBook() {
+    /**
+     * @param onlyIds contact ids to read, null to read the whole phonebook.
+     */
+    private HashMap<Integer, Contact> readContactsFromPhoneBook(ArrayList<Integer> onlyIds) {
         HashMap<Integer, Contact> contactsMap = new HashMap<>();
         try {
-            if (!hasContactsPermission()) {
+            if (!hasContactsPermission() || onlyIds != null && onlyIds.isEmpty()) {
                 return contactsMap;
             }
             ContentResolver cr = ApplicationLoader.applicationContext.getContentResolver();
 
             HashMap<String, Contact> shortContacts = new HashMap<>();
             ArrayList<Integer> idsArr = new ArrayList<>();
-            Cursor pCur = cr.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, projectionPhones, null, null, null);
+            String selection = onlyIds != null ? ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " IN (" + TextUtils.join(",", onlyIds) + ")" : null;
+            Cursor pCur = cr.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, projectionPhones, selection, null, null);
             if (pCur != null) {
                 if (pCur.getCount() > 0) {
                     while (pCur.moveToNext()) {
@@ -547,6 +598,15 @@ public class ContactsController {
     }
 
     protected void performSyncPhoneBook(final HashMap<Integer, Contact> contactHashMap, final boolean request, final boolean first, final boolean schedule, final boolean force) {
+        performSyncPhoneBook(contactHashMap, null, null, request, first, schedule, force);
+    }
+
+    /**
+     * With changedIds only those phonebook contacts are read and compared with contactHashMap, which then holds
+     * just the old state of the replaced contacts. The result is merged into the current book and the cache rows
+     * of replacedIds, changed and deleted contacts, are rewritten.
+     */
+    private void performSyncPhoneBook(final HashMap<Integer, Contact> contactHashMap, final ArrayList<Integer> changedIds, final ArrayList<Integer> replacedIds, final boolean request, final boolean first, final boolean schedule, final boolean force) {
         if (!first && !contactsBookLoaded) {
             return;
         }
@@ -590,8 +650,17 @@ public class ContactsController {
                 if (!schedule) {
                     checkContactsInternal();
                 }
-                final HashMap<Integer, Contact> contactsMap = readContactsFromPhoneBook();
+                final HashMap<Integer, Contact> contactsMap = readContactsFromPhoneBook(changedIds);
                 final HashMap<String, Contact> contactsBookShort = new HashMap<>();
+                if (replacedIds != null) {
+                    //only changed contacts were read and all of them are merged into the book, including the new ones that skip the diff below
+                    for (HashMap.Entry<Integer, Contact> pair : contactsMap.entrySet()) {
+                        Contact value = pair.getValue();
+                        for (int a = 0; a < value.shortPhones.size(); a++) {
+                            contactsBookShort.put(value.shortPhones.get(a), value);
+                        }
+                    }
+                }
                 int oldCount = contactHashMap.size();
 
                 ArrayList<TLRPC.TL_inputPhoneContact> toImport = new ArrayList<>();
@@ -701,7 +770,7 @@ public class ContactsController {
                         return;
                     }
                     if (request && !contactHashMap.isEmpty() && !contactsMap.isEmpty()) {
-                        if (toImport.isEmpty()) {
+                        if (toImport.isEmpty() && replacedIds == null) {
                             MessagesStorage.getInstance().putCachedPhoneBook(contactsMap);
                         }
                         if (!disableDeletion && !contactHashMap.isEmpty()) {
@@ -826,8 +895,8 @@ public class ContactsController {
                                             }
                                         }
 
-                                        if (completedRequestsCount == count && !contactsMapToSave.isEmpty()) {
-                                            MessagesStorage.getInstance().putCachedPhoneBook(contactsMapToSave);
+                                        if (completedRequestsCount == count && (!contactsMapToSave.isEmpty() || replacedIds != null)) {
+                                            MessagesStorage.getInstance().putCachedPhoneBook(contactsMapToSave, replacedIds);
                                         }
 
                                         /*if (BuildVars.DEBUG_VERSION) {
@@ -850,8 +919,7 @@ public class ContactsController {
                                         Utilities.stageQueue.postRunnable(new Runnable() {
                                             @Override
                                             public void run() {
-                                                contactsBookSPhones = contactsBookShort;
-                                                contactsBook = contactsMap;
+                                                setPhoneBook(contactsMap, contactsBookShort, replacedIds);
                                                 contactsSyncInProgress = false;
                                                 contactsBookLoaded = true;
                                                 if (first) {
@@ -868,11 +936,13 @@ public class ContactsController {
                             }, ConnectionsManager.RequestFlagFailOnServerErrors | ConnectionsManager.RequestFlagCanCompress);
                         }
                     } else {
+                        if (replacedIds != null) {
+                            MessagesStorage.getInstance().putCachedPhoneBook(contactsMap, replacedIds);
+                        }
                         Utilities.stageQueue.postRunnable(new Runnable() {
                             @Override
                             public void run() {
-                                contactsBookSPhones = contactsBookShort;
-                                contactsBook = contactsMap;
+                                setPhoneBook(contactsMap, contactsBookShort, replacedIds);
                                 contactsSyncInProgress = false;
                                 contactsBookLoaded = true;
                                 if (first) {
@@ -896,8 +966,7 @@ public class ContactsController {
                     Utilities.stageQueue.postRunnable(new Runnable() {
                         @Override
                         public void run() {
-                            contactsBookSPhones = contactsBookShort;
-                            contactsBook = contactsMap;
+                            setPhoneBook(contactsMap, contactsBookShort, replacedIds);
                             contactsSyncInProgress = false;
                             contactsBookLoaded = true;
                             if (first) {
@@ -917,6 +986,36 @@ public class ContactsController {
         });
     }
 
+    /**
+     * Replaces the phonebook maps, with replacedIds only those contacts are replaced in copies of the
+     * current maps since other queues read them without locking.
+     */
+    private void setPhoneBook(HashMap<Integer, Contact> contactsMap, HashMap<String, Contact> contactsBookShort, ArrayList<Integer> replacedIds) {
+        if (replacedIds == null) {
+            contactsBookSPhones = contactsBookShort;
+            contactsBook = contactsMap;
+            return;
+        }
+        HashMap<Integer, Contact> book = new HashMap<>(contactsBook);
+        HashMap<String, Contact> bookShort = new HashMap<>(contactsBookSPhones);
+        for (int a = 0; a < replacedIds.size(); a++) {
+            Contact old = book.remove(replacedIds.get(a));
+            if (old == null) {
+                continue;
+            }
+            for (int b = 0; b < old.shortPhones.size(); b++) {
+                String sphone = old.shortPhones.get(b);
+                if (bookShort.get(sphone) == old) {
+                    bookShort.remove(sphone);
+                }
+            }
+        }
+        book.putAll(contactsMap);
+        bookShort.putAll(contactsBookShort);
+        contactsBookSPhones = bookShort;
+        contactsBook = book;
+    }
+
     public boolean isLoadingContacts() {
         synchronized (loadContactsSync) {
             return loadingContacts;
@@ -0,0 +1,168 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Formatted timestamps cached by kind, minute and relation to the current day. Day boundaries are
+ * computed once per day instead of running Calendar math on every call, so a hit costs a few
+ * comparisons and an array read. Texts that only show the date share one entry per day. Every
+ * kind has a small direct-mapped table that keeps the rows of the last screens scrolled.
+ */
+public class DateFormatCache {
+
+    public static final int KIND_DATE = 0;
+    public static final int KIND_CHAT = 1;
+    public static final int KIND_AUDIO = 2;
+    public static final int KIND_CALL_LOG = 3;
+    public static final int KIND_ONLINE = 4;
+    public static final int KIND_LIST = 5;
+    private static final int KINDS_COUNT = 6;
+
+    public static final int RANGE_TODAY = 0;
+    public static final int RANGE_YESTERDAY = 1;
+    public static final int RANGE_WEEK = 2;
+    public static final int RANGE_YEAR = 3;
+    public static final int RANGE_OLDER = 4;
+
+    private static final int TABLE_SIZE = 256;
+    private static final long YEAR_MILLIS = 31536000000L;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static class Entry {
+        private final long key;
+        private final String value;
+
+        private Entry(long key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final Entry[][] tables = new Entry[KINDS_COUNT][TABLE_SIZE];
+    private final StringBuffer buffer = new StringBuffer(64);
+    private volatile long[] dayBounds = new long[4];
+    private volatile TimeZone timeZone = TimeZone.getDefault();
+    private int misses;
+
+    /**
+     * Drops every cached text, called when the language, the formatters or the time zone change.
+     */
+    public synchronized void clear() {
+        for (int a = 0; a < KINDS_COUNT; a++) {
+            Entry[] table = tables[a];
+            for (int b = 0; b < TABLE_SIZE; b++) {
+                table[b] = null;
+            }
+        }
+        timeZone = TimeZone.getDefault();
+        dayBounds = new long[4];
+    }
+
+    /**
+     * Start of the day 6 days ago, of yesterday, of today and of tomorrow.
+     */
+    private synchronized long[] updateDayBounds(long now) {
+        long[] bounds = dayBounds;
+        if (now >= bounds[2] && now < bounds[3]) {
+            return bounds;
+        }
+        if (bounds[3] != 0) {
+            for (int a = 0; a < KINDS_COUNT; a++) {
+                Entry[] table = tables[a];
+                for (int b = 0; b < TABLE_SIZE; b++) {
+                    table[b] = null;
+                }
+            }
+            if (BuildVars.DEBUG_VERSION) {
+                FileLog.d("date format cache reset on day change, " + misses + " texts formatted");
+            }
+        }
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        bounds = new long[4];
+        bounds[2] = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_YEAR, -1);
+        bounds[1] = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_YEAR, -5);
+        bounds[0] = calendar.getTimeInMillis();
+        calendar.setTimeInMillis(bounds[2]);
+        calendar.add(Calendar.DAY_OF_YEAR, 1);
+        bounds[3] = calendar.getTimeInMillis();
+        dayBounds = bounds;
+        return bounds;
+    }
+
+    /**
+     * @param date unix time in seconds.
+     */
+    public String format(int kind, long date) {
+        long now = System.currentTimeMillis();
+        long[] bounds = dayBounds;
+        if (now < bounds[2] || now >= bounds[3]) {
+            bounds = updateDayBounds(now);
+        }
+        long millis = date * 1000;
+        int range;
+        if (millis >= bounds[2] && millis < bounds[3]) {
+            range = RANGE_TODAY;
+        } else if (millis >= bounds[1] && millis < bounds[2]) {
+            range = RANGE_YESTERDAY;
+        } else if (millis >= bounds[0] && millis < bounds[1]) {
+            range = RANGE_WEEK;
+        } else if (Math.abs(now - millis) < YEAR_MILLIS) {
+            range = RANGE_YEAR;
+        } else {
+            range = RANGE_OLDER;
+        }
+        if (kind == KIND_LIST && range == RANGE_YESTERDAY && now - millis < 60 * 60 * 8 * 1000) {
+            range = RANGE_TODAY;
+        }
+
+        long bucket;
+        if (isDateOnly(kind, range)) {
+            long local = millis + timeZone.getOffset(millis);
+            bucket = (local >= 0 ? local / DAY_MILLIS : (local + 1) / DAY_MILLIS - 1) << 1 | 1;
+        } else {
+            bucket = (date >= 0 ? date / 60 : (date - 59) / 60) << 1;
+        }
+        long key = bucket << 3 | range;
+        Entry[] table = tables[kind];
+        int index = (int) (bucket ^ bucket >>> 17) & (TABLE_SIZE - 1);
+        Entry entry = table[index];
+        if (entry != null && entry.key == key) {
+            return entry.value;
+        }
+        synchronized (this) {
+            buffer.setLength(0);
+            String value = LocaleController.getInstance().formatDateRange(kind, range, millis, buffer);
+            table[index] = new Entry(key, value);
+            misses++;
+            return value;
+        }
+    }
+
+    private static boolean isDateOnly(int kind, int range) {
+        switch (kind) {
+            case KIND_CHAT:
+                return true;
+            case KIND_DATE:
+            case KIND_LIST:
+                return range != RANGE_TODAY;
+            default:
+                return false;
+        }
+    }
+}
@@ -11,6 +11,7 @@ package org.blaez.ziosgram;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 import java.util.concurrent.CountDownLatch;
 
@@ -18,8 +19,12 @@ public class DispatchQueue extends Thread {
 
     private volatile Handler handler = null;
     private CountDownLatch syncLatch = new CountDownLatch(1);
+    private MetricsRegistry.Histogram waitHistogram;
+    private MetricsRegistry.Histogram execHistogram;
 
     public DispatchQueue(final String threadName) {
+        waitHistogram = MetricsRegistry.histogram("queue." + threadName + ".wait");
+        execHistogram = MetricsRegistry.histogram("queue." + threadName + ".exec", 16000);
         setName(threadName);
         start();
     }
@@ -75,7 +80,19 @@ public class DispatchQueue extends Thread {
     @Override
     public void run() {
         Looper.prepare();
-        handler = new Handler();
+        handler = new Handler() {
+            @Override
+            public void dispatchMessage(Message msg) {
+                if (!MetricsRegistry.enabled) {
+                    super.dispatchMessage(msg);
+                    return;
+                }
+                long startTime = System.nanoTime();
+                waitHistogram.record(Math.max(0, SystemClock.uptimeMillis() - msg.getWhen()) * 1000);
+                super.dispatchMessage(msg);
+                execHistogram.recordSince(startTime);
+            }
+        };
         syncLatch.countDown();
         Looper.loop();
     }
@@ -33,6 +33,8 @@ import android.widget.TextView;
 
 public class Emoji {
     private static HashMap<CharSequence, DrawableInfo> rects = new HashMap<>();
+    private static DrawableInfo[] drawableInfos;
+    private static EmojiTrie emojiTrie;
     private static int drawImgSize;
     private static int bigImgSize;
     private static boolean inited = false;
@@ -65,6 +67,13 @@ public class Emoji {
         drawImgSize = AndroidUtilities.dp(20);
         bigImgSize = AndroidUtilities.dp(AndroidUtilities.isTablet() ? 40 : 32);
 
+        int totalCount = 0;
+        for (int j = 0; j < EmojiData.data.length; j++) {
+            totalCount += EmojiData.data[j].length;
+        }
+        String[] codes = new String[totalCount];
+        drawableInfos = new DrawableInfo[totalCount];
+        int index = 0;
         for (int j = 0; j < EmojiData.data.length; j++) {
             int count2 = (int) Math.ceil(EmojiData.data[j].length / (float) splitCount);
             int position;
@@ -74,13 +83,24 @@ public class Emoji {
                 int row = position % cols[j][page];
                 int col = position / cols[j][page];
                 Rect rect = new Rect(row * emojiFullSize + row * add, col * emojiFullSize + col * add, (row + 1) * emojiFullSize + row * add, (col + 1) * emojiFullSize + col * add);
-                rects.put(EmojiData.data[j][i], new DrawableInfo(rect, (byte) j, (byte) page, i));
+                DrawableInfo info = new DrawableInfo(rect, (byte) j, (byte) page, i);
+                rects.put(EmojiData.data[j][i], info);
+                codes[index] = EmojiData.data[j][i];
+                drawableInfos[index] = info;
+                index++;
             }
         }
+        emojiTrie = new EmojiTrie(codes);
         placeholderPaint = new Paint();
         placeholderPaint.setColor(0x00000000);
     }
 
+    /**
+     * Does nothing by itself, calling it builds the emoji tables of the static initializer on the calling thread.
+     */
+    public static void preload() {
+    }
+
     private static void loadEmoji(final int page, final int page2) {
         try {
             float scale;
@@ -343,123 +363,34 @@ public class Emoji {
         } else {
             s = Spannable.Factory.getInstance().newSpannable(cs.toString());
         }
-        long buf = 0;
         int emojiCount = 0;
-        char c;
-        int startIndex = -1;
-        int startLength = 0;
-        int previousGoodIndex = 0;
-        StringBuilder emojiCode = new StringBuilder(16);
-        StringBuilder addionalCode = new StringBuilder(2);
-        boolean nextIsSkinTone;
+        int length = cs.length();
+        long match;
+        int matchLength;
         EmojiDrawable drawable;
         EmojiSpan span;
-        int length = cs.length();
-        boolean doneEmoji = false;
-        int nextValidLength;
-        boolean nextValid;
-        //s.setSpansCount(emojiCount);
 
         try {
-            for (int i = 0; i < length; i++) {
-                c = cs.charAt(i);
-                if (c >= 0xD83C && c <= 0xD83E || (buf != 0 && (buf & 0xFFFFFFFF00000000L) == 0 && (buf & 0xFFFF) == 0xD83C && (c >= 0xDDE6 && c <= 0xDDFF))) {
-                    if (startIndex == -1) {
-                        startIndex = i;
-                    }
-                    emojiCode.append(c);
-                    startLength++;
-                    buf <<= 16;
-                    buf |= c;
-                } else if (emojiCode.length() > 0 && (c == 0x2640 || c == 0x2642 || c == 0x2695)) {
-                    emojiCode.append(c);
-                    startLength++;
-                    buf = 0;
-                    doneEmoji = true;
-                } else if (buf > 0 && (c & 0xF000) == 0xD000) {
-                    emojiCode.append(c);
-                    startLength++;
-                    buf = 0;
-                    doneEmoji = true;
-                } else if (c == 0x20E3) {
-                    if (i > 0) {
-                        char c2 = cs.charAt(previousGoodIndex);
-                        if ((c2 >= '0' && c2 <= '9') || c2 == '#' || c2 == '*') {
-                            startIndex = previousGoodIndex;
-                            startLength = i - previousGoodIndex + 1;
-                            emojiCode.append(c2);
-                            emojiCode.append(c);
-                            doneEmoji = true;
-                        }
-                    }
-                } else if ((c == 0x00A9 || c == 0x00AE || c >= 0x203C && c <= 0x3299) && EmojiData.dataCharsMap.containsKey(c)) {
-                    if (startIndex == -1) {
-                        startIndex = i;
-                    }
-                    startLength++;
-                    emojiCode.append(c);
-                    doneEmoji = true;
-                } else if (startIndex != -1) {
-                    emojiCode.setLength(0);
-                    startIndex = -1;
-                    startLength = 0;
-                    doneEmoji = false;
-                } else if (c != 0xfe0f) {
-                    if (emojiOnly != null) {
+            for (int i = 0; i < length; ) {
+                match = emojiTrie.match(cs, i, length);
+                matchLength = (int) (match >>> 32);
+                if (matchLength == 0) {
+                    if (emojiOnly != null && cs.charAt(i) != 0xfe0f) {
                         emojiOnly[0] = 0;
                         emojiOnly = null;
                     }
+                    i++;
+                    continue;
                 }
-                if (doneEmoji && i + 2 < length && cs.charAt(i + 1) == 0xD83C) {
-                    char next = cs.charAt(i + 2);
-                    if (next >= 0xDFFB && next <= 0xDFFF) {
-                        emojiCode.append(cs.subSequence(i + 1, i + 3));
-                        startLength += 2;
-                        i += 2;
-                    }
-                }
-                previousGoodIndex = i;
-                for (int a = 0; a < 3; a++) {
-                    if (i + 1 < length) {
-                        c = cs.charAt(i + 1);
-                        if (a == 1) {
-                            if (c == 0x200D && emojiCode.length() > 0) {
-                                emojiCode.append(c);
-                                i++;
-                                startLength++;
-                                doneEmoji = false;
-                            }
-                        } else {
-                            if (c >= 0xFE00 && c <= 0xFE0F) {
-                                i++;
-                                startLength++;
-                            }
-                        }
-                    }
-                }
-                if (doneEmoji && i + 2 < length && cs.charAt(i + 1) == 0xD83C) {
-                    char next = cs.charAt(i + 2);
-                    if (next >= 0xDFFB && next <= 0xDFFF) {
-                        emojiCode.append(cs.subSequence(i + 1, i + 3));
-                        startLength += 2;
-                        i += 2;
-                    }
-                }
-                if (doneEmoji) {
-                    if (emojiOnly != null) {
-                        emojiOnly[0]++;
-                    }
-                    drawable = Emoji.getEmojiDrawable(emojiCode.subSequence(0, emojiCode.length()));
-                    if (drawable != null) {
-                        span = new EmojiSpan(drawable, DynamicDrawableSpan.ALIGN_BOTTOM, size, fontMetrics);
-                        s.setSpan(span, startIndex, startIndex + startLength, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        emojiCount++;
-                    }
-                    startLength = 0;
-                    startIndex = -1;
-                    emojiCode.setLength(0);
-                    doneEmoji = false;
+                if (emojiOnly != null) {
+                    emojiOnly[0]++;
                 }
+                drawable = new EmojiDrawable(drawableInfos[(int) match]);
+                drawable.setBounds(0, 0, drawImgSize, drawImgSize);
+                span = new EmojiSpan(drawable, DynamicDrawableSpan.ALIGN_BOTTOM, size, fontMetrics);
+                s.setSpan(span, i, i + matchLength, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                emojiCount++;
+                i += matchLength;
                 if (Build.VERSION.SDK_INT < 23 && emojiCount >= 50) {
                     break;
                 }
@@ -0,0 +1,135 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable trie over the UTF-16 units of the known emoji sequences. Children of every node are
+ * stored contiguously and sorted, so matching is a binary search per character and never allocates.
+ * Variation selectors are skipped while matching, the same way the emoji keys are stored without them.
+ */
+public class EmojiTrie {
+
+    private char[] nodeChars;
+    private int[] childStart;
+    private int[] childCount;
+    private int[] values;
+
+    private static class BuildNode {
+        TreeMap<Character, BuildNode> children = new TreeMap<>();
+        int value = -1;
+    }
+
+    public EmojiTrie(String[] codes) {
+        BuildNode root = new BuildNode();
+        int nodesCount = 1;
+        for (int a = 0; a < codes.length; a++) {
+            String code = codes[a];
+            BuildNode node = root;
+            for (int b = 0; b < code.length(); b++) {
+                char c = code.charAt(b);
+                if (isVariationSelector(c)) {
+                    continue;
+                }
+                BuildNode child = node.children.get(c);
+                if (child == null) {
+                    child = new BuildNode();
+                    node.children.put(c, child);
+                    nodesCount++;
+                }
+                node = child;
+            }
+            if (node != root) {
+                node.value = a;
+            }
+        }
+
+        nodeChars = new char[nodesCount];
+        childStart = new int[nodesCount];
+        childCount = new int[nodesCount];
+        values = new int[nodesCount];
+
+        ArrayList<BuildNode> queue = new ArrayList<>(nodesCount);
+        queue.add(root);
+        values[0] = -1;
+        int next = 1;
+        for (int index = 0; index < queue.size(); index++) {
+            BuildNode node = queue.get(index);
+            childStart[index] = next;
+            childCount[index] = node.children.size();
+            for (Map.Entry<Character, BuildNode> entry : node.children.entrySet()) {
+                nodeChars[next] = entry.getKey();
+                values[next] = entry.getValue().value;
+                queue.add(entry.getValue());
+                next++;
+            }
+        }
+    }
+
+    private static boolean isVariationSelector(char c) {
+        return c >= 0xFE00 && c <= 0xFE0F;
+    }
+
+    private int findChild(int node, char c) {
+        int low = childStart[node];
+        int high = low + childCount[node] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char value = nodeChars[middle];
+            if (value < c) {
+                low = middle + 1;
+            } else if (value > c) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the longest emoji sequence starting at start.
+     *
+     * @return 0 if there is none, otherwise the matched length in chars (including trailing variation
+     *     selectors) in the high 32 bits and the index of the matched code in the low 32 bits.
+     */
+    public long match(CharSequence cs, int start, int end) {
+        int node = 0;
+        int bestLength = 0;
+        int bestValue = -1;
+        int i = start;
+        while (i < end) {
+            char c = cs.charAt(i);
+            if (node != 0 && isVariationSelector(c)) {
+                i++;
+                if (values[node] == bestValue && bestValue != -1) {
+                    bestLength = i - start;
+                }
+                continue;
+            }
+            int child = findChild(node, c);
+            if (child == -1) {
+                break;
+            }
+            node = child;
+            i++;
+            if (values[node] != -1) {
+                bestLength = i - start;
+                bestValue = values[node];
+            }
+        }
+        if (bestLength == 0) {
+            return 0;
+        }
+        return ((long) bestLength << 32) | (bestValue & 0xffffffffL);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Int keyed registry with a bounded strong tier and a soft tier behind it. Reads are lock-free, every
+ * read marks the entry as referenced and the trim gives referenced entries a second chance before
+ * moving them to the soft tier, where they stay as long as something else holds them or until the
+ * GC needs the memory. Ids that left the strong tier are remembered so callers can tell a dropped
+ * entity, worth reloading from the database, from one that was never known. Pinned ids are never
+ * moved out of the strong tier.
+ */
+public class EntityRegistry<V> {
+
+    private static class Node<V> {
+        private final V value;
+        private volatile boolean referenced;
+
+        private Node(V value) {
+            this.value = value;
+        }
+    }
+
+    private static class SoftNode<V> extends SoftReference<V> {
+        private final int id;
+
+        private SoftNode(int id, V value, ReferenceQueue<? super V> queue) {
+            super(value, queue);
+            this.id = id;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Node<V>> strong = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private final ConcurrentHashMap<Integer, SoftNode<V>> soft = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private final ReferenceQueue<V> queue = new ReferenceQueue<>();
+    private final IntHashSet evicted = new IntHashSet();
+    private volatile IntHashSet pinned = new IntHashSet();
+    private final int maxSize;
+    private final int trimSize;
+    private int evictedCount;
+
+    public EntityRegistry(int maxSize) {
+        this.maxSize = maxSize;
+        trimSize = maxSize + Math.max(maxSize / 10, 16);
+    }
+
+    public V get(int id) {
+        Node<V> node = strong.get(id);
+        if (node != null) {
+            node.referenced = true;
+            return node.value;
+        }
+        SoftNode<V> softNode = soft.get(id);
+        if (softNode != null) {
+            V value = softNode.get();
+            if (value != null) {
+                return promote(id, softNode, value);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves a soft entry back to the strong tier unless a value was put for the id in the meantime,
+     * in which case that newer value is returned.
+     */
+    private V promote(int id, SoftNode<V> softNode, V value) {
+        Node<V> node = new Node<>(value);
+        node.referenced = true;
+        synchronized (evicted) {
+            Node<V> current = strong.putIfAbsent(id, node);
+            if (current != null) {
+                current.referenced = true;
+                return current.value;
+            }
+            soft.remove(id, softNode);
+            evicted.remove(id);
+        }
+        if (strong.size() > trimSize) {
+            trim();
+        }
+        return value;
+    }
+
+    public void put(int id, V value) {
+        Node<V> node = new Node<>(value);
+        node.referenced = true;
+        synchronized (evicted) {
+            evicted.remove(id);
+        }
+        soft.remove(id);
+        strong.put(id, node);
+        if (strong.size() > trimSize) {
+            trim();
+        }
+    }
+
+    public void remove(int id) {
+        strong.remove(id);
+        soft.remove(id);
+        synchronized (evicted) {
+            evicted.remove(id);
+        }
+    }
+
+    /**
+     * Replaces the set of ids that must stay in memory, the set must not be changed afterwards.
+     */
+    public void setPinned(IntHashSet ids) {
+        pinned = ids;
+    }
+
+    public boolean wasEvicted(int id) {
+        synchronized (evicted) {
+            return evicted.contains(id);
+        }
+    }
+
+    public int size() {
+        return strong.size();
+    }
+
+    public void clear() {
+        synchronized (evicted) {
+            strong.clear();
+            soft.clear();
+            evicted.clear();
+        }
+    }
+
+    private void trim() {
+        int count = 0;
+        IntHashSet pinned = this.pinned;
+        synchronized (evicted) {
+            for (int pass = 0; pass < 2 && strong.size() > maxSize; pass++) {
+                Iterator<Map.Entry<Integer, Node<V>>> iterator = strong.entrySet().iterator();
+                while (iterator.hasNext() && strong.size() > maxSize) {
+                    Map.Entry<Integer, Node<V>> entry = iterator.next();
+                    Node<V> node = entry.getValue();
+                    if (pinned.contains(entry.getKey())) {
+                        continue;
+                    }
+                    if (node.referenced) {
+                        node.referenced = false;
+                        continue;
+                    }
+                    int id = entry.getKey();
+                    SoftNode<V> softNode = new SoftNode<>(id, node.value, queue);
+                    soft.put(id, softNode);
+                    evicted.add(id);
+                    if (strong.remove(id, node)) {
+                        count++;
+                    } else {
+                        soft.remove(id, softNode);
+                        evicted.remove(id);
+                    }
+                }
+            }
+            SoftNode<V> cleared;
+            while ((cleared = (SoftNode<V>) queue.poll()) != null) {
+                soft.remove(cleared.id, cleared);
+            }
+            evictedCount += count;
+        }
+        if (BuildVars.DEBUG_VERSION) {
+            FileLog.d("entity registry trimmed " + count + ", strong = " + strong.size() + " soft = " + soft.size() + " evicted total = " + evictedCount);
+        }
+    }
+}
@@ -16,6 +16,7 @@ import org.blaez.tgnet.TLRPC;
 
 import java.io.RandomAccessFile;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -29,6 +30,16 @@ public class FileLoadOperation {
         private TLRPC.TL_upload_webFile responseWeb;
     }
 
+    private static class Range {
+        private int start;
+        private int end;
+
+        private Range(int s, int e) {
+            start = s;
+            end = e;
+        }
+    }
+
     private final static int stateIdle = 0;
     private final static int stateDownloading = 1;
     private final static int stateFailed = 2;
@@ -40,7 +51,7 @@ public class FileLoadOperation {
     private final static int maxDownloadRequestsBig = 2;
     private final static int bigFileSizeFrom = 1024 * 1024;
 
-    private boolean started;
+    private volatile boolean started;
     private int datacenter_id;
     private TLRPC.InputFileLocation location;
     private TLRPC.TL_inputWebFileLocation webLocation;
@@ -60,16 +71,22 @@ public class FileLoadOperation {
     private ArrayList<RequestInfo> requestInfos;
     private ArrayList<RequestInfo> delayedRequestInfos;
 
-    private File cacheFileTemp;
-    private File cacheFileFinal;
+    private ArrayList<Range> notLoadedBytesRanges;
+    private final Object streamLock = new Object();
+
+    private volatile File cacheFileTemp;
+    private volatile File cacheFileFinal;
     private File cacheIvTemp;
+    private File cacheFileParts;
 
     private String ext;
     private RandomAccessFile fileOutputStream;
     private RandomAccessFile fiv;
+    private RandomAccessFile filePartsStream;
     private File storePath;
     private File tempPath;
     private boolean isForceRequest;
+    private boolean streamable;
 
     private int currentType;
 
@@ -137,6 +154,7 @@ public class FileLoadOperation {
                 location.access_hash = documentLocation.access_hash;
                 datacenter_id = documentLocation.dc_id;
             }
+            streamable = FileLoader.canStreamDocument(documentLocation);
             totalBytesCount = documentLocation.size;
             if (key != null) {
                 int toAdd = 0;
@@ -203,6 +221,86 @@ public class FileLoadOperation {
         return currentType;
     }
 
+    public boolean isStreamable() {
+        return streamable;
+    }
+
+    public boolean isFailed() {
+        return state == stateFailed;
+    }
+
+    public boolean isFinished() {
+        return state == stateFinished;
+    }
+
+    public int getTotalBytesCount() {
+        return totalBytesCount - bytesCountPadding;
+    }
+
+    public File getCurrentFile() {
+        if (state == stateFinished) {
+            return cacheFileFinal;
+        }
+        return started ? cacheFileTemp : null;
+    }
+
+    public int getDownloadedLengthFromOffset(int offset, int length) {
+        synchronized (this) {
+            int total = totalBytesCount - bytesCountPadding;
+            if (state == stateFinished) {
+                return Math.max(0, Math.min(length, total - offset));
+            }
+            if (notLoadedBytesRanges == null) {
+                return offset < downloadedBytes ? Math.min(length, downloadedBytes - offset) : 0;
+            }
+            for (int a = 0; a < notLoadedBytesRanges.size(); a++) {
+                Range range = notLoadedBytesRanges.get(a);
+                if (range.end <= offset) {
+                    continue;
+                }
+                if (range.start <= offset) {
+                    return 0;
+                }
+                return Math.min(length, range.start - offset);
+            }
+            return Math.max(0, Math.min(length, total - offset));
+        }
+    }
+
+    public int waitForDownloadedLength(int offset, int length) throws InterruptedException {
+        synchronized (streamLock) {
+            while (true) {
+                int available = getDownloadedLengthFromOffset(offset, length);
+                if (available != 0 || state == stateFailed || state == stateFinished) {
+                    return available;
+                }
+                streamLock.wait();
+            }
+        }
+    }
+
+    public void setStreamOffset(final int offset) {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (state != stateDownloading || notLoadedBytesRanges == null || getDownloadedLengthFromOffset(offset, 1) != 0) {
+                    return;
+                }
+                nextDownloadOffset = offset / currentDownloadChunkSize * currentDownloadChunkSize;
+                if (BuildVars.DEBUG_VERSION) {
+                    FileLog.d("stream requested offset " + offset + " for " + cacheFileTemp);
+                }
+                startDownloadRequest();
+            }
+        });
+    }
+
+    private void notifyStreamWaiters() {
+        synchronized (streamLock) {
+            streamLock.notifyAll();
+        }
+    }
+
     public String getFileName() {
         if (location != null) {
             return location.volume_id + "_" + location.local_id + "." + ext;
@@ -222,6 +320,7 @@ public class FileLoadOperation {
 
         String fileNameFinal;
         String fileNameTemp;
+        String fileNameParts = null;
         String fileNameIv = null;
         if (webLocation != null) {
             String md5 = Utilities.MD5(webLocation.url);
@@ -249,6 +348,7 @@ public class FileLoadOperation {
                 }
 
                 fileNameTemp = datacenter_id + "_" + location.id + ".temp";
+                fileNameParts = datacenter_id + "_" + location.id + ".pt";
                 fileNameFinal = datacenter_id + "_" + location.id + ext;
                 if (key != null) {
                     fileNameIv = datacenter_id + "_" + location.id + ".iv";
@@ -274,6 +374,35 @@ public class FileLoadOperation {
                 nextDownloadOffset = downloadedBytes = downloadedBytes / currentDownloadChunkSize * currentDownloadChunkSize;
             }
 
+            if (fileNameParts != null && isStreamable()) {
+                cacheFileParts = new File(tempPath, fileNameParts);
+                notLoadedBytesRanges = new ArrayList<>();
+                try {
+                    boolean restore = cacheFileParts.exists() && cacheFileTemp.exists();
+                    filePartsStream = new RandomAccessFile(cacheFileParts, "rw");
+                    if (!restore || !readNotLoadedBytesRanges()) {
+                        notLoadedBytesRanges.clear();
+                        if (downloadedBytes < totalBytesCount) {
+                            notLoadedBytesRanges.add(new Range(downloadedBytes, totalBytesCount));
+                        }
+                        saveNotLoadedBytesRanges();
+                    }
+                } catch (Exception e) {
+                    FileLog.e(e);
+                    notLoadedBytesRanges.clear();
+                    if (downloadedBytes < totalBytesCount) {
+                        notLoadedBytesRanges.add(new Range(downloadedBytes, totalBytesCount));
+                    }
+                }
+                int notLoaded = 0;
+                for (int a = 0; a < notLoadedBytesRanges.size(); a++) {
+                    Range range = notLoadedBytesRanges.get(a);
+                    notLoaded += range.end - range.start;
+                }
+                downloadedBytes = totalBytesCount - notLoaded;
+                nextDownloadOffset = notLoadedBytesRanges.isEmpty() ? totalBytesCount : notLoadedBytesRanges.get(0).start / currentDownloadChunkSize * currentDownloadChunkSize;
+            }
+
             if (BuildVars.DEBUG_VERSION) {
                 FileLog.d("start loading file to temp = " + cacheFileTemp + " final = " + cacheFileFinal);
             }
@@ -295,7 +424,7 @@ public class FileLoadOperation {
             }
             try {
                 fileOutputStream = new RandomAccessFile(cacheFileTemp, "rws");
-                if (downloadedBytes != 0) {
+                if (downloadedBytes != 0 && notLoadedBytesRanges == null) {
                     fileOutputStream.seek(downloadedBytes);
                 }
             } catch (Exception e) {
@@ -374,6 +503,14 @@ public class FileLoadOperation {
         } catch (Exception e) {
             FileLog.e(e);
         }
+        try {
+            if (filePartsStream != null) {
+                filePartsStream.close();
+                filePartsStream = null;
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
         if (delayedRequestInfos != null) {
             for (int a = 0; a < delayedRequestInfos.size(); a++) {
                 RequestInfo requestInfo = delayedRequestInfos.get(a);
@@ -399,6 +536,10 @@ public class FileLoadOperation {
             cacheIvTemp.delete();
             cacheIvTemp = null;
         }
+        if (cacheFileParts != null) {
+            cacheFileParts.delete();
+            cacheFileParts = null;
+        }
         if (cacheFileTemp != null) {
             boolean renameResult = cacheFileTemp.renameTo(cacheFileFinal);
             if (!renameResult) {
@@ -423,6 +564,7 @@ public class FileLoadOperation {
                 cacheFileFinal = cacheFileTemp;
             }
         }
+        notifyStreamWaiters();
         if (BuildVars.DEBUG_VERSION) {
             FileLog.e("finished downloading file to " + cacheFileFinal);
         }
@@ -440,10 +582,128 @@ public class FileLoadOperation {
         }
     }
 
+    private boolean readNotLoadedBytesRanges() throws Exception {
+        int count = filePartsStream.readInt();
+        if (count < 0 || count * 8 + 4 != filePartsStream.length()) {
+            return false;
+        }
+        for (int a = 0; a < count; a++) {
+            int start = filePartsStream.readInt();
+            int end = filePartsStream.readInt();
+            if (start < 0 || end > totalBytesCount || start >= end) {
+                return false;
+            }
+            notLoadedBytesRanges.add(new Range(start, end));
+        }
+        return true;
+    }
+
+    private void saveNotLoadedBytesRanges() throws Exception {
+        int count = notLoadedBytesRanges.size();
+        ByteBuffer buffer = ByteBuffer.allocate(count * 8 + 4);
+        buffer.putInt(count);
+        for (int a = 0; a < count; a++) {
+            Range range = notLoadedBytesRanges.get(a);
+            buffer.putInt(range.start);
+            buffer.putInt(range.end);
+        }
+        filePartsStream.seek(0);
+        filePartsStream.write(buffer.array());
+        filePartsStream.setLength(buffer.capacity());
+    }
+
+    private void removeNotLoadedBytesRange(int start, int end) {
+        synchronized (this) {
+            for (int a = 0; a < notLoadedBytesRanges.size(); a++) {
+                Range range = notLoadedBytesRanges.get(a);
+                if (range.end <= start || range.start >= end) {
+                    continue;
+                }
+                int removed = Math.min(range.end, end) - Math.max(range.start, start);
+                downloadedBytes += removed;
+                if (range.start < start && range.end > end) {
+                    notLoadedBytesRanges.add(a + 1, new Range(end, range.end));
+                    range.end = start;
+                    break;
+                } else if (range.start < start) {
+                    range.end = start;
+                } else if (range.end > end) {
+                    range.start = end;
+                } else {
+                    notLoadedBytesRanges.remove(a);
+                    a--;
+                }
+            }
+        }
+        try {
+            if (filePartsStream != null) {
+                saveNotLoadedBytesRanges();
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        notifyStreamWaiters();
+    }
+
+    private boolean isRequested(int offset) {
+        for (int a = 0; a < requestInfos.size(); a++) {
+            if (requestInfos.get(a).offset == offset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getNextStreamDownloadOffset() {
+        int offset = nextDownloadOffset;
+        for (int b = 0; b < 2; b++) {
+            for (int a = 0; a < notLoadedBytesRanges.size(); a++) {
+                Range range = notLoadedBytesRanges.get(a);
+                if (range.end <= offset) {
+                    continue;
+                }
+                int chunkOffset = Math.max(range.start, offset) / currentDownloadChunkSize * currentDownloadChunkSize;
+                for (; chunkOffset < range.end; chunkOffset += currentDownloadChunkSize) {
+                    if (!isRequested(chunkOffset)) {
+                        return chunkOffset;
+                    }
+                }
+            }
+            offset = 0;
+        }
+        return -1;
+    }
+
+    private void processStreamRequestResult(RequestInfo requestInfo) throws Exception {
+        NativeByteBuffer bytes = requestInfo.response.bytes;
+        if (bytes == null || bytes.limit() == 0) {
+            onFail(false, 0);
+            return;
+        }
+        int currentBytesSize = bytes.limit();
+        if (fileOutputStream != null) {
+            FileChannel channel = fileOutputStream.getChannel();
+            channel.write(bytes.buffer, requestInfo.offset);
+        }
+        removeNotLoadedBytesRange(requestInfo.offset, requestInfo.offset + currentBytesSize);
+        delegate.didChangedLoadProgress(FileLoadOperation.this, Math.min(1.0f, (float) downloadedBytes / (float) totalBytesCount));
+        if (notLoadedBytesRanges.isEmpty()) {
+            onFinishLoadingFile(true);
+        } else {
+            startDownloadRequest();
+        }
+    }
+
     private void processRequestResult(RequestInfo requestInfo, TLRPC.TL_error error) {
         requestInfos.remove(requestInfo);
         if (error == null) {
             try {
+                if (notLoadedBytesRanges != null) {
+                    if (state == stateDownloading) {
+                        processStreamRequestResult(requestInfo);
+                    }
+                    return;
+                }
                 if (downloadedBytes != requestInfo.offset) {
                     if (state == stateDownloading) {
                         delayedRequestInfos.add(requestInfo);
@@ -532,7 +792,7 @@ public class FileLoadOperation {
                     startDownloadRequest();
                 }
             } else if (error.text.contains("OFFSET_INVALID")) {
-                if (downloadedBytes % currentDownloadChunkSize == 0) {
+                if (notLoadedBytesRanges == null && downloadedBytes % currentDownloadChunkSize == 0) {
                     try {
                         onFinishLoadingFile(true);
                     } catch (Exception e) {
@@ -558,6 +818,7 @@ public class FileLoadOperation {
     private void onFail(boolean thread, final int reason) {
         cleanup();
         state = stateFailed;
+        notifyStreamWaiters();
         if (thread) {
             Utilities.stageQueue.postRunnable(new Runnable() {
                 @Override
@@ -571,7 +832,7 @@ public class FileLoadOperation {
     }
 
     private void startDownloadRequest() {
-        if (state != stateDownloading || totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || requestInfos.size() + delayedRequestInfos.size() >= currentMaxDownloadRequests) {
+        if (state != stateDownloading || notLoadedBytesRanges == null && totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || requestInfos.size() + delayedRequestInfos.size() >= currentMaxDownloadRequests) {
             return;
         }
         int count = 1;
@@ -580,17 +841,25 @@ public class FileLoadOperation {
         }
 
         for (int a = 0; a < count; a++) {
-            if (totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount) {
-                break;
+            int offset;
+            if (notLoadedBytesRanges != null) {
+                offset = getNextStreamDownloadOffset();
+                if (offset < 0) {
+                    break;
+                }
+            } else {
+                if (totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount) {
+                    break;
+                }
+                offset = nextDownloadOffset;
             }
-            boolean isLast = totalBytesCount <= 0 || a == count - 1 || totalBytesCount > 0 && nextDownloadOffset + currentDownloadChunkSize >= totalBytesCount;
+            boolean isLast = totalBytesCount <= 0 || a == count - 1 || totalBytesCount > 0 && offset + currentDownloadChunkSize >= totalBytesCount;
             TLObject request;
-            int offset;
             int flags;
             if (webLocation != null) {
                 TLRPC.TL_upload_getWebFile req = new TLRPC.TL_upload_getWebFile();
                 req.location = webLocation;
-                req.offset = offset = nextDownloadOffset;
+                req.offset = offset;
                 req.limit = currentDownloadChunkSize;
                 request = req;
                 //flags = ConnectionsManager.ConnectionTypeGeneric;
@@ -598,12 +867,12 @@ public class FileLoadOperation {
             } else {
                 TLRPC.TL_upload_getFile req = new TLRPC.TL_upload_getFile();
                 req.location = location;
-                req.offset = offset = nextDownloadOffset;
+                req.offset = offset;
                 req.limit = currentDownloadChunkSize;
                 request = req;
                 flags = requestsCount % 2 == 0 ? ConnectionsManager.ConnectionTypeDownload : ConnectionsManager.ConnectionTypeDownload2;
             }
-            nextDownloadOffset += currentDownloadChunkSize;
+            nextDownloadOffset = offset + currentDownloadChunkSize;
             final RequestInfo requestInfo = new RequestInfo();
             requestInfos.add(requestInfo);
             requestInfo.offset = offset;
@@ -360,173 +360,203 @@ public class FileLoader {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                String fileName = null;
-                if (location != null) {
-                    fileName = getAttachFileName(location, locationExt);
-                } else if (document != null) {
-                    fileName = getAttachFileName(document);
-                } else if (webDocument != null) {
-                    fileName = getAttachFileName(webDocument);
-                }
-                if (fileName == null || fileName.contains("" + Integer.MIN_VALUE)) {
-                    return;
-                }
+                loadFileInternal(document, webDocument, location, locationExt, locationSize, force, cacheOnly);
+            }
+        });
+    }
 
-                FileLoadOperation operation;
-                operation = loadOperationPaths.get(fileName);
-                if (operation != null) {
-                    if (force) {
-                        operation.setForceRequest(true);
-                        LinkedList<FileLoadOperation> downloadQueue;
-                        if (MessageObject.isVoiceDocument(document) || MessageObject.isVoiceWebDocument(webDocument)) {
-                            downloadQueue = audioLoadOperationQueue;
-                        } else if (location != null || MessageObject.isImageWebDocument(webDocument)) {
-                            downloadQueue = photoLoadOperationQueue;
-                        } else {
-                            downloadQueue = loadOperationQueue;
-                        }
-                        if (downloadQueue != null) {
-                            int index = downloadQueue.indexOf(operation);
-                            if (index > 0) {
-                                downloadQueue.remove(index);
-                                downloadQueue.add(0, operation);
-                            }
-                        }
-                    }
-                    return;
+    public static boolean canStreamDocument(TLRPC.Document document) {
+        return document instanceof TLRPC.TL_document && document.key == null && document.size > 0 && MessageObject.isVideoDocument(document);
+    }
+
+    public FileLoadOperation loadStreamFile(final TLRPC.Document document, final int offset) {
+        final Semaphore semaphore = new Semaphore(0);
+        final FileLoadOperation[] result = new FileLoadOperation[1];
+        fileLoaderQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = loadFileInternal(document, null, null, null, 0, true, false);
+                if (result[0] != null) {
+                    result[0].setStreamOffset(offset);
                 }
+                semaphore.release();
+            }
+        });
+        try {
+            semaphore.acquire();
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        return result[0];
+    }
 
-                File tempDir = getDirectory(MEDIA_DIR_CACHE);
-                File storeDir = tempDir;
-                int type = MEDIA_DIR_CACHE;
+    private FileLoadOperation loadFileInternal(final TLRPC.Document document, final TLRPC.TL_webDocument webDocument, final TLRPC.FileLocation location, final String locationExt, final int locationSize, final boolean force, final boolean cacheOnly) {
+        String fileName = null;
+        if (location != null) {
+            fileName = getAttachFileName(location, locationExt);
+        } else if (document != null) {
+            fileName = getAttachFileName(document);
+        } else if (webDocument != null) {
+            fileName = getAttachFileName(webDocument);
+        }
+        if (fileName == null || fileName.contains("" + Integer.MIN_VALUE)) {
+            return null;
+        }
 
-                if (location != null) {
-                    operation = new FileLoadOperation(location, locationExt, locationSize);
-                    type = MEDIA_DIR_IMAGE;
-                } else if (document != null) {
-                    operation = new FileLoadOperation(document);
-                    if (MessageObject.isVoiceDocument(document)) {
-                        type = MEDIA_DIR_AUDIO;
-                    } else if (MessageObject.isVideoDocument(document)) {
-                        type = MEDIA_DIR_VIDEO;
-                    } else {
-                        type = MEDIA_DIR_DOCUMENT;
-                    }
-                } else if (webDocument != null) {
-                    operation = new FileLoadOperation(webDocument);
-                    if (MessageObject.isVoiceWebDocument(webDocument)) {
-                        type = MEDIA_DIR_AUDIO;
-                    } else if (MessageObject.isVideoWebDocument(webDocument)) {
-                        type = MEDIA_DIR_VIDEO;
-                    } else if (MessageObject.isImageWebDocument(webDocument)) {
-                        type = MEDIA_DIR_IMAGE;
-                    } else {
-                        type = MEDIA_DIR_DOCUMENT;
-                    }
+        FileLoadOperation operation;
+        operation = loadOperationPaths.get(fileName);
+        if (operation != null) {
+            if (force) {
+                operation.setForceRequest(true);
+                LinkedList<FileLoadOperation> downloadQueue;
+                if (MessageObject.isVoiceDocument(document) || MessageObject.isVoiceWebDocument(webDocument)) {
+                    downloadQueue = audioLoadOperationQueue;
+                } else if (location != null || MessageObject.isImageWebDocument(webDocument)) {
+                    downloadQueue = photoLoadOperationQueue;
+                } else {
+                    downloadQueue = loadOperationQueue;
                 }
-                if (!cacheOnly) {
-                    storeDir = getDirectory(type);
+                if (downloadQueue != null) {
+                    int index = downloadQueue.indexOf(operation);
+                    if (index > 0) {
+                        downloadQueue.remove(index);
+                        downloadQueue.add(0, operation);
+                    }
                 }
-                operation.setPaths(storeDir, tempDir);
+            }
+            return operation;
+        }
 
-                final String finalFileName = fileName;
-                final int finalType = type;
-                FileLoadOperation.FileLoadOperationDelegate fileLoadOperationDelegate = new FileLoadOperation.FileLoadOperationDelegate() {
-                    @Override
-                    public void didFinishLoadingFile(FileLoadOperation operation, File finalFile) {
-                        if (delegate != null) {
-                            delegate.fileDidLoaded(finalFileName, finalFile, finalType);
-                        }
-                        checkDownloadQueue(document, webDocument, location, finalFileName);
-                    }
+        File tempDir = getDirectory(MEDIA_DIR_CACHE);
+        File storeDir = tempDir;
+        int type = MEDIA_DIR_CACHE;
+
+        if (location != null) {
+            operation = new FileLoadOperation(location, locationExt, locationSize);
+            type = MEDIA_DIR_IMAGE;
+        } else if (document != null) {
+            operation = new FileLoadOperation(document);
+            if (MessageObject.isVoiceDocument(document)) {
+                type = MEDIA_DIR_AUDIO;
+            } else if (MessageObject.isVideoDocument(document)) {
+                type = MEDIA_DIR_VIDEO;
+            } else {
+                type = MEDIA_DIR_DOCUMENT;
+            }
+        } else if (webDocument != null) {
+            operation = new FileLoadOperation(webDocument);
+            if (MessageObject.isVoiceWebDocument(webDocument)) {
+                type = MEDIA_DIR_AUDIO;
+            } else if (MessageObject.isVideoWebDocument(webDocument)) {
+                type = MEDIA_DIR_VIDEO;
+            } else if (MessageObject.isImageWebDocument(webDocument)) {
+                type = MEDIA_DIR_IMAGE;
+            } else {
+                type = MEDIA_DIR_DOCUMENT;
+            }
+        }
+        if (!cacheOnly) {
+            storeDir = getDirectory(type);
+        }
+        operation.setPaths(storeDir, tempDir);
 
-                    @Override
-                    public void didFailedLoadingFile(FileLoadOperation operation, int reason) {
-                        checkDownloadQueue(document, webDocument, location, finalFileName);
-                        if (delegate != null) {
-                            delegate.fileDidFailedLoad(finalFileName, reason);
-                        }
-                    }
+        final String finalFileName = fileName;
+        final int finalType = type;
+        FileLoadOperation.FileLoadOperationDelegate fileLoadOperationDelegate = new FileLoadOperation.FileLoadOperationDelegate() {
+            @Override
+            public void didFinishLoadingFile(FileLoadOperation operation, File finalFile) {
+                if (delegate != null) {
+                    delegate.fileDidLoaded(finalFileName, finalFile, finalType);
+                }
+                checkDownloadQueue(document, webDocument, location, finalFileName);
+            }
 
-                    @Override
-                    public void didChangedLoadProgress(FileLoadOperation operation, float progress) {
-                        if (delegate != null) {
-                            delegate.fileLoadProgressChanged(finalFileName, progress);
-                        }
-                    }
-                };
-                operation.setDelegate(fileLoadOperationDelegate);
+            @Override
+            public void didFailedLoadingFile(FileLoadOperation operation, int reason) {
+                checkDownloadQueue(document, webDocument, location, finalFileName);
+                if (delegate != null) {
+                    delegate.fileDidFailedLoad(finalFileName, reason);
+                }
+            }
 
-                /*if (location != null) {
-                    operation = new FileLoadOperation(location.dc_id, location.volume_id, location.volume_id, location.secret, location.local_id, location.key, location.iv, locationExt != null ? locationExt : "jpg", 0, locationSize, !cacheOnly ? getDirectory(type) : tempDir, tempDir, fileLoadOperationDelegate);
-                } else if (document != null) {
-                    String ext = FileLoader.getDocumentFileName(document);
-                    int idx;
-                    if (ext == null || (idx = ext.lastIndexOf('.')) == -1) {
-                        ext = "";
-                    } else {
-                        ext = ext.substring(idx + 1);
-                    }
-                    if (ext.length() <= 0) {
-                        if (document.mime_type != null) {
-                            switch (document.mime_type) {
-                                case "video/mp4":
-                                    ext = "mp4";
-                                    break;
-                                case "audio/ogg":
-                                    ext = "ogg";
-                                    break;
-                                default:
-                                    ext = "";
-                                    break;
-                            }
-                        } else {
+            @Override
+            public void didChangedLoadProgress(FileLoadOperation operation, float progress) {
+                if (delegate != null) {
+                    delegate.fileLoadProgressChanged(finalFileName, progress);
+                }
+            }
+        };
+        operation.setDelegate(fileLoadOperationDelegate);
+
+        /*if (location != null) {
+            operation = new FileLoadOperation(location.dc_id, location.volume_id, location.volume_id, location.secret, location.local_id, location.key, location.iv, locationExt != null ? locationExt : "jpg", 0, locationSize, !cacheOnly ? getDirectory(type) : tempDir, tempDir, fileLoadOperationDelegate);
+        } else if (document != null) {
+            String ext = FileLoader.getDocumentFileName(document);
+            int idx;
+            if (ext == null || (idx = ext.lastIndexOf('.')) == -1) {
+                ext = "";
+            } else {
+                ext = ext.substring(idx + 1);
+            }
+            if (ext.length() <= 0) {
+                if (document.mime_type != null) {
+                    switch (document.mime_type) {
+                        case "video/mp4":
+                            ext = "mp4";
+                            break;
+                        case "audio/ogg":
+                            ext = "ogg";
+                            break;
+                        default:
                             ext = "";
-                        }
-                    }
-                    operation = new FileLoadOperation(document.dc_id, document.id, 0, document.access_hash, 0, document.key, document.iv, ext, document.version, document.size, !cacheOnly ? getDirectory(type) : tempDir, tempDir, fileLoadOperationDelegate);
-                }*/
-                loadOperationPaths.put(fileName, operation);
-                int maxCount = force ? 3 : 1;
-                if (type == MEDIA_DIR_AUDIO) {
-                    if (currentAudioLoadOperationsCount < maxCount) {
-                        if (operation.start()) {
-                            currentAudioLoadOperationsCount++;
-                        }
-                    } else {
-                        if (force) {
-                            audioLoadOperationQueue.add(0, operation);
-                        } else {
-                            audioLoadOperationQueue.add(operation);
-                        }
-                    }
-                } else if (location != null) {
-                    if (currentPhotoLoadOperationsCount < maxCount) {
-                        if (operation.start()) {
-                            currentPhotoLoadOperationsCount++;
-                        }
-                    } else {
-                        if (force) {
-                            photoLoadOperationQueue.add(0, operation);
-                        } else {
-                            photoLoadOperationQueue.add(operation);
-                        }
+                            break;
                     }
                 } else {
-                    if (currentLoadOperationsCount < maxCount) {
-                        if (operation.start()) {
-                            currentLoadOperationsCount++;
-                        }
-                    } else {
-                        if (force) {
-                            loadOperationQueue.add(0, operation);
-                        } else {
-                            loadOperationQueue.add(operation);
-                        }
-                    }
+                    ext = "";
                 }
             }
-        });
+            operation = new FileLoadOperation(document.dc_id, document.id, 0, document.access_hash, 0, document.key, document.iv, ext, document.version, document.size, !cacheOnly ? getDirectory(type) : tempDir, tempDir, fileLoadOperationDelegate);
+        }*/
+        loadOperationPaths.put(fileName, operation);
+        int maxCount = force ? 3 : 1;
+        if (type == MEDIA_DIR_AUDIO) {
+            if (currentAudioLoadOperationsCount < maxCount) {
+                if (operation.start()) {
+                    currentAudioLoadOperationsCount++;
+                }
+            } else {
+                if (force) {
+                    audioLoadOperationQueue.add(0, operation);
+                } else {
+                    audioLoadOperationQueue.add(operation);
+                }
+            }
+        } else if (location != null) {
+            if (currentPhotoLoadOperationsCount < maxCount) {
+                if (operation.start()) {
+                    currentPhotoLoadOperationsCount++;
+                }
+            } else {
+                if (force) {
+                    photoLoadOperationQueue.add(0, operation);
+                } else {
+                    photoLoadOperationQueue.add(operation);
+                }
+            }
+        } else {
+            if (currentLoadOperationsCount < maxCount) {
+                if (operation.start()) {
+                    currentLoadOperationsCount++;
+                }
+            } else {
+                if (force) {
+                    loadOperationQueue.add(0, operation);
+                } else {
+                    loadOperationQueue.add(operation);
+                }
+            }
+        }
+        return operation;
     }
 
     private void checkDownloadQueue(final TLRPC.Document document, final TLRPC.TL_webDocument webDocument, final TLRPC.FileLocation location, final String arg1) {
@@ -18,12 +18,43 @@ import java.io.OutputStreamWriter;
 import java.util.Locale;
 
 public class FileLog {
+
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_WARN = 1;
+    public static final int LEVEL_ERROR = 2;
+
+    private static final int BUFFER_SIZE = 1024;
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private static volatile int minLevel = LEVEL_DEBUG;
+
     private OutputStreamWriter streamWriter = null;
     private FastDateFormat dateFormat = null;
     private DispatchQueue logQueue = null;
     private File currentFile = null;
     private File networkFile = null;
 
+    private final Object pendingSync = new Object();
+    private final long[] pendingTimes = new long[BUFFER_SIZE];
+    private final char[] pendingLevels = new char[BUFFER_SIZE];
+    private final String[] pendingMessages = new String[BUFFER_SIZE];
+    private int pendingStart;
+    private int pendingCount;
+    private int droppedCount;
+    private boolean drainScheduled;
+
+    private final long[] drainTimes = new long[BUFFER_SIZE];
+    private final char[] drainLevels = new char[BUFFER_SIZE];
+    private final String[] drainMessages = new String[BUFFER_SIZE];
+    private long lastFormattedSecond = -1;
+    private String lastFormattedDate;
+    private Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
     private static volatile FileLog Instance = null;
     public static FileLog getInstance() {
         FileLog localInstance = Instance;
@@ -85,110 +116,176 @@ public class FileLog {
         return "";
     }
 
+    public static boolean isLoggable(int level) {
+        return BuildVars.DEBUG_VERSION && level >= minLevel;
+    }
+
+    public static int getLevel() {
+        return minLevel;
+    }
+
+    public static void setLevel(int level) {
+        minLevel = level;
+    }
+
     public static void e(final String message, final Throwable exception) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_ERROR)) {
             return;
         }
         Log.e("tmessages", message, exception);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/tmessages: " + message + "\n");
-                        getInstance().streamWriter.write(exception.toString());
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        getInstance().enqueue('E', message + "\n" + exception);
     }
 
     public static void e(final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_ERROR)) {
             return;
         }
         Log.e("tmessages", message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/tmessages: " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        getInstance().enqueue('E', message);
+    }
+
+    /**
+     * Logs the format with each {} replaced by the next argument, the message is only
+     * built when errors are logged.
+     */
+    public static void e(final String format, final Object... args) {
+        if (!isLoggable(LEVEL_ERROR)) {
+            return;
         }
+        e(format(format, args));
     }
 
     public static void e(final Throwable e) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_ERROR)) {
             return;
         }
         e.printStackTrace();
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/tmessages: " + e + "\n");
-                        StackTraceElement[] stack = e.getStackTrace();
-                        for (int a = 0; a < stack.length; a++) {
-                            getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " E/tmessages: " + stack[a] + "\n");
-                        }
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        } else {
-            e.printStackTrace();
+        FileLog fileLog = getInstance();
+        if (fileLog.streamWriter != null) {
+            StackTraceElement[] stack = e.getStackTrace();
+            StringBuilder builder = new StringBuilder(64 + stack.length * 64);
+            builder.append(e);
+            for (int a = 0; a < stack.length; a++) {
+                builder.append("\n\tat ").append(stack[a]);
+            }
+            fileLog.enqueue('E', builder.toString());
         }
     }
 
     public static void d(final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_DEBUG)) {
             return;
         }
         Log.d("tmessages", message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " D/tmessages: " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+        getInstance().enqueue('D', message);
+    }
+
+    public static void d(final String format, final Object... args) {
+        if (!isLoggable(LEVEL_DEBUG)) {
+            return;
         }
+        d(format(format, args));
     }
 
     public static void w(final String message) {
-        if (!BuildVars.DEBUG_VERSION) {
+        if (!isLoggable(LEVEL_WARN)) {
             return;
         }
         Log.w("tmessages", message);
-        if (getInstance().streamWriter != null) {
-            getInstance().logQueue.postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        getInstance().streamWriter.write(getInstance().dateFormat.format(System.currentTimeMillis()) + " W/tmessages: " + message + "\n");
-                        getInstance().streamWriter.flush();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+        getInstance().enqueue('W', message);
+    }
+
+    public static void w(final String format, final Object... args) {
+        if (!isLoggable(LEVEL_WARN)) {
+            return;
+        }
+        w(format(format, args));
+    }
+
+    private static String format(String format, Object... args) {
+        if (args == null || args.length == 0) {
+            return format;
+        }
+        StringBuilder builder = new StringBuilder(format.length() + args.length * 16);
+        int argIndex = 0;
+        int start = 0;
+        int index;
+        while (argIndex < args.length && (index = format.indexOf("{}", start)) != -1) {
+            builder.append(format, start, index).append(args[argIndex++]);
+            start = index + 2;
+        }
+        builder.append(format, start, format.length());
+        return builder.toString();
+    }
+
+    private void enqueue(char level, String message) {
+        if (streamWriter == null) {
+            return;
+        }
+        boolean schedule = false;
+        synchronized (pendingSync) {
+            if (pendingCount == BUFFER_SIZE) {
+                pendingStart = (pendingStart + 1) % BUFFER_SIZE;
+                pendingCount--;
+                droppedCount++;
+            }
+            int index = (pendingStart + pendingCount) % BUFFER_SIZE;
+            pendingTimes[index] = System.currentTimeMillis();
+            pendingLevels[index] = level;
+            pendingMessages[index] = message;
+            pendingCount++;
+            if (!drainScheduled) {
+                drainScheduled = true;
+                schedule = true;
+            }
+        }
+        if (level == 'E') {
+            logQueue.cancelRunnable(drainRunnable);
+            logQueue.postRunnable(drainRunnable);
+        } else if (schedule) {
+            logQueue.postRunnable(drainRunnable, FLUSH_INTERVAL);
+        }
+    }
+
+    private void drain() {
+        int count;
+        int dropped;
+        synchronized (pendingSync) {
+            count = pendingCount;
+            for (int a = 0; a < count; a++) {
+                int index = (pendingStart + a) % BUFFER_SIZE;
+                drainTimes[a] = pendingTimes[index];
+                drainLevels[a] = pendingLevels[index];
+                drainMessages[a] = pendingMessages[index];
+                pendingMessages[index] = null;
+            }
+            dropped = droppedCount;
+            pendingStart = 0;
+            pendingCount = 0;
+            droppedCount = 0;
+            drainScheduled = false;
+        }
+        try {
+            if (dropped != 0) {
+                streamWriter.write("-----dropped " + dropped + " log lines-----\n");
+            }
+            for (int a = 0; a < count; a++) {
+                long second = drainTimes[a] / 1000;
+                if (second != lastFormattedSecond) {
+                    lastFormattedSecond = second;
+                    lastFormattedDate = dateFormat.format(drainTimes[a]);
                 }
-            });
+                streamWriter.write(lastFormattedDate);
+                streamWriter.write(' ');
+                streamWriter.write(drainLevels[a]);
+                streamWriter.write("/tmessages: ");
+                streamWriter.write(String.valueOf(drainMessages[a]));
+                streamWriter.write('\n');
+                drainMessages[a] = null;
+            }
+            streamWriter.flush();
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
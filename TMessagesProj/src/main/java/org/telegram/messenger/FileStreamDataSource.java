@@ -0,0 +1,145 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import android.net.Uri;
+
+import org.blaez.tgnet.TLRPC;
+import org.blaez.ziosgram.exoplayer2.C;
+import org.blaez.ziosgram.exoplayer2.upstream.DataSource;
+import org.blaez.ziosgram.exoplayer2.upstream.DataSpec;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+public class FileStreamDataSource implements DataSource {
+
+    public static final String SCHEME = "tg";
+
+    public static class Factory implements DataSource.Factory {
+        @Override
+        public DataSource createDataSource() {
+            return new FileStreamDataSource();
+        }
+    }
+
+    private FileLoadOperation loadOperation;
+    private RandomAccessFile file;
+    private Uri uri;
+    private int currentOffset;
+    private long bytesRemaining;
+
+    public static Uri getStreamUri(TLRPC.Document document) {
+        return new Uri.Builder()
+                .scheme(SCHEME)
+                .authority("document")
+                .appendQueryParameter("id", "" + document.id)
+                .appendQueryParameter("hash", "" + document.access_hash)
+                .appendQueryParameter("dc", "" + document.dc_id)
+                .appendQueryParameter("size", "" + document.size)
+                .appendQueryParameter("version", "" + document.version)
+                .appendQueryParameter("mime", document.mime_type != null ? document.mime_type : "")
+                .appendQueryParameter("name", FileLoader.getDocumentFileName(document))
+                .appendQueryParameter("video", MessageObject.isVideoDocument(document) ? "1" : "0")
+                .build();
+    }
+
+    private static TLRPC.Document getDocument(Uri uri) throws IOException {
+        try {
+            TLRPC.TL_document document = new TLRPC.TL_document();
+            document.id = Long.parseLong(uri.getQueryParameter("id"));
+            document.access_hash = Long.parseLong(uri.getQueryParameter("hash"));
+            document.dc_id = Integer.parseInt(uri.getQueryParameter("dc"));
+            document.size = Integer.parseInt(uri.getQueryParameter("size"));
+            document.version = Integer.parseInt(uri.getQueryParameter("version"));
+            document.mime_type = uri.getQueryParameter("mime");
+            document.file_name = uri.getQueryParameter("name");
+            if ("1".equals(uri.getQueryParameter("video"))) {
+                document.attributes.add(new TLRPC.TL_documentAttributeVideo());
+            }
+            return document;
+        } catch (Exception e) {
+            throw new IOException("invalid stream uri " + uri);
+        }
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        uri = dataSpec.uri;
+        TLRPC.Document document = getDocument(uri);
+        currentOffset = (int) dataSpec.position;
+        loadOperation = FileLoader.getInstance().loadStreamFile(document, currentOffset);
+        if (loadOperation == null) {
+            throw new IOException("unable to load " + uri);
+        }
+        bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? document.size - dataSpec.position : dataSpec.length;
+        if (bytesRemaining < 0) {
+            throw new EOFException();
+        }
+        return bytesRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
+        } else if (bytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+        readLength = (int) Math.min(bytesRemaining, readLength);
+        int available = loadOperation.getDownloadedLengthFromOffset(currentOffset, readLength);
+        if (available == 0) {
+            loadOperation.setStreamOffset(currentOffset);
+            try {
+                available = loadOperation.waitForDownloadedLength(currentOffset, readLength);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (available == 0) {
+                throw new IOException("failed to load " + uri + " at " + currentOffset);
+            }
+        }
+        if (file == null) {
+            File currentFile = loadOperation.getCurrentFile();
+            if (currentFile == null) {
+                throw new IOException("no file for " + uri);
+            }
+            file = new RandomAccessFile(currentFile, "r");
+        }
+        file.seek(currentOffset);
+        int read = file.read(buffer, offset, available);
+        if (read < 0) {
+            throw new EOFException();
+        }
+        currentOffset += read;
+        bytesRemaining -= read;
+        return read;
+    }
+
+    @Override
+    public Uri getUri() {
+        return uri;
+    }
+
+    @Override
+    public void close() throws IOException {
+        loadOperation = null;
+        uri = null;
+        if (file != null) {
+            try {
+                file.close();
+            } finally {
+                file = null;
+            }
+        }
+    }
+}
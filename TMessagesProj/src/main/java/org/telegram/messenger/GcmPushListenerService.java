@@ -24,7 +24,7 @@ public class GcmPushListenerService extends GcmListenerService {
 
     @Override
     public void onMessageReceived(String from, final Bundle bundle) {
-        FileLog.d("GCM received bundle: " + bundle + " from: " + from);
+        FileLog.d("GCM received bundle: {} from: {}", bundle, from);
         AndroidUtilities.runOnUIThread(new Runnable() {
             @Override
             public void run() {
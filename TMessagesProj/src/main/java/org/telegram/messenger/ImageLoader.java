@@ -56,6 +56,10 @@ public class ImageLoader {
 
     private HashMap<String, Integer> bitmapUseCounts = new HashMap<>();
     private LruCache memCache;
+    private MetricsRegistry.Histogram decodeHistogram = MetricsRegistry.histogram("image.decode", 32000);
+    private MetricsRegistry.Counter memCacheHits = MetricsRegistry.counter("image.memcache.hit");
+    private MetricsRegistry.Counter memCacheMisses = MetricsRegistry.counter("image.memcache.miss");
+    private MetricsRegistry.Gauge memCacheSize = MetricsRegistry.gauge("image.memcache.bytes");
     private HashMap<String, CacheImage> imageLoadingByUrl = new HashMap<>();
     private HashMap<String, CacheImage> imageLoadingByKeys = new HashMap<>();
     private HashMap<Integer, CacheImage> imageLoadingByTag = new HashMap<>();
@@ -627,6 +631,7 @@ public class ImageLoader {
                 Thread.interrupted();
                 onPostExecute(fileDrawable);
             } else {
+                long startTime = MetricsRegistry.enabled ? System.nanoTime() : 0;
                 Long mediaId = null;
                 boolean mediaIsVideo = false;
                 Bitmap image = null;
@@ -921,6 +926,9 @@ public class ImageLoader {
                     }
                 }
                 Thread.interrupted();
+                if (startTime != 0 && image != null) {
+                    decodeHistogram.recordSince(startTime);
+                }
                 onPostExecute(image != null ? new BitmapDrawable(image) : null);
             }
         }
@@ -937,6 +945,9 @@ public class ImageLoader {
                         if (toSet == null) {
                             memCache.put(cacheImage.key, bitmapDrawable);
                             toSet = bitmapDrawable;
+                            if (MetricsRegistry.enabled) {
+                                memCacheSize.set(memCache.size());
+                            }
                         } else {
                             Bitmap image = bitmapDrawable.getBitmap();
                             image.recycle();
@@ -1789,6 +1800,13 @@ public class ImageLoader {
         String key = imageReceiver.getKey();
         if (key != null) {
             BitmapDrawable bitmapDrawable = memCache.get(key);
+            if (MetricsRegistry.enabled) {
+                if (bitmapDrawable != null) {
+                    memCacheHits.increment();
+                } else {
+                    memCacheMisses.increment();
+                }
+            }
             if (bitmapDrawable != null) {
                 cancelLoadingForImageReceiver(imageReceiver, 0);
                 if (!imageReceiver.isForcePreview()) {
@@ -0,0 +1,159 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.util.Arrays;
+
+/**
+ * Set of ints with open addressing and linear probing, removals shift the following entries back so
+ * the table never fills up with tombstones. Not thread safe.
+ */
+public class IntHashSet {
+
+    private static final int FREE = 0;
+
+    private int[] keys;
+    private boolean hasFreeKey;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    public IntHashSet(int capacity) {
+        int length = 4;
+        while (length * 3 / 4 < capacity) {
+            length <<= 1;
+        }
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        keys = new int[length];
+        mask = length - 1;
+        threshold = length * 3 / 4;
+    }
+
+    static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    public boolean contains(int key) {
+        if (key == FREE) {
+            return hasFreeKey;
+        }
+        int index = hash(key) & mask;
+        int current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean add(int key) {
+        if (key == FREE) {
+            if (hasFreeKey) {
+                return false;
+            }
+            hasFreeKey = true;
+            size++;
+            return true;
+        }
+        int index = hash(key) & mask;
+        int current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        if (++size >= threshold) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    public boolean remove(int key) {
+        if (key == FREE) {
+            if (!hasFreeKey) {
+                return false;
+            }
+            hasFreeKey = false;
+            size--;
+            return true;
+        }
+        int index = hash(key) & mask;
+        int current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                shiftKeys(index);
+                size--;
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    private void shiftKeys(int index) {
+        while (true) {
+            int last = index;
+            index = (index + 1) & mask;
+            int current;
+            while (true) {
+                if ((current = keys[index]) == FREE) {
+                    keys[last] = FREE;
+                    return;
+                }
+                int slot = hash(current) & mask;
+                if (last <= index ? last >= slot || slot > index : last >= slot && slot > index) {
+                    break;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[last] = current;
+        }
+    }
+
+    private void rehash(int length) {
+        int[] oldKeys = keys;
+        allocate(length);
+        for (int a = 0; a < oldKeys.length; a++) {
+            int key = oldKeys[a];
+            if (key != FREE) {
+                int index = hash(key) & mask;
+                while (keys[index] != FREE) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        hasFreeKey = false;
+        size = 0;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.util.Arrays;
+
+/**
+ * Int to int map with the same open addressing layout as {@link IntHashSet}. Missing keys read as 0,
+ * so it fits registries where 0 already means "unknown". Not thread safe.
+ */
+public class IntIntHashMap {
+
+    private static final int FREE = 0;
+
+    private int[] keys;
+    private int[] values;
+    private boolean hasFreeKey;
+    private int freeValue;
+    private int size;
+    private int mask;
+    private int threshold;
+
+    public IntIntHashMap() {
+        this(16);
+    }
+
+    public IntIntHashMap(int capacity) {
+        int length = 4;
+        while (length * 3 / 4 < capacity) {
+            length <<= 1;
+        }
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        keys = new int[length];
+        values = new int[length];
+        mask = length - 1;
+        threshold = length * 3 / 4;
+    }
+
+    public int get(int key) {
+        return get(key, 0);
+    }
+
+    public int get(int key, int defaultValue) {
+        if (key == FREE) {
+            return hasFreeKey ? freeValue : defaultValue;
+        }
+        int index = IntHashSet.hash(key) & mask;
+        int current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == FREE) {
+            return hasFreeKey;
+        }
+        int index = IntHashSet.hash(key) & mask;
+        int current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE) {
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                size++;
+            }
+            freeValue = value;
+            return;
+        }
+        int index = IntHashSet.hash(key) & mask;
+        int current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                values[index] = value;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size >= threshold) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    public void remove(int key) {
+        if (key == FREE) {
+            if (hasFreeKey) {
+                hasFreeKey = false;
+                size--;
+            }
+            return;
+        }
+        int index = IntHashSet.hash(key) & mask;
+        int current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                shiftKeys(index);
+                size--;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void shiftKeys(int index) {
+        while (true) {
+            int last = index;
+            index = (index + 1) & mask;
+            int current;
+            while (true) {
+                if ((current = keys[index]) == FREE) {
+                    keys[last] = FREE;
+                    return;
+                }
+                int slot = IntHashSet.hash(current) & mask;
+                if (last <= index ? last >= slot || slot > index : last >= slot && slot > index) {
+                    break;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[last] = current;
+            values[last] = values[index];
+        }
+    }
+
+    private void rehash(int length) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(length);
+        for (int a = 0; a < oldKeys.length; a++) {
+            int key = oldKeys[a];
+            if (key != FREE) {
+                int index = IntHashSet.hash(key) & mask;
+                while (keys[index] != FREE) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = oldValues[a];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        hasFreeKey = false;
+        size = 0;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Language file compiled into a string table with a perfect hash index, so it can be memory-mapped
+ * instead of parsed. A lookup hashes the key once and reads two ints from the buffer, the key and
+ * value of a slot are decoded on its first lookup and kept, so later lookups don't allocate, not even
+ * for plural forms, whose suffix is hashed and compared without concatenation.
+ *
+ * Layout: header (magic, source length, source modification time, strings count, buckets count,
+ * slots count), a seed per bucket, a key and value offset per slot, then the strings as a length
+ * followed by UTF-16 chars.
+ */
+public class LanguagePack {
+
+    private static final int MAGIC = 0x4c504b31;
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4;
+
+    private final ByteBuffer buffer;
+    private final int bucketsCount;
+    private final int slotsCount;
+    private final int seedsOffset;
+    private final int slotsOffset;
+    private final int dataOffset;
+    private final String[] keys;
+    private final String[] values;
+
+    private LanguagePack(ByteBuffer buffer) {
+        this.buffer = buffer;
+        int count = buffer.getInt(20);
+        bucketsCount = buffer.getInt(24);
+        slotsCount = buffer.getInt(28);
+        seedsOffset = HEADER_SIZE;
+        slotsOffset = seedsOffset + bucketsCount * 4;
+        dataOffset = slotsOffset + slotsCount * 8;
+        keys = new String[slotsCount];
+        values = new String[slotsCount];
+        if (count <= 0 || bucketsCount <= 0 || slotsCount < count || dataOffset > buffer.limit()) {
+            throw new IllegalArgumentException("broken language pack");
+        }
+    }
+
+    public static File getPackFile(File source) {
+        return new File(source.getPath() + ".pack");
+    }
+
+    /**
+     * Maps the compiled pack of the source file, null when there is none or it was compiled from another version of the source.
+     */
+    public static LanguagePack open(File source) {
+        File file = getPackFile(source);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getLong(4) != source.length() || buffer.getLong(12) != source.lastModified()) {
+                return null;
+            }
+            return new LanguagePack(buffer);
+        } catch (Exception e) {
+            FileLog.e(e);
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the pack of strings parsed from the source file and saves it next to the source. The
+     * returned pack works from memory even if saving fails.
+     */
+    public static LanguagePack compile(HashMap<String, String> strings, File source) {
+        if (strings.isEmpty()) {
+            return null;
+        }
+        try {
+            byte[] data = build(strings, source.length(), source.lastModified());
+            File file = getPackFile(source);
+            File tempFile = new File(file.getPath() + ".tmp");
+            FileOutputStream stream = null;
+            try {
+                stream = new FileOutputStream(tempFile);
+                stream.write(data);
+                stream.close();
+                stream = null;
+                if (!tempFile.renameTo(file)) {
+                    tempFile.delete();
+                }
+            } catch (Exception e) {
+                FileLog.e(e);
+                tempFile.delete();
+            } finally {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+            return new LanguagePack(ByteBuffer.wrap(data));
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        return null;
+    }
+
+    private static byte[] build(HashMap<String, String> strings, long sourceLength, long sourceModified) throws Exception {
+        final String[] keys = new String[strings.size()];
+        String[] keyValues = new String[keys.length];
+        int index = 0;
+        for (Map.Entry<String, String> entry : strings.entrySet()) {
+            keys[index] = entry.getKey();
+            keyValues[index] = entry.getValue();
+            index++;
+        }
+
+        int count = keys.length;
+        int bucketsCount = Math.max(1, count / 4);
+        int slotsCount = count;
+        int[] seeds;
+        int[] slots;
+        while (true) {
+            seeds = new int[bucketsCount];
+            slots = new int[slotsCount];
+            if (placeKeys(keys, seeds, slots)) {
+                break;
+            }
+            slotsCount += Math.max(1, slotsCount / 4);
+        }
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(HEADER_SIZE + bucketsCount * 4 + slotsCount * 8 + count * 64);
+        DataOutputStream stream = new DataOutputStream(byteStream);
+        stream.writeInt(MAGIC);
+        stream.writeLong(sourceLength);
+        stream.writeLong(sourceModified);
+        stream.writeInt(count);
+        stream.writeInt(bucketsCount);
+        stream.writeInt(slotsCount);
+        for (int a = 0; a < bucketsCount; a++) {
+            stream.writeInt(seeds[a]);
+        }
+        int offset = 0;
+        int[] keyOffsets = new int[count];
+        int[] valueOffsets = new int[count];
+        for (int a = 0; a < count; a++) {
+            keyOffsets[a] = offset;
+            offset += 4 + keys[a].length() * 2;
+            valueOffsets[a] = offset;
+            offset += 4 + keyValues[a].length() * 2;
+        }
+        for (int a = 0; a < slotsCount; a++) {
+            int key = slots[a] - 1;
+            stream.writeInt(key >= 0 ? keyOffsets[key] : -1);
+            stream.writeInt(key >= 0 ? valueOffsets[key] : -1);
+        }
+        for (int a = 0; a < count; a++) {
+            stream.writeInt(keys[a].length());
+            stream.writeChars(keys[a]);
+            stream.writeInt(keyValues[a].length());
+            stream.writeChars(keyValues[a]);
+        }
+        stream.flush();
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Hash and displace: keys are split into buckets, the biggest buckets pick a seed first, each bucket
+     * takes the first seed that moves all its keys to free slots. Slots hold key index + 1.
+     */
+    private static boolean placeKeys(String[] keys, int[] seeds, int[] slots) {
+        int bucketsCount = seeds.length;
+        final ArrayList<ArrayList<Integer>> buckets = new ArrayList<>(bucketsCount);
+        for (int a = 0; a < bucketsCount; a++) {
+            buckets.add(new ArrayList<Integer>());
+        }
+        int[] hashes = new int[keys.length];
+        for (int a = 0; a < keys.length; a++) {
+            hashes[a] = hash(keys[a], null);
+            buckets.get((hashes[a] & 0x7fffffff) % bucketsCount).add(a);
+        }
+        Integer[] order = new Integer[bucketsCount];
+        for (int a = 0; a < bucketsCount; a++) {
+            order[a] = a;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return buckets.get(rhs).size() - buckets.get(lhs).size();
+            }
+        });
+        int maxSeed = slots.length * 64 + 1024;
+        int[] bucketSlots = new int[16];
+        for (int a = 0; a < bucketsCount; a++) {
+            ArrayList<Integer> bucket = buckets.get(order[a]);
+            if (bucket.isEmpty()) {
+                break;
+            }
+            if (bucketSlots.length < bucket.size()) {
+                bucketSlots = new int[bucket.size()];
+            }
+            boolean placed = false;
+            for (int seed = 1; seed < maxSeed && !placed; seed++) {
+                placed = true;
+                for (int b = 0; b < bucket.size(); b++) {
+                    int slot = (mix(hashes[bucket.get(b)], seed) & 0x7fffffff) % slots.length;
+                    if (slots[slot] != 0) {
+                        placed = false;
+                    } else {
+                        for (int c = 0; c < b; c++) {
+                            if (bucketSlots[c] == slot) {
+                                placed = false;
+                                break;
+                            }
+                        }
+                    }
+                    if (!placed) {
+                        break;
+                    }
+                    bucketSlots[b] = slot;
+                }
+                if (placed) {
+                    seeds[order[a]] = seed;
+                    for (int b = 0; b < bucket.size(); b++) {
+                        slots[bucketSlots[b]] = bucket.get(b) + 1;
+                    }
+                }
+            }
+            if (!placed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash of key, or of key + "_" + suffix when suffix is not null, without building the string.
+     */
+    private static int hash(String key, String suffix) {
+        int h = 0x811c9dc5;
+        for (int a = 0, n = key.length(); a < n; a++) {
+            h = (h ^ key.charAt(a)) * 0x01000193;
+        }
+        if (suffix != null) {
+            h = (h ^ '_') * 0x01000193;
+            for (int a = 0, n = suffix.length(); a < n; a++) {
+                h = (h ^ suffix.charAt(a)) * 0x01000193;
+            }
+        }
+        return h;
+    }
+
+    private static int mix(int hash, int seed) {
+        int h = hash ^ seed * 0x9e3779b9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public String get(String key) {
+        return get(key, null);
+    }
+
+    /**
+     * Value of key + "_" + suffix, or of key when suffix is null.
+     */
+    public String get(String key, String suffix) {
+        int hash = hash(key, suffix);
+        int seed = buffer.getInt(seedsOffset + ((hash & 0x7fffffff) % bucketsCount) * 4);
+        int slot = (mix(hash, seed) & 0x7fffffff) % slotsCount;
+        int keyOffset = buffer.getInt(slotsOffset + slot * 8);
+        if (keyOffset < 0) {
+            return null;
+        }
+        String slotKey = keys[slot];
+        if (slotKey == null) {
+            keys[slot] = slotKey = readString(dataOffset + keyOffset);
+        }
+        int keyLength = key.length();
+        if (suffix == null) {
+            if (!slotKey.equals(key)) {
+                return null;
+            }
+        } else if (slotKey.length() != keyLength + 1 + suffix.length() || !slotKey.startsWith(key) || slotKey.charAt(keyLength) != '_' || !slotKey.endsWith(suffix)) {
+            return null;
+        }
+        String value = values[slot];
+        if (value == null) {
+            values[slot] = value = readString(dataOffset + buffer.getInt(slotsOffset + slot * 8 + 4));
+        }
+        return value;
+    }
+
+    private String readString(int offset) {
+        char[] chars = new char[buffer.getInt(offset)];
+        offset += 4;
+        for (int a = 0; a < chars.length; a++) {
+            chars[a] = buffer.getChar(offset + a * 2);
+        }
+        return new String(chars);
+    }
+}
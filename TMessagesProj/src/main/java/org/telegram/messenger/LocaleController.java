@@ -27,14 +27,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Currency;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LocaleController {
 
@@ -65,12 +68,23 @@ public class LocaleController {
     private PluralRules currentPluralRules;
     private LocaleInfo currentLocaleInfo;
     private LocaleInfo defaultLocalInfo;
-    private HashMap<String, String> localeValues = new HashMap<>();
+    private volatile LanguagePack languagePack;
+    private final DateFormatCache dateFormatCache = new DateFormatCache();
+    private ConcurrentHashMap<String, int[]> pluralResources = new ConcurrentHashMap<>();
     private String languageOverride;
     private boolean changingConfiguration = false;
 
     private HashMap<String, String> currencyValues;
-    private HashMap<String, String> translitChars;
+    private volatile String[][] translitPages;
+    private String[] translitSequences;
+    private String[] translitSequenceValues;
+    private static final int MAX_TRANSLIT_CACHE = 1024;
+    private final LinkedHashMap<String, String> translitCache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_TRANSLIT_CACHE;
+        }
+    };
 
     private class TimeZoneChangedReceiver extends BroadcastReceiver {
         @Override
@@ -404,7 +418,7 @@ public class LocaleController {
                     });
                     saveOtherLanguages();
                 }
-                localeValues = stringMap;
+                languagePack = LanguagePack.compile(stringMap, finalFile);
                 applyLanguage(localeInfo, true, true);
                 return true;
             }
@@ -444,6 +458,7 @@ public class LocaleController {
         languagesDict.remove(localeInfo.shortName);
         File file = new File(localeInfo.pathToFile);
         file.delete();
+        LanguagePack.getPackFile(file).delete();
         saveOtherLanguages();
         return true;
     }
@@ -463,6 +478,18 @@ public class LocaleController {
         }
     }
 
+    private LanguagePack loadLanguagePack(File file) {
+        LanguagePack pack = LanguagePack.open(file);
+        if (pack == null) {
+            long time = System.currentTimeMillis();
+            pack = LanguagePack.compile(getLocaleFileStrings(file), file);
+            if (BuildVars.DEBUG_VERSION) {
+                FileLog.d("compiled language pack " + file + " in " + (System.currentTimeMillis() - time) + " ms");
+            }
+        }
+        return pack;
+    }
+
     private HashMap<String, String> getLocaleFileStrings(File file) {
         FileInputStream stream = null;
         try {
@@ -568,9 +595,9 @@ public class LocaleController {
             }
             if (newLocale != null) {
                 if (localeInfo.pathToFile == null) {
-                    localeValues.clear();
+                    languagePack = null;
                 } else if (!fromFile) {
-                    localeValues = getLocaleFileStrings(new File(localeInfo.pathToFile));
+                    languagePack = loadLanguagePack(new File(localeInfo.pathToFile));
                 }
                 currentLocale = newLocale;
                 currentLocaleInfo = localeInfo;
@@ -597,7 +624,8 @@ public class LocaleController {
     }
 
     private String getStringInternal(String key, int res) {
-        String value = localeValues.get(key);
+        LanguagePack pack = languagePack;
+        String value = pack != null ? pack.get(key) : null;
         if (value == null) {
             try {
                 value = ApplicationLoader.applicationContext.getString(res);
@@ -619,15 +647,52 @@ public class LocaleController {
         if (key == null || key.length() == 0 || getInstance().currentPluralRules == null) {
             return "LOC_ERR:" + key;
         }
-        String param = getInstance().stringForQuantity(getInstance().currentPluralRules.quantityForNumber(plural));
-        param = key + "_" + param;
-        int resourceId = ApplicationLoader.applicationContext.getResources().getIdentifier(param, "string", ApplicationLoader.applicationContext.getPackageName());
-        return formatString(param, resourceId, plural);
+        LocaleController controller = getInstance();
+        int quantity = controller.currentPluralRules.quantityForNumber(plural);
+        String param = controller.stringForQuantity(quantity);
+        try {
+            LanguagePack pack = controller.languagePack;
+            String value = pack != null ? pack.get(key, param) : null;
+            if (value == null) {
+                value = ApplicationLoader.applicationContext.getString(controller.getPluralResource(key, quantity, param));
+            }
+            if (controller.currentLocale != null) {
+                return String.format(controller.currentLocale, value, plural);
+            } else {
+                return String.format(value, plural);
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+            return "LOC_ERR: " + key + "_" + param;
+        }
+    }
+
+    /**
+     * Resource id of the built-in plural form, getIdentifier goes through reflection so ids are resolved once per key and quantity.
+     */
+    private int getPluralResource(String key, int quantity, String param) {
+        int[] ids = pluralResources.get(key);
+        if (ids == null) {
+            ids = new int[6];
+            Arrays.fill(ids, -1);
+            int[] old = pluralResources.putIfAbsent(key, ids);
+            if (old != null) {
+                ids = old;
+            }
+        }
+        int index = quantity == QUANTITY_OTHER ? 0 : Integer.numberOfTrailingZeros(quantity) + 1;
+        int id = ids[index];
+        if (id == -1) {
+            id = ApplicationLoader.applicationContext.getResources().getIdentifier(key + "_" + param, "string", ApplicationLoader.applicationContext.getPackageName());
+            ids[index] = id;
+        }
+        return id;
     }
 
     public static String formatString(String key, int res, Object... args) {
         try {
-            String value = getInstance().localeValues.get(key);
+            LanguagePack pack = getInstance().languagePack;
+            String value = pack != null ? pack.get(key) : null;
             if (value == null) {
                 value = ApplicationLoader.applicationContext.getString(res);
             }
@@ -844,15 +909,7 @@ public class LocaleController {
 
     public static String formatDateChat(long date) {
         try {
-            Calendar rightNow = Calendar.getInstance();
-            date *= 1000;
-
-            rightNow.setTimeInMillis(date);
-
-            if (Math.abs(System.currentTimeMillis() - date) < 31536000000L) {
-                return getInstance().chatDate.format(date);
-            }
-            return getInstance().chatFullDate.format(date);
+            return getInstance().dateFormatCache.format(DateFormatCache.KIND_CHAT, date);
         } catch (Exception e) {
             FileLog.e(e);
         }
@@ -861,23 +918,7 @@ public class LocaleController {
 
     public static String formatDate(long date) {
         try {
-            date *= 1000;
-            Calendar rightNow = Calendar.getInstance();
-            int day = rightNow.get(Calendar.DAY_OF_YEAR);
-            int year = rightNow.get(Calendar.YEAR);
-            rightNow.setTimeInMillis(date);
-            int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-            int dateYear = rightNow.get(Calendar.YEAR);
-
-            if (dateDay == day && year == dateYear) {
-                return getInstance().formatterDay.format(new Date(date));
-            } else if (dateDay + 1 == day && year == dateYear) {
-                return getString("Yesterday", R.string.Yesterday);
-            } else if (Math.abs(System.currentTimeMillis() - date) < 31536000000L) {
-                return getInstance().formatterMonth.format(new Date(date));
-            } else {
-                return getInstance().formatterYear.format(new Date(date));
-            }
+            return getInstance().dateFormatCache.format(DateFormatCache.KIND_DATE, date);
         } catch (Exception e) {
             FileLog.e(e);
         }
@@ -886,23 +927,7 @@ public class LocaleController {
 
     public static String formatDateAudio(long date) {
         try {
-            date *= 1000;
-            Calendar rightNow = Calendar.getInstance();
-            int day = rightNow.get(Calendar.DAY_OF_YEAR);
-            int year = rightNow.get(Calendar.YEAR);
-            rightNow.setTimeInMillis(date);
-            int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-            int dateYear = rightNow.get(Calendar.YEAR);
-
-            if (dateDay == day && year == dateYear) {
-                return String.format("%s %s", LocaleController.getString("TodayAt", R.string.TodayAt), getInstance().formatterDay.format(new Date(date)));
-            } else if (dateDay + 1 == day && year == dateYear) {
-                return String.format("%s %s", LocaleController.getString("YesterdayAt", R.string.YesterdayAt), getInstance().formatterDay.format(new Date(date)));
-            } else if (Math.abs(System.currentTimeMillis() - date) < 31536000000L) {
-                return LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, getInstance().formatterMonth.format(new Date(date)), getInstance().formatterDay.format(new Date(date)));
-            } else {
-                return LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, getInstance().formatterYear.format(new Date(date)), getInstance().formatterDay.format(new Date(date)));
-            }
+            return getInstance().dateFormatCache.format(DateFormatCache.KIND_AUDIO, date);
         } catch (Exception e) {
             FileLog.e(e);
         }
@@ -911,23 +936,7 @@ public class LocaleController {
 
     public static String formatDateCallLog(long date) {
         try {
-            date *= 1000;
-            Calendar rightNow = Calendar.getInstance();
-            int day = rightNow.get(Calendar.DAY_OF_YEAR);
-            int year = rightNow.get(Calendar.YEAR);
-            rightNow.setTimeInMillis(date);
-            int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-            int dateYear = rightNow.get(Calendar.YEAR);
-
-            if (dateDay == day && year == dateYear) {
-                return getInstance().formatterDay.format(new Date(date));
-            } else if (dateDay + 1 == day && year == dateYear) {
-                return String.format("%s %s", LocaleController.getString("YesterdayAt", R.string.YesterdayAt), getInstance().formatterDay.format(new Date(date)));
-            } else if (Math.abs(System.currentTimeMillis() - date) < 31536000000L) {
-                return LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, getInstance().chatDate.format(new Date(date)), getInstance().formatterDay.format(new Date(date)));
-            } else {
-                return LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, getInstance().chatFullDate.format(new Date(date)), getInstance().formatterDay.format(new Date(date)));
-            }
+            return getInstance().dateFormatCache.format(DateFormatCache.KIND_CALL_LOG, date);
         } catch (Exception e) {
             FileLog.e(e);
         }
@@ -936,39 +945,78 @@ public class LocaleController {
 
     public static String formatDateOnline(long date) {
         try {
-            date *= 1000;
-            Calendar rightNow = Calendar.getInstance();
-            int day = rightNow.get(Calendar.DAY_OF_YEAR);
-            int year = rightNow.get(Calendar.YEAR);
-            rightNow.setTimeInMillis(date);
-            int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-            int dateYear = rightNow.get(Calendar.YEAR);
-
-            if (dateDay == day && year == dateYear) {
-                return String.format("%s %s %s", LocaleController.getString("LastSeen", R.string.LastSeen), LocaleController.getString("TodayAt", R.string.TodayAt), getInstance().formatterDay.format(new Date(date)));
-                /*int diff = (int) (ConnectionsManager.getInstance().getCurrentTime() - date) / 60;
-                if (diff < 1) {
-                    return LocaleController.getString("LastSeenNow", R.string.LastSeenNow);
-                } else if (diff < 60) {
-                    return LocaleController.formatPluralString("LastSeenMinutes", diff);
-                } else {
-                    return LocaleController.formatPluralString("LastSeenHours", (int) Math.ceil(diff / 60.0f));
-                }*/
-            } else if (dateDay + 1 == day && year == dateYear) {
-                return String.format("%s %s %s", LocaleController.getString("LastSeen", R.string.LastSeen), LocaleController.getString("YesterdayAt", R.string.YesterdayAt), getInstance().formatterDay.format(new Date(date)));
-            } else if (Math.abs(System.currentTimeMillis() - date) < 31536000000L) {
-                String format = LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, getInstance().formatterMonth.format(new Date(date)), getInstance().formatterDay.format(new Date(date)));
-                return String.format("%s %s", LocaleController.getString("LastSeenDate", R.string.LastSeenDate), format);
-            } else {
-                String format = LocaleController.formatString("formatDateAtTime", R.string.formatDateAtTime, getInstance().formatterYear.format(new Date(date)), getInstance().formatterDay.format(new Date(date)));
-                return String.format("%s %s", LocaleController.getString("LastSeenDate", R.string.LastSeenDate), format);
-            }
+            return getInstance().dateFormatCache.format(DateFormatCache.KIND_ONLINE, date);
         } catch (Exception e) {
             FileLog.e(e);
         }
         return "LOC_ERR";
     }
 
+    /**
+     * Formats a timestamp of the given kind into an empty buffer, called by {@link DateFormatCache} on a miss.
+     */
+    String formatDateRange(int kind, int range, long date, StringBuffer buffer) {
+        switch (kind) {
+            case DateFormatCache.KIND_DATE:
+                if (range == DateFormatCache.RANGE_TODAY) {
+                    return formatterDay.format(date);
+                } else if (range == DateFormatCache.RANGE_YESTERDAY) {
+                    return getStringInternal("Yesterday", R.string.Yesterday);
+                } else if (range != DateFormatCache.RANGE_OLDER) {
+                    return formatterMonth.format(date);
+                } else {
+                    return formatterYear.format(date);
+                }
+            case DateFormatCache.KIND_CHAT:
+                return range != DateFormatCache.RANGE_OLDER ? chatDate.format(date) : chatFullDate.format(date);
+            case DateFormatCache.KIND_AUDIO:
+                if (range == DateFormatCache.RANGE_TODAY) {
+                    buffer.append(getStringInternal("TodayAt", R.string.TodayAt)).append(' ');
+                    return formatterDay.format(date, buffer).toString();
+                } else if (range == DateFormatCache.RANGE_YESTERDAY) {
+                    buffer.append(getStringInternal("YesterdayAt", R.string.YesterdayAt)).append(' ');
+                    return formatterDay.format(date, buffer).toString();
+                }
+                return formatDateAtTime(range != DateFormatCache.RANGE_OLDER ? formatterMonth : formatterYear, date);
+            case DateFormatCache.KIND_CALL_LOG:
+                if (range == DateFormatCache.RANGE_TODAY) {
+                    return formatterDay.format(date);
+                } else if (range == DateFormatCache.RANGE_YESTERDAY) {
+                    buffer.append(getStringInternal("YesterdayAt", R.string.YesterdayAt)).append(' ');
+                    return formatterDay.format(date, buffer).toString();
+                }
+                return formatDateAtTime(range != DateFormatCache.RANGE_OLDER ? chatDate : chatFullDate, date);
+            case DateFormatCache.KIND_ONLINE:
+                if (range == DateFormatCache.RANGE_TODAY || range == DateFormatCache.RANGE_YESTERDAY) {
+                    buffer.append(getStringInternal("LastSeen", R.string.LastSeen)).append(' ');
+                    if (range == DateFormatCache.RANGE_TODAY) {
+                        buffer.append(getStringInternal("TodayAt", R.string.TodayAt));
+                    } else {
+                        buffer.append(getStringInternal("YesterdayAt", R.string.YesterdayAt));
+                    }
+                    buffer.append(' ');
+                    return formatterDay.format(date, buffer).toString();
+                }
+                buffer.append(getStringInternal("LastSeenDate", R.string.LastSeenDate)).append(' ');
+                buffer.append(formatDateAtTime(range != DateFormatCache.RANGE_OLDER ? formatterMonth : formatterYear, date));
+                return buffer.toString();
+            default:
+                if (range == DateFormatCache.RANGE_TODAY) {
+                    return formatterDay.format(date);
+                } else if (range == DateFormatCache.RANGE_YESTERDAY || range == DateFormatCache.RANGE_WEEK) {
+                    return formatterWeek.format(date);
+                } else if (range == DateFormatCache.RANGE_YEAR) {
+                    return formatterMonth.format(date);
+                } else {
+                    return formatterYear.format(date);
+                }
+        }
+    }
+
+    private String formatDateAtTime(FastDateFormat dateFormat, long date) {
+        return formatString("formatDateAtTime", R.string.formatDateAtTime, dateFormat.format(date), formatterDay.format(date));
+    }
+
     private FastDateFormat createFormatter(Locale locale, String format, String defaultFormat) {
         if (format == null || format.length() == 0) {
             format = defaultFormat;
@@ -1004,6 +1052,7 @@ public class LocaleController {
         formatterMonthYear = createFormatter(locale, getStringInternal("formatterMonthYear", R.string.formatterMonthYear), "MMMM yyyy");
         formatterDay = createFormatter(lang.toLowerCase().equals("ar") || lang.toLowerCase().equals("ko") ? locale : Locale.US, is24HourFormat ? getStringInternal("formatterDay24H", R.string.formatterDay24H) : getStringInternal("formatterDay12H", R.string.formatterDay12H), is24HourFormat ? "HH:mm" : "h:mm a");
         formatterStats = createFormatter(locale, is24HourFormat ? getStringInternal("formatterStats24H", R.string.formatterStats24H) : getStringInternal("formatterStats12H", R.string.formatterStats12H), is24HourFormat ? "MMM dd yyyy, HH:mm" : "MMM dd yyyy, h:mm a");
+        dateFormatCache.clear();
     }
 
     public static boolean isRTLCharacter(char ch) {
@@ -1012,26 +1061,7 @@ public class LocaleController {
 
     public static String stringForMessageListDate(long date) {
         try {
-            date *= 1000;
-            Calendar rightNow = Calendar.getInstance();
-            int day = rightNow.get(Calendar.DAY_OF_YEAR);
-            int year = rightNow.get(Calendar.YEAR);
-            rightNow.setTimeInMillis(date);
-            int dateDay = rightNow.get(Calendar.DAY_OF_YEAR);
-            int dateYear = rightNow.get(Calendar.YEAR);
-
-            if (Math.abs(System.currentTimeMillis() - date) >= 31536000000L) {
-                return getInstance().formatterYear.format(new Date(date));
-            } else {
-                int dayDiff = dateDay - day;
-                if(dayDiff == 0 || dayDiff == -1 && System.currentTimeMillis() - date < 60 * 60 * 8 * 1000) {
-                    return getInstance().formatterDay.format(new Date(date));
-                } else if(dayDiff > -7 && dayDiff <= -1) {
-                    return getInstance().formatterWeek.format(new Date(date));
-                } else {
-                    return getInstance().formatterMonth.format(new Date(date));
-                }
-            }
+            return getInstance().dateFormatCache.format(DateFormatCache.KIND_LIST, date);
         } catch (Exception e) {
             FileLog.e(e);
         }
@@ -1105,541 +1135,655 @@ public class LocaleController {
         }
     }
 
-    public String getTranslitString(String src) {
-        if (translitChars == null) {
-            translitChars = new HashMap<>(520);
-            translitChars.put("ȼ", "c");
-            translitChars.put("ᶇ", "n");
-            translitChars.put("ɖ", "d");
-            translitChars.put("ỿ", "y");
-            translitChars.put("ᴓ", "o");
-            translitChars.put("ø", "o");
-            translitChars.put("ḁ", "a");
-            translitChars.put("ʯ", "h");
-            translitChars.put("ŷ", "y");
-            translitChars.put("ʞ", "k");
-            translitChars.put("ừ", "u");
-            translitChars.put("ꜳ", "aa");
-            translitChars.put("ĳ", "ij");
-            translitChars.put("ḽ", "l");
-            translitChars.put("ɪ", "i");
-            translitChars.put("ḇ", "b");
-            translitChars.put("ʀ", "r");
-            translitChars.put("ě", "e");
-            translitChars.put("ﬃ", "ffi");
-            translitChars.put("ơ", "o");
-            translitChars.put("ⱹ", "r");
-            translitChars.put("ồ", "o");
-            translitChars.put("ǐ", "i");
-            translitChars.put("ꝕ", "p");
-            translitChars.put("ý", "y");
-            translitChars.put("ḝ", "e");
-            translitChars.put("ₒ", "o");
-            translitChars.put("ⱥ", "a");
-            translitChars.put("ʙ", "b");
-            translitChars.put("ḛ", "e");
-            translitChars.put("ƈ", "c");
-            translitChars.put("ɦ", "h");
-            translitChars.put("ᵬ", "b");
-            translitChars.put("ṣ", "s");
-            translitChars.put("đ", "d");
-            translitChars.put("ỗ", "o");
-            translitChars.put("ɟ", "j");
-            translitChars.put("ẚ", "a");
-            translitChars.put("ɏ", "y");
-            translitChars.put("л", "l");
-            translitChars.put("ʌ", "v");
-            translitChars.put("ꝓ", "p");
-            translitChars.put("ﬁ", "fi");
-            translitChars.put("ᶄ", "k");
-            translitChars.put("ḏ", "d");
-            translitChars.put("ᴌ", "l");
-            translitChars.put("ė", "e");
-            translitChars.put("ё", "yo");
-            translitChars.put("ᴋ", "k");
-            translitChars.put("ċ", "c");
-            translitChars.put("ʁ", "r");
-            translitChars.put("ƕ", "hv");
-            translitChars.put("ƀ", "b");
-            translitChars.put("ṍ", "o");
-            translitChars.put("ȣ", "ou");
-            translitChars.put("ǰ", "j");
-            translitChars.put("ᶃ", "g");
-            translitChars.put("ṋ", "n");
-            translitChars.put("ɉ", "j");
-            translitChars.put("ǧ", "g");
-            translitChars.put("ǳ", "dz");
-            translitChars.put("ź", "z");
-            translitChars.put("ꜷ", "au");
-            translitChars.put("ǖ", "u");
-            translitChars.put("ᵹ", "g");
-            translitChars.put("ȯ", "o");
-            translitChars.put("ɐ", "a");
-            translitChars.put("ą", "a");
-            translitChars.put("õ", "o");
-            translitChars.put("ɻ", "r");
-            translitChars.put("ꝍ", "o");
-            translitChars.put("ǟ", "a");
-            translitChars.put("ȴ", "l");
-            translitChars.put("ʂ", "s");
-            translitChars.put("ﬂ", "fl");
-            translitChars.put("ȉ", "i");
-            translitChars.put("ⱻ", "e");
-            translitChars.put("ṉ", "n");
-            translitChars.put("ï", "i");
-            translitChars.put("ñ", "n");
-            translitChars.put("ᴉ", "i");
-            translitChars.put("ʇ", "t");
-            translitChars.put("ẓ", "z");
-            translitChars.put("ỷ", "y");
-            translitChars.put("ȳ", "y");
-            translitChars.put("ṩ", "s");
-            translitChars.put("ɽ", "r");
-            translitChars.put("ĝ", "g");
-            translitChars.put("в", "v");
-            translitChars.put("ᴝ", "u");
-            translitChars.put("ḳ", "k");
-            translitChars.put("ꝫ", "et");
-            translitChars.put("ī", "i");
-            translitChars.put("ť", "t");
-            translitChars.put("ꜿ", "c");
-            translitChars.put("ʟ", "l");
-            translitChars.put("ꜹ", "av");
-            translitChars.put("û", "u");
-            translitChars.put("æ", "ae");
-            translitChars.put("и", "i");
-            translitChars.put("ă", "a");
-            translitChars.put("ǘ", "u");
-            translitChars.put("ꞅ", "s");
-            translitChars.put("ᵣ", "r");
-            translitChars.put("ᴀ", "a");
-            translitChars.put("ƃ", "b");
-            translitChars.put("ḩ", "h");
-            translitChars.put("ṧ", "s");
-            translitChars.put("ₑ", "e");
-            translitChars.put("ʜ", "h");
-            translitChars.put("ẋ", "x");
-            translitChars.put("ꝅ", "k");
-            translitChars.put("ḋ", "d");
-            translitChars.put("ƣ", "oi");
-            translitChars.put("ꝑ", "p");
-            translitChars.put("ħ", "h");
-            translitChars.put("ⱴ", "v");
-            translitChars.put("ẇ", "w");
-            translitChars.put("ǹ", "n");
-            translitChars.put("ɯ", "m");
-            translitChars.put("ɡ", "g");
-            translitChars.put("ɴ", "n");
-            translitChars.put("ᴘ", "p");
-            translitChars.put("ᵥ", "v");
-            translitChars.put("ū", "u");
-            translitChars.put("ḃ", "b");
-            translitChars.put("ṗ", "p");
-            translitChars.put("ь", "");
-            translitChars.put("å", "a");
-            translitChars.put("ɕ", "c");
-            translitChars.put("ọ", "o");
-            translitChars.put("ắ", "a");
-            translitChars.put("ƒ", "f");
-            translitChars.put("ǣ", "ae");
-            translitChars.put("ꝡ", "vy");
-            translitChars.put("ﬀ", "ff");
-            translitChars.put("ᶉ", "r");
-            translitChars.put("ô", "o");
-            translitChars.put("ǿ", "o");
-            translitChars.put("ṳ", "u");
-            translitChars.put("ȥ", "z");
-            translitChars.put("ḟ", "f");
-            translitChars.put("ḓ", "d");
-            translitChars.put("ȇ", "e");
-            translitChars.put("ȕ", "u");
-            translitChars.put("п", "p");
-            translitChars.put("ȵ", "n");
-            translitChars.put("ʠ", "q");
-            translitChars.put("ấ", "a");
-            translitChars.put("ǩ", "k");
-            translitChars.put("ĩ", "i");
-            translitChars.put("ṵ", "u");
-            translitChars.put("ŧ", "t");
-            translitChars.put("ɾ", "r");
-            translitChars.put("ƙ", "k");
-            translitChars.put("ṫ", "t");
-            translitChars.put("ꝗ", "q");
-            translitChars.put("ậ", "a");
-            translitChars.put("н", "n");
-            translitChars.put("ʄ", "j");
-            translitChars.put("ƚ", "l");
-            translitChars.put("ᶂ", "f");
-            translitChars.put("д", "d");
-            translitChars.put("ᵴ", "s");
-            translitChars.put("ꞃ", "r");
-            translitChars.put("ᶌ", "v");
-            translitChars.put("ɵ", "o");
-            translitChars.put("ḉ", "c");
-            translitChars.put("ᵤ", "u");
-            translitChars.put("ẑ", "z");
-            translitChars.put("ṹ", "u");
-            translitChars.put("ň", "n");
-            translitChars.put("ʍ", "w");
-            translitChars.put("ầ", "a");
-            translitChars.put("ǉ", "lj");
-            translitChars.put("ɓ", "b");
-            translitChars.put("ɼ", "r");
-            translitChars.put("ò", "o");
-            translitChars.put("ẘ", "w");
-            translitChars.put("ɗ", "d");
-            translitChars.put("ꜽ", "ay");
-            translitChars.put("ư", "u");
-            translitChars.put("ᶀ", "b");
-            translitChars.put("ǜ", "u");
-            translitChars.put("ẹ", "e");
-            translitChars.put("ǡ", "a");
-            translitChars.put("ɥ", "h");
-            translitChars.put("ṏ", "o");
-            translitChars.put("ǔ", "u");
-            translitChars.put("ʎ", "y");
-            translitChars.put("ȱ", "o");
-            translitChars.put("ệ", "e");
-            translitChars.put("ế", "e");
-            translitChars.put("ĭ", "i");
-            translitChars.put("ⱸ", "e");
-            translitChars.put("ṯ", "t");
-            translitChars.put("ᶑ", "d");
-            translitChars.put("ḧ", "h");
-            translitChars.put("ṥ", "s");
-            translitChars.put("ë", "e");
-            translitChars.put("ᴍ", "m");
-            translitChars.put("ö", "o");
-            translitChars.put("é", "e");
-            translitChars.put("ı", "i");
-            translitChars.put("ď", "d");
-            translitChars.put("ᵯ", "m");
-            translitChars.put("ỵ", "y");
-            translitChars.put("я", "ya");
-            translitChars.put("ŵ", "w");
-            translitChars.put("ề", "e");
-            translitChars.put("ứ", "u");
-            translitChars.put("ƶ", "z");
-            translitChars.put("ĵ", "j");
-            translitChars.put("ḍ", "d");
-            translitChars.put("ŭ", "u");
-            translitChars.put("ʝ", "j");
-            translitChars.put("ж", "zh");
-            translitChars.put("ê", "e");
-            translitChars.put("ǚ", "u");
-            translitChars.put("ġ", "g");
-            translitChars.put("ṙ", "r");
-            translitChars.put("ƞ", "n");
-            translitChars.put("ъ", "");
-            translitChars.put("ḗ", "e");
-            translitChars.put("ẝ", "s");
-            translitChars.put("ᶁ", "d");
-            translitChars.put("ķ", "k");
-            translitChars.put("ᴂ", "ae");
-            translitChars.put("ɘ", "e");
-            translitChars.put("ợ", "o");
-            translitChars.put("ḿ", "m");
-            translitChars.put("ꜰ", "f");
-            translitChars.put("а", "a");
-            translitChars.put("ẵ", "a");
-            translitChars.put("ꝏ", "oo");
-            translitChars.put("ᶆ", "m");
-            translitChars.put("ᵽ", "p");
-            translitChars.put("ц", "ts");
-            translitChars.put("ữ", "u");
-            translitChars.put("ⱪ", "k");
-            translitChars.put("ḥ", "h");
-            translitChars.put("ţ", "t");
-            translitChars.put("ᵱ", "p");
-            translitChars.put("ṁ", "m");
-            translitChars.put("á", "a");
-            translitChars.put("ᴎ", "n");
-            translitChars.put("ꝟ", "v");
-            translitChars.put("è", "e");
-            translitChars.put("ᶎ", "z");
-            translitChars.put("ꝺ", "d");
-            translitChars.put("ᶈ", "p");
-            translitChars.put("м", "m");
-            translitChars.put("ɫ", "l");
-            translitChars.put("ᴢ", "z");
-            translitChars.put("ɱ", "m");
-            translitChars.put("ṝ", "r");
-            translitChars.put("ṽ", "v");
-            translitChars.put("ũ", "u");
-            translitChars.put("ß", "ss");
-            translitChars.put("т", "t");
-            translitChars.put("ĥ", "h");
-            translitChars.put("ᵵ", "t");
-            translitChars.put("ʐ", "z");
-            translitChars.put("ṟ", "r");
-            translitChars.put("ɲ", "n");
-            translitChars.put("à", "a");
-            translitChars.put("ẙ", "y");
-            translitChars.put("ỳ", "y");
-            translitChars.put("ᴔ", "oe");
-            translitChars.put("ы", "i");
-            translitChars.put("ₓ", "x");
-            translitChars.put("ȗ", "u");
-            translitChars.put("ⱼ", "j");
-            translitChars.put("ẫ", "a");
-            translitChars.put("ʑ", "z");
-            translitChars.put("ẛ", "s");
-            translitChars.put("ḭ", "i");
-            translitChars.put("ꜵ", "ao");
-            translitChars.put("ɀ", "z");
-            translitChars.put("ÿ", "y");
-            translitChars.put("ǝ", "e");
-            translitChars.put("ǭ", "o");
-            translitChars.put("ᴅ", "d");
-            translitChars.put("ᶅ", "l");
-            translitChars.put("ù", "u");
-            translitChars.put("ạ", "a");
-            translitChars.put("ḅ", "b");
-            translitChars.put("ụ", "u");
-            translitChars.put("к", "k");
-            translitChars.put("ằ", "a");
-            translitChars.put("ᴛ", "t");
-            translitChars.put("ƴ", "y");
-            translitChars.put("ⱦ", "t");
-            translitChars.put("з", "z");
-            translitChars.put("ⱡ", "l");
-            translitChars.put("ȷ", "j");
-            translitChars.put("ᵶ", "z");
-            translitChars.put("ḫ", "h");
-            translitChars.put("ⱳ", "w");
-            translitChars.put("ḵ", "k");
-            translitChars.put("ờ", "o");
-            translitChars.put("î", "i");
-            translitChars.put("ģ", "g");
-            translitChars.put("ȅ", "e");
-            translitChars.put("ȧ", "a");
-            translitChars.put("ẳ", "a");
-            translitChars.put("щ", "sch");
-            translitChars.put("ɋ", "q");
-            translitChars.put("ṭ", "t");
-            translitChars.put("ꝸ", "um");
-            translitChars.put("ᴄ", "c");
-            translitChars.put("ẍ", "x");
-            translitChars.put("ủ", "u");
-            translitChars.put("ỉ", "i");
-            translitChars.put("ᴚ", "r");
-            translitChars.put("ś", "s");
-            translitChars.put("ꝋ", "o");
-            translitChars.put("ỹ", "y");
-            translitChars.put("ṡ", "s");
-            translitChars.put("ǌ", "nj");
-            translitChars.put("ȁ", "a");
-            translitChars.put("ẗ", "t");
-            translitChars.put("ĺ", "l");
-            translitChars.put("ž", "z");
-            translitChars.put("ᵺ", "th");
-            translitChars.put("ƌ", "d");
-            translitChars.put("ș", "s");
-            translitChars.put("š", "s");
-            translitChars.put("ᶙ", "u");
-            translitChars.put("ẽ", "e");
-            translitChars.put("ẜ", "s");
-            translitChars.put("ɇ", "e");
-            translitChars.put("ṷ", "u");
-            translitChars.put("ố", "o");
-            translitChars.put("ȿ", "s");
-            translitChars.put("ᴠ", "v");
-            translitChars.put("ꝭ", "is");
-            translitChars.put("ᴏ", "o");
-            translitChars.put("ɛ", "e");
-            translitChars.put("ǻ", "a");
-            translitChars.put("ﬄ", "ffl");
-            translitChars.put("ⱺ", "o");
-            translitChars.put("ȋ", "i");
-            translitChars.put("ᵫ", "ue");
-            translitChars.put("ȡ", "d");
-            translitChars.put("ⱬ", "z");
-            translitChars.put("ẁ", "w");
-            translitChars.put("ᶏ", "a");
-            translitChars.put("ꞇ", "t");
-            translitChars.put("ğ", "g");
-            translitChars.put("ɳ", "n");
-            translitChars.put("ʛ", "g");
-            translitChars.put("ᴜ", "u");
-            translitChars.put("ф", "f");
-            translitChars.put("ẩ", "a");
-            translitChars.put("ṅ", "n");
-            translitChars.put("ɨ", "i");
-            translitChars.put("ᴙ", "r");
-            translitChars.put("ǎ", "a");
-            translitChars.put("ſ", "s");
-            translitChars.put("у", "u");
-            translitChars.put("ȫ", "o");
-            translitChars.put("ɿ", "r");
-            translitChars.put("ƭ", "t");
-            translitChars.put("ḯ", "i");
-            translitChars.put("ǽ", "ae");
-            translitChars.put("ⱱ", "v");
-            translitChars.put("ɶ", "oe");
-            translitChars.put("ṃ", "m");
-            translitChars.put("ż", "z");
-            translitChars.put("ĕ", "e");
-            translitChars.put("ꜻ", "av");
-            translitChars.put("ở", "o");
-            translitChars.put("ễ", "e");
-            translitChars.put("ɬ", "l");
-            translitChars.put("ị", "i");
-            translitChars.put("ᵭ", "d");
-            translitChars.put("ﬆ", "st");
-            translitChars.put("ḷ", "l");
-            translitChars.put("ŕ", "r");
-            translitChars.put("ᴕ", "ou");
-            translitChars.put("ʈ", "t");
-            translitChars.put("ā", "a");
-            translitChars.put("э", "e");
-            translitChars.put("ḙ", "e");
-            translitChars.put("ᴑ", "o");
-            translitChars.put("ç", "c");
-            translitChars.put("ᶊ", "s");
-            translitChars.put("ặ", "a");
-            translitChars.put("ų", "u");
-            translitChars.put("ả", "a");
-            translitChars.put("ǥ", "g");
-            translitChars.put("р", "r");
-            translitChars.put("ꝁ", "k");
-            translitChars.put("ẕ", "z");
-            translitChars.put("ŝ", "s");
-            translitChars.put("ḕ", "e");
-            translitChars.put("ɠ", "g");
-            translitChars.put("ꝉ", "l");
-            translitChars.put("ꝼ", "f");
-            translitChars.put("ᶍ", "x");
-            translitChars.put("х", "h");
-            translitChars.put("ǒ", "o");
-            translitChars.put("ę", "e");
-            translitChars.put("ổ", "o");
-            translitChars.put("ƫ", "t");
-            translitChars.put("ǫ", "o");
-            translitChars.put("i̇", "i");
-            translitChars.put("ṇ", "n");
-            translitChars.put("ć", "c");
-            translitChars.put("ᵷ", "g");
-            translitChars.put("ẅ", "w");
-            translitChars.put("ḑ", "d");
-            translitChars.put("ḹ", "l");
-            translitChars.put("ч", "ch");
-            translitChars.put("œ", "oe");
-            translitChars.put("ᵳ", "r");
-            translitChars.put("ļ", "l");
-            translitChars.put("ȑ", "r");
-            translitChars.put("ȭ", "o");
-            translitChars.put("ᵰ", "n");
-            translitChars.put("ᴁ", "ae");
-            translitChars.put("ŀ", "l");
-            translitChars.put("ä", "a");
-            translitChars.put("ƥ", "p");
-            translitChars.put("ỏ", "o");
-            translitChars.put("į", "i");
-            translitChars.put("ȓ", "r");
-            translitChars.put("ǆ", "dz");
-            translitChars.put("ḡ", "g");
-            translitChars.put("ṻ", "u");
-            translitChars.put("ō", "o");
-            translitChars.put("ľ", "l");
-            translitChars.put("ẃ", "w");
-            translitChars.put("ț", "t");
-            translitChars.put("ń", "n");
-            translitChars.put("ɍ", "r");
-            translitChars.put("ȃ", "a");
-            translitChars.put("ü", "u");
-            translitChars.put("ꞁ", "l");
-            translitChars.put("ᴐ", "o");
-            translitChars.put("ớ", "o");
-            translitChars.put("ᴃ", "b");
-            translitChars.put("ɹ", "r");
-            translitChars.put("ᵲ", "r");
-            translitChars.put("ʏ", "y");
-            translitChars.put("ᵮ", "f");
-            translitChars.put("ⱨ", "h");
-            translitChars.put("ŏ", "o");
-            translitChars.put("ú", "u");
-            translitChars.put("ṛ", "r");
-            translitChars.put("ʮ", "h");
-            translitChars.put("ó", "o");
-            translitChars.put("ů", "u");
-            translitChars.put("ỡ", "o");
-            translitChars.put("ṕ", "p");
-            translitChars.put("ᶖ", "i");
-            translitChars.put("ự", "u");
-            translitChars.put("ã", "a");
-            translitChars.put("ᵢ", "i");
-            translitChars.put("ṱ", "t");
-            translitChars.put("ể", "e");
-            translitChars.put("ử", "u");
-            translitChars.put("í", "i");
-            translitChars.put("ɔ", "o");
-            translitChars.put("с", "s");
-            translitChars.put("й", "i");
-            translitChars.put("ɺ", "r");
-            translitChars.put("ɢ", "g");
-            translitChars.put("ř", "r");
-            translitChars.put("ẖ", "h");
-            translitChars.put("ű", "u");
-            translitChars.put("ȍ", "o");
-            translitChars.put("ш", "sh");
-            translitChars.put("ḻ", "l");
-            translitChars.put("ḣ", "h");
-            translitChars.put("ȶ", "t");
-            translitChars.put("ņ", "n");
-            translitChars.put("ᶒ", "e");
-            translitChars.put("ì", "i");
-            translitChars.put("ẉ", "w");
-            translitChars.put("б", "b");
-            translitChars.put("ē", "e");
-            translitChars.put("ᴇ", "e");
-            translitChars.put("ł", "l");
-            translitChars.put("ộ", "o");
-            translitChars.put("ɭ", "l");
-            translitChars.put("ẏ", "y");
-            translitChars.put("ᴊ", "j");
-            translitChars.put("ḱ", "k");
-            translitChars.put("ṿ", "v");
-            translitChars.put("ȩ", "e");
-            translitChars.put("â", "a");
-            translitChars.put("ş", "s");
-            translitChars.put("ŗ", "r");
-            translitChars.put("ʋ", "v");
-            translitChars.put("ₐ", "a");
-            translitChars.put("ↄ", "c");
-            translitChars.put("ᶓ", "e");
-            translitChars.put("ɰ", "m");
-            translitChars.put("е", "e");
-            translitChars.put("ᴡ", "w");
-            translitChars.put("ȏ", "o");
-            translitChars.put("č", "c");
-            translitChars.put("ǵ", "g");
-            translitChars.put("ĉ", "c");
-            translitChars.put("ю", "yu");
-            translitChars.put("ᶗ", "o");
-            translitChars.put("ꝃ", "k");
-            translitChars.put("ꝙ", "q");
-            translitChars.put("г", "g");
-            translitChars.put("ṑ", "o");
-            translitChars.put("ꜱ", "s");
-            translitChars.put("ṓ", "o");
-            translitChars.put("ȟ", "h");
-            translitChars.put("ő", "o");
-            translitChars.put("ꜩ", "tz");
-            translitChars.put("ẻ", "e");
-            translitChars.put("о", "o");
-        }
-        StringBuilder dst = new StringBuilder(src.length());
+    private String[][] getTranslitPages() {
+        String[][] pages = translitPages;
+        if (pages == null) {
+            synchronized (this) {
+                pages = translitPages;
+                if (pages == null) {
+                    pages = buildTranslitPages();
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Turns the translit map into a two-level table indexed by the high and low byte of a char,
+     * so a lookup is two array reads. Keys longer than one char are kept as a separate list.
+     */
+    private String[][] buildTranslitPages() {
+        HashMap<String, String> translitChars = new HashMap<>(520);
+        translitChars.put("ȼ", "c");
+        translitChars.put("ᶇ", "n");
+        translitChars.put("ɖ", "d");
+        translitChars.put("ỿ", "y");
+        translitChars.put("ᴓ", "o");
+        translitChars.put("ø", "o");
+        translitChars.put("ḁ", "a");
+        translitChars.put("ʯ", "h");
+        translitChars.put("ŷ", "y");
+        translitChars.put("ʞ", "k");
+        translitChars.put("ừ", "u");
+        translitChars.put("ꜳ", "aa");
+        translitChars.put("ĳ", "ij");
+        translitChars.put("ḽ", "l");
+        translitChars.put("ɪ", "i");
+        translitChars.put("ḇ", "b");
+        translitChars.put("ʀ", "r");
+        translitChars.put("ě", "e");
+        translitChars.put("ﬃ", "ffi");
+        translitChars.put("ơ", "o");
+        translitChars.put("ⱹ", "r");
+        translitChars.put("ồ", "o");
+        translitChars.put("ǐ", "i");
+        translitChars.put("ꝕ", "p");
+        translitChars.put("ý", "y");
+        translitChars.put("ḝ", "e");
+        translitChars.put("ₒ", "o");
+        translitChars.put("ⱥ", "a");
+        translitChars.put("ʙ", "b");
+        translitChars.put("ḛ", "e");
+        translitChars.put("ƈ", "c");
+        translitChars.put("ɦ", "h");
+        translitChars.put("ᵬ", "b");
+        translitChars.put("ṣ", "s");
+        translitChars.put("đ", "d");
+        translitChars.put("ỗ", "o");
+        translitChars.put("ɟ", "j");
+        translitChars.put("ẚ", "a");
+        translitChars.put("ɏ", "y");
+        translitChars.put("л", "l");
+        translitChars.put("ʌ", "v");
+        translitChars.put("ꝓ", "p");
+        translitChars.put("ﬁ", "fi");
+        translitChars.put("ᶄ", "k");
+        translitChars.put("ḏ", "d");
+        translitChars.put("ᴌ", "l");
+        translitChars.put("ė", "e");
+        translitChars.put("ё", "yo");
+        translitChars.put("ᴋ", "k");
+        translitChars.put("ċ", "c");
+        translitChars.put("ʁ", "r");
+        translitChars.put("ƕ", "hv");
+        translitChars.put("ƀ", "b");
+        translitChars.put("ṍ", "o");
+        translitChars.put("ȣ", "ou");
+        translitChars.put("ǰ", "j");
+        translitChars.put("ᶃ", "g");
+        translitChars.put("ṋ", "n");
+        translitChars.put("ɉ", "j");
+        translitChars.put("ǧ", "g");
+        translitChars.put("ǳ", "dz");
+        translitChars.put("ź", "z");
+        translitChars.put("ꜷ", "au");
+        translitChars.put("ǖ", "u");
+        translitChars.put("ᵹ", "g");
+        translitChars.put("ȯ", "o");
+        translitChars.put("ɐ", "a");
+        translitChars.put("ą", "a");
+        translitChars.put("õ", "o");
+        translitChars.put("ɻ", "r");
+        translitChars.put("ꝍ", "o");
+        translitChars.put("ǟ", "a");
+        translitChars.put("ȴ", "l");
+        translitChars.put("ʂ", "s");
+        translitChars.put("ﬂ", "fl");
+        translitChars.put("ȉ", "i");
+        translitChars.put("ⱻ", "e");
+        translitChars.put("ṉ", "n");
+        translitChars.put("ï", "i");
+        translitChars.put("ñ", "n");
+        translitChars.put("ᴉ", "i");
+        translitChars.put("ʇ", "t");
+        translitChars.put("ẓ", "z");
+        translitChars.put("ỷ", "y");
+        translitChars.put("ȳ", "y");
+        translitChars.put("ṩ", "s");
+        translitChars.put("ɽ", "r");
+        translitChars.put("ĝ", "g");
+        translitChars.put("в", "v");
+        translitChars.put("ᴝ", "u");
+        translitChars.put("ḳ", "k");
+        translitChars.put("ꝫ", "et");
+        translitChars.put("ī", "i");
+        translitChars.put("ť", "t");
+        translitChars.put("ꜿ", "c");
+        translitChars.put("ʟ", "l");
+        translitChars.put("ꜹ", "av");
+        translitChars.put("û", "u");
+        translitChars.put("æ", "ae");
+        translitChars.put("и", "i");
+        translitChars.put("ă", "a");
+        translitChars.put("ǘ", "u");
+        translitChars.put("ꞅ", "s");
+        translitChars.put("ᵣ", "r");
+        translitChars.put("ᴀ", "a");
+        translitChars.put("ƃ", "b");
+        translitChars.put("ḩ", "h");
+        translitChars.put("ṧ", "s");
+        translitChars.put("ₑ", "e");
+        translitChars.put("ʜ", "h");
+        translitChars.put("ẋ", "x");
+        translitChars.put("ꝅ", "k");
+        translitChars.put("ḋ", "d");
+        translitChars.put("ƣ", "oi");
+        translitChars.put("ꝑ", "p");
+        translitChars.put("ħ", "h");
+        translitChars.put("ⱴ", "v");
+        translitChars.put("ẇ", "w");
+        translitChars.put("ǹ", "n");
+        translitChars.put("ɯ", "m");
+        translitChars.put("ɡ", "g");
+        translitChars.put("ɴ", "n");
+        translitChars.put("ᴘ", "p");
+        translitChars.put("ᵥ", "v");
+        translitChars.put("ū", "u");
+        translitChars.put("ḃ", "b");
+        translitChars.put("ṗ", "p");
+        translitChars.put("ь", "");
+        translitChars.put("å", "a");
+        translitChars.put("ɕ", "c");
+        translitChars.put("ọ", "o");
+        translitChars.put("ắ", "a");
+        translitChars.put("ƒ", "f");
+        translitChars.put("ǣ", "ae");
+        translitChars.put("ꝡ", "vy");
+        translitChars.put("ﬀ", "ff");
+        translitChars.put("ᶉ", "r");
+        translitChars.put("ô", "o");
+        translitChars.put("ǿ", "o");
+        translitChars.put("ṳ", "u");
+        translitChars.put("ȥ", "z");
+        translitChars.put("ḟ", "f");
+        translitChars.put("ḓ", "d");
+        translitChars.put("ȇ", "e");
+        translitChars.put("ȕ", "u");
+        translitChars.put("п", "p");
+        translitChars.put("ȵ", "n");
+        translitChars.put("ʠ", "q");
+        translitChars.put("ấ", "a");
+        translitChars.put("ǩ", "k");
+        translitChars.put("ĩ", "i");
+        translitChars.put("ṵ", "u");
+        translitChars.put("ŧ", "t");
+        translitChars.put("ɾ", "r");
+        translitChars.put("ƙ", "k");
+        translitChars.put("ṫ", "t");
+        translitChars.put("ꝗ", "q");
+        translitChars.put("ậ", "a");
+        translitChars.put("н", "n");
+        translitChars.put("ʄ", "j");
+        translitChars.put("ƚ", "l");
+        translitChars.put("ᶂ", "f");
+        translitChars.put("д", "d");
+        translitChars.put("ᵴ", "s");
+        translitChars.put("ꞃ", "r");
+        translitChars.put("ᶌ", "v");
+        translitChars.put("ɵ", "o");
+        translitChars.put("ḉ", "c");
+        translitChars.put("ᵤ", "u");
+        translitChars.put("ẑ", "z");
+        translitChars.put("ṹ", "u");
+        translitChars.put("ň", "n");
+        translitChars.put("ʍ", "w");
+        translitChars.put("ầ", "a");
+        translitChars.put("ǉ", "lj");
+        translitChars.put("ɓ", "b");
+        translitChars.put("ɼ", "r");
+        translitChars.put("ò", "o");
+        translitChars.put("ẘ", "w");
+        translitChars.put("ɗ", "d");
+        translitChars.put("ꜽ", "ay");
+        translitChars.put("ư", "u");
+        translitChars.put("ᶀ", "b");
+        translitChars.put("ǜ", "u");
+        translitChars.put("ẹ", "e");
+        translitChars.put("ǡ", "a");
+        translitChars.put("ɥ", "h");
+        translitChars.put("ṏ", "o");
+        translitChars.put("ǔ", "u");
+        translitChars.put("ʎ", "y");
+        translitChars.put("ȱ", "o");
+        translitChars.put("ệ", "e");
+        translitChars.put("ế", "e");
+        translitChars.put("ĭ", "i");
+        translitChars.put("ⱸ", "e");
+        translitChars.put("ṯ", "t");
+        translitChars.put("ᶑ", "d");
+        translitChars.put("ḧ", "h");
+        translitChars.put("ṥ", "s");
+        translitChars.put("ë", "e");
+        translitChars.put("ᴍ", "m");
+        translitChars.put("ö", "o");
+        translitChars.put("é", "e");
+        translitChars.put("ı", "i");
+        translitChars.put("ď", "d");
+        translitChars.put("ᵯ", "m");
+        translitChars.put("ỵ", "y");
+        translitChars.put("я", "ya");
+        translitChars.put("ŵ", "w");
+        translitChars.put("ề", "e");
+        translitChars.put("ứ", "u");
+        translitChars.put("ƶ", "z");
+        translitChars.put("ĵ", "j");
+        translitChars.put("ḍ", "d");
+        translitChars.put("ŭ", "u");
+        translitChars.put("ʝ", "j");
+        translitChars.put("ж", "zh");
+        translitChars.put("ê", "e");
+        translitChars.put("ǚ", "u");
+        translitChars.put("ġ", "g");
+        translitChars.put("ṙ", "r");
+        translitChars.put("ƞ", "n");
+        translitChars.put("ъ", "");
+        translitChars.put("ḗ", "e");
+        translitChars.put("ẝ", "s");
+        translitChars.put("ᶁ", "d");
+        translitChars.put("ķ", "k");
+        translitChars.put("ᴂ", "ae");
+        translitChars.put("ɘ", "e");
+        translitChars.put("ợ", "o");
+        translitChars.put("ḿ", "m");
+        translitChars.put("ꜰ", "f");
+        translitChars.put("а", "a");
+        translitChars.put("ẵ", "a");
+        translitChars.put("ꝏ", "oo");
+        translitChars.put("ᶆ", "m");
+        translitChars.put("ᵽ", "p");
+        translitChars.put("ц", "ts");
+        translitChars.put("ữ", "u");
+        translitChars.put("ⱪ", "k");
+        translitChars.put("ḥ", "h");
+        translitChars.put("ţ", "t");
+        translitChars.put("ᵱ", "p");
+        translitChars.put("ṁ", "m");
+        translitChars.put("á", "a");
+        translitChars.put("ᴎ", "n");
+        translitChars.put("ꝟ", "v");
+        translitChars.put("è", "e");
+        translitChars.put("ᶎ", "z");
+        translitChars.put("ꝺ", "d");
+        translitChars.put("ᶈ", "p");
+        translitChars.put("м", "m");
+        translitChars.put("ɫ", "l");
+        translitChars.put("ᴢ", "z");
+        translitChars.put("ɱ", "m");
+        translitChars.put("ṝ", "r");
+        translitChars.put("ṽ", "v");
+        translitChars.put("ũ", "u");
+        translitChars.put("ß", "ss");
+        translitChars.put("т", "t");
+        translitChars.put("ĥ", "h");
+        translitChars.put("ᵵ", "t");
+        translitChars.put("ʐ", "z");
+        translitChars.put("ṟ", "r");
+        translitChars.put("ɲ", "n");
+        translitChars.put("à", "a");
+        translitChars.put("ẙ", "y");
+        translitChars.put("ỳ", "y");
+        translitChars.put("ᴔ", "oe");
+        translitChars.put("ы", "i");
+        translitChars.put("ₓ", "x");
+        translitChars.put("ȗ", "u");
+        translitChars.put("ⱼ", "j");
+        translitChars.put("ẫ", "a");
+        translitChars.put("ʑ", "z");
+        translitChars.put("ẛ", "s");
+        translitChars.put("ḭ", "i");
+        translitChars.put("ꜵ", "ao");
+        translitChars.put("ɀ", "z");
+        translitChars.put("ÿ", "y");
+        translitChars.put("ǝ", "e");
+        translitChars.put("ǭ", "o");
+        translitChars.put("ᴅ", "d");
+        translitChars.put("ᶅ", "l");
+        translitChars.put("ù", "u");
+        translitChars.put("ạ", "a");
+        translitChars.put("ḅ", "b");
+        translitChars.put("ụ", "u");
+        translitChars.put("к", "k");
+        translitChars.put("ằ", "a");
+        translitChars.put("ᴛ", "t");
+        translitChars.put("ƴ", "y");
+        translitChars.put("ⱦ", "t");
+        translitChars.put("з", "z");
+        translitChars.put("ⱡ", "l");
+        translitChars.put("ȷ", "j");
+        translitChars.put("ᵶ", "z");
+        translitChars.put("ḫ", "h");
+        translitChars.put("ⱳ", "w");
+        translitChars.put("ḵ", "k");
+        translitChars.put("ờ", "o");
+        translitChars.put("î", "i");
+        translitChars.put("ģ", "g");
+        translitChars.put("ȅ", "e");
+        translitChars.put("ȧ", "a");
+        translitChars.put("ẳ", "a");
+        translitChars.put("щ", "sch");
+        translitChars.put("ɋ", "q");
+        translitChars.put("ṭ", "t");
+        translitChars.put("ꝸ", "um");
+        translitChars.put("ᴄ", "c");
+        translitChars.put("ẍ", "x");
+        translitChars.put("ủ", "u");
+        translitChars.put("ỉ", "i");
+        translitChars.put("ᴚ", "r");
+        translitChars.put("ś", "s");
+        translitChars.put("ꝋ", "o");
+        translitChars.put("ỹ", "y");
+        translitChars.put("ṡ", "s");
+        translitChars.put("ǌ", "nj");
+        translitChars.put("ȁ", "a");
+        translitChars.put("ẗ", "t");
+        translitChars.put("ĺ", "l");
+        translitChars.put("ž", "z");
+        translitChars.put("ᵺ", "th");
+        translitChars.put("ƌ", "d");
+        translitChars.put("ș", "s");
+        translitChars.put("š", "s");
+        translitChars.put("ᶙ", "u");
+        translitChars.put("ẽ", "e");
+        translitChars.put("ẜ", "s");
+        translitChars.put("ɇ", "e");
+        translitChars.put("ṷ", "u");
+        translitChars.put("ố", "o");
+        translitChars.put("ȿ", "s");
+        translitChars.put("ᴠ", "v");
+        translitChars.put("ꝭ", "is");
+        translitChars.put("ᴏ", "o");
+        translitChars.put("ɛ", "e");
+        translitChars.put("ǻ", "a");
+        translitChars.put("ﬄ", "ffl");
+        translitChars.put("ⱺ", "o");
+        translitChars.put("ȋ", "i");
+        translitChars.put("ᵫ", "ue");
+        translitChars.put("ȡ", "d");
+        translitChars.put("ⱬ", "z");
+        translitChars.put("ẁ", "w");
+        translitChars.put("ᶏ", "a");
+        translitChars.put("ꞇ", "t");
+        translitChars.put("ğ", "g");
+        translitChars.put("ɳ", "n");
+        translitChars.put("ʛ", "g");
+        translitChars.put("ᴜ", "u");
+        translitChars.put("ф", "f");
+        translitChars.put("ẩ", "a");
+        translitChars.put("ṅ", "n");
+        translitChars.put("ɨ", "i");
+        translitChars.put("ᴙ", "r");
+        translitChars.put("ǎ", "a");
+        translitChars.put("ſ", "s");
+        translitChars.put("у", "u");
+        translitChars.put("ȫ", "o");
+        translitChars.put("ɿ", "r");
+        translitChars.put("ƭ", "t");
+        translitChars.put("ḯ", "i");
+        translitChars.put("ǽ", "ae");
+        translitChars.put("ⱱ", "v");
+        translitChars.put("ɶ", "oe");
+        translitChars.put("ṃ", "m");
+        translitChars.put("ż", "z");
+        translitChars.put("ĕ", "e");
+        translitChars.put("ꜻ", "av");
+        translitChars.put("ở", "o");
+        translitChars.put("ễ", "e");
+        translitChars.put("ɬ", "l");
+        translitChars.put("ị", "i");
+        translitChars.put("ᵭ", "d");
+        translitChars.put("ﬆ", "st");
+        translitChars.put("ḷ", "l");
+        translitChars.put("ŕ", "r");
+        translitChars.put("ᴕ", "ou");
+        translitChars.put("ʈ", "t");
+        translitChars.put("ā", "a");
+        translitChars.put("э", "e");
+        translitChars.put("ḙ", "e");
+        translitChars.put("ᴑ", "o");
+        translitChars.put("ç", "c");
+        translitChars.put("ᶊ", "s");
+        translitChars.put("ặ", "a");
+        translitChars.put("ų", "u");
+        translitChars.put("ả", "a");
+        translitChars.put("ǥ", "g");
+        translitChars.put("р", "r");
+        translitChars.put("ꝁ", "k");
+        translitChars.put("ẕ", "z");
+        translitChars.put("ŝ", "s");
+        translitChars.put("ḕ", "e");
+        translitChars.put("ɠ", "g");
+        translitChars.put("ꝉ", "l");
+        translitChars.put("ꝼ", "f");
+        translitChars.put("ᶍ", "x");
+        translitChars.put("х", "h");
+        translitChars.put("ǒ", "o");
+        translitChars.put("ę", "e");
+        translitChars.put("ổ", "o");
+        translitChars.put("ƫ", "t");
+        translitChars.put("ǫ", "o");
+        translitChars.put("i̇", "i");
+        translitChars.put("ṇ", "n");
+        translitChars.put("ć", "c");
+        translitChars.put("ᵷ", "g");
+        translitChars.put("ẅ", "w");
+        translitChars.put("ḑ", "d");
+        translitChars.put("ḹ", "l");
+        translitChars.put("ч", "ch");
+        translitChars.put("œ", "oe");
+        translitChars.put("ᵳ", "r");
+        translitChars.put("ļ", "l");
+        translitChars.put("ȑ", "r");
+        translitChars.put("ȭ", "o");
+        translitChars.put("ᵰ", "n");
+        translitChars.put("ᴁ", "ae");
+        translitChars.put("ŀ", "l");
+        translitChars.put("ä", "a");
+        translitChars.put("ƥ", "p");
+        translitChars.put("ỏ", "o");
+        translitChars.put("į", "i");
+        translitChars.put("ȓ", "r");
+        translitChars.put("ǆ", "dz");
+        translitChars.put("ḡ", "g");
+        translitChars.put("ṻ", "u");
+        translitChars.put("ō", "o");
+        translitChars.put("ľ", "l");
+        translitChars.put("ẃ", "w");
+        translitChars.put("ț", "t");
+        translitChars.put("ń", "n");
+        translitChars.put("ɍ", "r");
+        translitChars.put("ȃ", "a");
+        translitChars.put("ü", "u");
+        translitChars.put("ꞁ", "l");
+        translitChars.put("ᴐ", "o");
+        translitChars.put("ớ", "o");
+        translitChars.put("ᴃ", "b");
+        translitChars.put("ɹ", "r");
+        translitChars.put("ᵲ", "r");
+        translitChars.put("ʏ", "y");
+        translitChars.put("ᵮ", "f");
+        translitChars.put("ⱨ", "h");
+        translitChars.put("ŏ", "o");
+        translitChars.put("ú", "u");
+        translitChars.put("ṛ", "r");
+        translitChars.put("ʮ", "h");
+        translitChars.put("ó", "o");
+        translitChars.put("ů", "u");
+        translitChars.put("ỡ", "o");
+        translitChars.put("ṕ", "p");
+        translitChars.put("ᶖ", "i");
+        translitChars.put("ự", "u");
+        translitChars.put("ã", "a");
+        translitChars.put("ᵢ", "i");
+        translitChars.put("ṱ", "t");
+        translitChars.put("ể", "e");
+        translitChars.put("ử", "u");
+        translitChars.put("í", "i");
+        translitChars.put("ɔ", "o");
+        translitChars.put("с", "s");
+        translitChars.put("й", "i");
+        translitChars.put("ɺ", "r");
+        translitChars.put("ɢ", "g");
+        translitChars.put("ř", "r");
+        translitChars.put("ẖ", "h");
+        translitChars.put("ű", "u");
+        translitChars.put("ȍ", "o");
+        translitChars.put("ш", "sh");
+        translitChars.put("ḻ", "l");
+        translitChars.put("ḣ", "h");
+        translitChars.put("ȶ", "t");
+        translitChars.put("ņ", "n");
+        translitChars.put("ᶒ", "e");
+        translitChars.put("ì", "i");
+        translitChars.put("ẉ", "w");
+        translitChars.put("б", "b");
+        translitChars.put("ē", "e");
+        translitChars.put("ᴇ", "e");
+        translitChars.put("ł", "l");
+        translitChars.put("ộ", "o");
+        translitChars.put("ɭ", "l");
+        translitChars.put("ẏ", "y");
+        translitChars.put("ᴊ", "j");
+        translitChars.put("ḱ", "k");
+        translitChars.put("ṿ", "v");
+        translitChars.put("ȩ", "e");
+        translitChars.put("â", "a");
+        translitChars.put("ş", "s");
+        translitChars.put("ŗ", "r");
+        translitChars.put("ʋ", "v");
+        translitChars.put("ₐ", "a");
+        translitChars.put("ↄ", "c");
+        translitChars.put("ᶓ", "e");
+        translitChars.put("ɰ", "m");
+        translitChars.put("е", "e");
+        translitChars.put("ᴡ", "w");
+        translitChars.put("ȏ", "o");
+        translitChars.put("č", "c");
+        translitChars.put("ǵ", "g");
+        translitChars.put("ĉ", "c");
+        translitChars.put("ю", "yu");
+        translitChars.put("ᶗ", "o");
+        translitChars.put("ꝃ", "k");
+        translitChars.put("ꝙ", "q");
+        translitChars.put("г", "g");
+        translitChars.put("ṑ", "o");
+        translitChars.put("ꜱ", "s");
+        translitChars.put("ṓ", "o");
+        translitChars.put("ȟ", "h");
+        translitChars.put("ő", "o");
+        translitChars.put("ꜩ", "tz");
+        translitChars.put("ẻ", "e");
+        translitChars.put("о", "o");
+        String[][] pages = new String[256][];
+        ArrayList<String> sequences = new ArrayList<>();
+        ArrayList<String> sequenceValues = new ArrayList<>();
+        for (Map.Entry<String, String> entry : translitChars.entrySet()) {
+            String key = entry.getKey();
+            if (key.length() != 1) {
+                sequences.add(key);
+                sequenceValues.add(entry.getValue());
+                continue;
+            }
+            char c = key.charAt(0);
+            String[] page = pages[c >> 8];
+            if (page == null) {
+                pages[c >> 8] = page = new String[256];
+            }
+            page[c & 0xff] = entry.getValue();
+        }
+        translitSequences = sequences.toArray(new String[sequences.size()]);
+        translitSequenceValues = sequenceValues.toArray(new String[sequenceValues.size()]);
+        translitPages = pages;
+        return pages;
+    }
+
+    private int findTranslitSequence(CharSequence src, int index) {
+        String[] sequences = translitSequences;
         int len = src.length();
-        for (int a = 0; a < len; a++) {
-            String ch = src.substring(a, a + 1);
-            String tch = translitChars.get(ch);
-            if (tch != null) {
+        for (int a = 0; a < sequences.length; a++) {
+            String sequence = sequences[a];
+            int seqLen = sequence.length();
+            if (index + seqLen > len) {
+                continue;
+            }
+            int b = 0;
+            while (b < seqLen && src.charAt(index + b) == sequence.charAt(b)) {
+                b++;
+            }
+            if (b == seqLen) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    private int translitCharAt(String[][] pages, CharSequence src, int index, StringBuilder dst) {
+        int sequence = findTranslitSequence(src, index);
+        if (sequence != -1) {
+            if (dst != null) {
+                dst.append(translitSequenceValues[sequence]);
+            }
+            return translitSequences[sequence].length();
+        }
+        char c = src.charAt(index);
+        String[] page = pages[c >> 8];
+        String tch = page != null ? page[c & 0xff] : null;
+        if (tch != null) {
+            if (dst != null) {
                 dst.append(tch);
+            }
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Appends the transliteration of src to dst without allocating anything besides the
+     * growth of dst.
+     *
+     * @return true if at least one char was replaced
+     */
+    public boolean getTranslitString(CharSequence src, StringBuilder dst) {
+        String[][] pages = getTranslitPages();
+        boolean changed = false;
+        int len = src.length();
+        for (int a = 0; a < len; ) {
+            int count = translitCharAt(pages, src, a, dst);
+            if (count != 0) {
+                changed = true;
+                a += count;
             } else {
-                dst.append(ch);
+                dst.append(src.charAt(a));
+                a++;
             }
         }
-        return dst.toString();
+        return changed;
+    }
+
+    public String getTranslitString(String src) {
+        String[][] pages = getTranslitPages();
+        int len = src.length();
+        int first = 0;
+        while (first < len && translitCharAt(pages, src, first, null) == 0) {
+            first++;
+        }
+        if (first == len) {
+            return src;
+        }
+        String result;
+        synchronized (translitCache) {
+            result = translitCache.get(src);
+        }
+        if (result != null) {
+            return result;
+        }
+        StringBuilder dst = new StringBuilder(len + 8);
+        dst.append(src, 0, first);
+        getTranslitString(src.subSequence(first, len), dst);
+        result = dst.toString();
+        synchronized (translitCache) {
+            translitCache.put(src, result);
+        }
+        return result;
     }
 
     abstract public static class PluralRules {
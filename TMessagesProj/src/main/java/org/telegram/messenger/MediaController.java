@@ -253,6 +253,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private static final int AUDIO_NO_FOCUS_CAN_DUCK = 1;
     private static final int AUDIO_FOCUSED  = 2;
 
+    private static final int MAX_MUSIC_PLAYLIST_SIZE = 1000;
+    private static final int MUSIC_LOAD_DISTANCE = 5;
+
     private ArrayList<MessageObject> videoConvertQueue = new ArrayList<>();
     private final Object videoQueueSync = new Object();
     private boolean cancelCurrentVideoConversion = false;
@@ -318,6 +321,8 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private ArrayList<MessageObject> shuffledPlaylist = new ArrayList<>();
     private int currentPlaylistNum;
     private boolean forceLoopCurrentPlaylist;
+    private int playlistMaxId;
+    private boolean loadingPlaylist;
     private boolean downloadingCurrentMessage;
     private boolean playMusicAgain;
     private AudioInfo audioInfo;
@@ -1428,6 +1433,8 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             long did = (Long) args[0];
             if (playingMessageObject != null && playingMessageObject.isMusic() && playingMessageObject.getDialogId() == did) {
                 ArrayList<MessageObject> arrayList = (ArrayList<MessageObject>) args[1];
+                playlistMaxId = (Integer) args[2];
+                loadingPlaylist = false;
                 playlist.addAll(0, arrayList);
                 if (shuffleMusic) {
                     buildShuffledPlayList();
@@ -1435,6 +1442,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 } else {
                     currentPlaylistNum += arrayList.size();
                 }
+                if (shuffleMusic || arrayList.isEmpty()) {
+                    checkLoadMoreMusic();
+                }
             }
         } else if (id == NotificationCenter.didReceivedNewMessages) {
             if (voiceMessagesPlaylist != null && !voiceMessagesPlaylist.isEmpty()) {
@@ -2037,6 +2047,8 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
         forceLoopCurrentPlaylist = !loadMusic;
         playMusicAgain = !playlist.isEmpty();
+        playlistMaxId = 0;
+        loadingPlaylist = false;
         playlist.clear();
         for (int a = messageObjects.size() - 1; a >= 0; a--) {
             MessageObject messageObject = messageObjects.get(a);
@@ -2057,10 +2069,28 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 currentPlaylistNum = 0;
             }
             if (loadMusic) {
-                SharedMediaQuery.loadMusic(current.getDialogId(), playlist.get(0).getId());
+                playlistMaxId = playlist.get(0).getId();
             }
         }
-        return playAudio(current);
+        boolean result = playAudio(current);
+        checkLoadMoreMusic();
+        return result;
+    }
+
+    /**
+     * Older music is loaded page by page once playback gets close to either end of the playlist,
+     * the start because that's where older songs go and the end because playback wraps around to it.
+     * Shuffled playlists keep loading until the limit, as every song can come next.
+     */
+    private void checkLoadMoreMusic() {
+        if (loadingPlaylist || playlistMaxId == 0 || playlist.size() >= MAX_MUSIC_PLAYLIST_SIZE || playingMessageObject == null || !playingMessageObject.isMusic()) {
+            return;
+        }
+        if (!shuffleMusic && currentPlaylistNum >= MUSIC_LOAD_DISTANCE && playlist.size() - currentPlaylistNum > MUSIC_LOAD_DISTANCE) {
+            return;
+        }
+        loadingPlaylist = true;
+        SharedMediaQuery.loadMusic(playingMessageObject.getDialogId(), playlistMaxId);
     }
 
     public void playNextMessage() {
@@ -2074,6 +2104,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         currentPlaylistNum = index;
         playMusicAgain = true;
         playAudio(playlist.get(currentPlaylistNum));
+        checkLoadMoreMusic();
     }
 
     private void playNextMessage(boolean byStop) {
@@ -2139,6 +2170,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
         playMusicAgain = true;
         playAudio(currentPlayList.get(currentPlaylistNum));
+        checkLoadMoreMusic();
     }
 
     public void playPreviousMessage() {
@@ -2161,6 +2193,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
         playMusicAgain = true;
         playAudio(currentPlayList.get(currentPlaylistNum));
+        checkLoadMoreMusic();
     }
 
     private void checkIsNextMusicFileDownloaded() {
@@ -0,0 +1,128 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MessageLayoutCache {
+
+    private static final int MAX_LAYOUTS_PER_MESSAGE = 2;
+
+    private static class Entry {
+        ArrayList<MessageObject.TextLayoutResult> layouts = new ArrayList<>(MAX_LAYOUTS_PER_MESSAGE);
+        int size;
+    }
+
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private int currentSize;
+    private int maxSize;
+
+    private static volatile MessageLayoutCache Instance = null;
+
+    public static MessageLayoutCache getInstance() {
+        MessageLayoutCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (MessageLayoutCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new MessageLayoutCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public MessageLayoutCache() {
+        maxSize = (int) Math.min(4 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32);
+    }
+
+    private static String getKey(MessageObject messageObject) {
+        return messageObject.getDialogId() + "_" + messageObject.getId() + "_" + messageObject.messageOwner.edit_date;
+    }
+
+    private static int getLayoutSize(MessageObject.TextLayoutResult result) {
+        return 128 + result.blocks.size() * 256 + result.text.length() * 8;
+    }
+
+    public MessageObject.TextLayoutResult get(MessageObject messageObject, int minSize) {
+        if (messageObject.getId() == 0) {
+            return null;
+        }
+        int fontSize = MessagesController.getInstance().fontSize;
+        int threshold = AndroidUtilities.dp(52);
+        synchronized (this) {
+            Entry entry = entries.get(getKey(messageObject));
+            if (entry == null) {
+                return null;
+            }
+            for (int a = 0; a < entry.layouts.size(); a++) {
+                MessageObject.TextLayoutResult result = entry.layouts.get(a);
+                if (result.text == messageObject.messageText && result.fontSize == fontSize && Math.abs(result.minSize - minSize) <= threshold) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    public void put(MessageObject messageObject, MessageObject.TextLayoutResult result) {
+        if (messageObject.getId() == 0 || result.text == null) {
+            return;
+        }
+        String key = getKey(messageObject);
+        int size = getLayoutSize(result);
+        if (size > maxSize / 8) {
+            return;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+            for (int a = 0; a < entry.layouts.size(); a++) {
+                MessageObject.TextLayoutResult old = entry.layouts.get(a);
+                if (old.minSize == result.minSize || old.text != result.text || old.fontSize != result.fontSize) {
+                    entry.layouts.remove(a);
+                    int oldSize = getLayoutSize(old);
+                    entry.size -= oldSize;
+                    currentSize -= oldSize;
+                    a--;
+                }
+            }
+            if (entry.layouts.size() >= MAX_LAYOUTS_PER_MESSAGE) {
+                MessageObject.TextLayoutResult old = entry.layouts.remove(0);
+                int oldSize = getLayoutSize(old);
+                entry.size -= oldSize;
+                currentSize -= oldSize;
+            }
+            entry.layouts.add(result);
+            entry.size += size;
+            currentSize += size;
+            trimToSize();
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (currentSize > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            currentSize -= entry.size;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentSize = 0;
+    }
+}
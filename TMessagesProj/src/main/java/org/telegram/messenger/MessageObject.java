@@ -97,6 +97,18 @@ public class MessageObject {
         }
     }
 
+    public static class TextLayoutResult {
+        public ArrayList<TextLayoutBlock> blocks = new ArrayList<>();
+        public CharSequence text;
+        public int minSize;
+        public int fontSize;
+        public int textWidth;
+        public int textHeight;
+        public int lastLineWidth;
+        public boolean hasRtl;
+        public float textXOffset;
+    }
+
     private static final int LINES_PER_BLOCK = 10;
 
     public ArrayList<TextLayoutBlock> textLayoutBlocks;
@@ -694,6 +706,17 @@ public class MessageObject {
         if (layoutCreated) {
             int newMinSize = AndroidUtilities.isTablet() ? AndroidUtilities.getMinTabletSide() : AndroidUtilities.displaySize.x;
             if (Math.abs(generatedWithMinSize - newMinSize) > AndroidUtilities.dp(52)) {
+                TextLayoutResult result = MessageLayoutCache.getInstance().get(this, newMinSize);
+                if (result == null) {
+                    result = buildTextLayout(newMinSize, isFromUser() ? MessagesController.getInstance().getUser(messageOwner.from_id) : null);
+                    if (result != null) {
+                        MessageLayoutCache.getInstance().put(this, result);
+                    }
+                }
+                if (result != null) {
+                    applyTextLayout(result);
+                    return true;
+                }
                 layoutCreated = false;
             }
         }
@@ -1251,10 +1274,35 @@ public class MessageObject {
             }
         }
 
+        generatedWithMinSize = AndroidUtilities.isTablet() ? AndroidUtilities.getMinTabletSide() : AndroidUtilities.displaySize.x;
+        TextLayoutResult result = buildTextLayout(generatedWithMinSize, fromUser);
+        if (result != null) {
+            applyTextLayout(result);
+            MessageLayoutCache.getInstance().put(this, result);
+        }
+    }
+
+    public void applyTextLayout(TextLayoutResult result) {
+        generatedWithMinSize = result.minSize;
+        textLayoutBlocks = result.blocks;
+        textWidth = result.textWidth;
+        textHeight = result.textHeight;
+        lastLineWidth = result.lastLineWidth;
+        hasRtl = result.hasRtl;
+        textXOffset = result.textXOffset;
+    }
+
+    /**
+     * Builds the width dependent part of the text layout without touching this object,
+     * the result is installed with {@link #applyTextLayout(TextLayoutResult)}.
+     */
+    public TextLayoutResult buildTextLayout(int minSize, TLRPC.User fromUser) {
+        if (type != 0 || messageOwner.to_id == null || messageText == null || messageText.length() == 0) {
+            return null;
+        }
         int maxWidth;
         boolean needShare = messageOwner.from_id > 0 && (messageOwner.to_id.channel_id != 0 || messageOwner.to_id.chat_id != 0 || messageOwner.media instanceof TLRPC.TL_messageMediaGame || messageOwner.media instanceof TLRPC.TL_messageMediaInvoice) && !isOut();
-        generatedWithMinSize = AndroidUtilities.isTablet() ? AndroidUtilities.getMinTabletSide() : AndroidUtilities.displaySize.x;
-        maxWidth = generatedWithMinSize - AndroidUtilities.dp(needShare ? 122 : 80);
+        maxWidth = minSize - AndroidUtilities.dp(needShare ? 122 : 80);
         if (fromUser != null && fromUser.bot || (isMegagroup() || messageOwner.fwd_from != null && messageOwner.fwd_from.channel_id != 0) && !isOut()) {
             maxWidth -= AndroidUtilities.dp(20);
         }
@@ -1271,14 +1319,19 @@ public class MessageObject {
             paint = Theme.chat_msgTextPaint;
         }
 
+        CharSequence text = messageText;
+        TextLayoutResult result = new TextLayoutResult();
+        result.text = text;
+        result.minSize = minSize;
+        result.fontSize = MessagesController.getInstance().fontSize;
         try {
-            textLayout = new StaticLayout(messageText, paint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+            textLayout = new StaticLayout(text, paint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
         } catch (Exception e) {
             FileLog.e(e);
-            return;
+            return null;
         }
 
-        textHeight = textLayout.getHeight();
+        result.textHeight = textLayout.getHeight();
         int linesCount = textLayout.getLineCount();
 
         int blocksCount = (int) Math.ceil((float) linesCount / LINES_PER_BLOCK);
@@ -1293,7 +1346,7 @@ public class MessageObject {
                 block.textLayout = textLayout;
                 block.textYOffset = 0;
                 block.charactersOffset = 0;
-                block.height = textHeight;
+                block.height = result.textHeight;
             } else {
                 int startCharacter = textLayout.getLineStart(linesOffset);
                 int endCharacter = textLayout.getLineEnd(linesOffset + currentBlockLinesCount - 1);
@@ -1303,7 +1356,7 @@ public class MessageObject {
                 block.charactersOffset = startCharacter;
                 block.charactersEnd = endCharacter;
                 try {
-                    block.textLayout = new StaticLayout(messageText, startCharacter, endCharacter, paint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+                    block.textLayout = new StaticLayout(text, startCharacter, endCharacter, paint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
                     block.textYOffset = textLayout.getLineTop(linesOffset);
                     if (a != 0) {
                         block.height = (int) (block.textYOffset - prevOffset);
@@ -1317,25 +1370,25 @@ public class MessageObject {
                 if (a == blocksCount - 1) {
                     currentBlockLinesCount = Math.max(currentBlockLinesCount, block.textLayout.getLineCount());
                     try {
-                        textHeight = Math.max(textHeight, (int) (block.textYOffset + block.textLayout.getHeight()));
+                        result.textHeight = Math.max(result.textHeight, (int) (block.textYOffset + block.textLayout.getHeight()));
                     } catch (Exception e) {
                         FileLog.e(e);
                     }
                 }
             }
 
-            textLayoutBlocks.add(block);
+            result.blocks.add(block);
 
             float lastLeft;
             try {
                 lastLeft = block.textLayout.getLineLeft(currentBlockLinesCount - 1);
                 if (a == 0) {
-                    textXOffset = lastLeft;
+                    result.textXOffset = lastLeft;
                 }
             } catch (Exception e) {
                 lastLeft = 0;
                 if (a == 0) {
-                    textXOffset = 0;
+                    result.textXOffset = 0;
                 }
                 FileLog.e(e);
             }
@@ -1353,7 +1406,7 @@ public class MessageObject {
             int linesMaxWidthWithLeft;
 
             if (a == blocksCount - 1) {
-                lastLineWidth = linesMaxWidth;
+                result.lastLineWidth = linesMaxWidth;
             }
 
             linesMaxWidthWithLeft = lastLineWidthWithLeft = (int) Math.ceil(lastLine + lastLeft);
@@ -1381,9 +1434,9 @@ public class MessageObject {
                     }
 
                     if (lineLeft > 0) {
-                        textXOffset = Math.min(textXOffset, lineLeft);
+                        result.textXOffset = Math.min(result.textXOffset, lineLeft);
                         block.directionFlags |= 1;
-                        hasRtl = true;
+                        result.hasRtl = true;
                     } else {
                         block.directionFlags |= 2;
                     }
@@ -1404,26 +1457,27 @@ public class MessageObject {
                 if (hasNonRTL) {
                     textRealMaxWidth = textRealMaxWidthWithLeft;
                     if (a == blocksCount - 1) {
-                        lastLineWidth = lastLineWidthWithLeft;
+                        result.lastLineWidth = lastLineWidthWithLeft;
                     }
                 } else if (a == blocksCount - 1) {
-                    lastLineWidth = linesMaxWidth;
+                    result.lastLineWidth = linesMaxWidth;
                 }
-                textWidth = Math.max(textWidth, (int) Math.ceil(textRealMaxWidth));
+                result.textWidth = Math.max(result.textWidth, (int) Math.ceil(textRealMaxWidth));
             } else {
                 if (lastLeft > 0) {
-                    textXOffset = Math.min(textXOffset, lastLeft);
-                    hasRtl = blocksCount != 1;
+                    result.textXOffset = Math.min(result.textXOffset, lastLeft);
+                    result.hasRtl = blocksCount != 1;
                     block.directionFlags |= 1;
                 } else {
                     block.directionFlags |= 2;
                 }
 
-                textWidth = Math.max(textWidth, Math.min(maxWidth, linesMaxWidth));
+                result.textWidth = Math.max(result.textWidth, Math.min(maxWidth, linesMaxWidth));
             }
 
             linesOffset += currentBlockLinesCount;
         }
+        return result;
     }
 
     public boolean isOut() {
@@ -25,6 +25,7 @@ import org.blaez.SQLite.SQLiteCursor;
 import org.blaez.ziosgram.query.BotQuery;
 import org.blaez.ziosgram.query.DraftQuery;
 import org.blaez.ziosgram.query.MessagesQuery;
+import org.blaez.ziosgram.query.PeerSearchIndex;
 import org.blaez.ziosgram.query.SearchQuery;
 import org.blaez.ziosgram.query.StickersQuery;
 import org.blaez.ziosgram.voip.VoIPService;
@@ -50,10 +51,10 @@ import java.util.concurrent.Semaphore;
 
 public class MessagesController implements NotificationCenter.NotificationCenterDelegate {
 
-    private ConcurrentHashMap<Integer, TLRPC.Chat> chats = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private EntityRegistry<TLRPC.Chat> chats = new EntityRegistry<>((int) Math.max(1000, Runtime.getRuntime().maxMemory() / 64 / 1024));
     private ConcurrentHashMap<Integer, TLRPC.EncryptedChat> encryptedChats = new ConcurrentHashMap<>(10, 1.0f, 2);
-    private ConcurrentHashMap<Integer, TLRPC.User> users = new ConcurrentHashMap<>(100, 1.0f, 2);
-    private ConcurrentHashMap<String, TLRPC.User> usersByUsernames = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private EntityRegistry<TLRPC.User> users = new EntityRegistry<>((int) Math.max(5000, Runtime.getRuntime().maxMemory() / 16 / 1024));
+    private ConcurrentHashMap<String, Integer> usersByUsernames = new ConcurrentHashMap<>(100, 1.0f, 2);
 
     private ArrayList<Integer> joiningToChannels = new ArrayList<>();
 
@@ -85,15 +86,65 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
     public boolean loadingBlockedUsers = false;
     public ArrayList<Integer> blockedUsers = new ArrayList<>();
+    private IntHashSet blockedUsersSet = new IntHashSet();
 
     private SparseArray<ArrayList<Integer>> channelViewsToSend = new SparseArray<>();
     private SparseArray<ArrayList<Integer>> channelViewsToReload = new SparseArray<>();
     private long lastViewsCheckTime;
 
+    private TimerWheel stageTimers = new TimerWheel(64, 250);
+    private TimerWheel.Timer channelsQueuesTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            checkChannelsUpdatesQueues();
+        }
+    });
+    private TimerWheel.Timer updatesQueuesTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            checkUpdatesQueues();
+        }
+    });
+    private TimerWheel.Timer channelViewsTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            sendChannelViews();
+        }
+    });
+    private TimerWheel.Timer onlinePrivacyTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            checkOnlinePrivacy();
+        }
+    });
+    private TimerWheel.Timer shortPollTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            checkShortPollChannels();
+        }
+    });
+    private TimerWheel.Timer printingUsersTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            checkPrintingUsers(System.currentTimeMillis());
+        }
+    });
+
     private HashMap<Integer, ArrayList<TLRPC.Updates>> updatesQueueChannels = new HashMap<>();
     private HashMap<Integer, Long> updatesStartWaitTimeChannels = new HashMap<>();
-    private HashMap<Integer, Integer> channelsPts = new HashMap<>();
-    private HashMap<Integer, Boolean> gettingDifferenceChannels = new HashMap<>();
+    private IntIntHashMap channelsPts = new IntIntHashMap();
+    private IntHashSet gettingDifferenceChannels = new IntHashSet();
+    private ArrayList<PendingChannelDifference> pendingChannelDifferences = new ArrayList<>();
+    private int runningChannelDifferences;
+
+    private final Object differenceSync = new Object();
+    private int applyingDifferences;
+    private TLRPC.TL_updates_state pendingDifferenceState;
+    private long catchUpStartTime;
+    private int catchUpUpdatesCount;
+
+    private static final int MAX_CHANNEL_DIFFERENCES = 4;
+    private static final int MAX_DIFFERENCE_SLICES_AHEAD = 2;
 
     private HashMap<Integer, Boolean> gettingUnknownChannels = new HashMap<>();
     private HashMap<Integer, Boolean> checkingLastMessagesDialogs = new HashMap<>();
@@ -105,12 +156,12 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     private long updatesStartWaitTimePts;
     private long updatesStartWaitTimeQts;
     private HashMap<Integer, TLRPC.TL_userFull> fullUsers = new HashMap<>();
-    private ArrayList<Integer> loadingFullUsers = new ArrayList<>();
-    private ArrayList<Integer> loadedFullUsers = new ArrayList<>();
-    private ArrayList<Integer> loadingFullChats = new ArrayList<>();
-    private ArrayList<Integer> loadingFullParticipants = new ArrayList<>();
-    private ArrayList<Integer> loadedFullParticipants = new ArrayList<>();
-    private ArrayList<Integer> loadedFullChats = new ArrayList<>();
+    private IntHashSet loadingFullUsers = new IntHashSet();
+    private IntHashSet loadedFullUsers = new IntHashSet();
+    private IntHashSet loadingFullChats = new IntHashSet();
+    private IntHashSet loadingFullParticipants = new IntHashSet();
+    private IntHashSet loadedFullParticipants = new IntHashSet();
+    private IntHashSet loadedFullChats = new IntHashSet();
 
     private HashMap<String, ArrayList<MessageObject>> reloadingWebpages = new HashMap<>();
     private HashMap<Long, ArrayList<MessageObject>> reloadingWebpagesPending = new HashMap<>();
@@ -193,6 +244,13 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         public TLRPC.SendMessageAction action;
     }
 
+    private static class PendingChannelDifference {
+        public int channelId;
+        public int newDialogType;
+        public long taskId;
+        public TLRPC.InputChannel inputChannel;
+    }
+
     private static volatile MessagesController Instance = null;
 
     private final Comparator<TLRPC.TL_dialog> dialogComparator = new Comparator<TLRPC.TL_dialog>() {
@@ -588,6 +646,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         StickersQuery.cleanup();
         SearchQuery.cleanup();
         DraftQuery.cleanup();
+        MessagesQuery.cleanup();
+        MessagesWindowCache.getInstance().cleanup();
+        PeerSearchIndex.getInstance().cleanup();
+        MessageLayoutCache.getInstance().clear();
 
         reloadingWebpages.clear();
         reloadingWebpagesPending.clear();
@@ -630,6 +692,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
         });
         blockedUsers.clear();
+        blockedUsersSet.clear();
         sendingTypings.clear();
         loadingFullUsers.clear();
         loadedFullUsers.clear();
@@ -662,9 +725,16 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 updatesQueueChannels.clear();
                 updatesStartWaitTimeChannels.clear();
                 gettingDifferenceChannels.clear();
+                pendingChannelDifferences.clear();
+                runningChannelDifferences = 0;
+                synchronized (differenceSync) {
+                    pendingDifferenceState = null;
+                    catchUpStartTime = 0;
+                }
                 channelsPts.clear();
                 shortPollChannels.clear();
                 needShortPollChannels.clear();
+                stageTimers.clear();
             }
         });
 
@@ -678,22 +748,62 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     public TLRPC.User getUser(Integer id) {
-        return users.get(id);
+        TLRPC.User user = users.get(id);
+        if (user == null && users.wasEvicted(id)) {
+            user = loadEvictedUser(id);
+        }
+        return user;
+    }
+
+    /**
+     * Brings a user dropped from memory back from the database, a single row read. Peers of dialogs and the
+     * current user are pinned in memory, so this is only reached for the rest.
+     */
+    private TLRPC.User loadEvictedUser(int id) {
+        TLRPC.User user = MessagesStorage.getInstance().getUserSync(id);
+        if (user != null) {
+            TLRPC.User current = users.get(id);
+            if (current != null) {
+                return current;
+            }
+            users.put(id, user);
+        }
+        return user;
     }
 
     public TLRPC.User getUser(String username) {
         if (username == null || username.length() == 0) {
             return null;
         }
-        return usersByUsernames.get(username.toLowerCase());
+        Integer id = usersByUsernames.get(username.toLowerCase());
+        if (id == null) {
+            return null;
+        }
+        TLRPC.User user = getUser(id);
+        if (user == null || user.username == null || !user.username.equalsIgnoreCase(username)) {
+            return null;
+        }
+        return user;
     }
 
-    public ConcurrentHashMap<Integer, TLRPC.User> getUsers() {
-        return users;
+    public TLRPC.Chat getChat(Integer id) {
+        TLRPC.Chat chat = chats.get(id);
+        if (chat == null && chats.wasEvicted(id)) {
+            chat = loadEvictedChat(id);
+        }
+        return chat;
     }
 
-    public TLRPC.Chat getChat(Integer id) {
-        return chats.get(id);
+    private TLRPC.Chat loadEvictedChat(int id) {
+        TLRPC.Chat chat = MessagesStorage.getInstance().getChatSync(id);
+        if (chat != null) {
+            TLRPC.Chat current = chats.get(id);
+            if (current != null) {
+                return current;
+            }
+            chats.put(id, chat);
+        }
+        return chat;
     }
 
     public TLRPC.EncryptedChat getEncryptedChat(Integer id) {
@@ -744,11 +854,14 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
         fromCache = fromCache && user.id / 1000 != 333 && user.id != 777000;
         TLRPC.User oldUser = users.get(user.id);
+        if (oldUser == null && user.min && users.wasEvicted(user.id)) {
+            oldUser = loadEvictedUser(user.id);
+        }
         if (oldUser != null && !TextUtils.isEmpty(oldUser.username)) {
             usersByUsernames.remove(oldUser.username.toLowerCase());
         }
         if (!TextUtils.isEmpty(user.username)) {
-            usersByUsernames.put(user.username.toLowerCase(), user);
+            usersByUsernames.put(user.username.toLowerCase(), user.id);
         }
         if (user.min) {
             if (oldUser != null) {
@@ -779,6 +892,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     UserConfig.saveConfig(true);
                 }
                 if (oldUser != null && user.status != null && oldUser.status != null && user.status.expires != oldUser.status.expires) {
+                    PeerSearchIndex.getInstance().updateUser(user);
                     return true;
                 }
             } else if (oldUser == null) {
@@ -802,6 +916,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 users.put(user.id, user);
             }
         }
+        PeerSearchIndex.getInstance().updateUser(users.get(user.id));
         return false;
     }
 
@@ -832,6 +947,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             return;
         }
         TLRPC.Chat oldChat = chats.get(chat.id);
+        if (oldChat == null && chat.min && chats.wasEvicted(chat.id)) {
+            oldChat = loadEvictedChat(chat.id);
+        }
 
         if (chat.min) {
             if (oldChat != null) {
@@ -856,7 +974,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         } else {
             if (!fromCache) {
                 if (oldChat != null && chat.version != oldChat.version) {
-                    loadedFullChats.remove((Integer) chat.id);
+                    loadedFullChats.remove(chat.id);
                 }
                 chats.put(chat.id, chat);
             } else if (oldChat == null) {
@@ -879,6 +997,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 chats.put(chat.id, chat);
             }
         }
+        PeerSearchIndex.getInstance().updateChat(chats.get(chat.id));
     }
 
     public void putChats(ArrayList<TLRPC.Chat> chats, boolean fromCache) {
@@ -901,6 +1020,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         } else {
             encryptedChats.put(encryptedChat.id, encryptedChat);
         }
+        PeerSearchIndex.getInstance().updateEncryptedChat(encryptedChats.get(encryptedChat.id));
     }
 
     public void putEncryptedChats(ArrayList<TLRPC.EncryptedChat> encryptedChats, boolean fromCache) {
@@ -919,11 +1039,11 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     public void cancelLoadFullUser(int uid) {
-        loadingFullUsers.remove((Integer) uid);
+        loadingFullUsers.remove(uid);
     }
 
     public void cancelLoadFullChat(int cid) {
-        loadingFullChats.remove((Integer) cid);
+        loadingFullChats.remove(cid);
     }
 
     protected void clearFullUsers() {
@@ -1092,7 +1212,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 BotQuery.putBotInfo(botInfo);
                             }
                             exportedChats.put(chat_id, res.full_chat.exported_invite);
-                            loadingFullChats.remove((Integer) chat_id);
+                            loadingFullChats.remove(chat_id);
                             loadedFullChats.add(chat_id);
                             if (!res.chats.isEmpty()) {
                                 TLRPC.Chat chat = res.chats.get(0);
@@ -1109,7 +1229,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         @Override
                         public void run() {
                             checkChannelError(error.text, chat_id);
-                            loadingFullChats.remove((Integer) chat_id);
+                            loadingFullChats.remove(chat_id);
                         }
                     });
                 }
@@ -1144,7 +1264,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 BotQuery.putBotInfo(userFull.bot_info);
                             }
                             fullUsers.put(user.id, userFull);
-                            loadingFullUsers.remove((Integer) user.id);
+                            loadingFullUsers.remove(user.id);
                             loadedFullUsers.add(user.id);
                             String names = user.first_name + user.last_name + user.username;
                             ArrayList<TLRPC.User> users = new ArrayList<>();
@@ -1164,7 +1284,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
                         public void run() {
-                            loadingFullUsers.remove((Integer) user.id);
+                            loadingFullUsers.remove(user.id);
                         }
                     });
                 }
@@ -1422,13 +1542,15 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     protected void processNewChannelDifferenceParams(int pts, int pts_count, int channelId) {
-        FileLog.e("processNewChannelDifferenceParams pts = " + pts + " pts_count = " + pts_count + " channeldId = " + channelId);
+        if (FileLog.isLoggable(FileLog.LEVEL_ERROR)) {
+            FileLog.e("processNewChannelDifferenceParams pts = " + pts + " pts_count = " + pts_count + " channeldId = " + channelId);
+        }
         TLRPC.TL_dialog dialog = dialogs_dict.get((long) -channelId);
         if (!DialogObject.isChannel(dialog)) {
             return;
         }
-        Integer channelPts = channelsPts.get(channelId);
-        if (channelPts == null) {
+        int channelPts = channelsPts.get(channelId);
+        if (channelPts == 0) {
             channelPts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
             if (channelPts == 0) {
                 channelPts = 1;
@@ -1441,14 +1563,12 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             MessagesStorage.getInstance().saveChannelPts(channelId, pts);
         } else if (channelPts != pts) {
             Long updatesStartWaitTime = updatesStartWaitTimeChannels.get(channelId);
-            Boolean gettingDifferenceChannel = gettingDifferenceChannels.get(channelId);
-            if (gettingDifferenceChannel == null) {
-                gettingDifferenceChannel = false;
-            }
+            boolean gettingDifferenceChannel = gettingDifferenceChannels.contains(channelId);
             if (gettingDifferenceChannel || updatesStartWaitTime == null || Math.abs(System.currentTimeMillis() - updatesStartWaitTime) <= 1500) {
                 FileLog.e("ADD CHANNEL UPDATE TO QUEUE pts = " + pts + " pts_count = " + pts_count);
                 if (updatesStartWaitTime == null) {
                     updatesStartWaitTimeChannels.put(channelId, System.currentTimeMillis());
+                    scheduleStageTimer(channelsQueuesTimer, System.currentTimeMillis() + 1501);
                 }
                 UserActionUpdatesPts updates = new UserActionUpdatesPts();
                 updates.pts = pts;
@@ -1467,7 +1587,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     protected void processNewDifferenceParams(int seq, int pts, int date, int pts_count) {
-        FileLog.e("processNewDifferenceParams seq = " + seq + " pts = " + pts + " date = " + date + " pts_count = " + pts_count);
+        if (FileLog.isLoggable(FileLog.LEVEL_ERROR)) {
+            FileLog.e("processNewDifferenceParams seq = " + seq + " pts = " + pts + " date = " + date + " pts_count = " + pts_count);
+        }
         if (pts != -1) {
             if (MessagesStorage.lastPtsValue + pts_count == pts) {
                 FileLog.e("APPLY PTS");
@@ -1656,12 +1778,17 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
     }
 
+    public boolean isUserBlocked(int user_id) {
+        return blockedUsersSet.contains(user_id);
+    }
+
     public void blockUser(int user_id) {
         final TLRPC.User user = getUser(user_id);
-        if (user == null || blockedUsers.contains(user_id)) {
+        if (user == null || blockedUsersSet.contains(user_id)) {
             return;
         }
         blockedUsers.add(user_id);
+        blockedUsersSet.add(user_id);
         if (user.bot) {
             SearchQuery.removeInline(user_id);
         } else {
@@ -1688,7 +1815,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         if (user == null) {
             return;
         }
-        blockedUsers.remove((Integer) user.id);
+        if (blockedUsersSet.remove(user.id)) {
+            blockedUsers.remove((Integer) user.id);
+        }
         req.id = getInputUser(user);
         NotificationCenter.getInstance().postNotificationName(NotificationCenter.blockedUsersDidLoaded);
         ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
@@ -1746,6 +1875,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     UserConfig.saveConfig(false);
                 }
                 blockedUsers = ids;
+                blockedUsersSet.clear();
+                for (int a = 0; a < ids.size(); a++) {
+                    blockedUsersSet.add(ids.get(a));
+                }
                 NotificationCenter.getInstance().postNotificationName(NotificationCenter.blockedUsersDidLoaded);
             }
         });
@@ -1875,6 +2008,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
             MessagesStorage.getInstance().markMessagesAsDeleted(messages, true, channelId);
             MessagesStorage.getInstance().updateDialogsWithDeletedMessages(messages, null, true, channelId);
+            MessagesQuery.removeCachedReplyMessages(messages, channelId);
             NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesDeleted, messages, channelId);
         }
 
@@ -2028,6 +2162,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     }
                     dialogsGroupsOnly.remove(dialog);
                     dialogs_dict.remove(did);
+                    PeerSearchIndex.getInstance().removeDialog(did);
                     dialogs_read_inbox_max.remove(did);
                     dialogs_read_outbox_max.remove(did);
                     nextDialogsCacheOffset--;
@@ -2263,142 +2398,223 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 });
             }
 
-            if (!updatesQueueChannels.isEmpty()) {
-                ArrayList<Integer> keys = new ArrayList<>(updatesQueueChannels.keySet());
-                for (int a = 0; a < keys.size(); a++) {
-                    int key = keys.get(a);
-                    Long updatesStartWaitTime = updatesStartWaitTimeChannels.get(key);
-                    if (updatesStartWaitTime != null && updatesStartWaitTime + 1500 < currentTime) {
-                        FileLog.e("QUEUE CHANNEL " + key + " UPDATES WAIT TIMEOUT - CHECK QUEUE");
-                        processChannelsUpdatesQueue(key, 0);
-                    }
-                }
+            if (lastPrintingStringCount != printingUsers.size()) {
+                checkPrintingUsers(currentTime);
             }
+        }
+        stageTimers.advance(currentTime);
+    }
 
-            for (int a = 0; a < 3; a++) {
-                if (getUpdatesStartTime(a) != 0 && getUpdatesStartTime(a) + 1500 < currentTime) {
-                    FileLog.e(a + " QUEUE UPDATES WAIT TIMEOUT - CHECK QUEUE");
-                    processUpdatesQueue(a, 0);
+    private void scheduleStageTimer(final TimerWheel.Timer timer, final long deadline) {
+        if (Thread.currentThread() == Utilities.stageQueue) {
+            stageTimers.schedule(timer, deadline);
+        } else {
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    stageTimers.schedule(timer, deadline);
                 }
+            });
+        }
+    }
+
+    private void checkChannelsUpdatesQueues() {
+        if (!UserConfig.isClientActivated() || updatesStartWaitTimeChannels.isEmpty()) {
+            return;
+        }
+        long currentTime = System.currentTimeMillis();
+        ArrayList<Integer> keys = new ArrayList<>(updatesStartWaitTimeChannels.keySet());
+        for (int a = 0; a < keys.size(); a++) {
+            int key = keys.get(a);
+            Long updatesStartWaitTime = updatesStartWaitTimeChannels.get(key);
+            if (updatesStartWaitTime != null && updatesStartWaitTime + 1500 < currentTime && updatesQueueChannels.containsKey(key)) {
+                FileLog.e("QUEUE CHANNEL " + key + " UPDATES WAIT TIMEOUT - CHECK QUEUE");
+                processChannelsUpdatesQueue(key, 0);
             }
         }
-        if ((channelViewsToSend.size() != 0 || channelViewsToReload.size() != 0) && Math.abs(System.currentTimeMillis() - lastViewsCheckTime) >= 5000) {
-            lastViewsCheckTime = System.currentTimeMillis();
-            for (int b = 0; b < 2; b++) {
-                SparseArray<ArrayList<Integer>> array = b == 0 ? channelViewsToSend : channelViewsToReload;
-                if (array.size() == 0) {
-                    continue;
-                }
-                for (int a = 0; a < array.size(); a++) {
-                    final int key = array.keyAt(a);
-                    final TLRPC.TL_messages_getMessagesViews req = new TLRPC.TL_messages_getMessagesViews();
-                    req.peer = getInputPeer(key);
-                    req.id = array.get(key);
-                    req.increment = a == 0;
-                    ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
-                        @Override
-                        public void run(TLObject response, TLRPC.TL_error error) {
-                            if (error == null) {
-                                TLRPC.Vector vector = (TLRPC.Vector) response;
-                                final SparseArray<SparseIntArray> channelViews = new SparseArray<>();
-                                SparseIntArray array = channelViews.get(key);
-                                if (array == null) {
-                                    array = new SparseIntArray();
-                                    channelViews.put(key, array);
-                                }
-                                for (int a = 0; a < req.id.size(); a++) {
-                                    if (a >= vector.objects.size()) {
-                                        break;
-                                    }
-                                    array.put(req.id.get(a), (Integer) vector.objects.get(a));
+        long nextTime = 0;
+        for (HashMap.Entry<Integer, Long> entry : updatesStartWaitTimeChannels.entrySet()) {
+            if (updatesQueueChannels.containsKey(entry.getKey()) && (nextTime == 0 || entry.getValue() < nextTime)) {
+                nextTime = entry.getValue();
+            }
+        }
+        if (nextTime != 0) {
+            stageTimers.schedule(channelsQueuesTimer, Math.max(nextTime + 1501, currentTime + 1000));
+        }
+    }
+
+    private void checkUpdatesQueues() {
+        if (!UserConfig.isClientActivated()) {
+            return;
+        }
+        long currentTime = System.currentTimeMillis();
+        for (int a = 0; a < 3; a++) {
+            if (getUpdatesStartTime(a) != 0 && getUpdatesStartTime(a) + 1500 < currentTime) {
+                FileLog.e(a + " QUEUE UPDATES WAIT TIMEOUT - CHECK QUEUE");
+                processUpdatesQueue(a, 0);
+            }
+        }
+        for (int a = 0; a < 3; a++) {
+            long startTime = getUpdatesStartTime(a);
+            if (startTime != 0) {
+                stageTimers.schedule(updatesQueuesTimer, Math.max(startTime + 1501, currentTime + 1000));
+            }
+        }
+    }
+
+    private void sendChannelViews() {
+        if (channelViewsToSend.size() == 0 && channelViewsToReload.size() == 0) {
+            return;
+        }
+        lastViewsCheckTime = System.currentTimeMillis();
+        for (int b = 0; b < 2; b++) {
+            SparseArray<ArrayList<Integer>> array = b == 0 ? channelViewsToSend : channelViewsToReload;
+            if (array.size() == 0) {
+                continue;
+            }
+            for (int a = 0; a < array.size(); a++) {
+                final int key = array.keyAt(a);
+                final TLRPC.TL_messages_getMessagesViews req = new TLRPC.TL_messages_getMessagesViews();
+                req.peer = getInputPeer(key);
+                req.id = array.get(key);
+                req.increment = a == 0;
+                ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
+                    @Override
+                    public void run(TLObject response, TLRPC.TL_error error) {
+                        if (error == null) {
+                            TLRPC.Vector vector = (TLRPC.Vector) response;
+                            final SparseArray<SparseIntArray> channelViews = new SparseArray<>();
+                            SparseIntArray array = channelViews.get(key);
+                            if (array == null) {
+                                array = new SparseIntArray();
+                                channelViews.put(key, array);
+                            }
+                            for (int a = 0; a < req.id.size(); a++) {
+                                if (a >= vector.objects.size()) {
+                                    break;
                                 }
-                                MessagesStorage.getInstance().putChannelViews(channelViews, req.peer instanceof TLRPC.TL_inputPeerChannel);
-                                AndroidUtilities.runOnUIThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.didUpdatedMessagesViews, channelViews);
-                                    }
-                                });
+                                array.put(req.id.get(a), (Integer) vector.objects.get(a));
                             }
+                            MessagesStorage.getInstance().putChannelViews(channelViews, req.peer instanceof TLRPC.TL_inputPeerChannel);
+                            AndroidUtilities.runOnUIThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.didUpdatedMessagesViews, channelViews);
+                                }
+                            });
                         }
-                    });
-                }
-                array.clear();
+                    }
+                });
             }
+            array.clear();
         }
-        if (!onlinePrivacy.isEmpty()) {
-            ArrayList<Integer> toRemove = null;
-            int currentServerTime = ConnectionsManager.getInstance().getCurrentTime();
-            for (ConcurrentHashMap.Entry<Integer, Integer> entry : onlinePrivacy.entrySet()) {
-                if (entry.getValue() < currentServerTime - 30) {
-                    if (toRemove == null) {
-                        toRemove = new ArrayList<>();
-                    }
-                    toRemove.add(entry.getKey());
+    }
+
+    private void checkOnlinePrivacy() {
+        if (onlinePrivacy.isEmpty()) {
+            return;
+        }
+        ArrayList<Integer> toRemove = null;
+        int currentServerTime = ConnectionsManager.getInstance().getCurrentTime();
+        for (ConcurrentHashMap.Entry<Integer, Integer> entry : onlinePrivacy.entrySet()) {
+            if (entry.getValue() < currentServerTime - 30) {
+                if (toRemove == null) {
+                    toRemove = new ArrayList<>();
                 }
+                toRemove.add(entry.getKey());
+            }
+        }
+        if (toRemove != null) {
+            for (Integer uid : toRemove) {
+                onlinePrivacy.remove(uid);
             }
-            if (toRemove != null) {
-                for (Integer uid : toRemove) {
-                    onlinePrivacy.remove(uid);
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, UPDATE_MASK_STATUS);
                 }
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, UPDATE_MASK_STATUS);
-                    }
-                });
+            });
+        }
+        if (!onlinePrivacy.isEmpty()) {
+            int minTime = Integer.MAX_VALUE;
+            for (Integer time : onlinePrivacy.values()) {
+                minTime = Math.min(minTime, time);
             }
+            stageTimers.schedule(onlinePrivacyTimer, System.currentTimeMillis() + Math.max(minTime + 31 - currentServerTime, 1) * 1000L);
         }
-        if (shortPollChannels.size() != 0) {
-            for (int a = 0; a < shortPollChannels.size(); a++) {
-                int key = shortPollChannels.keyAt(a);
-                int timeout = shortPollChannels.get(key);
-                if (timeout < System.currentTimeMillis() / 1000) {
-                    shortPollChannels.delete(key);
-                    if (needShortPollChannels.indexOfKey(key) >= 0) {
-                        getChannelDifference(key);
-                    }
+    }
+
+    private void checkShortPollChannels() {
+        int currentTime = (int) (System.currentTimeMillis() / 1000);
+        int nextTimeout = Integer.MAX_VALUE;
+        for (int a = 0; a < shortPollChannels.size(); a++) {
+            int key = shortPollChannels.keyAt(a);
+            int timeout = shortPollChannels.valueAt(a);
+            if (timeout < currentTime) {
+                shortPollChannels.removeAt(a);
+                a--;
+                if (needShortPollChannels.indexOfKey(key) >= 0) {
+                    getChannelDifference(key);
                 }
+            } else {
+                nextTimeout = Math.min(nextTimeout, timeout);
             }
         }
-        if (!printingUsers.isEmpty() || lastPrintingStringCount != printingUsers.size()) {
-            boolean updated = false;
-            ArrayList<Long> keys = new ArrayList<>(printingUsers.keySet());
-            for (int b = 0; b < keys.size(); b++) {
-                Long key = keys.get(b);
-                ArrayList<PrintingUser> arr = printingUsers.get(key);
-                for (int a = 0; a < arr.size(); a++) {
-                    PrintingUser user = arr.get(a);
-                    int timeToRemove;
-                    if (user.action instanceof TLRPC.TL_sendMessageGamePlayAction) {
-                        timeToRemove = 30000;
-                    } else {
-                        timeToRemove = 5900;
-                    }
-                    if (user.lastTime + timeToRemove < currentTime) {
-                        updated = true;
-                        arr.remove(user);
-                        a--;
-                    }
+        if (nextTimeout != Integer.MAX_VALUE) {
+            stageTimers.schedule(shortPollTimer, (nextTimeout + 1) * 1000L);
+        }
+    }
+
+    private void checkPrintingUsers(long currentTime) {
+        long nextTime = 0;
+        boolean updated = false;
+        ArrayList<Long> keys = new ArrayList<>(printingUsers.keySet());
+        for (int b = 0; b < keys.size(); b++) {
+            Long key = keys.get(b);
+            ArrayList<PrintingUser> arr = printingUsers.get(key);
+            for (int a = 0; a < arr.size(); a++) {
+                PrintingUser user = arr.get(a);
+                int timeToRemove;
+                if (user.action instanceof TLRPC.TL_sendMessageGamePlayAction) {
+                    timeToRemove = 30000;
+                } else {
+                    timeToRemove = 5900;
                 }
-                if (arr.isEmpty()) {
-                    printingUsers.remove(key);
-                    keys.remove(b);
-                    b--;
+                if (user.lastTime + timeToRemove < currentTime) {
+                    updated = true;
+                    arr.remove(user);
+                    a--;
                 }
             }
+            if (arr.isEmpty()) {
+                printingUsers.remove(key);
+                keys.remove(b);
+                b--;
+            }
+        }
 
-            updatePrintingStrings();
+        updatePrintingStrings();
 
-            if (updated) {
-                AndroidUtilities.runOnUIThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, UPDATE_MASK_USER_PRINT);
-                    }
-                });
+        if (updated) {
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces, UPDATE_MASK_USER_PRINT);
+                }
+            });
+        }
+        for (ArrayList<PrintingUser> arr : printingUsers.values()) {
+            for (int a = 0; a < arr.size(); a++) {
+                PrintingUser user = arr.get(a);
+                long time = user.lastTime + (user.action instanceof TLRPC.TL_sendMessageGamePlayAction ? 30000 : 5900) + 1;
+                if (nextTime == 0 || time < nextTime) {
+                    nextTime = time;
+                }
             }
         }
+        if (nextTime != 0) {
+            stageTimers.schedule(printingUsersTimer, nextTime);
+        }
     }
 
     private String getUserNameForTyping(TLRPC.User user) {
@@ -2630,7 +2846,42 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     public void loadMessages(final long dialog_id, final int count, final int max_id, final int offset_date, boolean fromCache, int midDate, final int classGuid, final int load_type, final int last_message_id, final boolean isChannel, final int loadIndex, final int first_unread, final int unread_count, final int last_date, final boolean queryFromServer) {
-        FileLog.e("load messages in chat " + dialog_id + " count " + count + " max_id " + max_id + " cache " + fromCache + " mindate = " + midDate + " guid " + classGuid + " load_type " + load_type + " last_message_id " + last_message_id + " index " + loadIndex + " firstUnread " + first_unread + " underad count " + unread_count + " last_date " + last_date + " queryFromServer " + queryFromServer);
+        if (FileLog.isLoggable(FileLog.LEVEL_ERROR)) {
+            FileLog.e("load messages in chat " + dialog_id + " count " + count + " max_id " + max_id + " cache " + fromCache + " mindate = " + midDate + " guid " + classGuid + " load_type " + load_type + " last_message_id " + last_message_id + " index " + loadIndex + " firstUnread " + first_unread + " underad count " + unread_count + " last_date " + last_date + " queryFromServer " + queryFromServer);
+        }
+        if (MessagesWindowCache.isCacheableLoad(fromCache, max_id, offset_date, midDate, load_type)) {
+            final MessagesWindowCache.Window window = MessagesWindowCache.getInstance().get(dialog_id, count);
+            if (window != null) {
+                Utilities.stageQueue.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        final HashMap<Integer, TLRPC.User> usersDict = new HashMap<>();
+                        final HashMap<Integer, TLRPC.Chat> chatsDict = new HashMap<>();
+                        for (int a = 0; a < window.users.size(); a++) {
+                            TLRPC.User u = window.users.get(a);
+                            usersDict.put(u.id, u);
+                        }
+                        for (int a = 0; a < window.chats.size(); a++) {
+                            TLRPC.Chat c = window.chats.get(a);
+                            chatsDict.put(c.id, c);
+                        }
+                        final ArrayList<MessageObject> objects = new ArrayList<>(window.messages.size());
+                        for (int a = 0; a < window.messages.size(); a++) {
+                            objects.add(new MessageObject(window.messages.get(a), usersDict, chatsDict, true));
+                        }
+                        AndroidUtilities.runOnUIThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                putUsers(window.users, true);
+                                putChats(window.chats, true);
+                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesDidLoaded, dialog_id, window.count, objects, true, window.firstUnread, window.lastMessageId, window.unreadCount, window.lastDate, load_type, window.isEnd, classGuid, loadIndex, window.maxId);
+                            }
+                        });
+                    }
+                });
+                return;
+            }
+        }
         int lower_part = (int) dialog_id;
         if (fromCache || lower_part == 0) {
             MessagesStorage.getInstance().getMessages(dialog_id, count, max_id, offset_date, midDate, classGuid, load_type, isChannel, loadIndex);
@@ -2739,7 +2990,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
     public void processLoadedMessages(final TLRPC.messages_Messages messagesRes, final long dialog_id, final int count, final int max_id, final int offset_date, final boolean isCache, final int classGuid,
                                       final int first_unread, final int last_message_id, final int unread_count, final int last_date, final int load_type, final boolean isChannel, final boolean isEnd, final int loadIndex, final boolean queryFromServer) {
-        FileLog.e("processLoadedMessages size " + messagesRes.messages.size() + " in chat " + dialog_id + " count " + count + " max_id " + max_id + " cache " + isCache + " guid " + classGuid + " load_type " + load_type + " last_message_id " + last_message_id + " isChannel " + isChannel + " index " + loadIndex + " firstUnread " + first_unread + " underad count " + unread_count + " last_date " + last_date + " queryFromServer " + queryFromServer);
+        if (FileLog.isLoggable(FileLog.LEVEL_ERROR)) {
+            FileLog.e("processLoadedMessages size " + messagesRes.messages.size() + " in chat " + dialog_id + " count " + count + " max_id " + max_id + " cache " + isCache + " guid " + classGuid + " load_type " + load_type + " last_message_id " + last_message_id + " isChannel " + isChannel + " index " + loadIndex + " firstUnread " + first_unread + " underad count " + unread_count + " last_date " + last_date + " queryFromServer " + queryFromServer);
+        }
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -2747,8 +3000,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 boolean isMegagroup = false;
                 if (messagesRes instanceof TLRPC.TL_messages_channelMessages) {
                     int channelId = -(int) dialog_id;
-                    Integer channelPts = channelsPts.get(channelId);
-                    if (channelPts == null) {
+                    int channelPts = channelsPts.get(channelId);
+                    if (channelPts == 0) {
                         channelPts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
                         if (channelPts == 0) {
                             channelsPts.put(channelId, messagesRes.pts);
@@ -2774,6 +3027,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     ImageLoader.saveMessagesThumbs(messagesRes.messages);
                 }
                 if (high_id != 1 && lower_id != 0 && isCache && messagesRes.messages.size() == 0) {
+                    MessagesWindowCache.getInstance().cancelLoad(dialog_id);
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
                         public void run() {
@@ -2858,6 +3112,22 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         }
                     }
                 }
+                if (isCache && load_type == 2 && !queryFromServer && !objects.isEmpty() && messagesToReload.isEmpty() && webpagesToReload.isEmpty()) {
+                    MessagesWindowCache.Window window = new MessagesWindowCache.Window();
+                    window.messages = new ArrayList<>(messagesRes.messages);
+                    window.users = messagesRes.users;
+                    window.chats = messagesRes.chats;
+                    window.count = count;
+                    window.maxId = max_id;
+                    window.firstUnread = first_unread;
+                    window.lastMessageId = last_message_id;
+                    window.unreadCount = unread_count;
+                    window.lastDate = last_date;
+                    window.isEnd = isEnd;
+                    MessagesWindowCache.getInstance().put(dialog_id, window);
+                } else if (isCache) {
+                    MessagesWindowCache.getInstance().cancelLoad(dialog_id);
+                }
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
@@ -3768,6 +4038,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 if (!ids.contains(message.id)) {
                     ids.add(message.id);
                 }
+                stageTimers.schedule(channelViewsTimer, Math.max(lastViewsCheckTime + 5000, System.currentTimeMillis()));
             }
         });
     }
@@ -3982,7 +4253,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             newMsg.random_id = 0;
             newMsg.flags |= TLRPC.MESSAGE_FLAG_HAS_FROM_ID;
             UserConfig.saveConfig(false);
-            MessageObject newMsgObj = new MessageObject(newMsg, users, true);
+            MessageObject newMsgObj = new MessageObject(newMsg, null, true);
             newMsgObj.messageOwner.send_state = MessageObject.MESSAGE_SEND_STATE_SENT;
 
             ArrayList<MessageObject> objArr = new ArrayList<>();
@@ -4732,6 +5003,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         } else if (type == 2) {
             updatesStartWaitTimeQts = time;
         }
+        if (time != 0) {
+            scheduleStageTimer(updatesQueuesTimer, time + 1501);
+        }
     }
 
     public long getUpdatesStartTime(int type) {
@@ -4780,8 +5054,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         if (updatesQueue == null) {
             return;
         }
-        Integer channelPts = channelsPts.get(channelId);
-        if (updatesQueue.isEmpty() || channelPts == null) {
+        int channelPts = channelsPts.get(channelId);
+        if (updatesQueue.isEmpty() || channelPts == 0) {
             updatesQueueChannels.remove(channelId);
             return;
         }
@@ -4816,6 +5090,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     FileLog.e("HOLE IN CHANNEL " + channelId + " UPDATES QUEUE - will wait more time");
                     if (anyProceed) {
                         updatesStartWaitTimeChannels.put(channelId, System.currentTimeMillis());
+                        scheduleStageTimer(channelsQueuesTimer, System.currentTimeMillis() + 1501);
                     }
                     return;
                 } else {
@@ -4981,26 +5256,66 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         getChannelDifference(channelId, 0, 0, null);
     }
 
-    protected void getChannelDifference(final int channelId, final int newDialogType, final long taskId, TLRPC.InputChannel inputChannel) {
-        Boolean gettingDifferenceChannel = gettingDifferenceChannels.get(channelId);
-        if (gettingDifferenceChannel == null) {
-            gettingDifferenceChannel = false;
+    protected void getChannelDifference(final int channelId, final int newDialogType, final long taskId, final TLRPC.InputChannel inputChannel) {
+        if (Thread.currentThread() != Utilities.stageQueue) {
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    getChannelDifference(channelId, newDialogType, taskId, inputChannel);
+                }
+            });
+            return;
         }
+        getChannelDifferenceInternal(channelId, newDialogType, taskId, inputChannel);
+    }
+
+    /**
+     * Runs on the stage queue only, which owns runningChannelDifferences and pendingChannelDifferences.
+     */
+    private void getChannelDifferenceInternal(final int channelId, final int newDialogType, final long taskId, TLRPC.InputChannel inputChannel) {
+        boolean gettingDifferenceChannel = gettingDifferenceChannels.contains(channelId);
         if (gettingDifferenceChannel) {
             return;
         }
+        if (runningChannelDifferences >= MAX_CHANNEL_DIFFERENCES) {
+            for (int a = 0; a < pendingChannelDifferences.size(); a++) {
+                PendingChannelDifference pending = pendingChannelDifferences.get(a);
+                if (pending.channelId == channelId) {
+                    long removeTaskId = taskId;
+                    if (pending.newDialogType == 0 && newDialogType != 0) {
+                        removeTaskId = pending.taskId;
+                        pending.newDialogType = newDialogType;
+                        pending.taskId = taskId;
+                        if (inputChannel != null) {
+                            pending.inputChannel = inputChannel;
+                        }
+                    }
+                    if (removeTaskId != 0) {
+                        MessagesStorage.getInstance().removePendingTask(removeTaskId);
+                    }
+                    return;
+                }
+            }
+            PendingChannelDifference pending = new PendingChannelDifference();
+            pending.channelId = channelId;
+            pending.newDialogType = newDialogType;
+            pending.taskId = taskId;
+            pending.inputChannel = inputChannel;
+            pendingChannelDifferences.add(pending);
+            return;
+        }
         int limit = 100;
-        Integer channelPts;
+        int channelPts;
         if (newDialogType == 1) {
             channelPts = channelsPts.get(channelId);
-            if (channelPts != null) {
+            if (channelPts != 0) {
                 return;
             }
             channelPts = 1;
             limit = 1;
         } else {
             channelPts = channelsPts.get(channelId);
-            if (channelPts == null) {
+            if (channelPts == 0) {
                 channelPts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
                 if (channelPts != 0) {
                     channelsPts.put(channelId, channelPts);
@@ -5040,7 +5355,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             newTaskId = taskId;
         }
 
-        gettingDifferenceChannels.put(channelId, true);
+        gettingDifferenceChannels.add(channelId);
+        runningChannelDifferences++;
+        startCatchUp();
         TLRPC.TL_updates_getChannelDifference req = new TLRPC.TL_updates_getChannelDifference();
         req.channel = inputChannel;
         req.filter = new TLRPC.TL_channelMessagesFilterEmpty();
@@ -5219,14 +5536,18 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                         MessagesStorage.getInstance().overwriteChannel(channelId, (TLRPC.TL_updates_channelDifferenceTooLong) res, newDialogType);
                                     }
                                     gettingDifferenceChannels.remove(channelId);
+                                    runningChannelDifferences--;
                                     channelsPts.put(channelId, res.pts);
 
                                     if ((res.flags & 2) != 0) {
                                         shortPollChannels.put(channelId, (int) (System.currentTimeMillis() / 1000) + res.timeout);
+                                        stageTimers.schedule(shortPollTimer, ((int) (System.currentTimeMillis() / 1000) + res.timeout + 1) * 1000L);
                                     }
                                     if (!res.isFinal) {
                                         getChannelDifference(channelId);
                                     }
+                                    runPendingChannelDifferences();
+                                    finishCatchUp(res.new_messages.size() + res.messages.size() + res.other_updates.size());
                                     FileLog.e("received channel difference with pts = " + res.pts + " channelId = " + channelId);
                                     FileLog.e("new_messages = " + res.new_messages.size() + " messages = " + res.messages.size() + " users = " + res.users.size() + " chats = " + res.chats.size() + " other updates = " + res.other_updates.size());
 
@@ -5244,7 +5565,15 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             checkChannelError(error.text, channelId);
                         }
                     });
-                    gettingDifferenceChannels.remove(channelId);
+                    Utilities.stageQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            gettingDifferenceChannels.remove(channelId);
+                            runningChannelDifferences--;
+                            runPendingChannelDifferences();
+                            finishCatchUp(0);
+                        }
+                    });
                     if (newTaskId != 0) {
                         MessagesStorage.getInstance().removePendingTask(newTaskId);
                     }
@@ -5253,6 +5582,64 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         });
     }
 
+    private void runPendingChannelDifferences() {
+        while (runningChannelDifferences < MAX_CHANNEL_DIFFERENCES && !pendingChannelDifferences.isEmpty()) {
+            long openedDialogId = NotificationsController.getInstance().getOpenedDialogId();
+            int index = 0;
+            TLRPC.TL_dialog top = null;
+            for (int a = 0; a < pendingChannelDifferences.size(); a++) {
+                int channelId = pendingChannelDifferences.get(a).channelId;
+                if (-channelId == openedDialogId) {
+                    index = a;
+                    break;
+                }
+                TLRPC.TL_dialog dialog = dialogs_dict.get((long) -channelId);
+                if (dialog != null && (top == null || isHigherDialog(dialog, top))) {
+                    top = dialog;
+                    index = a;
+                }
+            }
+            PendingChannelDifference pending = pendingChannelDifferences.remove(index);
+            getChannelDifference(pending.channelId, pending.newDialogType, pending.taskId, pending.inputChannel);
+        }
+    }
+
+    private boolean isHigherDialog(TLRPC.TL_dialog dialog1, TLRPC.TL_dialog dialog2) {
+        if (dialog1.pinned != dialog2.pinned) {
+            return dialog1.pinned;
+        } else if (dialog1.pinned) {
+            return dialog1.pinnedNum > dialog2.pinnedNum;
+        }
+        return dialog1.last_message_date > dialog2.last_message_date;
+    }
+
+    private void startCatchUp() {
+        synchronized (differenceSync) {
+            if (catchUpStartTime == 0) {
+                catchUpStartTime = System.currentTimeMillis();
+                catchUpUpdatesCount = 0;
+            }
+        }
+    }
+
+    private void finishCatchUp(int updatesCount) {
+        long time;
+        int count;
+        synchronized (differenceSync) {
+            catchUpUpdatesCount += updatesCount;
+            if (catchUpStartTime == 0 || gettingDifference || runningChannelDifferences != 0 || applyingDifferences != 0) {
+                return;
+            }
+            time = System.currentTimeMillis() - catchUpStartTime;
+            count = catchUpUpdatesCount;
+            catchUpStartTime = 0;
+            catchUpUpdatesCount = 0;
+        }
+        if (BuildVars.DEBUG_VERSION) {
+            FileLog.d("catch up finished in " + time + " ms, updates = " + count + ", " + (count * 1000 / Math.max(time, 1)) + " updates/sec");
+        }
+    }
+
     private void checkChannelError(String text, int channelId) {
         switch (text) {
             case "CHANNEL_PRIVATE":
@@ -5281,6 +5668,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             return;
         }
         gettingDifference = true;
+        startCatchUp();
         TLRPC.TL_updates_getDifference req = new TLRPC.TL_updates_getDifference();
         req.pts = pts;
         req.date = date;
@@ -5296,7 +5684,18 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 if (error == null) {
                     final TLRPC.updates_Difference res = (TLRPC.updates_Difference) response;
 
-                    if (res instanceof TLRPC.TL_updates_differenceSlice) {
+                    boolean loadNextSlice = false;
+                    synchronized (differenceSync) {
+                        if (res instanceof TLRPC.TL_updates_differenceSlice) {
+                            if (applyingDifferences < MAX_DIFFERENCE_SLICES_AHEAD) {
+                                loadNextSlice = true;
+                            } else {
+                                pendingDifferenceState = res.intermediate_state;
+                            }
+                        }
+                        applyingDifferences++;
+                    }
+                    if (loadNextSlice) {
                         getDifference(res.intermediate_state.pts, res.intermediate_state.date, res.intermediate_state.qts, true);
                     }
 
@@ -5334,169 +5733,180 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
                         @Override
                         public void run() {
-                            MessagesStorage.getInstance().putUsersAndChats(res.users, res.chats, true, false);
-                            if (!msgUpdates.isEmpty()) {
-                                final HashMap<Integer, long[]> corrected = new HashMap<>();
-                                for (int a = 0; a < msgUpdates.size(); a++) {
-                                    TLRPC.TL_updateMessageID update = msgUpdates.get(a);
-                                    long[] ids = MessagesStorage.getInstance().updateMessageStateAndId(update.random_id, null, update.id, 0, false, 0);
-                                    if (ids != null) {
-                                        corrected.put(update.id, ids);
+                            try {
+                                MessagesStorage.getInstance().putUsersAndChats(res.users, res.chats, true, false);
+                                if (!msgUpdates.isEmpty()) {
+                                    final HashMap<Integer, long[]> corrected = new HashMap<>();
+                                    for (int a = 0; a < msgUpdates.size(); a++) {
+                                        TLRPC.TL_updateMessageID update = msgUpdates.get(a);
+                                        long[] ids = MessagesStorage.getInstance().updateMessageStateAndId(update.random_id, null, update.id, 0, false, 0);
+                                        if (ids != null) {
+                                            corrected.put(update.id, ids);
+                                        }
                                     }
-                                }
 
-                                if (!corrected.isEmpty()) {
-                                    AndroidUtilities.runOnUIThread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            for (HashMap.Entry<Integer, long[]> entry : corrected.entrySet()) {
-                                                Integer newId = entry.getKey();
-                                                long[] ids = entry.getValue();
-                                                Integer oldId = (int) ids[1];
-                                                SendMessagesHelper.getInstance().processSentMessage(oldId);
-                                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.messageReceivedByServer, oldId, newId, null, ids[0]);
+                                    if (!corrected.isEmpty()) {
+                                        AndroidUtilities.runOnUIThread(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                for (HashMap.Entry<Integer, long[]> entry : corrected.entrySet()) {
+                                                    Integer newId = entry.getKey();
+                                                    long[] ids = entry.getValue();
+                                                    Integer oldId = (int) ids[1];
+                                                    SendMessagesHelper.getInstance().processSentMessage(oldId);
+                                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.messageReceivedByServer, oldId, newId, null, ids[0]);
+                                                }
                                             }
-                                        }
-                                    });
+                                        });
+                                    }
                                 }
-                            }
-
-                            Utilities.stageQueue.postRunnable(new Runnable() {
-                                @Override
-                                public void run() {
-                                    if (!res.new_messages.isEmpty() || !res.new_encrypted_messages.isEmpty()) {
-                                        final HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
-                                        for (int b = 0; b < res.new_encrypted_messages.size(); b++) {
-                                            TLRPC.EncryptedMessage encryptedMessage = res.new_encrypted_messages.get(b);
-                                            ArrayList<TLRPC.Message> decryptedMessages = SecretChatHelper.getInstance().decryptMessage(encryptedMessage);
-                                            if (decryptedMessages != null && !decryptedMessages.isEmpty()) {
-                                                for (int a = 0; a < decryptedMessages.size(); a++) {
-                                                    TLRPC.Message message = decryptedMessages.get(a);
-                                                    res.new_messages.add(message);
+                            } finally {
+                                Utilities.stageQueue.postRunnable(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        try {
+                                            if (!res.new_messages.isEmpty() || !res.new_encrypted_messages.isEmpty()) {
+                                                final HashMap<Long, ArrayList<MessageObject>> messages = new HashMap<>();
+                                                for (int b = 0; b < res.new_encrypted_messages.size(); b++) {
+                                                    TLRPC.EncryptedMessage encryptedMessage = res.new_encrypted_messages.get(b);
+                                                    ArrayList<TLRPC.Message> decryptedMessages = SecretChatHelper.getInstance().decryptMessage(encryptedMessage);
+                                                    if (decryptedMessages != null && !decryptedMessages.isEmpty()) {
+                                                        for (int a = 0; a < decryptedMessages.size(); a++) {
+                                                            TLRPC.Message message = decryptedMessages.get(a);
+                                                            res.new_messages.add(message);
+                                                        }
+                                                    }
                                                 }
-                                            }
-                                        }
 
-                                        ImageLoader.saveMessagesThumbs(res.new_messages);
-
-                                        final ArrayList<MessageObject> pushMessages = new ArrayList<>();
-                                        int clientUserId = UserConfig.getClientUserId();
-                                        for (int a = 0; a < res.new_messages.size(); a++) {
-                                            TLRPC.Message message = res.new_messages.get(a);
-                                            if (message.dialog_id == 0) {
-                                                if (message.to_id.chat_id != 0) {
-                                                    message.dialog_id = -message.to_id.chat_id;
-                                                } else {
-                                                    if (message.to_id.user_id == UserConfig.getClientUserId()) {
-                                                        message.to_id.user_id = message.from_id;
+                                                ImageLoader.saveMessagesThumbs(res.new_messages);
+
+                                                final ArrayList<MessageObject> pushMessages = new ArrayList<>();
+                                                int clientUserId = UserConfig.getClientUserId();
+                                                for (int a = 0; a < res.new_messages.size(); a++) {
+                                                    TLRPC.Message message = res.new_messages.get(a);
+                                                    if (message.dialog_id == 0) {
+                                                        if (message.to_id.chat_id != 0) {
+                                                            message.dialog_id = -message.to_id.chat_id;
+                                                        } else {
+                                                            if (message.to_id.user_id == UserConfig.getClientUserId()) {
+                                                                message.to_id.user_id = message.from_id;
+                                                            }
+                                                            message.dialog_id = message.to_id.user_id;
+                                                        }
+                                                    }
+
+                                                    if ((int) message.dialog_id != 0) {
+                                                        if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
+                                                            TLRPC.User user = usersDict.get(message.action.user_id);
+                                                            if (user != null && user.bot) {
+                                                                message.reply_markup = new TLRPC.TL_replyKeyboardHide();
+                                                            }
+                                                        }
+                                                        if (message.action instanceof TLRPC.TL_messageActionChatMigrateTo || message.action instanceof TLRPC.TL_messageActionChannelCreate) {
+                                                            message.unread = false;
+                                                            message.media_unread = false;
+                                                        } else {
+                                                            ConcurrentHashMap<Long, Integer> read_max = message.out ? dialogs_read_outbox_max : dialogs_read_inbox_max;
+                                                            Integer value = read_max.get(message.dialog_id);
+                                                            if (value == null) {
+                                                                value = MessagesStorage.getInstance().getDialogReadMax(message.out, message.dialog_id);
+                                                                read_max.put(message.dialog_id, value);
+                                                            }
+                                                            message.unread = value < message.id;
+                                                        }
+                                                    }
+                                                    if (message.dialog_id == clientUserId) {
+                                                        message.unread = false;
+                                                        message.media_unread = false;
+                                                        message.out = true;
                                                     }
-                                                    message.dialog_id = message.to_id.user_id;
-                                                }
-                                            }
 
-                                            if ((int) message.dialog_id != 0) {
-                                                if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
-                                                    TLRPC.User user = usersDict.get(message.action.user_id);
-                                                    if (user != null && user.bot) {
-                                                        message.reply_markup = new TLRPC.TL_replyKeyboardHide();
+                                                    MessageObject obj = new MessageObject(message, usersDict, chatsDict, createdDialogIds.contains(message.dialog_id));
+
+                                                    if (!obj.isOut() && obj.isUnread()) {
+                                                        pushMessages.add(obj);
                                                     }
-                                                }
-                                                if (message.action instanceof TLRPC.TL_messageActionChatMigrateTo || message.action instanceof TLRPC.TL_messageActionChannelCreate) {
-                                                    message.unread = false;
-                                                    message.media_unread = false;
-                                                } else {
-                                                    ConcurrentHashMap<Long, Integer> read_max = message.out ? dialogs_read_outbox_max : dialogs_read_inbox_max;
-                                                    Integer value = read_max.get(message.dialog_id);
-                                                    if (value == null) {
-                                                        value = MessagesStorage.getInstance().getDialogReadMax(message.out, message.dialog_id);
-                                                        read_max.put(message.dialog_id, value);
+
+                                                    ArrayList<MessageObject> arr = messages.get(message.dialog_id);
+                                                    if (arr == null) {
+                                                        arr = new ArrayList<>();
+                                                        messages.put(message.dialog_id, arr);
                                                     }
-                                                    message.unread = value < message.id;
+                                                    arr.add(obj);
                                                 }
-                                            }
-                                            if (message.dialog_id == clientUserId) {
-                                                message.unread = false;
-                                                message.media_unread = false;
-                                                message.out = true;
-                                            }
 
-                                            MessageObject obj = new MessageObject(message, usersDict, chatsDict, createdDialogIds.contains(message.dialog_id));
+                                                AndroidUtilities.runOnUIThread(new Runnable() {
+                                                    @Override
+                                                    public void run() {
+                                                        for (HashMap.Entry<Long, ArrayList<MessageObject>> pair : messages.entrySet()) {
+                                                            Long key = pair.getKey();
+                                                            ArrayList<MessageObject> value = pair.getValue();
+                                                            updateInterfaceWithMessages(key, value);
+                                                        }
+                                                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
+                                                    }
+                                                });
+                                                MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+                                                    @Override
+                                                    public void run() {
+                                                        if (!pushMessages.isEmpty()) {
+                                                            AndroidUtilities.runOnUIThread(new Runnable() {
+                                                                @Override
+                                                                public void run() {
+                                                                    NotificationsController.getInstance().processNewMessages(pushMessages, !(res instanceof TLRPC.TL_updates_differenceSlice));
+                                                                }
+                                                            });
+                                                        }
+                                                        MessagesStorage.getInstance().putMessages(res.new_messages, true, false, false, MediaController.getInstance().getAutodownloadMask());
+                                                    }
+                                                });
 
-                                            if (!obj.isOut() && obj.isUnread()) {
-                                                pushMessages.add(obj);
+                                                SecretChatHelper.getInstance().processPendingEncMessages();
                                             }
 
-                                            ArrayList<MessageObject> arr = messages.get(message.dialog_id);
-                                            if (arr == null) {
-                                                arr = new ArrayList<>();
-                                                messages.put(message.dialog_id, arr);
+                                            if (!res.other_updates.isEmpty()) {
+                                                processUpdateArray(res.other_updates, res.users, res.chats, true);
                                             }
-                                            arr.add(obj);
-                                        }
 
-                                        AndroidUtilities.runOnUIThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                for (HashMap.Entry<Long, ArrayList<MessageObject>> pair : messages.entrySet()) {
-                                                    Long key = pair.getKey();
-                                                    ArrayList<MessageObject> value = pair.getValue();
-                                                    updateInterfaceWithMessages(key, value);
+                                            if (res instanceof TLRPC.TL_updates_difference) {
+                                                gettingDifference = false;
+                                                MessagesStorage.lastSeqValue = res.state.seq;
+                                                MessagesStorage.lastDateValue = res.state.date;
+                                                MessagesStorage.lastPtsValue = res.state.pts;
+                                                MessagesStorage.lastQtsValue = res.state.qts;
+                                                ConnectionsManager.getInstance().setIsUpdating(false);
+                                                for (int a = 0; a < 3; a++) {
+                                                    processUpdatesQueue(a, 1);
                                                 }
-                                                NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
-                                            }
-                                        });
-                                        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                if (!pushMessages.isEmpty()) {
-                                                    AndroidUtilities.runOnUIThread(new Runnable() {
-                                                        @Override
-                                                        public void run() {
-                                                            NotificationsController.getInstance().processNewMessages(pushMessages, !(res instanceof TLRPC.TL_updates_differenceSlice));
-                                                        }
-                                                    });
+                                            } else if (res instanceof TLRPC.TL_updates_differenceSlice) {
+                                                MessagesStorage.lastDateValue = res.intermediate_state.date;
+                                                MessagesStorage.lastPtsValue = res.intermediate_state.pts;
+                                                MessagesStorage.lastQtsValue = res.intermediate_state.qts;
+                                            } else if (res instanceof TLRPC.TL_updates_differenceEmpty) {
+                                                gettingDifference = false;
+                                                MessagesStorage.lastSeqValue = res.seq;
+                                                MessagesStorage.lastDateValue = res.date;
+                                                ConnectionsManager.getInstance().setIsUpdating(false);
+                                                for (int a = 0; a < 3; a++) {
+                                                    processUpdatesQueue(a, 1);
                                                 }
-                                                MessagesStorage.getInstance().putMessages(res.new_messages, true, false, false, MediaController.getInstance().getAutodownloadMask());
                                             }
-                                        });
-
-                                        SecretChatHelper.getInstance().processPendingEncMessages();
-                                    }
-
-                                    if (!res.other_updates.isEmpty()) {
-                                        processUpdateArray(res.other_updates, res.users, res.chats, true);
-                                    }
+                                            MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
+                                            FileLog.e("received difference with date = " + MessagesStorage.lastDateValue + " pts = " + MessagesStorage.lastPtsValue + " seq = " + MessagesStorage.lastSeqValue + " messages = " + res.new_messages.size() + " users = " + res.users.size() + " chats = " + res.chats.size() + " other updates = " + res.other_updates.size());
 
-                                    if (res instanceof TLRPC.TL_updates_difference) {
-                                        gettingDifference = false;
-                                        MessagesStorage.lastSeqValue = res.state.seq;
-                                        MessagesStorage.lastDateValue = res.state.date;
-                                        MessagesStorage.lastPtsValue = res.state.pts;
-                                        MessagesStorage.lastQtsValue = res.state.qts;
-                                        ConnectionsManager.getInstance().setIsUpdating(false);
-                                        for (int a = 0; a < 3; a++) {
-                                            processUpdatesQueue(a, 1);
-                                        }
-                                    } else if (res instanceof TLRPC.TL_updates_differenceSlice) {
-                                        MessagesStorage.lastDateValue = res.intermediate_state.date;
-                                        MessagesStorage.lastPtsValue = res.intermediate_state.pts;
-                                        MessagesStorage.lastQtsValue = res.intermediate_state.qts;
-                                    } else if (res instanceof TLRPC.TL_updates_differenceEmpty) {
-                                        gettingDifference = false;
-                                        MessagesStorage.lastSeqValue = res.seq;
-                                        MessagesStorage.lastDateValue = res.date;
-                                        ConnectionsManager.getInstance().setIsUpdating(false);
-                                        for (int a = 0; a < 3; a++) {
-                                            processUpdatesQueue(a, 1);
+                                        } finally {
+                                            releaseDifferenceSlice(res.new_messages.size() + res.other_updates.size() + msgUpdates.size());
                                         }
                                     }
-                                    MessagesStorage.getInstance().saveDiffParams(MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue);
-                                    FileLog.e("received difference with date = " + MessagesStorage.lastDateValue + " pts = " + MessagesStorage.lastPtsValue + " seq = " + MessagesStorage.lastSeqValue + " messages = " + res.new_messages.size() + " users = " + res.users.size() + " chats = " + res.chats.size() + " other updates = " + res.other_updates.size());
-                                }
-                            });
+                                });
+                            }
                         }
                     });
                 } else {
+                    synchronized (differenceSync) {
+                        pendingDifferenceState = null;
+                        catchUpStartTime = 0;
+                    }
                     gettingDifference = false;
                     ConnectionsManager.getInstance().setIsUpdating(false);
                 }
@@ -5504,6 +5914,33 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         });
     }
 
+    /**
+     * Frees the slot of an applied difference once the storage queue has written what it posted, so the number of
+     * slices ahead also bounds the pending persistence. Called on every exit of the apply path.
+     */
+    private void releaseDifferenceSlice(final int updatesCount) {
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                Utilities.stageQueue.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        TLRPC.TL_updates_state nextState;
+                        synchronized (differenceSync) {
+                            applyingDifferences--;
+                            nextState = pendingDifferenceState;
+                            pendingDifferenceState = null;
+                        }
+                        if (nextState != null) {
+                            getDifference(nextState.pts, nextState.date, nextState.qts, true);
+                        }
+                        finishCatchUp(updatesCount);
+                    }
+                });
+            }
+        });
+    }
+
     public boolean canPinDialog(boolean secret) {
         int count = 0;
         for (int a = 0; a < dialogs.size(); a++) {
@@ -6039,6 +6476,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
             if (user != null && user.status != null && user.status.expires <= 0) {
                 onlinePrivacy.put(user.id, ConnectionsManager.getInstance().getCurrentTime());
+                scheduleStageTimer(onlinePrivacyTimer, System.currentTimeMillis() + 31000);
                 updateStatus = true;
             }
 
@@ -6268,8 +6706,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     } else if (getUpdateType(update) == 2) {
                         int channelId = getUpdateChannelId(update);
                         boolean skipUpdate = false;
-                        Integer channelPts = channelsPts.get(channelId);
-                        if (channelPts == null) {
+                        int channelPts = channelsPts.get(channelId);
+                        if (channelPts == 0) {
                             channelPts = MessagesStorage.getInstance().getChannelPtsSync(channelId);
                             if (channelPts == 0) {
                                 for (int c = 0; c < updates.chats.size(); c++) {
@@ -6316,13 +6754,11 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             } else if (channelPts != updatesNew.pts) {
                                 FileLog.e(update + " need get channel diff, pts: " + channelPts + " " + updatesNew.pts + " count = " + updatesNew.pts_count + " channelId = " + channelId);
                                 Long updatesStartWaitTime = updatesStartWaitTimeChannels.get(channelId);
-                                Boolean gettingDifferenceChannel = gettingDifferenceChannels.get(channelId);
-                                if (gettingDifferenceChannel == null) {
-                                    gettingDifferenceChannel = false;
-                                }
+                                boolean gettingDifferenceChannel = gettingDifferenceChannels.contains(channelId);
                                 if (gettingDifferenceChannel || updatesStartWaitTime == null || Math.abs(System.currentTimeMillis() - updatesStartWaitTime) <= 1500) {
                                     if (updatesStartWaitTime == null) {
                                         updatesStartWaitTimeChannels.put(channelId, System.currentTimeMillis());
+                                        scheduleStageTimer(channelsQueuesTimer, System.currentTimeMillis() + 1501);
                                     }
                                     FileLog.e("add to queue");
                                     ArrayList<TLRPC.Updates> arrayList = updatesQueueChannels.get(channelId);
@@ -6467,27 +6903,23 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         final ArrayList<Integer> contactsIds = new ArrayList<>();
 
         boolean checkForUsers = true;
-        ConcurrentHashMap<Integer, TLRPC.User> usersDict;
-        ConcurrentHashMap<Integer, TLRPC.Chat> chatsDict;
+        ConcurrentHashMap<Integer, TLRPC.User> usersDict = new ConcurrentHashMap<>();
+        ConcurrentHashMap<Integer, TLRPC.Chat> chatsDict = new ConcurrentHashMap<>();
         if (usersArr != null) {
-            usersDict = new ConcurrentHashMap<>();
             for (int a = 0; a < usersArr.size(); a++) {
                 TLRPC.User user = usersArr.get(a);
                 usersDict.put(user.id, user);
             }
         } else {
             checkForUsers = false;
-            usersDict = users;
         }
         if (chatsArr != null) {
-            chatsDict = new ConcurrentHashMap<>();
             for (int a = 0; a < chatsArr.size(); a++) {
                 TLRPC.Chat chat = chatsArr.get(a);
                 chatsDict.put(chat.id, chat);
             }
         } else {
             checkForUsers = false;
-            chatsDict = chats;
         }
         if (fromGetDifference) {
             checkForUsers = false;
@@ -6507,7 +6939,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
         for (int c = 0; c < updates.size(); c++) {
             TLRPC.Update update = updates.get(c);
-            FileLog.d("process update " + update);
+            if (FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+                FileLog.d("process update " + update);
+            }
             if (update instanceof TLRPC.TL_updateNewMessage || update instanceof TLRPC.TL_updateNewChannelMessage) {
                 TLRPC.Message message;
                 if (update instanceof TLRPC.TL_updateNewMessage) {
@@ -6544,7 +6978,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 if (checkForUsers) {
                     if (chat_id != 0) {
                         if (chat == null) {
-                            FileLog.d("not found chat " + chat_id);
+                            if (FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+                                FileLog.d("not found chat " + chat_id);
+                            }
                             return false;
                         }
                     }
@@ -6578,11 +7014,14 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 putUser(user, true);
                             }
                             if (user == null) {
-                                FileLog.d("not found user " + user_id);
+                                if (FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+                                    FileLog.d("not found user " + user_id);
+                                }
                                 return false;
                             }
                             if (a == 1 && user.status != null && user.status.expires <= 0) {
                                 onlinePrivacy.put(user_id, ConnectionsManager.getInstance().getCurrentTime());
+                                scheduleStageTimer(onlinePrivacyTimer, System.currentTimeMillis() + 31000);
                                 interfaceUpdateMask |= UPDATE_MASK_STATUS;
                             }
                         }
@@ -6594,6 +7033,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
 
                 if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
                     TLRPC.User user = usersDict.get(message.action.user_id);
+                    if (user == null) {
+                        user = getUser(message.action.user_id);
+                    }
                     if (user != null && user.bot) {
                         message.reply_markup = new TLRPC.TL_replyKeyboardHide();
                     } else if (message.from_id == UserConfig.getClientUserId() && message.action.user_id == UserConfig.getClientUserId()) {
@@ -6732,6 +7174,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         }
                     }
                     onlinePrivacy.put(update.user_id, ConnectionsManager.getInstance().getCurrentTime());
+                    scheduleStageTimer(onlinePrivacyTimer, System.currentTimeMillis() + 31000);
                 }
             } else if (update instanceof TLRPC.TL_updateChatParticipants) {
                 interfaceUpdateMask |= UPDATE_MASK_CHAT_MEMBERS;
@@ -6750,7 +7193,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 interfaceUpdateMask |= UPDATE_MASK_PHONE;
                 updatesOnMainThread.add(update);
             } else if (update instanceof TLRPC.TL_updateContactRegistered) {
-                if (enableJoined && usersDict.containsKey(update.user_id) && !MessagesStorage.getInstance().isDialogHasMessages(update.user_id)) {
+                if (enableJoined && (usersArr != null ? usersDict.containsKey(update.user_id) : getUser(update.user_id) != null) && !MessagesStorage.getInstance().isDialogHasMessages(update.user_id)) {
                     TLRPC.TL_messageService newMessage = new TLRPC.TL_messageService();
                     newMessage.action = new TLRPC.TL_messageActionUserJoined();
                     newMessage.local_id = newMessage.id = UserConfig.getNewMessageId();
@@ -6839,6 +7282,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         printChanged = true;
                     }
                     onlinePrivacy.put(update.user_id, ConnectionsManager.getInstance().getCurrentTime());
+                    scheduleStageTimer(onlinePrivacyTimer, System.currentTimeMillis() + 31000);
                 }
             } else if (update instanceof TLRPC.TL_updateEncryptedMessagesRead) {
                 markAsReadEncrypted.put(update.chat_id, Math.max(update.max_date, update.date));
@@ -6867,10 +7311,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                             @Override
                             public void run() {
                                 if (finalUpdate.blocked) {
-                                    if (!blockedUsers.contains(finalUpdate.user_id)) {
+                                    if (blockedUsersSet.add(finalUpdate.user_id)) {
                                         blockedUsers.add(finalUpdate.user_id);
                                     }
-                                } else {
+                                } else if (blockedUsersSet.remove(finalUpdate.user_id)) {
                                     blockedUsers.remove((Integer) finalUpdate.user_id);
                                 }
                                 NotificationCenter.getInstance().postNotificationName(NotificationCenter.blockedUsersDidLoaded);
@@ -6934,8 +7378,8 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 if (BuildVars.DEBUG_VERSION) {
                     FileLog.d(update + " channelId = " + update.channel_id);
                 }
-                Integer channelPts = channelsPts.get(update.channel_id);
-                if (channelPts == null) {
+                int channelPts = channelsPts.get(update.channel_id);
+                if (channelPts == 0) {
                     channelPts = MessagesStorage.getInstance().getChannelPtsSync(update.channel_id);
                     if (channelPts == 0) {
                         TLRPC.Chat chat = chatsDict.get(update.channel_id);
@@ -7135,6 +7579,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         if (printChanged) {
             updatePrintingStrings();
         }
+        if (!printingUsers.isEmpty()) {
+            scheduleStageTimer(printingUsersTimer, System.currentTimeMillis() + 5901);
+        }
 
         final int interfaceUpdateMaskFinal = interfaceUpdateMask;
         final boolean printChangedArg = printChanged;
@@ -7223,10 +7670,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                     currentUser.last_name = update.last_name;
                                 }
                                 if (currentUser.username != null && currentUser.username.length() > 0) {
-                                    usersByUsernames.remove(currentUser.username);
+                                    usersByUsernames.remove(currentUser.username.toLowerCase());
                                 }
                                 if (update.username != null && update.username.length() > 0) {
-                                    usersByUsernames.put(update.username, currentUser);
+                                    usersByUsernames.put(update.username.toLowerCase(), currentUser.id);
                                 }
                                 currentUser.username = update.username;
                             }
@@ -7489,6 +7936,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                     for (HashMap.Entry<Long, ArrayList<MessageObject>> pair : editingMessages.entrySet()) {
                         Long dialog_id = pair.getKey();
                         ArrayList<MessageObject> arrayList = pair.getValue();
+                        for (int a = 0; a < arrayList.size(); a++) {
+                            MessageObject newMessage = arrayList.get(a);
+                            MessagesQuery.removeCachedReplyMessage(newMessage.getId(), newMessage.messageOwner.to_id != null ? newMessage.messageOwner.to_id.channel_id : 0);
+                        }
                         MessageObject oldObject = dialogMessage.get(dialog_id);
                         if (oldObject != null) {
                             for (int a = 0; a < arrayList.size(); a++) {
@@ -7592,6 +8043,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                 if (arrayList == null) {
                                     continue;
                                 }
+                                MessagesQuery.removeCachedReplyMessages(arrayList, key);
                                 NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesDeleted, arrayList, key);
                                 if (key == 0) {
                                     for (int b = 0; b < arrayList.size(); b++) {
@@ -7758,6 +8210,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 dialogsServerOnly.remove(dialog);
                 dialogsGroupsOnly.remove(dialog);
                 dialogs_dict.remove(dialog.id);
+                PeerSearchIndex.getInstance().removeDialog(dialog.id);
                 dialogs_read_inbox_max.remove(dialog.id);
                 dialogs_read_outbox_max.remove(dialog.id);
                 nextDialogsCacheOffset--;
@@ -7835,6 +8288,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         dialogsServerOnly.clear();
         dialogsGroupsOnly.clear();
         Collections.sort(dialogs, dialogComparator);
+        updatePinnedPeers();
         for (int a = 0; a < dialogs.size(); a++) {
             TLRPC.TL_dialog d = dialogs.get(a);
             int high_id = (int) (d.id >> 32);
@@ -7861,6 +8315,41 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
     }
 
+    /**
+     * Keeps the peers of the dialogs list, of the opened chat and the current user in memory, so the cells and
+     * chats showing them never hit an evicted entry.
+     */
+    private void updatePinnedPeers() {
+        IntHashSet pinnedUsers = new IntHashSet(dialogs.size() + 2);
+        IntHashSet pinnedChats = new IntHashSet(dialogs.size() + 1);
+        pinnedUsers.add(UserConfig.getClientUserId());
+        for (int a = 0; a < dialogs.size(); a++) {
+            pinDialogPeer(dialogs.get(a).id, pinnedUsers, pinnedChats);
+        }
+        pinDialogPeer(NotificationsController.getInstance().getOpenedDialogId(), pinnedUsers, pinnedChats);
+        users.setPinned(pinnedUsers);
+        chats.setPinned(pinnedChats);
+    }
+
+    private void pinDialogPeer(long did, IntHashSet pinnedUsers, IntHashSet pinnedChats) {
+        int lower_id = (int) did;
+        int high_id = (int) (did >> 32);
+        if (lower_id != 0) {
+            if (high_id == 1) {
+                pinnedChats.add(lower_id);
+            } else if (lower_id > 0) {
+                pinnedUsers.add(lower_id);
+            } else {
+                pinnedChats.add(-lower_id);
+            }
+        } else if (high_id != 0) {
+            TLRPC.EncryptedChat encryptedChat = encryptedChats.get(high_id);
+            if (encryptedChat != null) {
+                pinnedUsers.add(encryptedChat.user_id);
+            }
+        }
+    }
+
     private static String getRestrictionReason(String reason) {
         if (reason == null || reason.length() == 0) {
             return null;
@@ -15,6 +15,7 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import org.blaez.PhoneFormat.PhoneFormat;
+import org.blaez.SQLite.SQLiteBlobCodec;
 import org.blaez.SQLite.SQLiteCursor;
 import org.blaez.SQLite.SQLiteDatabase;
 import org.blaez.SQLite.SQLitePreparedStatement;
@@ -24,6 +25,7 @@ import org.blaez.ziosgram.query.SharedMediaQuery;
 import org.blaez.tgnet.ConnectionsManager;
 import org.blaez.tgnet.NativeByteBuffer;
 import org.blaez.tgnet.RequestDelegate;
+import org.blaez.tgnet.RequestReplay;
 import org.blaez.tgnet.TLObject;
 import org.blaez.tgnet.TLRPC;
 
@@ -41,6 +43,7 @@ public class MessagesStorage {
     private DispatchQueue storageQueue = new DispatchQueue("storageQueue");
     private SQLiteDatabase database;
     private File cacheFile;
+    private boolean replayDatabase;
     private AtomicLong lastTaskId = new AtomicLong(System.currentTimeMillis());
 
     public static int lastDateValue = 0;
@@ -73,6 +76,7 @@ public class MessagesStorage {
 
     public MessagesStorage() {
         storageQueue.setPriority(Thread.MAX_PRIORITY);
+        new File(ApplicationLoader.getFilesDirFixed(), "cache4_replay.db").delete();
         openDatabase(true);
     }
 
@@ -85,7 +89,11 @@ public class MessagesStorage {
     }
 
     public void openDatabase(boolean first) {
-        cacheFile = new File(ApplicationLoader.getFilesDirFixed(), "cache4.db");
+        openDatabase(first, true);
+    }
+
+    private void openDatabase(boolean first, boolean loadTasks) {
+        cacheFile = new File(ApplicationLoader.getFilesDirFixed(), replayDatabase ? "cache4_replay.db" : "cache4.db");
 
         boolean createTable = false;
         //cacheFile.delete();
@@ -138,6 +146,7 @@ public class MessagesStorage {
 
                 database.executeFast("CREATE TABLE media_v2(mid INTEGER PRIMARY KEY, uid INTEGER, date INTEGER, type INTEGER, data BLOB)").stepThis().dispose();
                 database.executeFast("CREATE INDEX IF NOT EXISTS uid_mid_type_date_idx_media ON media_v2(uid, mid, type, date);").stepThis().dispose();
+                database.executeFast("CREATE INDEX IF NOT EXISTS uid_type_date_mid_idx_media ON media_v2(uid, type, date, mid);").stepThis().dispose();
 
                 database.executeFast("CREATE TABLE bot_keyboard(uid INTEGER PRIMARY KEY, mid INTEGER, info BLOB)").stepThis().dispose();
                 database.executeFast("CREATE INDEX IF NOT EXISTS bot_keyboard_idx_mid ON bot_keyboard(mid);").stepThis().dispose();
@@ -177,9 +186,11 @@ public class MessagesStorage {
                 database.executeFast("CREATE TABLE bot_info(uid INTEGER PRIMARY KEY, info BLOB)").stepThis().dispose();
                 database.executeFast("CREATE TABLE pending_tasks(id INTEGER PRIMARY KEY, data BLOB);").stepThis().dispose();
                 database.executeFast("CREATE TABLE requested_holes(uid INTEGER, seq_out_start INTEGER, seq_out_end INTEGER, PRIMARY KEY (uid, seq_out_start, seq_out_end));").stepThis().dispose();
+                createDialogPreviews();
+                database.executeFast("CREATE TABLE blob_dictionaries(version INTEGER PRIMARY KEY, data BLOB)").stepThis().dispose();
 
                 //version
-                database.executeFast("PRAGMA user_version = 41").stepThis().dispose();
+                database.executeFast("PRAGMA user_version = 44").stepThis().dispose();
 
                 //database.executeFast("CREATE TABLE secret_holes(uid INTEGER, seq_in INTEGER, seq_out INTEGER, data BLOB, PRIMARY KEY (uid, seq_in, seq_out));").stepThis().dispose();
                 //database.executeFast("CREATE TABLE attach_data(uid INTEGER, id INTEGER, data BLOB, PRIMARY KEY (uid, id))").stepThis().dispose();
@@ -217,7 +228,7 @@ public class MessagesStorage {
                         FileLog.e(e2);
                     }
                 }
-                if (version < 41) {
+                if (version < 44) {
                     updateDbToLastVersion(version);
                 }
             }
@@ -228,8 +239,307 @@ public class MessagesStorage {
                 openDatabase(false);
             }
         }
-        loadUnreadMessages();
-        loadPendingTasks();
+        loadBlobDictionaries();
+        if (loadTasks) {
+            loadUnreadMessages();
+            loadPendingTasks();
+        }
+    }
+
+    /**
+     * Reopens the storage on a copy of cache4.db, so a sync replay can write messages and channel state
+     * without touching the user's cache. Unread counters and pending tasks are not loaded from the copy,
+     * they would be run a second time. onOpened is posted to the stage queue once the copy is open.
+     */
+    public void openReplayDatabase(final Runnable onOpened) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (replayDatabase) {
+                    return;
+                }
+                File replayFile = new File(ApplicationLoader.getFilesDirFixed(), "cache4_replay.db");
+                if (database != null) {
+                    database.close();
+                    database = null;
+                }
+                try {
+                    replayFile.delete();
+                    replayDatabase = AndroidUtilities.copyFile(cacheFile, replayFile);
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+                openDatabase(false, false);
+                if (replayDatabase) {
+                    Utilities.stageQueue.postRunnable(onOpened);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes and deletes the replay copy and reopens cache4.db, which also reloads the update state saved
+     * there. onClosed is posted to the stage queue afterwards.
+     */
+    public void closeReplayDatabase(final Runnable onClosed) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (!replayDatabase) {
+                    return;
+                }
+                if (database != null) {
+                    database.close();
+                    database = null;
+                }
+                cacheFile.delete();
+                replayDatabase = false;
+                lastSavedSeq = 0;
+                lastSavedPts = 0;
+                lastSavedDate = 0;
+                lastSavedQts = 0;
+                openDatabase(false, false);
+                Utilities.stageQueue.postRunnable(onClosed);
+            }
+        });
+    }
+
+    private void loadBlobDictionaries() {
+        //queued after updateDbToLastVersion, which creates blob_dictionaries on upgrade
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteBlobCodec.clearDictionaries();
+                try {
+                    SQLiteCursor cursor = database.queryFinalized("SELECT version, data FROM blob_dictionaries");
+                    while (cursor.next()) {
+                        SQLiteBlobCodec.putDictionary(cursor.intValue(0), cursor.byteArrayValue(1));
+                    }
+                    cursor.dispose();
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+                SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Context.MODE_PRIVATE);
+                setCompressCacheInternal(preferences.getBoolean("compressCache", false));
+            }
+        });
+    }
+
+    public static boolean isCompressCacheEnabled() {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Context.MODE_PRIVATE);
+        return preferences.getBoolean("compressCache", false);
+    }
+
+    /**
+     * Turns cache compression on or off. Turning it on also starts rewriting the existing blobs in the
+     * background, blobs compressed before it was turned off stay readable.
+     */
+    public void setCompressCache(final boolean value) {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Context.MODE_PRIVATE);
+        preferences.edit().putBoolean("compressCache", value).commit();
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                setCompressCacheInternal(value);
+            }
+        });
+    }
+
+    private void setCompressCacheInternal(boolean value) {
+        compressCache = value;
+        SQLiteBlobCodec.setEnabled(value);
+        storageQueue.cancelRunnable(compressBlobsRunnable);
+        if (value) {
+            storageQueue.postRunnable(compressBlobsRunnable, 5000);
+        }
+    }
+
+    private boolean compressCache;
+    private Runnable compressBlobsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (database == null || !compressCache) {
+                return;
+            }
+            try {
+                if (SQLiteBlobCodec.getCurrentVersion() == 0 && !trainBlobDictionary()) {
+                    return;
+                }
+                if (compressBlobsChunk()) {
+                    storageQueue.postRunnable(compressBlobsRunnable, 100);
+                } else if (BuildVars.DEBUG_VERSION) {
+                    FileLog.d("cache compression done, " + SQLiteBlobCodec.getStats());
+                }
+            } catch (Exception e) {
+                FileLog.e(e);
+            }
+        }
+    };
+
+    private boolean trainBlobDictionary() throws Exception {
+        ArrayList<byte[]> samples = new ArrayList<>();
+        String[] queries = new String[] {
+                "SELECT data FROM messages ORDER BY mid DESC LIMIT 1000",
+                "SELECT data FROM users LIMIT 200",
+                "SELECT data FROM chats LIMIT 100"
+        };
+        for (int a = 0; a < queries.length; a++) {
+            SQLiteCursor cursor = database.queryFinalized(queries[a]);
+            while (cursor.next()) {
+                NativeByteBuffer data = cursor.byteBufferValue(0);
+                if (data != null) {
+                    byte[] sample = new byte[data.limit()];
+                    data.buffer.position(0);
+                    data.buffer.get(sample);
+                    samples.add(sample);
+                    data.reuse();
+                }
+            }
+            cursor.dispose();
+        }
+        byte[] dictionary = SQLiteBlobCodec.trainDictionary(samples, SQLiteBlobCodec.MAX_DICTIONARY_SIZE);
+        if (dictionary.length < 1024) {
+            return false;
+        }
+        int version = SQLiteBlobCodec.getCurrentVersion() + 1;
+        NativeByteBuffer data = new NativeByteBuffer(dictionary.length);
+        data.writeBytes(dictionary);
+        SQLitePreparedStatement state = database.executeFast("REPLACE INTO blob_dictionaries VALUES(?, ?)");
+        state.bindInteger(1, version);
+        state.bindByteBuffer(2, data);
+        state.step();
+        state.dispose();
+        data.reuse();
+        SQLiteBlobCodec.putDictionary(version, dictionary);
+        return true;
+    }
+
+    /**
+     * Rewrites one chunk of uncompressed blobs, the position is kept in keyvalue so the job
+     * continues where it stopped after a restart.
+     *
+     * @return true if there is more to compress
+     */
+    private boolean compressBlobsChunk() throws Exception {
+        String[] tables = new String[] {"messages", "media_v2", "users", "chats"};
+        String[] keys = new String[] {"mid", "mid", "uid", "uid"};
+        int tableIndex = 0;
+        long lastKey = Long.MIN_VALUE;
+        SQLiteCursor cursor = database.queryFinalized("SELECT value FROM keyvalue WHERE id = 'blob_compression'");
+        if (cursor.next()) {
+            String[] args = cursor.stringValue(0).split(",");
+            tableIndex = Utilities.parseInt(args[0]);
+            lastKey = Long.parseLong(args[1]);
+        }
+        cursor.dispose();
+        if (tableIndex >= tables.length) {
+            return false;
+        }
+        String table = tables[tableIndex];
+        String key = keys[tableIndex];
+        int count = 0;
+        boolean messages = tableIndex == 0;
+        database.beginTransaction();
+        try {
+            if (messages) {
+                //the rewritten blobs hold the same messages, their dialog previews stay valid
+                database.executeFast("DROP TRIGGER IF EXISTS dialog_previews_update").stepThis().dispose();
+            }
+            SQLitePreparedStatement state = database.executeFast(String.format(Locale.US, "UPDATE %s SET data = ? WHERE %s = ?", table, key));
+            cursor = database.queryFinalized(String.format(Locale.US, "SELECT %s, data FROM %s WHERE %s > %d ORDER BY %s ASC LIMIT 200", key, table, key, lastKey, key));
+            while (cursor.next()) {
+                lastKey = cursor.longValue(0);
+                count++;
+                NativeByteBuffer data = cursor.byteBufferValue(1);
+                if (data != null) {
+                    state.requery();
+                    state.bindByteBuffer(1, data);
+                    state.bindLong(2, lastKey);
+                    state.step();
+                    data.reuse();
+                }
+            }
+            cursor.dispose();
+            state.dispose();
+            if (count < 200) {
+                tableIndex++;
+                lastKey = Long.MIN_VALUE;
+            }
+            state = database.executeFast("REPLACE INTO keyvalue VALUES('blob_compression', ?)");
+            state.bindString(1, tableIndex + "," + lastKey);
+            state.step();
+            state.dispose();
+        } finally {
+            try {
+                if (messages) {
+                    createDialogPreviewsUpdateTrigger();
+                }
+            } finally {
+                database.commitTransaction();
+            }
+        }
+        return tableIndex < tables.length;
+    }
+
+    /**
+     * Dialog previews are stripped copies of the last messages of dialogs, so the dialogs list can be
+     * loaded without reading and deserializing full message blobs. A preview is only used while its
+     * mid is still the last_mid of the dialog, and the triggers drop it whenever the message is rewritten.
+     */
+    private void createDialogPreviews() throws Exception {
+        database.executeFast("CREATE TABLE IF NOT EXISTS dialog_previews(mid INTEGER PRIMARY KEY, data BLOB)").stepThis().dispose();
+        database.executeFast("CREATE TRIGGER IF NOT EXISTS dialog_previews_insert AFTER INSERT ON messages BEGIN DELETE FROM dialog_previews WHERE mid = NEW.mid; END").stepThis().dispose();
+        createDialogPreviewsUpdateTrigger();
+    }
+
+    private void createDialogPreviewsUpdateTrigger() throws Exception {
+        database.executeFast("CREATE TRIGGER IF NOT EXISTS dialog_previews_update AFTER UPDATE OF data ON messages BEGIN DELETE FROM dialog_previews WHERE mid = NEW.mid; END").stepThis().dispose();
+    }
+
+    private static void stripDialogPreview(TLRPC.Message message) {
+        if (message instanceof TLRPC.TL_message && !(message instanceof TLRPC.TL_message_secret)) {
+            message.reply_markup = null;
+            message.flags &= ~64;
+            message.entities.clear();
+            message.flags &= ~128;
+        }
+        TLRPC.MessageMedia media = message.media;
+        if (media == null) {
+            return;
+        }
+        if (media.webpage != null && !(media.webpage instanceof TLRPC.TL_webPageEmpty)) {
+            TLRPC.TL_webPageEmpty webPage = new TLRPC.TL_webPageEmpty();
+            webPage.id = media.webpage.id;
+            media.webpage = webPage;
+        }
+        stripCachedSizes(media.photo, media.document);
+        if (media.game != null) {
+            stripCachedSizes(media.game.photo, media.game.document);
+        }
+    }
+
+    private static void stripCachedSizes(TLRPC.Photo photo, TLRPC.Document document) {
+        if (photo != null) {
+            for (int a = 0; a < photo.sizes.size(); a++) {
+                photo.sizes.set(a, stripCachedSize(photo.sizes.get(a)));
+            }
+        }
+        if (document != null && document.thumb != null) {
+            document.thumb = stripCachedSize(document.thumb);
+        }
+    }
+
+    private static TLRPC.PhotoSize stripCachedSize(TLRPC.PhotoSize photoSize) {
+        if (!(photoSize instanceof TLRPC.TL_photoCachedSize)) {
+            return photoSize;
+        }
+        TLRPC.TL_photoSize size = new TLRPC.TL_photoSize();
+        size.type = photoSize.type;
+        size.location = photoSize.location;
+        size.w = photoSize.w;
+        size.h = photoSize.h;
+        size.size = photoSize.bytes != null ? photoSize.bytes.length : 0;
+        return size;
     }
 
     private void updateDbToLastVersion(final int currentVersion) {
@@ -525,7 +835,22 @@ public class MessagesStorage {
                     if (version == 40) {
                         fixNotificationSettings();
                         database.executeFast("PRAGMA user_version = 41").stepThis().dispose();
-                        //version = 41;
+                        version = 41;
+                    }
+                    if (version == 41) {
+                        createDialogPreviews();
+                        database.executeFast("PRAGMA user_version = 42").stepThis().dispose();
+                        version = 42;
+                    }
+                    if (version == 42) {
+                        database.executeFast("CREATE TABLE IF NOT EXISTS blob_dictionaries(version INTEGER PRIMARY KEY, data BLOB)").stepThis().dispose();
+                        database.executeFast("PRAGMA user_version = 43").stepThis().dispose();
+                        version = 43;
+                    }
+                    if (version == 43) {
+                        database.executeFast("CREATE INDEX IF NOT EXISTS uid_type_date_mid_idx_media ON media_v2(uid, type, date, mid);").stepThis().dispose();
+                        database.executeFast("PRAGMA user_version = 44").stepThis().dispose();
+                        //version = 44;
                     }
                 } catch (Exception e) {
                     FileLog.e(e);
@@ -556,6 +881,10 @@ public class MessagesStorage {
             cacheFile.delete();
             cacheFile = null;
         }
+        if (replayDatabase) {
+            new File(ApplicationLoader.getFilesDirFixed(), "cache4.db").delete();
+            replayDatabase = false;
+        }
     }
 
     public void cleanup(final boolean isLogin) {
@@ -833,6 +1162,9 @@ public class MessagesStorage {
     }
 
     public void saveDiffParams(final int seq, final int pts, final int date, final int qts) {
+        if (RequestReplay.isReplayActive()) {
+            return;
+        }
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -1024,6 +1356,7 @@ public class MessagesStorage {
                                     long did = -chat.id;
                                     database.executeFast("UPDATE dialogs SET unread_count = 0, unread_count_i = 0 WHERE did = " + did).stepThis().dispose();
                                     database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = 3 WHERE uid = %d AND mid > 0 AND read_state IN(0,2) AND out = 0", did)).stepThis().dispose();
+                                    MessagesWindowCache.getInstance().invalidate(did);
                                     chats.remove(a);
                                     a--;
                                     pushDialogs.remove((long) -chat.id);
@@ -1478,9 +1811,11 @@ public class MessagesStorage {
                             cursor2.dispose();
 
                             database.executeFast("DELETE FROM messages WHERE uid = " + did + " AND mid != " + last_mid_i + " AND mid != " + last_mid).stepThis().dispose();
+                            MessagesWindowCache.getInstance().invalidate(did);
                             database.executeFast("DELETE FROM messages_holes WHERE uid = " + did).stepThis().dispose();
                             database.executeFast("DELETE FROM bot_keyboard WHERE uid = " + did).stepThis().dispose();
                             database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
+                            SharedMediaQuery.invalidatePrefetchedMedia();
                             database.executeFast("DELETE FROM media_v2 WHERE uid = " + did).stepThis().dispose();
                             database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
                             BotQuery.clearBotKeyboard(did, null);
@@ -1499,8 +1834,10 @@ public class MessagesStorage {
 
                     database.executeFast("UPDATE dialogs SET unread_count = 0, unread_count_i = 0 WHERE did = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM messages WHERE uid = " + did).stepThis().dispose();
+                    MessagesWindowCache.getInstance().invalidate(did);
                     database.executeFast("DELETE FROM bot_keyboard WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
+                    SharedMediaQuery.invalidatePrefetchedMedia();
                     database.executeFast("DELETE FROM media_v2 WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM messages_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
@@ -1707,6 +2044,7 @@ public class MessagesStorage {
                         state.dispose();
                         database.commitTransaction();
                         database.executeFast(String.format(Locale.US, "UPDATE messages SET ttl = 0 WHERE mid IN(%s)", mids.toString())).stepThis().dispose();
+                        MessagesWindowCache.getInstance().invalidateAll();
                         MessagesController.getInstance().didAddedNewTask(minDate, messages);
                     }
                 } catch (Exception e) {
@@ -1790,6 +2128,15 @@ public class MessagesStorage {
                 database.commitTransaction();
             }
 
+            for (Long did : dialogsToUpdate.keySet()) {
+                MessagesWindowCache.getInstance().invalidate(did);
+            }
+            if (outbox != null) {
+                for (int b = 0; b < outbox.size(); b++) {
+                    MessagesWindowCache.getInstance().invalidate(outbox.keyAt(b));
+                }
+            }
+
             if (!dialogsToUpdate.isEmpty()) {
                 MessagesController.getInstance().processDialogsUpdateRead(dialogsToUpdate);
             }
@@ -2335,6 +2682,7 @@ public class MessagesStorage {
                     state.dispose();
 
                     database.commitTransaction();
+                    MessagesWindowCache.getInstance().invalidate(dialog_id);
                 } catch (Exception e) {
                     FileLog.e(e);
                 }
@@ -2411,11 +2759,23 @@ public class MessagesStorage {
     }
 
     public void putCachedPhoneBook(final HashMap<Integer, ContactsController.Contact> contactHashMap) {
+        putCachedPhoneBook(contactHashMap, null);
+    }
+
+    /**
+     * @param replacedIds contacts whose cached rows are deleted first, so phones and contacts gone from the phonebook don't stay in the cache.
+     */
+    public void putCachedPhoneBook(final HashMap<Integer, ContactsController.Contact> contactHashMap, final ArrayList<Integer> replacedIds) {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 try {
                     database.beginTransaction();
+                    if (replacedIds != null && !replacedIds.isEmpty()) {
+                        String ids = TextUtils.join(",", replacedIds);
+                        database.executeFast(String.format(Locale.US, "DELETE FROM user_contacts_v6 WHERE uid IN(%s)", ids)).stepThis().dispose();
+                        database.executeFast(String.format(Locale.US, "DELETE FROM user_phones_v6 WHERE uid IN(%s)", ids)).stepThis().dispose();
+                    }
                     SQLitePreparedStatement state = database.executeFast("REPLACE INTO user_contacts_v6 VALUES(?, ?, ?)");
                     SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO user_phones_v6 VALUES(?, ?, ?, ?)");
                     for (HashMap.Entry<Integer, ContactsController.Contact> entry : contactHashMap.entrySet()) {
@@ -4062,6 +4422,7 @@ public class MessagesStorage {
                     database.beginTransaction();
 
                     SQLitePreparedStatement state = database.executeFast("UPDATE messages SET data = ? WHERE mid = ?");
+                    SharedMediaQuery.invalidatePrefetchedMedia();
                     SQLitePreparedStatement state2 = database.executeFast("UPDATE media_v2 SET data = ? WHERE mid = ?");
                     for (int a = 0; a < messages.size(); a++) {
                         TLRPC.Message message = messages.get(a);
@@ -4089,6 +4450,7 @@ public class MessagesStorage {
                     state2.dispose();
 
                     database.commitTransaction();
+                    MessagesWindowCache.getInstance().invalidateAll();
 
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
@@ -4124,8 +4486,10 @@ public class MessagesStorage {
 
 
                     database.executeFast("DELETE FROM messages WHERE uid = " + did).stepThis().dispose();
+                    MessagesWindowCache.getInstance().invalidate(did);
                     database.executeFast("DELETE FROM bot_keyboard WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
+                    SharedMediaQuery.invalidatePrefetchedMedia();
                     database.executeFast("DELETE FROM media_v2 WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM messages_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
@@ -4194,6 +4558,7 @@ public class MessagesStorage {
                             state.bindLong(3, messageId);
                             state.step();
                         }
+                        MessagesWindowCache.getInstance().invalidate(isChannel ? peer : -peer);
                     }
                     state.dispose();
                     database.commitTransaction();
@@ -4268,6 +4633,7 @@ public class MessagesStorage {
                 if (message.to_id.channel_id != 0) {
                     messageId |= ((long) message.to_id.channel_id) << 32;
                 }
+                MessagesWindowCache.getInstance().invalidate(message.dialog_id);
 
                 if (MessageObject.isUnread(message) && !MessageObject.isOut(message)) {
                     Integer currentMaxId = dialogsReadMax.get(message.dialog_id);
@@ -4411,6 +4777,7 @@ public class MessagesStorage {
 
                 if (SharedMediaQuery.canAddMessageToMedia(message)) {
                     if (state2 == null) {
+                        SharedMediaQuery.invalidatePrefetchedMedia();
                         state2 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
                     }
                     state2.requery();
@@ -4643,6 +5010,7 @@ public class MessagesStorage {
                         messageId |= ((long) message.to_id.channel_id) << 32;
                     }
                     database.executeFast("UPDATE messages SET send_state = 2 WHERE mid = " + messageId).stepThis().dispose();
+                    MessagesWindowCache.getInstance().invalidate(message.dialog_id);
                 } catch (Exception e) {
                     FileLog.e(e);
                 }
@@ -4783,6 +5151,7 @@ public class MessagesStorage {
                 }
             }
 
+            MessagesWindowCache.getInstance().invalidate(did);
             return new long[]{did, newId};
         } else {
             SQLitePreparedStatement state = null;
@@ -4806,12 +5175,14 @@ public class MessagesStorage {
             }
 
             try {
+                SharedMediaQuery.invalidatePrefetchedMedia();
                 state = database.executeFast("UPDATE media_v2 SET mid = ? WHERE mid = ?");
                 state.bindLong(1, newMessageId);
                 state.bindLong(2, oldMessageId);
                 state.step();
             } catch (Exception e) {
                 try {
+                    SharedMediaQuery.invalidatePrefetchedMedia();
                     database.executeFast(String.format(Locale.US, "DELETE FROM media_v2 WHERE mid = %d", oldMessageId)).stepThis().dispose();
                 } catch (Exception e2) {
                     FileLog.e(e2);
@@ -4836,6 +5207,7 @@ public class MessagesStorage {
                 }
             }
 
+            MessagesWindowCache.getInstance().invalidate(did);
             return new long[]{did, _oldId};
         }
     }
@@ -4945,6 +5317,7 @@ public class MessagesStorage {
                     int key = inbox.keyAt(b);
                     long messageId = inbox.get(key);
                     database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = read_state | 1 WHERE uid = %d AND mid > 0 AND mid <= %d AND read_state IN(0,2) AND out = 0", key, messageId)).stepThis().dispose();
+                    MessagesWindowCache.getInstance().invalidate(key);
                 }
             }
             if (outbox != null) {
@@ -4952,6 +5325,7 @@ public class MessagesStorage {
                     int key = outbox.keyAt(b);
                     long messageId = outbox.get(key);
                     database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = read_state | 1 WHERE uid = %d AND mid > 0 AND mid <= %d AND read_state IN(0,2) AND out = 1", key, messageId)).stepThis().dispose();
+                    MessagesWindowCache.getInstance().invalidate(key);
                 }
             }
             if (encryptedMessages != null && !encryptedMessages.isEmpty()) {
@@ -4964,6 +5338,7 @@ public class MessagesStorage {
                     state.bindInteger(2, max_date);
                     state.step();
                     state.dispose();
+                    MessagesWindowCache.getInstance().invalidate(dialog_id);
                 }
             }
         } catch (Exception e) {
@@ -4980,6 +5355,7 @@ public class MessagesStorage {
             public void run() {
                 try {
                     database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = read_state | 2 WHERE mid IN (%s)", TextUtils.join(",", mids))).stepThis().dispose();
+                    MessagesWindowCache.getInstance().invalidateAll();
                 } catch (Exception e) {
                     FileLog.e(e);
                 }
@@ -5117,8 +5493,10 @@ public class MessagesStorage {
             }
 
             database.executeFast(String.format(Locale.US, "DELETE FROM messages WHERE mid IN(%s)", ids)).stepThis().dispose();
+            MessagesWindowCache.getInstance().invalidateAll();
             database.executeFast(String.format(Locale.US, "DELETE FROM bot_keyboard WHERE mid IN(%s)", ids)).stepThis().dispose();
             database.executeFast(String.format(Locale.US, "DELETE FROM messages_seq WHERE mid IN(%s)", ids)).stepThis().dispose();
+            SharedMediaQuery.invalidatePrefetchedMedia();
             database.executeFast(String.format(Locale.US, "DELETE FROM media_v2 WHERE mid IN(%s)", ids)).stepThis().dispose();
             database.executeFast("DELETE FROM media_counts_v2 WHERE 1").stepThis().dispose();
             BotQuery.clearBotKeyboard(0, messages);
@@ -5541,7 +5919,9 @@ public class MessagesStorage {
                     //load_type == 4 ? load around date
 
                     SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL, ?)");
+                    SharedMediaQuery.invalidatePrefetchedMedia();
                     SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
+                    MessagesWindowCache.getInstance().invalidate(dialog_id);
                     SQLitePreparedStatement state5 = null;
                     TLRPC.Message botKeyboard = null;
                     int minChannelMessageId = Integer.MAX_VALUE;
@@ -5740,6 +6120,52 @@ public class MessagesStorage {
         }
     }
 
+    /**
+     * Serializes previews while the messages still belong to the storage queue, before they are passed to
+     * MessagesController, so the blobs can be written after the dialogs were handed off.
+     */
+    private ArrayList<NativeByteBuffer> serializeDialogPreviews(ArrayList<TLRPC.Message> messages, long[] messageIds) throws Exception {
+        ArrayList<NativeByteBuffer> buffers = new ArrayList<>(messages.size());
+        for (int a = 0; a < messages.size(); a++) {
+            TLRPC.Message message = messages.get(a);
+            NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
+            message.serializeToStream(data);
+            long messageId = message.id;
+            if (message.to_id.channel_id != 0) {
+                messageId |= ((long) message.to_id.channel_id) << 32;
+            }
+            messageIds[a] = messageId;
+            buffers.add(data);
+        }
+        return buffers;
+    }
+
+    private void putDialogPreviews(ArrayList<NativeByteBuffer> buffers, long[] messageIds, boolean removeUnused) {
+        try {
+            database.beginTransaction();
+            if (!buffers.isEmpty()) {
+                SQLitePreparedStatement state = database.executeFast("REPLACE INTO dialog_previews VALUES(?, ?)");
+                for (int a = 0; a < buffers.size(); a++) {
+                    state.requery();
+                    state.bindLong(1, messageIds[a]);
+                    state.bindByteBuffer(2, buffers.get(a));
+                    state.step();
+                }
+                state.dispose();
+            }
+            if (removeUnused) {
+                database.executeFast("DELETE FROM dialog_previews WHERE mid NOT IN (SELECT last_mid FROM dialogs)").stepThis().dispose();
+            }
+            database.commitTransaction();
+        } catch (Exception e) {
+            FileLog.e(e);
+        } finally {
+            for (int a = 0; a < buffers.size(); a++) {
+                buffers.get(a).reuse();
+            }
+        }
+    }
+
     public void getDialogs(final int offset, final int count) {
         storageQueue.postRunnable(new Runnable() {
             @Override
@@ -5747,13 +6173,15 @@ public class MessagesStorage {
                 TLRPC.messages_Dialogs dialogs = new TLRPC.messages_Dialogs();
                 ArrayList<TLRPC.EncryptedChat> encryptedChats = new ArrayList<>();
                 try {
+                    long time = System.currentTimeMillis();
+                    ArrayList<TLRPC.Message> previewsToSave = new ArrayList<>();
                     ArrayList<Integer> usersToLoad = new ArrayList<>();
                     usersToLoad.add(UserConfig.getClientUserId());
                     ArrayList<Integer> chatsToLoad = new ArrayList<>();
                     ArrayList<Integer> encryptedToLoad = new ArrayList<>();
                     ArrayList<Long> replyMessages = new ArrayList<>();
                     HashMap<Long, TLRPC.Message> replyMessageOwners = new HashMap<>();
-                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT d.did, d.last_mid, d.unread_count, d.date, m.data, m.read_state, m.mid, m.send_state, s.flags, m.date, d.pts, d.inbox_max, d.outbox_max, m.replydata, d.pinned FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid LEFT JOIN dialog_settings as s ON d.did = s.did ORDER BY d.pinned DESC, d.date DESC LIMIT %d,%d", offset, count));
+                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT d.did, d.last_mid, d.unread_count, d.date, CASE WHEN m.mid IS NULL THEN NULL WHEN p.mid IS NULL THEN m.data ELSE p.data END, m.read_state, m.mid, m.send_state, s.flags, m.date, d.pts, d.inbox_max, d.outbox_max, m.replydata, d.pinned, p.mid FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid LEFT JOIN dialog_previews as p ON d.last_mid = p.mid LEFT JOIN dialog_settings as s ON d.did = s.did ORDER BY d.pinned DESC, d.date DESC LIMIT %d,%d", offset, count));
                     while (cursor.next()) {
                         TLRPC.TL_dialog dialog = new TLRPC.TL_dialog();
                         dialog.id = cursor.longValue(0);
@@ -5782,6 +6210,10 @@ public class MessagesStorage {
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             data.reuse();
                             if (message != null) {
+                                if (cursor.isNull(15)) {
+                                    stripDialogPreview(message);
+                                    previewsToSave.add(message);
+                                }
                                 MessageObject.setUnreadFlags(message, cursor.intValue(5));
                                 message.id = cursor.intValue(6);
                                 int date = cursor.intValue(9);
@@ -5885,7 +6317,13 @@ public class MessagesStorage {
                     if (!usersToLoad.isEmpty()) {
                         getUsersInternal(TextUtils.join(",", usersToLoad), dialogs.users);
                     }
+                    long[] previewIds = new long[previewsToSave.size()];
+                    ArrayList<NativeByteBuffer> previewBuffers = serializeDialogPreviews(previewsToSave, previewIds);
                     MessagesController.getInstance().processLoadedDialogs(dialogs, encryptedChats, offset, count, 1, false, false, true);
+                    if (BuildVars.DEBUG_VERSION) {
+                        FileLog.d("loaded " + dialogs.dialogs.size() + " dialogs from cache in " + (System.currentTimeMillis() - time) + " ms, " + previewsToSave.size() + " previews rebuilt");
+                    }
+                    putDialogPreviews(previewBuffers, previewIds, offset == 0);
                 } catch (Exception e) {
                     dialogs.dialogs.clear();
                     dialogs.users.clear();
@@ -5927,6 +6365,8 @@ public class MessagesStorage {
             if (!dialogs.dialogs.isEmpty()) {
                 SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL, ?)");
                 SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO dialogs VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                MessagesWindowCache.getInstance().invalidateAll();
+                SharedMediaQuery.invalidatePrefetchedMedia();
                 SQLitePreparedStatement state3 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
                 SQLitePreparedStatement state4 = database.executeFast("REPLACE INTO dialog_settings VALUES(?, ?)");
                 SQLitePreparedStatement state5 = database.executeFast("REPLACE INTO messages_holes VALUES(?, ?, ?)");
@@ -6219,6 +6659,9 @@ public class MessagesStorage {
     }
 
     public TLRPC.User getUserSync(final int user_id) {
+        if (Thread.currentThread() == storageQueue) {
+            return getUser(user_id);
+        }
         final Semaphore semaphore = new Semaphore(0);
         final TLRPC.User[] user = new TLRPC.User[1];
         MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
@@ -6237,6 +6680,9 @@ public class MessagesStorage {
     }
 
     public TLRPC.Chat getChatSync(final int user_id) {
+        if (Thread.currentThread() == storageQueue) {
+            return getChat(user_id);
+        }
         final Semaphore semaphore = new Semaphore(0);
         final TLRPC.Chat[] chat = new TLRPC.Chat[1];
         MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
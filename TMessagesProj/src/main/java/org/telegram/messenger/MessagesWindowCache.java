@@ -0,0 +1,140 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import android.os.SystemClock;
+
+import org.blaez.tgnet.TLRPC;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MessagesWindowCache {
+
+    private static final int MAX_DIALOGS = 8;
+
+    private static class PendingLoad {
+        long startTime;
+        int count;
+    }
+
+    /**
+     * A loaded window keeps the messages, not the MessageObjects built from them, as every
+     * opening of the chat changes its own objects (layouts, playback state).
+     */
+    public static class Window {
+        public ArrayList<TLRPC.Message> messages;
+        public ArrayList<TLRPC.User> users;
+        public ArrayList<TLRPC.Chat> chats;
+        public int count;
+        public int maxId;
+        public int firstUnread;
+        public int lastMessageId;
+        public int unreadCount;
+        public int lastDate;
+        public boolean isEnd;
+        private int requestCount;
+    }
+
+    private LinkedHashMap<Long, Window> windows = new LinkedHashMap<Long, Window>(MAX_DIALOGS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Window> eldest) {
+            return size() > MAX_DIALOGS;
+        }
+    };
+    private HashMap<Long, PendingLoad> pendingLoads = new HashMap<>();
+    private int hits;
+    private int misses;
+
+    private static volatile MessagesWindowCache Instance = null;
+
+    public static MessagesWindowCache getInstance() {
+        MessagesWindowCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (MessagesWindowCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new MessagesWindowCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public static boolean isCacheableLoad(boolean fromCache, int max_id, int offset_date, int minDate, int load_type) {
+        return fromCache && load_type == 2 && max_id == 0 && offset_date == 0 && minDate == 0;
+    }
+
+    public synchronized Window get(long dialog_id, int count) {
+        Window window = windows.get(dialog_id);
+        if (window != null && window.requestCount != count) {
+            windows.remove(dialog_id);
+            window = null;
+        }
+        if (window != null) {
+            hits++;
+            if (BuildVars.DEBUG_VERSION) {
+                FileLog.d("messages window cache hit for " + dialog_id + ", hit rate " + hits + "/" + (hits + misses));
+            }
+        } else {
+            misses++;
+            PendingLoad pendingLoad = new PendingLoad();
+            pendingLoad.startTime = SystemClock.uptimeMillis();
+            pendingLoad.count = count;
+            pendingLoads.put(dialog_id, pendingLoad);
+        }
+        return window;
+    }
+
+    /**
+     * Stores a window loaded from the database. The window is dropped if the dialog was
+     * invalidated after the load was started, so a stale read can never be cached.
+     */
+    public synchronized void put(long dialog_id, Window window) {
+        PendingLoad pendingLoad = pendingLoads.remove(dialog_id);
+        if (pendingLoad == null) {
+            return;
+        }
+        window.requestCount = pendingLoad.count;
+        windows.put(dialog_id, window);
+        if (BuildVars.DEBUG_VERSION) {
+            FileLog.d("messages window for " + dialog_id + " loaded from database in " + (SystemClock.uptimeMillis() - pendingLoad.startTime) + " ms");
+        }
+    }
+
+    /**
+     * Forgets a load started by {@link #get(long, int)} that finished without a window to store.
+     */
+    public synchronized void cancelLoad(long dialog_id) {
+        pendingLoads.remove(dialog_id);
+    }
+
+    public synchronized void invalidate(long dialog_id) {
+        windows.remove(dialog_id);
+        pendingLoads.remove(dialog_id);
+    }
+
+    public synchronized void invalidateAll() {
+        windows.clear();
+        pendingLoads.clear();
+    }
+
+    public synchronized void cleanup() {
+        invalidateAll();
+        hits = 0;
+        misses = 0;
+    }
+
+    public synchronized float getHitRate() {
+        int total = hits + misses;
+        return total != 0 ? (float) hits / total : 0.0f;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide counters, gauges and latency histograms. Metrics are looked up by name once and kept in
+ * fields by the instrumented code, recording is lock-free. Call sites check {@link #enabled} before
+ * taking a timestamp, so a disabled registry costs a single field read.
+ */
+public class MetricsRegistry {
+
+    public static volatile boolean enabled = BuildVars.DEBUG_VERSION;
+
+    private static final int TRACE_SIZE = 1024;
+    private static final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+    private static final AtomicLong traceIndex = new AtomicLong();
+    private static final String[] traceNames = new String[TRACE_SIZE];
+    private static final int[] traceArgs = new int[TRACE_SIZE];
+    private static final long[] traceStarts = new long[TRACE_SIZE];
+    private static final long[] traceDurations = new long[TRACE_SIZE];
+    private static final long[] traceThreads = new long[TRACE_SIZE];
+    private static final long startTime = System.nanoTime();
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    public static class Gauge {
+        private volatile long value;
+
+        public void set(long newValue) {
+            value = newValue;
+        }
+
+        public long get() {
+            return value;
+        }
+    }
+
+    /**
+     * Log-linear histogram of microseconds: exact below 16, above that every power of two is split into
+     * 8 buckets, which keeps the relative error of percentiles under 12.5%. Values at or above the trace
+     * threshold are also written to the trace buffer.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int LINEAR_BUCKETS = 16;
+        private static final int BUCKETS_COUNT = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+        private final String name;
+        private final long traceThreshold;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, long traceThreshold) {
+            this.name = name;
+            this.traceThreshold = traceThreshold;
+        }
+
+        private static int getBucket(long value) {
+            if (value < LINEAR_BUCKETS) {
+                return (int) Math.max(value, 0);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+        }
+
+        private static long getBucketValue(int bucket) {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+            int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub) << (exponent - 3);
+        }
+
+        public void record(long value) {
+            record(value, 0);
+        }
+
+        public void record(long value, int arg) {
+            buckets.incrementAndGet(getBucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) {
+                    break;
+                }
+            }
+            if (traceThreshold > 0 && value >= traceThreshold) {
+                putTrace(name, arg, value);
+            }
+        }
+
+        /**
+         * Records the microseconds passed since a {@link System#nanoTime()} taken by the caller.
+         */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000, 0);
+        }
+
+        public void recordSince(long startNanos, int arg) {
+            record((System.nanoTime() - startNanos) / 1000, arg);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getPercentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int a = 0; a < BUCKETS_COUNT; a++) {
+                seen += buckets.get(a);
+                if (seen >= target) {
+                    return getBucketValue(a);
+                }
+            }
+            return max.get();
+        }
+    }
+
+    public static Counter counter(String name) {
+        return (Counter) register(name, new Counter());
+    }
+
+    public static Gauge gauge(String name) {
+        return (Gauge) register(name, new Gauge());
+    }
+
+    public static Histogram histogram(String name) {
+        return histogram(name, 0);
+    }
+
+    /**
+     * @param traceThreshold values in microseconds from which a record also goes to the trace, 0 to never trace.
+     */
+    public static Histogram histogram(String name, long traceThreshold) {
+        return (Histogram) register(name, new Histogram(name, traceThreshold));
+    }
+
+    private static Object register(String name, Object metric) {
+        Object old = metrics.putIfAbsent(name, metric);
+        return old != null ? old : metric;
+    }
+
+    /**
+     * Adds a span measured by the caller with {@link System#nanoTime()} to the trace.
+     */
+    public static void addTrace(String name, long startNanos, long endNanos) {
+        if (enabled) {
+            putTrace(name, 0, (startNanos - startTime) / 1000, (endNanos - startNanos) / 1000);
+        }
+    }
+
+    private static void putTrace(String name, int arg, long duration) {
+        putTrace(name, arg, (System.nanoTime() - startTime) / 1000 - duration, duration);
+    }
+
+    private static void putTrace(String name, int arg, long start, long duration) {
+        int index = (int) (traceIndex.getAndIncrement() % TRACE_SIZE);
+        traceNames[index] = name;
+        traceArgs[index] = arg;
+        traceStarts[index] = start;
+        traceDurations[index] = duration;
+        traceThreads[index] = Thread.currentThread().getId();
+    }
+
+    /**
+     * Writes every metric and the trace buffer as JSON, the file opens in chrome://tracing. The trace is
+     * copied without stopping writers, so an entry written during the dump may come out mixed.
+     */
+    public static File dump(File dir) {
+        Runtime runtime = Runtime.getRuntime();
+        gauge("memory.heap_used").set(runtime.totalMemory() - runtime.freeMemory());
+        gauge("memory.heap_max").set(runtime.maxMemory());
+
+        ArrayList<String> names = new ArrayList<>(metrics.keySet());
+        Collections.sort(names);
+        StringBuilder builder = new StringBuilder(16 * 1024);
+        builder.append("{\"traceEvents\":[");
+        long total = traceIndex.get();
+        boolean first = true;
+        for (long a = Math.max(0, total - TRACE_SIZE); a < total; a++) {
+            int index = (int) (a % TRACE_SIZE);
+            String name = traceNames[index];
+            if (name == null) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append("{\"name\":\"").append(name).append("\",\"ph\":\"X\",\"pid\":0,\"tid\":").append(traceThreads[index])
+                    .append(",\"ts\":").append(traceStarts[index]).append(",\"dur\":").append(traceDurations[index])
+                    .append(",\"args\":{\"arg\":").append(traceArgs[index]).append("}}");
+        }
+        builder.append("],\"counters\":{");
+        appendMetrics(builder, names, Counter.class);
+        builder.append("},\"gauges\":{");
+        appendMetrics(builder, names, Gauge.class);
+        builder.append("},\"histograms\":{");
+        appendMetrics(builder, names, Histogram.class);
+        builder.append("}}");
+
+        File file = new File(dir, "metrics_" + System.currentTimeMillis() + ".json");
+        OutputStreamWriter writer = null;
+        try {
+            dir.mkdirs();
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(builder.toString());
+        } catch (Exception e) {
+            FileLog.e(e);
+            return null;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+            }
+        }
+        return file;
+    }
+
+    private static void appendMetrics(StringBuilder builder, ArrayList<String> names, Class<?> type) {
+        boolean first = true;
+        for (int a = 0; a < names.size(); a++) {
+            String name = names.get(a);
+            Object metric = metrics.get(name);
+            if (!type.isInstance(metric)) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append('"').append(name).append("\":");
+            if (metric instanceof Counter) {
+                builder.append(((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                builder.append(((Gauge) metric).get());
+            } else {
+                Histogram histogram = (Histogram) metric;
+                long count = histogram.count.get();
+                builder.append("{\"count\":").append(count)
+                        .append(",\"avg\":").append(count != 0 ? histogram.sum.get() / count : 0)
+                        .append(",\"p50\":").append(histogram.getPercentile(50))
+                        .append(",\"p90\":").append(histogram.getPercentile(90))
+                        .append(",\"p99\":").append(histogram.getPercentile(99))
+                        .append(",\"max\":").append(histogram.max.get()).append('}');
+            }
+        }
+    }
+}
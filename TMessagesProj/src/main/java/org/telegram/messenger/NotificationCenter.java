@@ -132,6 +132,7 @@ public class NotificationCenter {
     private boolean animationInProgress;
 
     private int[] allowedNotifications;
+    private MetricsRegistry.Histogram dispatchHistogram = MetricsRegistry.histogram("notifications.dispatch", 8000);
 
     public interface NotificationCenterDelegate {
         void didReceivedNotification(int id, Object... args);
@@ -211,10 +212,14 @@ public class NotificationCenter {
         broadcasting++;
         ArrayList<Object> objects = observers.get(id);
         if (objects != null && !objects.isEmpty()) {
+            long startTime = MetricsRegistry.enabled ? System.nanoTime() : 0;
             for (int a = 0; a < objects.size(); a++) {
                 Object obj = objects.get(a);
                 ((NotificationCenterDelegate) obj).didReceivedNotification(id, args);
             }
+            if (startTime != 0) {
+                dispatchHistogram.recordSince(startTime, id);
+            }
         }
         broadcasting--;
         if (broadcasting == 0) {
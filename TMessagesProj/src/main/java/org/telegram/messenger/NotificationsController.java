@@ -34,6 +34,7 @@ import android.util.SparseArray;
 
 import org.blaez.tgnet.ConnectionsManager;
 import org.blaez.tgnet.RequestDelegate;
+import org.blaez.tgnet.RequestReplay;
 import org.blaez.tgnet.TLObject;
 import org.blaez.tgnet.TLRPC;
 import org.blaez.ui.LaunchActivity;
@@ -58,7 +59,7 @@ public class NotificationsController {
     private HashMap<Long, Integer> pushDialogsOverrideMention = new HashMap<>();
     public ArrayList<MessageObject> popupMessages = new ArrayList<>();
     public ArrayList<MessageObject> popupReplyMessages = new ArrayList<>();
-    private long opened_dialog_id = 0;
+    private volatile long opened_dialog_id = 0;
     private int total_unread_count = 0;
     private int personal_count = 0;
     private boolean notifyCheck = false;
@@ -175,6 +176,10 @@ public class NotificationsController {
         inChatSoundEnabled = value;
     }
 
+    public long getOpenedDialogId() {
+        return opened_dialog_id;
+    }
+
     public void setOpenedDialogId(final long dialog_id) {
         notificationsQueue.postRunnable(new Runnable() {
             @Override
@@ -532,7 +537,7 @@ public class NotificationsController {
     }
 
     public void processNewMessages(final ArrayList<MessageObject> messageObjects, final boolean isLast) {
-        if (messageObjects.isEmpty()) {
+        if (messageObjects.isEmpty() || RequestReplay.isReplayActive()) {
             return;
         }
         final ArrayList<MessageObject> popupArray = new ArrayList<>(popupMessages);
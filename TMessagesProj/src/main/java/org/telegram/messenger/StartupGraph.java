@@ -0,0 +1,218 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Init tasks with dependencies. {@link #run()} blocks the calling thread until every task that is not
+ * deferred has finished, foreground tasks run on the calling thread and background tasks on the global
+ * queue, the calling thread also picks up background tasks while it has nothing else to do. Deferred
+ * tasks wait for {@link #release()}, after that foreground ones go to the UI thread.
+ */
+public class StartupGraph {
+
+    private static class Task {
+        private final String name;
+        private final Runnable runnable;
+        private final boolean background;
+        private final boolean deferred;
+        private final ArrayList<Task> dependents = new ArrayList<>();
+        private int pendingCount;
+        private long startTime;
+        private long endTime;
+        private String threadName;
+
+        private Task(String name, Runnable runnable, boolean background, boolean deferred) {
+            this.name = name;
+            this.runnable = runnable;
+            this.background = background;
+            this.deferred = deferred;
+        }
+    }
+
+    private final Object sync = new Object();
+    private final LinkedHashMap<String, Task> tasks = new LinkedHashMap<>();
+    private final ArrayList<Task> readyForeground = new ArrayList<>();
+    private final ArrayList<Task> readyBackground = new ArrayList<>();
+    private final ArrayList<Task> waitingDeferred = new ArrayList<>();
+    private int pendingCritical;
+    private int pendingTotal;
+    private boolean blocking;
+    private boolean released;
+    private long startTime;
+    private long criticalTime;
+    private long releaseTime;
+
+    private final Runnable backgroundRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Task task;
+            synchronized (sync) {
+                if (readyBackground.isEmpty()) {
+                    return;
+                }
+                task = readyBackground.remove(0);
+            }
+            execute(task);
+        }
+    };
+
+    public StartupGraph add(String name, boolean background, Runnable runnable, String... dependencies) {
+        return add(new Task(name, runnable, background, false), dependencies);
+    }
+
+    public StartupGraph addDeferred(String name, boolean background, Runnable runnable, String... dependencies) {
+        return add(new Task(name, runnable, background, true), dependencies);
+    }
+
+    private StartupGraph add(Task task, String[] dependencies) {
+        if (tasks.containsKey(task.name)) {
+            throw new IllegalArgumentException("duplicate startup task " + task.name);
+        }
+        for (int a = 0; a < dependencies.length; a++) {
+            Task dependency = tasks.get(dependencies[a]);
+            if (dependency == null) {
+                throw new IllegalArgumentException("startup task " + task.name + " depends on unknown task " + dependencies[a]);
+            }
+            if (dependency.deferred && !task.deferred) {
+                throw new IllegalArgumentException("startup task " + task.name + " can't wait for deferred task " + dependency.name);
+            }
+            dependency.dependents.add(task);
+            task.pendingCount++;
+        }
+        tasks.put(task.name, task);
+        return this;
+    }
+
+    public void run() {
+        startTime = System.nanoTime();
+        synchronized (sync) {
+            blocking = true;
+            for (Task task : tasks.values()) {
+                pendingTotal++;
+                if (!task.deferred) {
+                    pendingCritical++;
+                }
+            }
+            for (Task task : tasks.values()) {
+                if (task.pendingCount == 0) {
+                    scheduleLocked(task);
+                }
+            }
+        }
+        while (true) {
+            Task task;
+            synchronized (sync) {
+                while (pendingCritical != 0 && readyForeground.isEmpty() && readyBackground.isEmpty()) {
+                    try {
+                        sync.wait();
+                    } catch (InterruptedException e) {
+                        FileLog.e(e);
+                    }
+                }
+                if (pendingCritical == 0) {
+                    blocking = false;
+                    for (int a = 0; a < readyForeground.size(); a++) {
+                        postForeground(readyForeground.get(a));
+                    }
+                    readyForeground.clear();
+                    break;
+                }
+                if (!readyForeground.isEmpty()) {
+                    task = readyForeground.remove(0);
+                } else {
+                    task = readyBackground.remove(0);
+                }
+            }
+            execute(task);
+        }
+        criticalTime = System.nanoTime();
+        MetricsRegistry.gauge("startup.critical_ms").set((criticalTime - startTime) / 1000000);
+    }
+
+    /**
+     * Lets deferred tasks start, called once the first frame is drawn. Calls after the first are ignored.
+     */
+    public void release() {
+        synchronized (sync) {
+            if (released) {
+                return;
+            }
+            released = true;
+            releaseTime = System.nanoTime();
+            for (int a = 0; a < waitingDeferred.size(); a++) {
+                scheduleLocked(waitingDeferred.get(a));
+            }
+            waitingDeferred.clear();
+        }
+        MetricsRegistry.gauge("startup.first_frame_ms").set((releaseTime - startTime) / 1000000);
+    }
+
+    private void scheduleLocked(Task task) {
+        if (task.deferred && !released) {
+            waitingDeferred.add(task);
+            return;
+        }
+        if (task.background) {
+            readyBackground.add(task);
+            Utilities.globalQueue.postRunnable(backgroundRunnable);
+        } else if (blocking) {
+            readyForeground.add(task);
+        } else {
+            postForeground(task);
+        }
+        sync.notifyAll();
+    }
+
+    private void postForeground(final Task task) {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                execute(task);
+            }
+        });
+    }
+
+    private void execute(Task task) {
+        task.threadName = Thread.currentThread().getName();
+        task.startTime = System.nanoTime();
+        try {
+            task.runnable.run();
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+        task.endTime = System.nanoTime();
+        MetricsRegistry.addTrace("startup." + task.name, task.startTime, task.endTime);
+        boolean finished;
+        synchronized (sync) {
+            if (!task.deferred) {
+                pendingCritical--;
+            }
+            finished = --pendingTotal == 0;
+            for (int a = 0; a < task.dependents.size(); a++) {
+                Task dependent = task.dependents.get(a);
+                if (--dependent.pendingCount == 0) {
+                    scheduleLocked(dependent);
+                }
+            }
+            sync.notifyAll();
+        }
+        if (finished && BuildVars.DEBUG_VERSION) {
+            StringBuilder builder = new StringBuilder();
+            builder.append("startup critical path ").append((criticalTime - startTime) / 1000000).append(" ms, first frame ").append((releaseTime - startTime) / 1000000).append(" ms");
+            for (Task t : tasks.values()) {
+                builder.append("\n").append(t.name).append(t.deferred ? " (deferred)" : "").append(" on ").append(t.threadName)
+                        .append(": ").append((t.startTime - startTime) / 1000000).append(" - ").append((t.endTime - startTime) / 1000000).append(" ms");
+            }
+            FileLog.d(builder.toString());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel driven by an external clock. Timers are hashed into slots by their deadline and
+ * only the slots passed since the previous {@link #advance(long)} are looked at, timers further away
+ * than one rotation just stay in their slot until their deadline comes. Not thread safe, all calls
+ * must come from the queue that owns the wheel.
+ */
+public class TimerWheel {
+
+    public static class Timer {
+        private Runnable runnable;
+        private long deadline;
+        private int slot = -1;
+
+        public Timer(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        public boolean isScheduled() {
+            return slot != -1;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickDuration;
+    private final ArrayList<ArrayList<Timer>> slots;
+    private final ArrayList<Timer> dueTimers = new ArrayList<>();
+    private long currentTick = -1;
+    private int count;
+
+    public TimerWheel(int slotsCount, long tickDuration) {
+        this.tickDuration = tickDuration;
+        slots = new ArrayList<>(slotsCount);
+        for (int a = 0; a < slotsCount; a++) {
+            slots.add(new ArrayList<Timer>());
+        }
+    }
+
+    /**
+     * Schedules the timer, a timer that is already scheduled keeps the earliest of both deadlines.
+     */
+    public void schedule(Timer timer, long deadline) {
+        if (timer.slot != -1) {
+            if (timer.deadline <= deadline) {
+                return;
+            }
+            cancel(timer);
+        }
+        long tick = (deadline + tickDuration - 1) / tickDuration;
+        if (currentTick != -1 && tick <= currentTick) {
+            tick = currentTick + 1;
+        }
+        timer.deadline = deadline;
+        timer.slot = (int) (tick % slots.size());
+        slots.get(timer.slot).add(timer);
+        count++;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.slot == -1) {
+            return;
+        }
+        slots.get(timer.slot).remove(timer);
+        timer.slot = -1;
+        count--;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public void clear() {
+        for (int a = 0; a < slots.size(); a++) {
+            ArrayList<Timer> slot = slots.get(a);
+            for (int b = 0; b < slot.size(); b++) {
+                slot.get(b).slot = -1;
+            }
+            slot.clear();
+        }
+        count = 0;
+    }
+
+    /**
+     * Runs every timer whose deadline is not after now. Runnables may schedule timers again.
+     */
+    public void advance(long now) {
+        long tick = now / tickDuration;
+        if (currentTick == -1) {
+            currentTick = tick - slots.size();
+        }
+        if (tick <= currentTick) {
+            return;
+        }
+        if (count != 0) {
+            long ticks = Math.min(tick - currentTick, slots.size());
+            for (long t = tick - ticks + 1; t <= tick; t++) {
+                ArrayList<Timer> slot = slots.get((int) (t % slots.size()));
+                for (int a = 0; a < slot.size(); a++) {
+                    Timer timer = slot.get(a);
+                    if (timer.deadline <= now) {
+                        slot.remove(a);
+                        a--;
+                        timer.slot = -1;
+                        count--;
+                        dueTimers.add(timer);
+                    }
+                }
+            }
+        }
+        currentTick = tick;
+        for (int a = 0; a < dueTimers.size(); a++) {
+            try {
+                dueTimers.get(a).runnable.run();
+            } catch (Exception e) {
+                FileLog.e(e);
+            }
+        }
+        dueTimers.clear();
+    }
+}
@@ -105,22 +105,16 @@ public class UserConfig {
                     editor.putLong("migrateOffsetAccess", migrateOffsetAccess);
                 }
                 if (tmpPassword != null) {
-                    SerializedData data = new SerializedData();
-                    tmpPassword.serializeToStream(data);
-                    String string = Base64.encodeToString(data.toByteArray(), Base64.DEFAULT);
+                    String string = Base64.encodeToString(SerializedData.serialize(tmpPassword), Base64.DEFAULT);
                     editor.putString("tmpPassword", string);
-                    data.cleanup();
                 } else {
                     editor.remove("tmpPassword");
                 }
 
                 if (currentUser != null) {
                     if (withFile) {
-                        SerializedData data = new SerializedData();
-                        currentUser.serializeToStream(data);
-                        String string = Base64.encodeToString(data.toByteArray(), Base64.DEFAULT);
+                        String string = Base64.encodeToString(SerializedData.serialize(currentUser), Base64.DEFAULT);
                         editor.putString("user", string);
-                        data.cleanup();
                     }
                 } else {
                     editor.remove("user");
@@ -0,0 +1,133 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram;
+
+import android.net.Uri;
+
+import org.blaez.ziosgram.exoplayer2.upstream.DataSource;
+import org.blaez.ziosgram.exoplayer2.upstream.DataSpec;
+import org.blaez.ziosgram.exoplayer2.upstream.FileDataSourceFactory;
+import org.blaez.ziosgram.exoplayer2.upstream.cache.CacheDataSinkFactory;
+import org.blaez.ziosgram.exoplayer2.upstream.cache.CacheDataSource;
+import org.blaez.ziosgram.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import org.blaez.ziosgram.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import org.blaez.ziosgram.exoplayer2.upstream.cache.SimpleCache;
+
+import java.io.File;
+import java.io.IOException;
+
+public class VideoCacheController implements CacheDataSource.EventListener {
+
+    private static final long MAX_CACHE_SIZE = 200 * 1024 * 1024;
+    private static final long MAX_CACHE_FILE_SIZE = 2 * 1024 * 1024;
+
+    private SimpleCache cache;
+    private final MetricsRegistry.Counter cachedBytesRead = MetricsRegistry.counter("video_cache.cached_bytes");
+    private final MetricsRegistry.Counter upstreamBytesRead = MetricsRegistry.counter("video_cache.upstream_bytes");
+    private final MetricsRegistry.Gauge hitRatio = MetricsRegistry.gauge("video_cache.hit_ratio_percent");
+    private final MetricsRegistry.Gauge cacheSize = MetricsRegistry.gauge("video_cache.size_bytes");
+
+    private static volatile VideoCacheController Instance = null;
+
+    public static VideoCacheController getInstance() {
+        VideoCacheController localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (VideoCacheController.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new VideoCacheController();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private VideoCacheController() {
+        try {
+            File cacheDir = new File(ApplicationLoader.applicationContext.getCacheDir(), "video_cache");
+            cacheDir.mkdirs();
+            cache = new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(MAX_CACHE_SIZE));
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+    }
+
+    public static boolean isCacheableUri(Uri uri) {
+        if (uri == null) {
+            return false;
+        }
+        String scheme = uri.getScheme();
+        return "http".equals(scheme) || "https".equals(scheme);
+    }
+
+    public DataSource.Factory createDataSourceFactory(final DataSource.Factory upstreamFactory) {
+        if (cache == null) {
+            return upstreamFactory;
+        }
+        DataSource.Factory countingFactory = new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return new CountingDataSource(upstreamFactory.createDataSource());
+            }
+        };
+        return new CacheDataSourceFactory(cache, countingFactory, new FileDataSourceFactory(), new CacheDataSinkFactory(cache, MAX_CACHE_FILE_SIZE), CacheDataSource.FLAG_BLOCK_ON_CACHE | CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR | CacheDataSource.FLAG_IGNORE_CACHE_FOR_UNSET_LENGTH_REQUESTS, this);
+    }
+
+    @Override
+    public void onCachedBytesRead(long cacheSizeBytes, long cachedBytes) {
+        if (!MetricsRegistry.enabled) {
+            return;
+        }
+        cachedBytesRead.add(cachedBytes);
+        cacheSize.set(cacheSizeBytes);
+        updateHitRatio();
+    }
+
+    private void updateHitRatio() {
+        long cached = cachedBytesRead.get();
+        long total = cached + upstreamBytesRead.get();
+        if (total > 0) {
+            hitRatio.set(cached * 100 / total);
+        }
+    }
+
+    private class CountingDataSource implements DataSource {
+
+        private final DataSource upstream;
+
+        public CountingDataSource(DataSource dataSource) {
+            upstream = dataSource;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            return upstream.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            int read = upstream.read(buffer, offset, readLength);
+            if (read > 0 && MetricsRegistry.enabled) {
+                upstreamBytesRead.add(read);
+                updateHitRatio();
+            }
+            return read;
+        }
+
+        @Override
+        public Uri getUri() {
+            return upstream.getUri();
+        }
+
+        @Override
+        public void close() throws IOException {
+            upstream.close();
+        }
+    }
+}
@@ -43,7 +43,8 @@ public final class HlsMediaSource implements MediaSource,
   public static final int DEFAULT_MIN_LOADABLE_RETRY_COUNT = 3;
 
   private final Uri manifestUri;
-  private final DataSource.Factory dataSourceFactory;
+  private final DataSource.Factory manifestDataSourceFactory;
+  private final DataSource.Factory mediaDataSourceFactory;
   private final int minLoadableRetryCount;
   private final EventDispatcher eventDispatcher;
 
@@ -59,8 +60,27 @@ public final class HlsMediaSource implements MediaSource,
   public HlsMediaSource(Uri manifestUri, DataSource.Factory dataSourceFactory,
       int minLoadableRetryCount, Handler eventHandler,
       AdaptiveMediaSourceEventListener eventListener) {
+    this(manifestUri, dataSourceFactory, dataSourceFactory, minLoadableRetryCount, eventHandler,
+        eventListener);
+  }
+
+  /**
+   * @param manifestDataSourceFactory A factory for {@link DataSource} instances that load playlists.
+   * @param mediaDataSourceFactory A factory for {@link DataSource} instances that load segments.
+   */
+  public HlsMediaSource(Uri manifestUri, DataSource.Factory manifestDataSourceFactory,
+      DataSource.Factory mediaDataSourceFactory, Handler eventHandler,
+      AdaptiveMediaSourceEventListener eventListener) {
+    this(manifestUri, manifestDataSourceFactory, mediaDataSourceFactory,
+        DEFAULT_MIN_LOADABLE_RETRY_COUNT, eventHandler, eventListener);
+  }
+
+  public HlsMediaSource(Uri manifestUri, DataSource.Factory manifestDataSourceFactory,
+      DataSource.Factory mediaDataSourceFactory, int minLoadableRetryCount, Handler eventHandler,
+      AdaptiveMediaSourceEventListener eventListener) {
     this.manifestUri = manifestUri;
-    this.dataSourceFactory = dataSourceFactory;
+    this.manifestDataSourceFactory = manifestDataSourceFactory;
+    this.mediaDataSourceFactory = mediaDataSourceFactory;
     this.minLoadableRetryCount = minLoadableRetryCount;
     eventDispatcher = new EventDispatcher(eventHandler, eventListener);
   }
@@ -68,7 +88,7 @@ public final class HlsMediaSource implements MediaSource,
   @Override
   public void prepareSource(MediaSource.Listener listener) {
     Assertions.checkState(playlistTracker == null);
-    playlistTracker = new HlsPlaylistTracker(manifestUri, dataSourceFactory, eventDispatcher,
+    playlistTracker = new HlsPlaylistTracker(manifestUri, manifestDataSourceFactory, eventDispatcher,
         minLoadableRetryCount, this);
     sourceListener = listener;
     playlistTracker.start();
@@ -82,7 +102,7 @@ public final class HlsMediaSource implements MediaSource,
   @Override
   public MediaPeriod createPeriod(int index, Allocator allocator, long positionUs) {
     Assertions.checkArgument(index == 0);
-    return new HlsMediaPeriod(playlistTracker, dataSourceFactory, minLoadableRetryCount,
+    return new HlsMediaPeriod(playlistTracker, mediaDataSourceFactory, minLoadableRetryCount,
         eventDispatcher, allocator, positionUs);
   }
 
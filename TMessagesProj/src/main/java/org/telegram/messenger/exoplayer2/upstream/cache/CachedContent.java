@@ -16,10 +16,10 @@
 package org.blaez.ziosgram.exoplayer2.upstream.cache;
 
 import org.blaez.ziosgram.exoplayer2.C;
-import org.blaez.ziosgram.exoplayer2.upstream.cache.Cache.CacheException;
 import org.blaez.ziosgram.exoplayer2.util.Assertions;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.TreeSet;
 
@@ -81,6 +81,51 @@ import java.util.TreeSet;
     output.writeLong(length);
   }
 
+  /**
+   * Writes the cached spans of this instance to a {@link DataOutputStream}. Only the file name is
+   * stored, since all span files live in the same cache directory.
+   *
+   * @param output Output stream to store the values.
+   * @return A hash code of the written span data.
+   * @throws IOException If an error occurs during writing values to output.
+   */
+  public int writeSpansToStream(DataOutputStream output) throws IOException {
+    output.writeInt(cachedSpans.size());
+    int hashCode = 0;
+    for (SimpleCacheSpan span : cachedSpans) {
+      output.writeUTF(span.file.getName());
+      output.writeLong(span.position);
+      output.writeLong(span.length);
+      output.writeLong(span.lastAccessTimestamp);
+      hashCode += spanHashCode(span.position, span.length, span.lastAccessTimestamp);
+    }
+    return hashCode;
+  }
+
+  /**
+   * Reads cached spans written by {@link #writeSpansToStream(DataOutputStream)}. The span files are
+   * not checked for existence here; stale spans are dropped lazily when they are looked up.
+   *
+   * @param input Input stream containing the span values.
+   * @param cacheDir The directory which contains the span files.
+   * @return A hash code of the read span data.
+   * @throws IOException If an error occurs during reading values.
+   */
+  public int readSpansFromStream(DataInputStream input, File cacheDir) throws IOException {
+    int count = input.readInt();
+    int hashCode = 0;
+    for (int i = 0; i < count; i++) {
+      File file = new File(cacheDir, input.readUTF());
+      long position = input.readLong();
+      long spanLength = input.readLong();
+      long lastAccessTimestamp = input.readLong();
+      cachedSpans.add(SimpleCacheSpan.createIndexedEntry(key, position, spanLength,
+          lastAccessTimestamp, file));
+      hashCode += spanHashCode(position, spanLength, lastAccessTimestamp);
+    }
+    return hashCode;
+  }
+
   /** Returns the length of the content. */
   public long getLength() {
     return length;
@@ -147,22 +192,16 @@ import java.util.TreeSet;
 
   /**
    * Copies the given span with an updated last access time. Passed span becomes invalid after this
-   * call.
+   * call. The underlying file is kept as is, the new timestamp is persisted with the index.
    *
    * @param cacheSpan Span to be copied and updated.
    * @return a span with the updated last access time.
-   * @throws CacheException If renaming of the underlying span file failed.
    */
-  public SimpleCacheSpan touch(SimpleCacheSpan cacheSpan) throws CacheException {
+  public SimpleCacheSpan touch(SimpleCacheSpan cacheSpan) {
     // Remove the old span from the in-memory representation.
     Assertions.checkState(cachedSpans.remove(cacheSpan));
     // Obtain a new span with updated last access timestamp.
-    SimpleCacheSpan newCacheSpan = cacheSpan.copyWithUpdatedLastAccessTime(id);
-    // Rename the cache file
-    if (!cacheSpan.file.renameTo(newCacheSpan.file)) {
-      throw new CacheException("Renaming of " + cacheSpan.file + " to " + newCacheSpan.file
-          + " failed.");
-    }
+    SimpleCacheSpan newCacheSpan = cacheSpan.copyWithUpdatedLastAccessTime();
     // Add the updated span back into the in-memory representation.
     cachedSpans.add(newCacheSpan);
     return newCacheSpan;
@@ -190,6 +229,13 @@ import java.util.TreeSet;
     return result;
   }
 
+  private static int spanHashCode(long position, long length, long lastAccessTimestamp) {
+    int result = (int) (position ^ (position >>> 32));
+    result = 31 * result + (int) (length ^ (length >>> 32));
+    result = 31 * result + (int) (lastAccessTimestamp ^ (lastAccessTimestamp >>> 32));
+    return result;
+  }
+
   /**
    * Returns the span containing the position. If there isn't one, it returns the lookup span it
    * used for searching.
@@ -20,9 +20,9 @@ import org.blaez.ziosgram.exoplayer2.C;
 import org.blaez.ziosgram.exoplayer2.upstream.cache.Cache.CacheException;
 import org.blaez.ziosgram.exoplayer2.util.Assertions;
 import org.blaez.ziosgram.exoplayer2.util.AtomicFile;
-import org.blaez.ziosgram.exoplayer2.util.ReusableBufferedOutputStream;
 import org.blaez.ziosgram.exoplayer2.util.Util;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -51,17 +51,19 @@ import javax.crypto.spec.SecretKeySpec;
 
   public static final String FILE_NAME = "cached_content_index.exi";
 
-  private static final int VERSION = 1;
+  private static final int VERSION = 2;
+  private static final int VERSION_WITHOUT_SPANS = 1;
 
   private static final int FLAG_ENCRYPTED_INDEX = 1;
 
   private final HashMap<String, CachedContent> keyToContent;
   private final SparseArray<String> idToKey;
   private final AtomicFile atomicFile;
+  private final File cacheDir;
   private final Cipher cipher;
   private final SecretKeySpec secretKeySpec;
   private boolean changed;
-  private ReusableBufferedOutputStream bufferedOutputStream;
+  private boolean spansLoaded;
 
   /** Creates a CachedContentIndex which works on the index file in the given cacheDir. */
   public CachedContentIndex(File cacheDir) {
@@ -83,26 +85,113 @@ import javax.crypto.spec.SecretKeySpec;
     }
     keyToContent = new HashMap<>();
     idToKey = new SparseArray<>();
+    this.cacheDir = cacheDir;
     atomicFile = new AtomicFile(new File(cacheDir, FILE_NAME));
   }
 
   /** Loads the index file. */
   public void load() {
     Assertions.checkState(!changed);
+    spansLoaded = false;
     if (!readFile()) {
       atomicFile.delete();
       keyToContent.clear();
       idToKey.clear();
+      spansLoaded = false;
     }
   }
 
+  /**
+   * Returns whether the last {@link #load()} restored the cached spans as well, so the cache
+   * directory doesn't have to be scanned.
+   */
+  public boolean areSpansLoaded() {
+    return spansLoaded;
+  }
+
+  /** Marks the index as changed, e.g. after spans were added, removed or touched. */
+  public void onSpansChanged() {
+    changed = true;
+  }
+
   /** Stores the index data to index file if there is a change. */
   public void store() throws CacheException {
+    byte[] data = serialize();
+    if (data != null) {
+      writeFile(data);
+    }
+  }
+
+  /**
+   * Serializes the index data if there is a change and marks it as stored. The returned data has
+   * to be passed to {@link #writeFile(byte[])}, which can be done without holding the lock that
+   * guards the in-memory index.
+   *
+   * @return The serialized index, or null if there is no change.
+   */
+  public byte[] serialize() throws CacheException {
     if (!changed) {
-      return;
+      return null;
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(outputStream);
+      output.writeInt(VERSION);
+
+      int flags = cipher != null ? FLAG_ENCRYPTED_INDEX : 0;
+      output.writeInt(flags);
+
+      if (cipher != null) {
+        byte[] initializationVector = new byte[16];
+        new Random().nextBytes(initializationVector);
+        output.write(initializationVector);
+        IvParameterSpec ivParameterSpec = new IvParameterSpec(initializationVector);
+        try {
+          cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+          throw new IllegalStateException(e); // Should never happen.
+        }
+        output.flush();
+        output = new DataOutputStream(new CipherOutputStream(outputStream, cipher));
+      }
+
+      output.writeInt(keyToContent.size());
+      int hashCode = 0;
+      for (CachedContent cachedContent : keyToContent.values()) {
+        cachedContent.writeToStream(output);
+        hashCode += cachedContent.headerHashCode();
+        hashCode += cachedContent.writeSpansToStream(output);
+      }
+      output.writeInt(hashCode);
+      output.close();
+      output = null;
+    } catch (IOException e) {
+      throw new CacheException(e);
+    } finally {
+      Util.closeQuietly(output);
     }
-    writeFile();
     changed = false;
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * Writes index data returned by {@link #serialize()} to the index file.
+   *
+   * @param data The serialized index.
+   */
+  public void writeFile(byte[] data) throws CacheException {
+    OutputStream output = null;
+    try {
+      output = atomicFile.startWrite();
+      output.write(data);
+      atomicFile.endWrite(output);
+      output = null;
+    } catch (IOException e) {
+      throw new CacheException(e);
+    } finally {
+      Util.closeQuietly(output);
+    }
   }
 
   /**
@@ -213,8 +302,7 @@ import javax.crypto.spec.SecretKeySpec;
       InputStream inputStream = new BufferedInputStream(atomicFile.openRead());
       input = new DataInputStream(inputStream);
       int version = input.readInt();
-      if (version != VERSION) {
-        // Currently there is no other version
+      if (version != VERSION && version != VERSION_WITHOUT_SPANS) {
         return false;
       }
 
@@ -240,10 +328,14 @@ import javax.crypto.spec.SecretKeySpec;
         CachedContent cachedContent = new CachedContent(input);
         addNew(cachedContent);
         hashCode += cachedContent.headerHashCode();
+        if (version != VERSION_WITHOUT_SPANS) {
+          hashCode += cachedContent.readSpansFromStream(input, cacheDir);
+        }
       }
       if (input.readInt() != hashCode) {
         return false;
       }
+      spansLoaded = version != VERSION_WITHOUT_SPANS;
     } catch (IOException e) {
       return false;
     } finally {
@@ -254,50 +346,6 @@ import javax.crypto.spec.SecretKeySpec;
     return true;
   }
 
-  private void writeFile() throws CacheException {
-    DataOutputStream output = null;
-    try {
-      OutputStream outputStream = atomicFile.startWrite();
-      if (bufferedOutputStream == null) {
-        bufferedOutputStream = new ReusableBufferedOutputStream(outputStream);
-      } else {
-        bufferedOutputStream.reset(outputStream);
-      }
-      output = new DataOutputStream(bufferedOutputStream);
-      output.writeInt(VERSION);
-
-      int flags = cipher != null ? FLAG_ENCRYPTED_INDEX : 0;
-      output.writeInt(flags);
-
-      if (cipher != null) {
-        byte[] initializationVector = new byte[16];
-        new Random().nextBytes(initializationVector);
-        output.write(initializationVector);
-        IvParameterSpec ivParameterSpec = new IvParameterSpec(initializationVector);
-        try {
-          cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-          throw new IllegalStateException(e); // Should never happen.
-        }
-        output.flush();
-        output = new DataOutputStream(new CipherOutputStream(bufferedOutputStream, cipher));
-      }
-
-      output.writeInt(keyToContent.size());
-      int hashCode = 0;
-      for (CachedContent cachedContent : keyToContent.values()) {
-        cachedContent.writeToStream(output);
-        hashCode += cachedContent.headerHashCode();
-      }
-      output.writeInt(hashCode);
-      atomicFile.endWrite(output);
-    } catch (IOException e) {
-      throw new CacheException(e);
-    } finally {
-      Util.closeQuietly(output);
-    }
-  }
-
   /** Adds the given CachedContent to the index. */
   /*package*/ void addNew(CachedContent cachedContent) {
     keyToContent.put(cachedContent.key, cachedContent);
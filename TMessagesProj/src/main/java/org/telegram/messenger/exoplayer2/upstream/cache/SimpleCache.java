@@ -29,15 +29,30 @@ import java.util.TreeSet;
 
 /**
  * A {@link Cache} implementation that maintains an in-memory representation.
+ *
+ * <p>The spans are persisted in the {@link CachedContentIndex}, so startup only needs a single
+ * index read. Span files are verified lazily: a span whose file is missing is dropped when it's
+ * looked up, and files which aren't referenced by the index are removed in the background after
+ * initialization.
+ *
+ * <p>The in-memory representation is guarded by the cache instance, but nothing waits or does
+ * index file I/O while holding it. Writers blocked in {@link #startReadWrite(String, long)} wait
+ * on a per-key lock, so streams with different keys don't wake or block each other.
  */
 public final class SimpleCache implements Cache {
 
+  private static final int KEY_LOCK_COUNT = 16;
+
   private final File cacheDir;
   private final CacheEvictor evictor;
   private final HashMap<String, CacheSpan> lockedSpans;
   private final CachedContentIndex index;
   private final HashMap<String, ArrayList<Listener>> listeners;
+  private final Object[] keyLocks;
+  private final Object indexFileLock;
   private long totalSpace = 0;
+  private long indexSnapshotId;
+  private long storedIndexSnapshotId;
   private CacheException initializationException;
 
   /**
@@ -66,19 +81,33 @@ public final class SimpleCache implements Cache {
     this.lockedSpans = new HashMap<>();
     this.index = new CachedContentIndex(cacheDir, secretKey);
     this.listeners = new HashMap<>();
+    this.keyLocks = new Object[KEY_LOCK_COUNT];
+    for (int i = 0; i < KEY_LOCK_COUNT; i++) {
+      keyLocks[i] = new Object();
+    }
+    this.indexFileLock = new Object();
     // Start cache initialization.
     final ConditionVariable conditionVariable = new ConditionVariable();
     new Thread("SimpleCache.initialize()") {
       @Override
       public void run() {
+        boolean spansLoaded;
         synchronized (SimpleCache.this) {
           conditionVariable.open();
-          try {
-            initialize();
-          } catch (CacheException e) {
+          initialize();
+          spansLoaded = index.areSpansLoaded();
+          SimpleCache.this.evictor.onCacheInitialized();
+        }
+        try {
+          storeIndex();
+        } catch (CacheException e) {
+          synchronized (SimpleCache.this) {
             initializationException = e;
           }
-          SimpleCache.this.evictor.onCacheInitialized();
+          return;
+        }
+        if (spansLoaded) {
+          removeUnindexedFiles();
         }
       }
     }.start();
@@ -124,18 +153,21 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized SimpleCacheSpan startReadWrite(String key, long position)
+  public SimpleCacheSpan startReadWrite(String key, long position)
       throws InterruptedException, CacheException {
-    while (true) {
-      SimpleCacheSpan span = startReadWriteNonBlocking(key, position);
-      if (span != null) {
-        return span;
-      } else {
-        // Write case, lock not available. We'll be woken up when a locked span is released (if the
-        // released lock is for the requested key then we'll be able to make progress) or when a
-        // span is added to the cache (if the span is for the requested key and covers the requested
-        // position, then we'll become a read and be able to make progress).
-        wait();
+    Object keyLock = getKeyLock(key);
+    synchronized (keyLock) {
+      while (true) {
+        SimpleCacheSpan span = startReadWriteNonBlocking(key, position);
+        if (span != null) {
+          return span;
+        } else {
+          // Write case, lock not available. We'll be woken up when a locked span is released (if
+          // the released lock is for the requested key then we'll be able to make progress) or when
+          // a span is added to the cache (if the span is for the requested key and covers the
+          // requested position, then we'll become a read and be able to make progress).
+          keyLock.wait();
+        }
       }
     }
   }
@@ -153,6 +185,7 @@ public final class SimpleCache implements Cache {
     if (cacheSpan.isCached) {
       // Obtain a new span with updated last access timestamp.
       SimpleCacheSpan newCacheSpan = index.get(key).touch(cacheSpan);
+      index.onSpansChanged();
       notifySpanTouched(cacheSpan, newCacheSpan);
       return newCacheSpan;
     }
@@ -168,47 +201,57 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized File startFile(String key, long position, long maxLength)
-      throws CacheException {
-    Assertions.checkState(lockedSpans.containsKey(key));
-    if (!cacheDir.exists()) {
-      // For some reason the cache directory doesn't exist. Make a best effort to create it.
-      removeStaleSpansAndCachedContents();
-      cacheDir.mkdirs();
+  public File startFile(String key, long position, long maxLength) throws CacheException {
+    File file;
+    synchronized (this) {
+      Assertions.checkState(lockedSpans.containsKey(key));
+      if (!cacheDir.exists()) {
+        // For some reason the cache directory doesn't exist. Make a best effort to create it.
+        removeStaleSpansAndCachedContents();
+        cacheDir.mkdirs();
+      }
+      evictor.onStartFile(this, key, position, maxLength);
+      file = SimpleCacheSpan.getCacheFile(cacheDir, index.assignIdForKey(key), position,
+          System.currentTimeMillis());
     }
-    evictor.onStartFile(this, key, position, maxLength);
-    return SimpleCacheSpan.getCacheFile(cacheDir, index.assignIdForKey(key), position,
-        System.currentTimeMillis());
+    // Persist evictions and touched spans.
+    storeIndex();
+    return file;
   }
 
   @Override
-  public synchronized void commitFile(File file) throws CacheException {
-    SimpleCacheSpan span = SimpleCacheSpan.createCacheEntry(file, index);
-    Assertions.checkState(span != null);
-    Assertions.checkState(lockedSpans.containsKey(span.key));
-    // If the file doesn't exist, don't add it to the in-memory representation.
-    if (!file.exists()) {
-      return;
-    }
-    // If the file has length 0, delete it and don't add it to the in-memory representation.
-    if (file.length() == 0) {
-      file.delete();
-      return;
-    }
-    // Check if the span conflicts with the set content length
-    Long length = getContentLength(span.key);
-    if (length != C.LENGTH_UNSET) {
-      Assertions.checkState((span.position + span.length) <= length);
+  public void commitFile(File file) throws CacheException {
+    SimpleCacheSpan span;
+    synchronized (this) {
+      span = SimpleCacheSpan.createCacheEntry(file, index);
+      Assertions.checkState(span != null);
+      Assertions.checkState(lockedSpans.containsKey(span.key));
+      // If the file doesn't exist, don't add it to the in-memory representation.
+      if (!file.exists()) {
+        return;
+      }
+      // If the file has length 0, delete it and don't add it to the in-memory representation.
+      if (file.length() == 0) {
+        file.delete();
+        return;
+      }
+      // Check if the span conflicts with the set content length
+      Long length = getContentLength(span.key);
+      if (length != C.LENGTH_UNSET) {
+        Assertions.checkState((span.position + span.length) <= length);
+      }
+      addSpan(span);
     }
-    addSpan(span);
-    index.store();
-    notifyAll();
+    storeIndex();
+    notifyKeyWaiters(span.key);
   }
 
   @Override
-  public synchronized void releaseHoleSpan(CacheSpan holeSpan) {
-    Assertions.checkState(holeSpan == lockedSpans.remove(holeSpan.key));
-    notifyAll();
+  public void releaseHoleSpan(CacheSpan holeSpan) {
+    synchronized (this) {
+      Assertions.checkState(holeSpan == lockedSpans.remove(holeSpan.key));
+    }
+    notifyKeyWaiters(holeSpan.key);
   }
 
   /**
@@ -242,9 +285,11 @@ public final class SimpleCache implements Cache {
   }
 
   /**
-   * Ensures that the cache's in-memory representation has been initialized.
+   * Ensures that the cache's in-memory representation has been initialized. If the index contains
+   * the spans, the cache directory isn't listed at all. Otherwise the spans are restored from the
+   * names of the cache files.
    */
-  private void initialize() throws CacheException {
+  private void initialize() {
     if (!cacheDir.exists()) {
       cacheDir.mkdirs();
       return;
@@ -252,25 +297,110 @@ public final class SimpleCache implements Cache {
 
     index.load();
 
+    if (index.areSpansLoaded()) {
+      ArrayList<SimpleCacheSpan> spans = new ArrayList<>();
+      for (CachedContent cachedContent : index.getAll()) {
+        spans.addAll(cachedContent.getSpans());
+      }
+      for (int i = 0; i < spans.size(); i++) {
+        SimpleCacheSpan span = spans.get(i);
+        totalSpace += span.length;
+        notifySpanAdded(span);
+      }
+    } else {
+      File[] files = cacheDir.listFiles();
+      if (files == null) {
+        return;
+      }
+      for (File file : files) {
+        if (file.getName().startsWith(CachedContentIndex.FILE_NAME)) {
+          continue;
+        }
+        SimpleCacheSpan span = file.length() > 0
+            ? SimpleCacheSpan.createCacheEntry(file, index) : null;
+        if (span != null) {
+          addSpan(span);
+        } else {
+          file.delete();
+        }
+      }
+    }
+
+    index.removeEmpty();
+  }
+
+  /**
+   * Deletes files in the cache directory which aren't referenced by the index, e.g. files which
+   * were written but not committed before the process died. Files of keys which are locked for
+   * writing are kept.
+   */
+  private void removeUnindexedFiles() {
     File[] files = cacheDir.listFiles();
     if (files == null) {
       return;
     }
-    for (File file : files) {
-      if (file.getName().equals(CachedContentIndex.FILE_NAME)) {
-        continue;
+    synchronized (this) {
+      HashSet<String> indexedFiles = new HashSet<>();
+      for (CachedContent cachedContent : index.getAll()) {
+        for (SimpleCacheSpan span : cachedContent.getSpans()) {
+          indexedFiles.add(span.file.getName());
+        }
       }
-      SimpleCacheSpan span = file.length() > 0
-          ? SimpleCacheSpan.createCacheEntry(file, index) : null;
-      if (span != null) {
-        addSpan(span);
-      } else {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(CachedContentIndex.FILE_NAME) || indexedFiles.contains(name)) {
+          continue;
+        }
+        int id = SimpleCacheSpan.getCacheFileId(name);
+        String key = id != C.INDEX_UNSET ? index.getKeyForId(id) : null;
+        if (key != null && lockedSpans.containsKey(key)) {
+          continue;
+        }
         file.delete();
       }
     }
+  }
 
-    index.removeEmpty();
-    index.store();
+  /**
+   * Stores the index if it has changed. The index is serialized while holding the cache lock, but
+   * the file is written without it. Snapshots which are older than the last written one are
+   * skipped.
+   */
+  private void storeIndex() throws CacheException {
+    byte[] data;
+    long snapshotId;
+    synchronized (this) {
+      data = index.serialize();
+      if (data == null) {
+        return;
+      }
+      snapshotId = ++indexSnapshotId;
+    }
+    synchronized (indexFileLock) {
+      if (snapshotId < storedIndexSnapshotId) {
+        return;
+      }
+      try {
+        index.writeFile(data);
+      } catch (CacheException e) {
+        synchronized (this) {
+          index.onSpansChanged();
+        }
+        throw e;
+      }
+      storedIndexSnapshotId = snapshotId;
+    }
+  }
+
+  private Object getKeyLock(String key) {
+    return keyLocks[(key.hashCode() & Integer.MAX_VALUE) % KEY_LOCK_COUNT];
+  }
+
+  private void notifyKeyWaiters(String key) {
+    Object keyLock = getKeyLock(key);
+    synchronized (keyLock) {
+      keyLock.notifyAll();
+    }
   }
 
   /**
@@ -280,31 +410,38 @@ public final class SimpleCache implements Cache {
    */
   private void addSpan(SimpleCacheSpan span) {
     index.add(span.key).addSpan(span);
+    index.onSpansChanged();
     totalSpace += span.length;
     notifySpanAdded(span);
   }
 
-  private void removeSpan(CacheSpan span, boolean removeEmptyCachedContent) throws CacheException {
+  private void removeSpan(CacheSpan span, boolean removeEmptyCachedContent) {
     CachedContent cachedContent = index.get(span.key);
     Assertions.checkState(cachedContent.removeSpan(span));
+    index.onSpansChanged();
     totalSpace -= span.length;
     if (removeEmptyCachedContent && cachedContent.isEmpty()) {
       index.removeEmpty(cachedContent.key);
-      index.store();
     }
     notifySpanRemoved(span);
   }
 
   @Override
-  public synchronized void removeSpan(CacheSpan span) throws CacheException {
-    removeSpan(span, true);
+  public void removeSpan(CacheSpan span) throws CacheException {
+    synchronized (this) {
+      removeSpan(span, true);
+    }
+    if (!Thread.holdsLock(this)) {
+      // Evictions done from inside the cache are stored by the operation which triggered them.
+      storeIndex();
+    }
   }
 
   /**
    * Scans all of the cached spans in the in-memory representation, removing any for which files
    * no longer exist.
    */
-  private void removeStaleSpansAndCachedContents() throws CacheException {
+  private void removeStaleSpansAndCachedContents() {
     LinkedList<CacheSpan> spansToBeRemoved = new LinkedList<>();
     for (CachedContent cachedContent : index.getAll()) {
       for (CacheSpan span : cachedContent.getSpans()) {
@@ -318,7 +455,6 @@ public final class SimpleCache implements Cache {
       removeSpan(span, false);
     }
     index.removeEmpty();
-    index.store();
   }
 
   private void notifySpanRemoved(CacheSpan span) {
@@ -358,9 +494,11 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized void setContentLength(String key, long length) throws CacheException {
-    index.setContentLength(key, length);
-    index.store();
+  public void setContentLength(String key, long length) throws CacheException {
+    synchronized (this) {
+      index.setContentLength(key, length);
+    }
+    storeIndex();
   }
 
   @Override
@@ -81,6 +81,33 @@ import java.util.regex.Pattern;
         Long.parseLong(matcher.group(3)), file);
   }
 
+  /**
+   * Creates a cache span from a span entry persisted in the {@link CachedContentIndex}.
+   *
+   * @param key The cache key.
+   * @param position The position of the span in the original stream.
+   * @param length The length of the span.
+   * @param lastAccessTimestamp The last access timestamp.
+   * @param file The cache file.
+   * @return The span.
+   */
+  public static SimpleCacheSpan createIndexedEntry(String key, long position, long length,
+      long lastAccessTimestamp, File file) {
+    return new SimpleCacheSpan(key, position, length, lastAccessTimestamp, file);
+  }
+
+  /**
+   * Returns the cache id encoded in the name of a cache file, or {@link C#INDEX_UNSET} if the name
+   * is not a current version cache file name.
+   */
+  public static int getCacheFileId(String name) {
+    Matcher matcher = CACHE_FILE_PATTERN_V3.matcher(name);
+    if (!matcher.matches()) {
+      return C.INDEX_UNSET;
+    }
+    return Integer.parseInt(matcher.group(1));
+  }
+
   private static File upgradeFile(File file, CachedContentIndex index) {
     String key;
     String filename = file.getName();
@@ -115,15 +142,12 @@ import java.util.regex.Pattern;
    * Returns a copy of this CacheSpan whose last access time stamp is set to current time. This
    * doesn't copy or change the underlying cache file.
    *
-   * @param id The cache file id.
    * @return A {@link SimpleCacheSpan} with updated last access time stamp.
    * @throws IllegalStateException If called on a non-cached span (i.e. {@link #isCached} is false).
    */
-  public SimpleCacheSpan copyWithUpdatedLastAccessTime(int id) {
+  public SimpleCacheSpan copyWithUpdatedLastAccessTime() {
     Assertions.checkState(isCached);
-    long now = System.currentTimeMillis();
-    File newCacheFile = getCacheFile(file.getParentFile(), id, position, now);
-    return new SimpleCacheSpan(key, position, length, now, newCacheFile);
+    return new SimpleCacheSpan(key, position, length, System.currentTimeMillis(), file);
   }
 
 }
@@ -171,9 +171,7 @@ public class DraftQuery {
         } else {
             drafts.put(did, draft);
             try {
-                SerializedData serializedData = new SerializedData(draft.getObjectSize());
-                draft.serializeToStream(serializedData);
-                editor.putString("" + did, Utilities.bytesToHex(serializedData.toByteArray()));
+                editor.putString("" + did, Utilities.bytesToHex(SerializedData.serialize(draft)));
             } catch (Exception e) {
                 FileLog.e(e);
             }
@@ -183,9 +181,7 @@ public class DraftQuery {
             editor.remove("r_" + did);
         } else {
             draftMessages.put(did, replyToMessage);
-            SerializedData serializedData = new SerializedData(replyToMessage.getObjectSize());
-            replyToMessage.serializeToStream(serializedData);
-            editor.putString("r_" + did, Utilities.bytesToHex(serializedData.toByteArray()));
+            editor.putString("r_" + did, Utilities.bytesToHex(SerializedData.serialize(replyToMessage)));
         }
         editor.commit();
         if (fromServer) {
@@ -278,9 +274,7 @@ public class DraftQuery {
                 TLRPC.DraftMessage draftMessage = drafts.get(did);
                 if (draftMessage != null && draftMessage.reply_to_msg_id == message.id) {
                     draftMessages.put(did, message);
-                    SerializedData serializedData = new SerializedData(message.getObjectSize());
-                    message.serializeToStream(serializedData);
-                    preferences.edit().putString("r_" + did, Utilities.bytesToHex(serializedData.toByteArray())).commit();
+                    preferences.edit().putString("r_" + did, Utilities.bytesToHex(SerializedData.serialize(message))).commit();
                     NotificationCenter.getInstance().postNotificationName(NotificationCenter.newDraftReceived, did);
                 }
             }
@@ -15,6 +15,7 @@ import org.blaez.SQLite.SQLiteCursor;
 import org.blaez.SQLite.SQLitePreparedStatement;
 import org.blaez.ziosgram.AndroidUtilities;
 import org.blaez.ziosgram.ImageLoader;
+import org.blaez.ziosgram.MessagesWindowCache;
 import org.blaez.ZiosGram.messageObject;
 import org.blaez.ZiosGram.messagesController;
 import org.blaez.ZiosGram.messagesStorage;
@@ -33,10 +34,43 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 public class MessagesQuery {
 
+    private static class PendingReplyMessages {
+        int channelId;
+        ArrayList<Integer> ids = new ArrayList<>();
+        HashMap<Integer, ArrayList<MessageObject>> owners = new HashMap<>();
+    }
+
+    private static final int MAX_CACHED_REPLY_MESSAGES = 500;
+
+    /**
+     * Reply targets are resolved on the UI thread: already resolved ones come from the cache, ones
+     * that are being loaded just get another owner, and all new ones requested during one UI loop
+     * are loaded in one batch per dialog.
+     */
+    private static LinkedHashMap<Long, MessageObject> replyMessagesCache = new LinkedHashMap<Long, MessageObject>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MessageObject> eldest) {
+            return size() > MAX_CACHED_REPLY_MESSAGES;
+        }
+    };
+    private static HashMap<Long, ArrayList<MessageObject>> loadingReplyMessages = new HashMap<>();
+    private static HashMap<Long, PendingReplyMessages> pendingReplyMessages = new HashMap<>();
+    private static Runnable loadPendingReplyMessagesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (HashMap.Entry<Long, PendingReplyMessages> entry : pendingReplyMessages.entrySet()) {
+                loadReplyMessagesInternal(entry.getKey(), entry.getValue());
+            }
+            pendingReplyMessages.clear();
+        }
+    };
+
     private static Comparator<TLRPC.MessageEntity> entityComparator = new Comparator<TLRPC.MessageEntity>() {
         @Override
         public int compare(TLRPC.MessageEntity entity1, TLRPC.MessageEntity entity2) {
@@ -271,113 +305,170 @@ public class MessagesQuery {
                 }
             });
         } else {
-            final ArrayList<Integer> replyMessages = new ArrayList<>();
-            final HashMap<Integer, ArrayList<MessageObject>> replyMessageOwners = new HashMap<>();
-            final StringBuilder stringBuilder = new StringBuilder();
-            int channelId = 0;
             for (int a = 0; a < messages.size(); a++) {
                 MessageObject messageObject = messages.get(a);
                 if (messageObject.getId() > 0 && messageObject.isReply() && messageObject.replyMessageObject == null) {
-                    Integer id = messageObject.messageOwner.reply_to_msg_id;
+                    int id = messageObject.messageOwner.reply_to_msg_id;
+                    int channelId = messageObject.messageOwner.to_id.channel_id;
                     long messageId = id;
-                    if (messageObject.messageOwner.to_id.channel_id != 0) {
-                        messageId |= ((long) messageObject.messageOwner.to_id.channel_id) << 32;
-                        channelId = messageObject.messageOwner.to_id.channel_id;
+                    if (channelId != 0) {
+                        messageId |= ((long) channelId) << 32;
                     }
-                    if (stringBuilder.length() > 0) {
-                        stringBuilder.append(',');
+                    MessageObject replyMessage = replyMessagesCache.get(messageId);
+                    if (replyMessage != null) {
+                        setReplyMessage(messageObject, replyMessage);
+                        continue;
                     }
-                    stringBuilder.append(messageId);
-                    ArrayList<MessageObject> messageObjects = replyMessageOwners.get(id);
+                    ArrayList<MessageObject> messageObjects = loadingReplyMessages.get(messageId);
                     if (messageObjects == null) {
                         messageObjects = new ArrayList<>();
-                        replyMessageOwners.put(id, messageObjects);
+                        loadingReplyMessages.put(messageId, messageObjects);
+                        PendingReplyMessages pending = pendingReplyMessages.get(dialogId);
+                        if (pending == null) {
+                            if (pendingReplyMessages.isEmpty()) {
+                                AndroidUtilities.runOnUIThread(loadPendingReplyMessagesRunnable);
+                            }
+                            pending = new PendingReplyMessages();
+                            pendingReplyMessages.put(dialogId, pending);
+                        }
+                        if (channelId != 0) {
+                            pending.channelId = channelId;
+                        }
+                        pending.ids.add(id);
+                        pending.owners.put(id, messageObjects);
                     }
                     messageObjects.add(messageObject);
-                    if (!replyMessages.contains(id)) {
-                        replyMessages.add(id);
-                    }
                 }
             }
-            if (replyMessages.isEmpty()) {
-                return;
-            }
+        }
+    }
 
-            final int channelIdFinal = channelId;
-            MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        final ArrayList<TLRPC.Message> result = new ArrayList<>();
-                        final ArrayList<TLRPC.User> users = new ArrayList<>();
-                        final ArrayList<TLRPC.Chat> chats = new ArrayList<>();
-                        ArrayList<Integer> usersToLoad = new ArrayList<>();
-                        ArrayList<Integer> chatsToLoad = new ArrayList<>();
+    public static void removeCachedReplyMessages(ArrayList<Integer> ids, int channelId) {
+        for (int a = 0; a < ids.size(); a++) {
+            removeCachedReplyMessage(ids.get(a), channelId);
+        }
+    }
 
-                        SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid, date FROM messages WHERE mid IN(%s)", stringBuilder.toString()));
-                        while (cursor.next()) {
-                            NativeByteBuffer data = cursor.byteBufferValue(0);
-                            if (data != null) {
-                                TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
-                                data.reuse();
-                                message.id = cursor.intValue(1);
-                                message.date = cursor.intValue(2);
-                                message.dialog_id = dialogId;
-                                MessagesStorage.addUsersAndChatsFromMessage(message, usersToLoad, chatsToLoad);
-                                result.add(message);
-                                replyMessages.remove((Integer) message.id);
-                            }
-                        }
-                        cursor.dispose();
+    public static void removeCachedReplyMessage(int id, int channelId) {
+        long messageId = id;
+        if (channelId != 0) {
+            messageId |= ((long) channelId) << 32;
+        }
+        replyMessagesCache.remove(messageId);
+    }
 
-                        if (!usersToLoad.isEmpty()) {
-                            MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), users);
-                        }
-                        if (!chatsToLoad.isEmpty()) {
-                            MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+    public static void cleanup() {
+        replyMessagesCache.clear();
+        loadingReplyMessages.clear();
+        pendingReplyMessages.clear();
+        AndroidUtilities.cancelRunOnUIThread(loadPendingReplyMessagesRunnable);
+    }
+
+    private static void setReplyMessage(MessageObject messageObject, MessageObject replyMessage) {
+        messageObject.replyMessageObject = replyMessage;
+        if (messageObject.messageOwner.action instanceof TLRPC.TL_messageActionPinMessage) {
+            messageObject.generatePinMessageText(null, null);
+        } else if (messageObject.messageOwner.action instanceof TLRPC.TL_messageActionGameScore) {
+            messageObject.generateGameMessageText(null);
+        } else if (messageObject.messageOwner.action instanceof TLRPC.TL_messageActionPaymentSent) {
+            messageObject.generatePaymentSentMessageText(null);
+        }
+    }
+
+    private static void loadReplyMessagesInternal(final long dialogId, final PendingReplyMessages pending) {
+        final StringBuilder stringBuilder = new StringBuilder();
+        final ArrayList<Long> messageIds = new ArrayList<>();
+        for (int a = 0; a < pending.ids.size(); a++) {
+            long messageId = pending.ids.get(a);
+            if (pending.channelId != 0) {
+                messageId |= ((long) pending.channelId) << 32;
+            }
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append(',');
+            }
+            stringBuilder.append(messageId);
+            messageIds.add(messageId);
+        }
+        final ArrayList<Integer> replyMessages = new ArrayList<>(pending.ids);
+        final HashMap<Integer, ArrayList<MessageObject>> replyMessageOwners = pending.owners;
+        final int channelIdFinal = pending.channelId;
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final ArrayList<TLRPC.Message> result = new ArrayList<>();
+                    final ArrayList<TLRPC.User> users = new ArrayList<>();
+                    final ArrayList<TLRPC.Chat> chats = new ArrayList<>();
+                    ArrayList<Integer> usersToLoad = new ArrayList<>();
+                    ArrayList<Integer> chatsToLoad = new ArrayList<>();
+
+                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid, date FROM messages WHERE mid IN(%s)", stringBuilder.toString()));
+                    while (cursor.next()) {
+                        NativeByteBuffer data = cursor.byteBufferValue(0);
+                        if (data != null) {
+                            TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                            data.reuse();
+                            message.id = cursor.intValue(1);
+                            message.date = cursor.intValue(2);
+                            message.dialog_id = dialogId;
+                            MessagesStorage.addUsersAndChatsFromMessage(message, usersToLoad, chatsToLoad);
+                            result.add(message);
+                            replyMessages.remove((Integer) message.id);
                         }
-                        broadcastReplyMessages(result, replyMessageOwners, users, chats, dialogId, true);
-
-                        if (!replyMessages.isEmpty()) {
-                            if (channelIdFinal != 0) {
-                                final TLRPC.TL_channels_getMessages req = new TLRPC.TL_channels_getMessages();
-                                req.channel = MessagesController.getInputChannel(channelIdFinal);
-                                req.id = replyMessages;
-                                ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
-                                    @Override
-                                    public void run(TLObject response, TLRPC.TL_error error) {
-                                        if (error == null) {
-                                            TLRPC.messages_Messages messagesRes = (TLRPC.messages_Messages) response;
-                                            ImageLoader.saveMessagesThumbs(messagesRes.messages);
-                                            broadcastReplyMessages(messagesRes.messages, replyMessageOwners, messagesRes.users, messagesRes.chats, dialogId, false);
-                                            MessagesStorage.getInstance().putUsersAndChats(messagesRes.users, messagesRes.chats, true, true);
-                                            saveReplyMessages(replyMessageOwners, messagesRes.messages);
-                                        }
-                                    }
-                                });
-                            } else {
-                                TLRPC.TL_messages_getMessages req = new TLRPC.TL_messages_getMessages();
-                                req.id = replyMessages;
-                                ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
-                                    @Override
-                                    public void run(TLObject response, TLRPC.TL_error error) {
-                                        if (error == null) {
-                                            TLRPC.messages_Messages messagesRes = (TLRPC.messages_Messages) response;
-                                            ImageLoader.saveMessagesThumbs(messagesRes.messages);
-                                            broadcastReplyMessages(messagesRes.messages, replyMessageOwners, messagesRes.users, messagesRes.chats, dialogId, false);
-                                            MessagesStorage.getInstance().putUsersAndChats(messagesRes.users, messagesRes.chats, true, true);
-                                            saveReplyMessages(replyMessageOwners, messagesRes.messages);
-                                        }
-                                    }
-                                });
+                    }
+                    cursor.dispose();
+
+                    if (!usersToLoad.isEmpty()) {
+                        MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                    }
+                    if (!chatsToLoad.isEmpty()) {
+                        MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+                    }
+                    broadcastReplyMessages(result, replyMessageOwners, users, chats, dialogId, channelIdFinal, true);
+
+                    if (!replyMessages.isEmpty()) {
+                        RequestDelegate requestDelegate = new RequestDelegate() {
+                            @Override
+                            public void run(TLObject response, TLRPC.TL_error error) {
+                                if (error == null) {
+                                    TLRPC.messages_Messages messagesRes = (TLRPC.messages_Messages) response;
+                                    ImageLoader.saveMessagesThumbs(messagesRes.messages);
+                                    broadcastReplyMessages(messagesRes.messages, replyMessageOwners, messagesRes.users, messagesRes.chats, dialogId, channelIdFinal, false);
+                                    MessagesStorage.getInstance().putUsersAndChats(messagesRes.users, messagesRes.chats, true, true);
+                                }
+                                finishLoadingReplyMessages(messageIds);
                             }
+                        };
+                        if (channelIdFinal != 0) {
+                            TLRPC.TL_channels_getMessages req = new TLRPC.TL_channels_getMessages();
+                            req.channel = MessagesController.getInputChannel(channelIdFinal);
+                            req.id = replyMessages;
+                            ConnectionsManager.getInstance().sendRequest(req, requestDelegate);
+                        } else {
+                            TLRPC.TL_messages_getMessages req = new TLRPC.TL_messages_getMessages();
+                            req.id = replyMessages;
+                            ConnectionsManager.getInstance().sendRequest(req, requestDelegate);
                         }
-                    } catch (Exception e) {
-                        FileLog.e(e);
+                    } else {
+                        finishLoadingReplyMessages(messageIds);
                     }
+                } catch (Exception e) {
+                    FileLog.e(e);
+                    finishLoadingReplyMessages(messageIds);
                 }
-            });
-        }
+            }
+        });
+    }
+
+    private static void finishLoadingReplyMessages(final ArrayList<Long> messageIds) {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int a = 0; a < messageIds.size(); a++) {
+                    loadingReplyMessages.remove(messageIds.get(a));
+                }
+            }
+        });
     }
 
     private static void saveReplyMessages(final HashMap<Integer, ArrayList<MessageObject>> replyMessageOwners, final ArrayList<TLRPC.Message> result) {
@@ -403,6 +494,7 @@ public class MessagesQuery {
                                 state.bindByteBuffer(1, data);
                                 state.bindLong(2, messageId);
                                 state.step();
+                                MessagesWindowCache.getInstance().invalidate(messageObject.getDialogId());
                             }
                             data.reuse();
                         }
@@ -416,7 +508,7 @@ public class MessagesQuery {
         });
     }
 
-    private static void broadcastReplyMessages(final ArrayList<TLRPC.Message> result, final HashMap<Integer, ArrayList<MessageObject>> replyMessageOwners, final ArrayList<TLRPC.User> users, final ArrayList<TLRPC.Chat> chats, final long dialog_id, final boolean isCache) {
+    private static void broadcastReplyMessages(final ArrayList<TLRPC.Message> result, final HashMap<Integer, ArrayList<MessageObject>> replyMessageOwners, final ArrayList<TLRPC.User> users, final ArrayList<TLRPC.Chat> chats, final long dialog_id, final int channelId, final boolean isCache) {
         final HashMap<Integer, TLRPC.User> usersDict = new HashMap<>();
         for (int a = 0; a < users.size(); a++) {
             TLRPC.User user = users.get(a);
@@ -432,26 +524,31 @@ public class MessagesQuery {
             public void run() {
                 MessagesController.getInstance().putUsers(users, isCache);
                 MessagesController.getInstance().putChats(chats, isCache);
+                HashMap<Integer, ArrayList<MessageObject>> ownersToSave = isCache ? null : new HashMap<Integer, ArrayList<MessageObject>>();
                 boolean changed = false;
                 for (int a = 0; a < result.size(); a++) {
                     TLRPC.Message message = result.get(a);
                     ArrayList<MessageObject> arrayList = replyMessageOwners.get(message.id);
                     if (arrayList != null) {
+                        long messageId = message.id;
+                        if (channelId != 0) {
+                            messageId |= ((long) channelId) << 32;
+                        }
                         MessageObject messageObject = new MessageObject(message, usersDict, chatsDict, false);
+                        replyMessagesCache.put(messageId, messageObject);
+                        loadingReplyMessages.remove(messageId);
                         for (int b = 0; b < arrayList.size(); b++) {
-                            MessageObject m = arrayList.get(b);
-                            m.replyMessageObject = messageObject;
-                            if (m.messageOwner.action instanceof TLRPC.TL_messageActionPinMessage) {
-                                m.generatePinMessageText(null, null);
-                            } else if (m.messageOwner.action instanceof TLRPC.TL_messageActionGameScore) {
-                                m.generateGameMessageText(null);
-                            } else if (m.messageOwner.action instanceof TLRPC.TL_messageActionPaymentSent) {
-                                m.generatePaymentSentMessageText(null);
-                            }
+                            setReplyMessage(arrayList.get(b), messageObject);
+                        }
+                        if (ownersToSave != null) {
+                            ownersToSave.put(message.id, new ArrayList<>(arrayList));
                         }
                         changed = true;
                     }
                 }
+                if (ownersToSave != null && !ownersToSave.isEmpty()) {
+                    saveReplyMessages(ownersToSave, result);
+                }
                 if (changed) {
                     NotificationCenter.getInstance().postNotificationName(NotificationCenter.didLoadedReplyMessages, dialog_id);
                 }
@@ -0,0 +1,468 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ziosgram.query;
+
+import android.text.TextUtils;
+
+import org.blaez.SQLite.SQLiteCursor;
+import org.blaez.tgnet.TLObject;
+import org.blaez.tgnet.TLRPC;
+import org.blaez.ziosgram.AndroidUtilities;
+import org.blaez.ziosgram.BuildVars;
+import org.blaez.ziosgram.ChatObject;
+import org.blaez.ziosgram.ContactsController;
+import org.blaez.ziosgram.FileLog;
+import org.blaez.ziosgram.LocaleController;
+import org.blaez.ziosgram.MessagesController;
+import org.blaez.ziosgram.MessagesStorage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of the names of known peers, so dialog search can run on every keystroke
+ * without touching the database. It is filled once from the database and then kept up to date
+ * by MessagesController whenever users, chats and encrypted chats are put.
+ */
+public class PeerSearchIndex {
+
+    private static final int MAX_DIALOGS = 600;
+    private static final double RECENCY_DECAY = 3 * 24 * 60 * 60;
+
+    private static class Entry {
+        long dialogId;
+        TLObject object;
+        int userId;
+        String firstName;
+        String lastName;
+        String title;
+        String name;
+        String translitName;
+        String username;
+        int dialogDate;
+        int searchStamp;
+    }
+
+    public static class Result {
+        public TLObject object;
+        public TLRPC.User user;
+        public String query;
+        public boolean byUsername;
+        private double score;
+        private int date;
+    }
+
+    private HashMap<Long, Entry> entries = new HashMap<>();
+    private String[] tokens = new String[0];
+    private Entry[] tokenEntries = new Entry[0];
+    private boolean tokensDirty;
+    private int searchStamp;
+    private boolean loaded;
+    private boolean loading;
+
+    private static volatile PeerSearchIndex Instance = null;
+
+    public static PeerSearchIndex getInstance() {
+        PeerSearchIndex localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (PeerSearchIndex.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new PeerSearchIndex();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized void cleanup() {
+        entries.clear();
+        tokens = new String[0];
+        tokenEntries = new Entry[0];
+        tokensDirty = false;
+        loaded = false;
+        loading = false;
+    }
+
+    public void load() {
+        synchronized (this) {
+            if (loaded || loading) {
+                return;
+            }
+            loading = true;
+        }
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<TLRPC.User> users = new ArrayList<>();
+                final ArrayList<TLRPC.Chat> chats = new ArrayList<>();
+                final ArrayList<TLRPC.EncryptedChat> encryptedChats = new ArrayList<>();
+                final HashMap<Long, Integer> dates = new HashMap<>();
+                try {
+                    ArrayList<Integer> usersToLoad = new ArrayList<>();
+                    ArrayList<Integer> chatsToLoad = new ArrayList<>();
+                    ArrayList<Integer> encryptedToLoad = new ArrayList<>();
+                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT did, date FROM dialogs ORDER BY date DESC LIMIT " + MAX_DIALOGS);
+                    while (cursor.next()) {
+                        long did = cursor.longValue(0);
+                        dates.put(did, cursor.intValue(1));
+                        int lower_id = (int) did;
+                        int high_id = (int) (did >> 32);
+                        if (lower_id != 0) {
+                            if (high_id == 1) {
+                                continue;
+                            }
+                            if (lower_id > 0) {
+                                usersToLoad.add(lower_id);
+                            } else {
+                                chatsToLoad.add(-lower_id);
+                            }
+                        } else {
+                            encryptedToLoad.add(high_id);
+                        }
+                    }
+                    cursor.dispose();
+
+                    cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT uid FROM contacts WHERE 1");
+                    while (cursor.next()) {
+                        int uid = cursor.intValue(0);
+                        if (!usersToLoad.contains(uid)) {
+                            usersToLoad.add(uid);
+                        }
+                    }
+                    cursor.dispose();
+
+                    if (!encryptedToLoad.isEmpty()) {
+                        MessagesStorage.getInstance().getEncryptedChatsInternal(TextUtils.join(",", encryptedToLoad), encryptedChats, usersToLoad);
+                    }
+                    if (!usersToLoad.isEmpty()) {
+                        MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                    }
+                    if (!chatsToLoad.isEmpty()) {
+                        MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+                    }
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        fill(users, chats, encryptedChats, dates);
+                    }
+                });
+            }
+        });
+    }
+
+    private synchronized void fill(ArrayList<TLRPC.User> users, ArrayList<TLRPC.Chat> chats, ArrayList<TLRPC.EncryptedChat> encryptedChats, HashMap<Long, Integer> dates) {
+        if (!loading) {
+            return;
+        }
+        MessagesController messagesController = MessagesController.getInstance();
+        for (int a = 0; a < users.size(); a++) {
+            TLRPC.User user = users.get(a);
+            TLRPC.User current = messagesController.getUser(user.id);
+            updateUserInternal(current != null ? current : user);
+        }
+        for (int a = 0; a < chats.size(); a++) {
+            TLRPC.Chat chat = chats.get(a);
+            TLRPC.Chat current = messagesController.getChat(chat.id);
+            updateChatInternal(current != null ? current : chat);
+        }
+        for (int a = 0; a < encryptedChats.size(); a++) {
+            TLRPC.EncryptedChat encryptedChat = encryptedChats.get(a);
+            TLRPC.EncryptedChat current = messagesController.getEncryptedChat(encryptedChat.id);
+            updateEncryptedChatInternal(current != null ? current : encryptedChat);
+        }
+        for (Map.Entry<Long, Integer> date : dates.entrySet()) {
+            Entry entry = entries.get(date.getKey());
+            if (entry != null) {
+                entry.dialogDate = date.getValue();
+            }
+        }
+        loading = false;
+        loaded = true;
+        if (BuildVars.DEBUG_VERSION) {
+            FileLog.d("peer search index loaded with " + entries.size() + " peers");
+        }
+    }
+
+    public synchronized void updateUser(TLRPC.User user) {
+        if (loaded || loading) {
+            updateUserInternal(user);
+        }
+    }
+
+    public synchronized void updateChat(TLRPC.Chat chat) {
+        if (loaded || loading) {
+            updateChatInternal(chat);
+        }
+    }
+
+    public synchronized void updateEncryptedChat(TLRPC.EncryptedChat encryptedChat) {
+        if (loaded || loading) {
+            updateEncryptedChatInternal(encryptedChat);
+        }
+    }
+
+    public synchronized void removeDialog(long did) {
+        Entry entry = entries.get(did);
+        if (entry != null) {
+            entry.dialogDate = 0;
+        }
+    }
+
+    private Entry getEntry(long did) {
+        Entry entry = entries.get(did);
+        if (entry == null) {
+            entry = new Entry();
+            entry.dialogId = did;
+            entries.put(did, entry);
+            tokensDirty = true;
+        }
+        return entry;
+    }
+
+    private void updateUserInternal(TLRPC.User user) {
+        if (user == null || user.id == 0) {
+            return;
+        }
+        Entry entry = getEntry(user.id);
+        entry.object = user;
+        if (entry.name != null && TextUtils.equals(entry.firstName, user.first_name) && TextUtils.equals(entry.lastName, user.last_name) && TextUtils.equals(entry.username, user.username != null ? user.username.toLowerCase() : null)) {
+            return;
+        }
+        entry.firstName = user.first_name;
+        entry.lastName = user.last_name;
+        entry.username = !TextUtils.isEmpty(user.username) ? user.username.toLowerCase() : null;
+        setName(entry, ContactsController.formatName(user.first_name, user.last_name));
+    }
+
+    private void updateChatInternal(TLRPC.Chat chat) {
+        if (chat == null || chat.id <= 0) {
+            return;
+        }
+        Entry entry = getEntry(-chat.id);
+        entry.object = chat;
+        if (entry.name != null && TextUtils.equals(entry.title, chat.title)) {
+            return;
+        }
+        entry.title = chat.title;
+        setName(entry, chat.title != null ? chat.title : "");
+    }
+
+    private void updateEncryptedChatInternal(TLRPC.EncryptedChat encryptedChat) {
+        if (encryptedChat == null) {
+            return;
+        }
+        Entry entry = getEntry((long) encryptedChat.id << 32);
+        entry.object = encryptedChat;
+        if (entry.userId != encryptedChat.user_id) {
+            entry.userId = encryptedChat.user_id;
+            tokensDirty = true;
+        }
+    }
+
+    private void setName(Entry entry, String name) {
+        entry.name = name.toLowerCase();
+        String translitName = LocaleController.getInstance().getTranslitString(entry.name);
+        entry.translitName = entry.name.equals(translitName) ? null : translitName;
+        tokensDirty = true;
+    }
+
+    private Entry getNameEntry(Entry entry) {
+        return entry.userId != 0 ? entries.get((long) entry.userId) : entry;
+    }
+
+    private static void addTokens(ArrayList<String> tokensList, ArrayList<Entry> entriesList, String name, Entry entry) {
+        if (name == null) {
+            return;
+        }
+        int start = 0;
+        int length = name.length();
+        while (start < length) {
+            int end = name.indexOf(' ', start);
+            if (end == -1) {
+                end = length;
+            }
+            if (end > start) {
+                tokensList.add(name.substring(start, end));
+                entriesList.add(entry);
+            }
+            start = end + 1;
+        }
+    }
+
+    private void rebuildTokens() {
+        final ArrayList<String> tokensList = new ArrayList<>(entries.size() * 3);
+        ArrayList<Entry> entriesList = new ArrayList<>(entries.size() * 3);
+        for (Entry entry : entries.values()) {
+            Entry nameEntry = getNameEntry(entry);
+            if (nameEntry == null || nameEntry.name == null) {
+                continue;
+            }
+            addTokens(tokensList, entriesList, nameEntry.name, entry);
+            addTokens(tokensList, entriesList, nameEntry.translitName, entry);
+            if (nameEntry.username != null) {
+                tokensList.add(nameEntry.username);
+                entriesList.add(entry);
+            }
+        }
+        Integer[] order = new Integer[tokensList.size()];
+        for (int a = 0; a < order.length; a++) {
+            order[a] = a;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return tokensList.get(lhs).compareTo(tokensList.get(rhs));
+            }
+        });
+        tokens = new String[order.length];
+        tokenEntries = new Entry[order.length];
+        for (int a = 0; a < order.length; a++) {
+            tokens[a] = tokensList.get(order[a]);
+            tokenEntries[a] = entriesList.get(order[a]);
+        }
+        tokensDirty = false;
+    }
+
+    private int findFirstToken(String prefix) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokens[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static boolean matchesName(String name, String q) {
+        return name != null && (name.startsWith(q) || name.contains(" " + q));
+    }
+
+    /**
+     * Searches dialogs and contacts by name, transliterated name and username. Results are ordered by
+     * a score that decays with the time of the last message and is raised by the top peers rating.
+     * Must be called on the UI thread, since it reads dialogs and contacts from the controllers.
+     *
+     * @param search the lower-case query and optionally its transliteration
+     * @param dialogsType the type of the dialogs list, with the same filtering as the database search
+     */
+    public synchronized ArrayList<Result> search(String[] search, int dialogsType) {
+        ArrayList<Result> results = new ArrayList<>();
+        if (!loaded) {
+            return results;
+        }
+        if (tokensDirty) {
+            rebuildTokens();
+        }
+        MessagesController messagesController = MessagesController.getInstance();
+        ContactsController contactsController = ContactsController.getInstance();
+        HashMap<Long, Double> ratings = new HashMap<>();
+        double maxRating = 0;
+        for (int a = 0; a < SearchQuery.hints.size(); a++) {
+            TLRPC.TL_topPeer peer = SearchQuery.hints.get(a);
+            long did;
+            if (peer.peer.user_id != 0) {
+                did = peer.peer.user_id;
+            } else if (peer.peer.chat_id != 0) {
+                did = -peer.peer.chat_id;
+            } else {
+                did = -peer.peer.channel_id;
+            }
+            ratings.put(did, peer.rating);
+            maxRating = Math.max(maxRating, peer.rating);
+        }
+        int now = (int) (System.currentTimeMillis() / 1000);
+        int stamp = ++searchStamp;
+        for (int s = 0; s < search.length; s++) {
+            String q = search[s];
+            int space = q.indexOf(' ');
+            String prefix = space != -1 ? q.substring(0, space) : q;
+            if (prefix.length() == 0) {
+                continue;
+            }
+            for (int a = findFirstToken(prefix); a < tokens.length && tokens[a].startsWith(prefix); a++) {
+                Entry entry = tokenEntries[a];
+                if (entry.searchStamp == stamp) {
+                    continue;
+                }
+                Entry nameEntry = getNameEntry(entry);
+                if (nameEntry == null) {
+                    continue;
+                }
+                boolean byUsername = false;
+                if (!matchesName(nameEntry.name, q) && !matchesName(nameEntry.translitName, q)) {
+                    if (!(entry.object instanceof TLRPC.Chat) && nameEntry.username != null && nameEntry.username.startsWith(q)) {
+                        byUsername = true;
+                    } else {
+                        continue;
+                    }
+                }
+                TLRPC.TL_dialog dialog = messagesController.dialogs_dict.get(entry.dialogId);
+                int date = dialog != null ? dialog.last_message_date : entry.dialogDate;
+                boolean hasDialog = dialog != null || entry.dialogDate != 0;
+                TLRPC.User user = null;
+                if (entry.object instanceof TLRPC.User) {
+                    if (dialogsType == 2 || !hasDialog && contactsController.contactsDict.get((int) entry.dialogId) == null) {
+                        continue;
+                    }
+                } else if (entry.object instanceof TLRPC.Chat) {
+                    TLRPC.Chat chat = (TLRPC.Chat) entry.object;
+                    if (!hasDialog || chat.deactivated || ChatObject.isChannel(chat) && ChatObject.isNotInChat(chat)) {
+                        continue;
+                    }
+                } else if (entry.object instanceof TLRPC.EncryptedChat) {
+                    if (dialogsType != 0 || !hasDialog || !(nameEntry.object instanceof TLRPC.User)) {
+                        continue;
+                    }
+                    user = (TLRPC.User) nameEntry.object;
+                } else {
+                    continue;
+                }
+                entry.searchStamp = stamp;
+                Double rating = ratings.get(entry.dialogId);
+                Result result = new Result();
+                result.object = entry.object;
+                result.user = user;
+                result.query = q;
+                result.byUsername = byUsername;
+                result.date = date;
+                result.score = (date != 0 ? 2 * Math.exp(Math.min(0, date - now) / RECENCY_DECAY) : 0) + (rating != null && maxRating > 0 ? rating / maxRating : 0);
+                results.add(result);
+            }
+        }
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result lhs, Result rhs) {
+                if (lhs.score != rhs.score) {
+                    return lhs.score > rhs.score ? -1 : 1;
+                }
+                if (lhs.date != rhs.date) {
+                    return lhs.date > rhs.date ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+        return results;
+    }
+}
@@ -28,6 +28,7 @@ import org.blaez.tgnet.TLObject;
 import org.blaez.tgnet.TLRPC;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -40,6 +41,19 @@ public class SharedMediaQuery {
     public final static int MEDIA_MUSIC = 4;
     public final static int MEDIA_TYPES_COUNT = 5;
 
+    private final static int MUSIC_PAGE_SIZE = 100;
+
+    private static class PrefetchedMedia {
+        long uid;
+        int type;
+        int maxId;
+        int count;
+        TLRPC.TL_messages_messages res;
+        boolean topReached;
+    }
+
+    private static volatile PrefetchedMedia prefetchedMedia;
+
     public static void loadMedia(final long uid, final int offset, final int count, final int max_id, final int type, final boolean fromCache, final int classGuid) {
         final boolean isChannel = (int) uid < 0 && ChatObject.isChannel(-(int) uid);
 
@@ -293,122 +307,14 @@ public class SharedMediaQuery {
             public void run() {
                 boolean topReached = false;
                 TLRPC.TL_messages_messages res = new TLRPC.TL_messages_messages();
+                PrefetchedMedia prefetched = prefetchedMedia;
+                prefetchedMedia = null;
                 try {
-                    ArrayList<Integer> usersToLoad = new ArrayList<>();
-                    ArrayList<Integer> chatsToLoad = new ArrayList<>();
-                    int countToLoad = count + 1;
-
-                    SQLiteCursor cursor;
-                    SQLiteDatabase database = MessagesStorage.getInstance().getDatabase();
-                    boolean isEnd = false;
-                    if ((int) uid != 0) {
-                        int channelId = 0;
-                        long messageMaxId = max_id;
-                        if (isChannel) {
-                            channelId = -(int) uid;
-                        }
-                        if (messageMaxId != 0 && channelId != 0) {
-                            messageMaxId |= ((long) channelId) << 32;
-                        }
-
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM media_holes_v2 WHERE uid = %d AND type = %d AND start IN (0, 1)", uid, type));
-                        if (cursor.next()) {
-                            isEnd = cursor.intValue(0) == 1;
-                            cursor.dispose();
-                        } else {
-                            cursor.dispose();
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM media_v2 WHERE uid = %d AND type = %d AND mid > 0", uid, type));
-                            if (cursor.next()) {
-                                int mid = cursor.intValue(0);
-                                if (mid != 0) {
-                                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
-                                    state.requery();
-                                    state.bindLong(1, uid);
-                                    state.bindInteger(2, type);
-                                    state.bindInteger(3, 0);
-                                    state.bindInteger(4, mid);
-                                    state.step();
-                                    state.dispose();
-                                }
-                            }
-                            cursor.dispose();
-                        }
-
-                        if (messageMaxId != 0) {
-                            long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT end FROM media_holes_v2 WHERE uid = %d AND type = %d AND end <= %d ORDER BY end DESC LIMIT 1", uid, type, max_id));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
-                                if (channelId != 0) {
-                                    holeMessageId |= ((long) channelId) << 32;
-                                }
-                            }
-                            cursor.dispose();
-                            if (holeMessageId > 1) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid > 0 AND mid < %d AND mid >= %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d", uid, messageMaxId, holeMessageId, type, countToLoad));
-                            } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid > 0 AND mid < %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d", uid, messageMaxId, type, countToLoad));
-                            }
-                        } else {
-                            long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(end) FROM media_holes_v2 WHERE uid = %d AND type = %d", uid, type));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
-                                if (channelId != 0) {
-                                    holeMessageId |= ((long) channelId) << 32;
-                                }
-                            }
-                            cursor.dispose();
-                            if (holeMessageId > 1) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid >= %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d,%d", uid, holeMessageId, type, offset, countToLoad));
-                            } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid > 0 AND type = %d ORDER BY date DESC, mid DESC LIMIT %d,%d", uid, type, offset, countToLoad));
-                            }
-                        }
+                    if (prefetched != null && prefetched.uid == uid && prefetched.type == type && prefetched.maxId == max_id && prefetched.count == count && offset == 0) {
+                        res = prefetched.res;
+                        topReached = prefetched.topReached;
                     } else {
-                        isEnd = true;
-                        if (max_id != 0) {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.data, m.mid, r.random_id FROM media_v2 as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d AND type = %d ORDER BY m.mid ASC LIMIT %d", uid, max_id, type, countToLoad));
-                        } else {
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.data, m.mid, r.random_id FROM media_v2 as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND type = %d ORDER BY m.mid ASC LIMIT %d,%d", uid, type, offset, countToLoad));
-                        }
-                    }
-
-                    while (cursor.next()) {
-                        NativeByteBuffer data = cursor.byteBufferValue(0);
-                        if (data != null) {
-                            TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
-                            data.reuse();
-                            message.id = cursor.intValue(1);
-                            message.dialog_id = uid;
-                            if ((int) uid == 0) {
-                                message.random_id = cursor.longValue(2);
-                            }
-                            res.messages.add(message);
-                            if (message.from_id > 0) {
-                                if (!usersToLoad.contains(message.from_id)) {
-                                    usersToLoad.add(message.from_id);
-                                }
-                            } else {
-                                if (!chatsToLoad.contains(-message.from_id)) {
-                                    chatsToLoad.add(-message.from_id);
-                                }
-                            }
-                        }
-                    }
-                    cursor.dispose();
-
-                    if (!usersToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), res.users);
-                    }
-                    if (!chatsToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), res.chats);
-                    }
-                    if (res.messages.size() > count) {
-                        topReached = false;
-                        res.messages.remove(res.messages.size() - 1);
-                    } else {
-                        topReached = isEnd;
+                        topReached = loadMediaDatabaseInternal(uid, offset, count, max_id, type, isChannel, res);
                     }
                 } catch (Exception e) {
                     res.messages.clear();
@@ -418,14 +324,186 @@ public class SharedMediaQuery {
                 } finally {
                     processLoadedMedia(res, uid, offset, count, max_id, type, true, classGuid, isChannel, topReached);
                 }
+                if (!topReached && !res.messages.isEmpty() && (int) uid != 0) {
+                    int nextMaxId = Integer.MAX_VALUE;
+                    for (int a = 0; a < res.messages.size(); a++) {
+                        nextMaxId = Math.min(nextMaxId, res.messages.get(a).id);
+                    }
+                    prefetchMediaDatabase(uid, count, nextMaxId, type, isChannel);
+                }
             }
         });
     }
 
+    /**
+     * Loads the page the media list will most likely ask for next while the current one is being
+     * shown. The page is dropped as soon as anything else is loaded or media_v2 is modified.
+     */
+    private static void prefetchMediaDatabase(final long uid, final int count, final int max_id, final int type, final boolean isChannel) {
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                PrefetchedMedia prefetched = new PrefetchedMedia();
+                prefetched.uid = uid;
+                prefetched.type = type;
+                prefetched.maxId = max_id;
+                prefetched.count = count;
+                prefetched.res = new TLRPC.TL_messages_messages();
+                try {
+                    prefetched.topReached = loadMediaDatabaseInternal(uid, 0, count, max_id, type, isChannel, prefetched.res);
+                    if (!prefetched.res.messages.isEmpty()) {
+                        prefetchedMedia = prefetched;
+                    }
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+            }
+        });
+    }
+
+    public static void invalidatePrefetchedMedia() {
+        prefetchedMedia = null;
+    }
+
+    /**
+     * Pages are ordered by (date, mid), so the next page starts after the date of max_id and not
+     * just below its id. Falls back to the id alone when max_id is not in media_v2.
+     */
+    private static String getKeysetCondition(SQLiteDatabase database, long uid, long messageMaxId) throws Exception {
+        String condition = String.format(Locale.US, "mid < %d", messageMaxId);
+        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT date FROM media_v2 WHERE mid = %d AND uid = %d", messageMaxId, uid));
+        if (cursor.next()) {
+            int date = cursor.intValue(0);
+            condition = String.format(Locale.US, "date <= %d AND (date < %d OR mid < %d)", date, date, messageMaxId);
+        }
+        cursor.dispose();
+        return condition;
+    }
+
+    private static boolean loadMediaDatabaseInternal(long uid, int offset, int count, int max_id, int type, boolean isChannel, TLRPC.TL_messages_messages res) throws Exception {
+        ArrayList<Integer> usersToLoad = new ArrayList<>();
+        ArrayList<Integer> chatsToLoad = new ArrayList<>();
+        int countToLoad = count + 1;
+
+        SQLiteCursor cursor;
+        SQLiteDatabase database = MessagesStorage.getInstance().getDatabase();
+        boolean isEnd = false;
+        if ((int) uid != 0) {
+            int channelId = 0;
+            long messageMaxId = max_id;
+            if (isChannel) {
+                channelId = -(int) uid;
+            }
+            if (messageMaxId != 0 && channelId != 0) {
+                messageMaxId |= ((long) channelId) << 32;
+            }
+
+            cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM media_holes_v2 WHERE uid = %d AND type = %d AND start IN (0, 1)", uid, type));
+            if (cursor.next()) {
+                isEnd = cursor.intValue(0) == 1;
+                cursor.dispose();
+            } else {
+                cursor.dispose();
+                cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM media_v2 WHERE uid = %d AND type = %d AND mid > 0", uid, type));
+                if (cursor.next()) {
+                    int mid = cursor.intValue(0);
+                    if (mid != 0) {
+                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
+                        state.requery();
+                        state.bindLong(1, uid);
+                        state.bindInteger(2, type);
+                        state.bindInteger(3, 0);
+                        state.bindInteger(4, mid);
+                        state.step();
+                        state.dispose();
+                    }
+                }
+                cursor.dispose();
+            }
+
+            if (messageMaxId != 0) {
+                long holeMessageId = 0;
+                cursor = database.queryFinalized(String.format(Locale.US, "SELECT end FROM media_holes_v2 WHERE uid = %d AND type = %d AND end <= %d ORDER BY end DESC LIMIT 1", uid, type, max_id));
+                if (cursor.next()) {
+                    holeMessageId = cursor.intValue(0);
+                    if (channelId != 0) {
+                        holeMessageId |= ((long) channelId) << 32;
+                    }
+                }
+                cursor.dispose();
+                String keyset = getKeysetCondition(database, uid, messageMaxId);
+                if (holeMessageId > 1) {
+                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND type = %d AND %s AND mid > 0 AND mid >= %d ORDER BY date DESC, mid DESC LIMIT %d", uid, type, keyset, holeMessageId, countToLoad));
+                } else {
+                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND type = %d AND %s AND mid > 0 ORDER BY date DESC, mid DESC LIMIT %d", uid, type, keyset, countToLoad));
+                }
+            } else {
+                long holeMessageId = 0;
+                cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(end) FROM media_holes_v2 WHERE uid = %d AND type = %d", uid, type));
+                if (cursor.next()) {
+                    holeMessageId = cursor.intValue(0);
+                    if (channelId != 0) {
+                        holeMessageId |= ((long) channelId) << 32;
+                    }
+                }
+                cursor.dispose();
+                if (holeMessageId > 1) {
+                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid >= %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d,%d", uid, holeMessageId, type, offset, countToLoad));
+                } else {
+                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid > 0 AND type = %d ORDER BY date DESC, mid DESC LIMIT %d,%d", uid, type, offset, countToLoad));
+                }
+            }
+        } else {
+            isEnd = true;
+            if (max_id != 0) {
+                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.data, m.mid, r.random_id FROM media_v2 as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d AND type = %d ORDER BY m.mid ASC LIMIT %d", uid, max_id, type, countToLoad));
+            } else {
+                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.data, m.mid, r.random_id FROM media_v2 as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND type = %d ORDER BY m.mid ASC LIMIT %d,%d", uid, type, offset, countToLoad));
+            }
+        }
+
+        while (cursor.next()) {
+            NativeByteBuffer data = cursor.byteBufferValue(0);
+            if (data != null) {
+                TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                data.reuse();
+                message.id = cursor.intValue(1);
+                message.dialog_id = uid;
+                if ((int) uid == 0) {
+                    message.random_id = cursor.longValue(2);
+                }
+                res.messages.add(message);
+                if (message.from_id > 0) {
+                    if (!usersToLoad.contains(message.from_id)) {
+                        usersToLoad.add(message.from_id);
+                    }
+                } else {
+                    if (!chatsToLoad.contains(-message.from_id)) {
+                        chatsToLoad.add(-message.from_id);
+                    }
+                }
+            }
+        }
+        cursor.dispose();
+
+        if (!usersToLoad.isEmpty()) {
+            MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), res.users);
+        }
+        if (!chatsToLoad.isEmpty()) {
+            MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), res.chats);
+        }
+        if (res.messages.size() > count) {
+            res.messages.remove(res.messages.size() - 1);
+            return false;
+        }
+        return isEnd;
+    }
+
     private static void putMediaDatabase(final long uid, final int type, final ArrayList<TLRPC.Message> messages, final int max_id, final boolean topReached) {
         MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
             @Override
             public void run() {
+                invalidatePrefetchedMedia();
                 try {
                     if (messages.isEmpty() || topReached) {
                         MessagesStorage.getInstance().doneHolesInMedia(uid, max_id, type);
@@ -472,34 +550,47 @@ public class SharedMediaQuery {
         });
     }
 
+    /**
+     * Loads one page of music older than max_id. The page is posted oldest first together with
+     * the max_id of the next page, which is 0 when there is nothing older left.
+     */
     public static void loadMusic(final long uid, final int max_id) {
         MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
             @Override
             public void run() {
                 final ArrayList<MessageObject> arrayList = new ArrayList<>();
+                int rows = 0;
+                int nextMaxId = max_id;
                 try {
-                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid < %d AND type = %d ORDER BY date DESC, mid DESC LIMIT 1000", uid, max_id, MEDIA_MUSIC));
+                    SQLiteDatabase database = MessagesStorage.getInstance().getDatabase();
+                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND type = %d AND %s ORDER BY date DESC, mid DESC LIMIT %d", uid, MEDIA_MUSIC, getKeysetCondition(database, uid, max_id), MUSIC_PAGE_SIZE));
 
                     while (cursor.next()) {
+                        rows++;
+                        int mid = cursor.intValue(1);
+                        nextMaxId = mid;
                         NativeByteBuffer data = cursor.byteBufferValue(0);
                         if (data != null) {
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             data.reuse();
                             if (MessageObject.isMusicMessage(message)) {
-                                message.id = cursor.intValue(1);
+                                message.id = mid;
                                 message.dialog_id = uid;
-                                arrayList.add(0, new MessageObject(message, null, false));
+                                arrayList.add(new MessageObject(message, null, false));
                             }
                         }
                     }
                     cursor.dispose();
+                    Collections.reverse(arrayList);
                 } catch (Exception e) {
                     FileLog.e(e);
+                    rows = 0;
                 }
+                final int nextMaxIdFinal = rows < MUSIC_PAGE_SIZE ? 0 : nextMaxId;
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.musicDidLoaded, uid, arrayList);
+                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.musicDidLoaded, uid, arrayList, nextMaxIdFinal);
                     }
                 });
             }
@@ -15,6 +15,7 @@ import org.blaez.ziosgram.BuildVars;
 import org.blaez.ziosgram.ContactsController;
 import org.blaez.ziosgram.ApplicationLoader;
 import org.blaez.ziosgram.FileLog;
+import org.blaez.ziosgram.MetricsRegistry;
 import org.blaez.ZiosGram.messagesController;
 import org.blaez.ziosgram.NotificationCenter;
 import org.blaez.ziosgram.StatsController;
@@ -68,6 +69,9 @@ public class ConnectionsManager {
     private AtomicInteger lastRequestToken = new AtomicInteger(1);
     private PowerManager.WakeLock wakeLock;
     private int appResumeCount;
+    private volatile RequestReplay requestReplay;
+    private static final MetricsRegistry.Histogram decodeHistogram = MetricsRegistry.histogram("tl.decode", 16000);
+    private static final MetricsRegistry.Counter responseBytes = MetricsRegistry.counter("tl.response_bytes");
 
     private static volatile ConnectionsManager Instance = null;
 
@@ -94,6 +98,14 @@ public class ConnectionsManager {
         }
     }
 
+    public void setRequestReplay(RequestReplay replay) {
+        requestReplay = replay;
+    }
+
+    public RequestReplay getRequestReplay() {
+        return requestReplay;
+    }
+
     public long getCurrentTimeMillis() {
         return native_getCurrentTimeMillis();
     }
@@ -127,7 +139,13 @@ public class ConnectionsManager {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                FileLog.d("send request " + object + " with token = " + requestToken);
+                if (FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+                    FileLog.d("send request " + object + " with token = " + requestToken);
+                }
+                final RequestReplay replay = requestReplay;
+                if (replay != null && replay.isReplaying() && replay.serve(object, onComplete)) {
+                    return;
+                }
                 try {
                     NativeByteBuffer buffer = new NativeByteBuffer(object.getObjectSize());
                     object.serializeToStream(buffer);
@@ -142,17 +160,29 @@ public class ConnectionsManager {
                                 if (response != 0) {
                                     NativeByteBuffer buff = NativeByteBuffer.wrap(response);
                                     buff.reused = true;
+                                    if (replay != null) {
+                                        replay.record(object, buff);
+                                    }
+                                    long startTime = MetricsRegistry.enabled ? System.nanoTime() : 0;
                                     resp = object.deserializeResponse(buff, buff.readInt32(true), true);
+                                    if (startTime != 0) {
+                                        decodeHistogram.recordSince(startTime);
+                                        responseBytes.add(buff.limit());
+                                    }
                                 } else if (errorText != null) {
                                     error = new TLRPC.TL_error();
                                     error.code = errorCode;
                                     error.text = errorText;
-                                    FileLog.e(object + " got error " + error.code + " " + error.text);
+                                    if (FileLog.isLoggable(FileLog.LEVEL_ERROR)) {
+                                        FileLog.e(object + " got error " + error.code + " " + error.text);
+                                    }
                                 }
                                 if (resp != null) {
                                     resp.networkType = networkType;
                                 }
-                                FileLog.d("java received " + resp + " error = " + error);
+                                if (FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+                                    FileLog.d("java received " + resp + " error = " + error);
+                                }
                                 final TLObject finalResponse = resp;
                                 final TLRPC.TL_error finalError = error;
                                 Utilities.stageQueue.postRunnable(new Runnable() {
@@ -249,13 +279,13 @@ public class ConnectionsManager {
     public void setAppPaused(final boolean value, final boolean byScreenState) {
         if (!byScreenState) {
             appPaused = value;
-            FileLog.d("app paused = " + value);
+            FileLog.d("app paused = {}", value);
             if (value) {
                 appResumeCount--;
             } else {
                 appResumeCount++;
             }
-            FileLog.d("app resume count " + appResumeCount);
+            FileLog.d("app resume count {}", appResumeCount);
             if (appResumeCount < 0) {
                 appResumeCount = 0;
             }
@@ -284,7 +314,9 @@ public class ConnectionsManager {
             buff.reused = true;
             final TLObject message = TLClassStore.Instance().TLdeserialize(buff, buff.readInt32(true), true);
             if (message instanceof TLRPC.Updates) {
-                FileLog.d("java received " + message);
+                if (FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+                    FileLog.d("java received " + message);
+                }
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
@@ -0,0 +1,367 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.tgnet;
+
+import org.blaez.ziosgram.AndroidUtilities;
+import org.blaez.ziosgram.ApplicationLoader;
+import org.blaez.ziosgram.FileLog;
+import org.blaez.ziosgram.MessagesController;
+import org.blaez.ziosgram.MessagesStorage;
+import org.blaez.ziosgram.MessagesWindowCache;
+import org.blaez.ziosgram.Utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Debug tool that records the responses of sync requests into a file and later serves them back instead
+ * of the network, starting from the same update state, so the cost of applying a sync can be measured
+ * on the same data again and again. Handler time is measured per request type on the stage queue, the
+ * total time ends when the storage queue has drained everything the handlers posted.
+ *
+ * The replay runs against a copy of cache4.db, so replayed messages, dialogs and channel state never
+ * reach the user's cache, and no notifications are shown. The live update state is kept aside and put
+ * back together with the live database when the replay stops or runs out of responses, then a normal
+ * getDifference catches up with the server.
+ */
+public class RequestReplay {
+
+    private static final int FILE_VERSION = 1;
+
+    private static final String[] syncRequests = {
+            "TL_messages_getDialogs",
+            "TL_messages_getPeerDialogs",
+            "TL_messages_getHistory",
+            "TL_messages_getMessages",
+            "TL_channels_getMessages",
+            "TL_updates_getState",
+            "TL_updates_getDifference",
+            "TL_updates_getChannelDifference",
+            "TL_contacts_getContacts"
+    };
+
+    private static volatile RequestReplay activeReplay;
+
+    private static class Stats {
+        int count;
+        long bytes;
+        long totalTime;
+        long maxTime;
+    }
+
+    private final boolean replaying;
+    private final File file;
+    private DataOutputStream output;
+    private HashMap<String, ArrayList<byte[]>> responses = new HashMap<>();
+    private HashMap<String, Stats> stats = new HashMap<>();
+    private long startTime;
+    private long startMemory;
+    private int[] state = new int[4];
+    private int[] liveState;
+
+    private RequestReplay(File file, boolean replay) {
+        this.file = file;
+        replaying = replay;
+    }
+
+    /**
+     * True from the start of a replay until the live database and update state are back, the update state
+     * must not be persisted then.
+     */
+    public static boolean isReplayActive() {
+        return activeReplay != null;
+    }
+
+    public static File getDefaultFile() {
+        return new File(ApplicationLoader.getFilesDirFixed(), "sync_replay.dat");
+    }
+
+    public static void startRecording(File file) {
+        RequestReplay replay = new RequestReplay(file, false);
+        try {
+            replay.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            replay.output.writeInt(FILE_VERSION);
+            replay.output.writeInt(MessagesStorage.lastSeqValue);
+            replay.output.writeInt(MessagesStorage.lastPtsValue);
+            replay.output.writeInt(MessagesStorage.lastDateValue);
+            replay.output.writeInt(MessagesStorage.lastQtsValue);
+        } catch (Exception e) {
+            FileLog.e(e);
+            return;
+        }
+        if (FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+            FileLog.d("start recording sync requests to " + file);
+        }
+        ConnectionsManager.getInstance().setRequestReplay(replay);
+    }
+
+    public static void startReplay(final File file) {
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                final RequestReplay replay = new RequestReplay(file, true);
+                if (!replay.load()) {
+                    return;
+                }
+                replay.liveState = new int[]{MessagesStorage.lastSeqValue, MessagesStorage.lastPtsValue, MessagesStorage.lastDateValue, MessagesStorage.lastQtsValue};
+                MessagesStorage.getInstance().openReplayDatabase(new Runnable() {
+                    @Override
+                    public void run() {
+                        MessagesWindowCache.getInstance().invalidateAll();
+                        activeReplay = replay;
+                        ConnectionsManager.getInstance().setRequestReplay(replay);
+                        Runtime runtime = Runtime.getRuntime();
+                        replay.startMemory = runtime.totalMemory() - runtime.freeMemory();
+                        replay.startTime = System.currentTimeMillis();
+                        MessagesStorage.lastSeqValue = replay.state[0];
+                        MessagesStorage.lastPtsValue = replay.state[1];
+                        MessagesStorage.lastDateValue = replay.state[2];
+                        MessagesStorage.lastQtsValue = replay.state[3];
+                        MessagesController.getInstance().gettingDifference = false;
+                        MessagesController.getInstance().getDifference();
+                    }
+                });
+            }
+        });
+    }
+
+    public static void stop() {
+        final RequestReplay replay = ConnectionsManager.getInstance().getRequestReplay();
+        if (replay == null) {
+            return;
+        }
+        if (replay.replaying) {
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    replay.finish();
+                }
+            });
+        } else {
+            replay.finish();
+        }
+    }
+
+    private static String getKey(TLObject request) {
+        String name = request.getClass().getSimpleName();
+        if (request instanceof TLRPC.TL_updates_getChannelDifference) {
+            TLRPC.InputChannel channel = ((TLRPC.TL_updates_getChannelDifference) request).channel;
+            return name + ":" + (channel != null ? channel.channel_id : 0);
+        }
+        return name;
+    }
+
+    private static boolean isSyncRequest(TLObject request) {
+        String name = request.getClass().getSimpleName();
+        for (int a = 0; a < syncRequests.length; a++) {
+            if (syncRequests[a].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean load() {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != FILE_VERSION) {
+                return false;
+            }
+            for (int a = 0; a < state.length; a++) {
+                state[a] = input.readInt();
+            }
+            while (true) {
+                String key;
+                try {
+                    key = input.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+                ArrayList<byte[]> arrayList = responses.get(key);
+                if (arrayList == null) {
+                    arrayList = new ArrayList<>();
+                    responses.put(key, arrayList);
+                }
+                arrayList.add(data);
+            }
+        } catch (Exception e) {
+            FileLog.e(e);
+            return false;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (Exception e) {
+                    FileLog.e(e);
+                }
+            }
+        }
+        return true;
+    }
+
+    boolean isReplaying() {
+        return replaying;
+    }
+
+    /**
+     * Called on the network thread with the raw response before it is deserialized, the buffer position
+     * is restored afterwards.
+     */
+    synchronized void record(TLObject request, NativeByteBuffer buffer) {
+        if (output == null || !isSyncRequest(request)) {
+            return;
+        }
+        try {
+            int position = buffer.position();
+            byte[] data = new byte[buffer.limit() - position];
+            buffer.readBytes(data, true);
+            buffer.position(position);
+            output.writeUTF(getKey(request));
+            output.writeInt(data.length);
+            output.write(data);
+        } catch (Exception e) {
+            FileLog.e(e);
+        }
+    }
+
+    /**
+     * Called on the stage queue for every request while replaying.
+     *
+     * @return true if the request was answered from the recording.
+     */
+    boolean serve(TLObject request, RequestDelegate onComplete) {
+        if (!isSyncRequest(request)) {
+            return false;
+        }
+        String key = getKey(request);
+        ArrayList<byte[]> arrayList = responses.get(key);
+        TLObject response = null;
+        TLRPC.TL_error error = null;
+        byte[] data = null;
+        NativeByteBuffer buffer = null;
+        if (arrayList == null || arrayList.isEmpty()) {
+            finish();
+            error = new TLRPC.TL_error();
+            error.code = 400;
+            error.text = "REPLAY_EXHAUSTED";
+        } else {
+            data = arrayList.remove(0);
+            try {
+                buffer = new NativeByteBuffer(data.length);
+                buffer.writeBytes(data);
+                buffer.position(0);
+                response = request.deserializeResponse(buffer, buffer.readInt32(true), true);
+            } catch (Exception e) {
+                FileLog.e(e);
+                if (buffer != null) {
+                    buffer.reuse();
+                }
+                return false;
+            }
+        }
+        long time = System.nanoTime();
+        onComplete.run(response, error);
+        time = (System.nanoTime() - time) / 1000;
+        if (response != null) {
+            response.freeResources();
+        }
+        if (buffer != null) {
+            buffer.reuse();
+        }
+        Stats stat = stats.get(key);
+        if (stat == null) {
+            stat = new Stats();
+            stats.put(key, stat);
+        }
+        stat.count++;
+        stat.bytes += data != null ? data.length : 0;
+        stat.totalTime += time;
+        stat.maxTime = Math.max(stat.maxTime, time);
+        return true;
+    }
+
+    /**
+     * Uninstalls the replay, while replaying it runs on the stage queue and switches back to the live database
+     * and update state once the storage queue has written what the replay posted.
+     */
+    private synchronized void finish() {
+        if (ConnectionsManager.getInstance().getRequestReplay() == this) {
+            ConnectionsManager.getInstance().setRequestReplay(null);
+        }
+        if (output != null) {
+            try {
+                output.close();
+            } catch (Exception e) {
+                FileLog.e(e);
+            }
+            output = null;
+            if (FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+                FileLog.d("recorded sync requests to " + file + ", " + file.length() + " bytes");
+            }
+        }
+        if (!replaying || startTime == 0) {
+            return;
+        }
+        final long handlersEndTime = System.currentTimeMillis();
+        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (!FileLog.isLoggable(FileLog.LEVEL_DEBUG)) {
+                    return;
+                }
+                long endTime = System.currentTimeMillis();
+                Runtime runtime = Runtime.getRuntime();
+                int count = 0;
+                long bytes = 0;
+                StringBuilder builder = new StringBuilder();
+                for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+                    Stats stat = entry.getValue();
+                    count += stat.count;
+                    bytes += stat.bytes;
+                    builder.append(String.format("\n%s: %d responses, %d bytes, handler %d us avg, %d us max", entry.getKey(), stat.count, stat.bytes, stat.totalTime / stat.count, stat.maxTime));
+                }
+                FileLog.d(String.format("sync replay of %d responses, %d bytes: handlers done in %d ms, storage drained in %d ms, %d responses/sec, heap delta %d KB%s",
+                        count, bytes, handlersEndTime - startTime, endTime - startTime, count * 1000 / Math.max(1, endTime - startTime),
+                        (runtime.totalMemory() - runtime.freeMemory() - startMemory) / 1024, builder));
+            }
+        });
+        startTime = 0;
+        MessagesStorage.getInstance().closeReplayDatabase(new Runnable() {
+            @Override
+            public void run() {
+                MessagesWindowCache.getInstance().invalidateAll();
+                MessagesStorage.lastSeqValue = liveState[0];
+                MessagesStorage.lastPtsValue = liveState[1];
+                MessagesStorage.lastDateValue = liveState[2];
+                MessagesStorage.lastQtsValue = liveState[3];
+                activeReplay = null;
+                MessagesController.getInstance().gettingDifference = false;
+                MessagesController.getInstance().getDifference();
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        MessagesController.getInstance().loadDialogs(0, 100, true);
+                    }
+                });
+            }
+        });
+    }
+}
@@ -10,295 +10,295 @@ package org.blaez.tgnet;
 
 import org.blaez.ziosgram.FileLog;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 public class SerializedData extends AbstractSerializedData {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_CAPACITY = 32;
+    private static final int MAX_REUSED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<SerializedData> serializer = new ThreadLocal<SerializedData>() {
+        @Override
+        protected SerializedData initialValue() {
+            return new SerializedData(1024);
+        }
+    };
+
     protected boolean isOut = true;
-    private ByteArrayOutputStream outbuf;
-    private DataOutputStream out;
-    private ByteArrayInputStream inbuf;
-    private DataInputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
     private boolean justCalc = false;
     private int len;
 
     public SerializedData() {
-        outbuf = new ByteArrayOutputStream();
-        out = new DataOutputStream(outbuf);
+        this(DEFAULT_CAPACITY);
     }
 
     public SerializedData(boolean calculate) {
         if (!calculate) {
-            outbuf = new ByteArrayOutputStream();
-            out = new DataOutputStream(outbuf);
+            buffer = new byte[DEFAULT_CAPACITY];
         }
         justCalc = calculate;
         len = 0;
     }
 
     public SerializedData(int size) {
-        outbuf = new ByteArrayOutputStream(size);
-        out = new DataOutputStream(outbuf);
+        buffer = new byte[Math.max(size, 4)];
     }
 
     public SerializedData(byte[] data) {
-        isOut = false;
-        inbuf = new ByteArrayInputStream(data);
-        in = new DataInputStream(inbuf);
-        len = 0;
-    }
-
-    public void cleanup() {
-        try {
-            if (inbuf != null) {
-                inbuf.close();
-                inbuf = null;
-            }
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
-        try {
-            if (in != null) {
-                in.close();
-                in = null;
-            }
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
-        try {
-            if (outbuf != null) {
-                outbuf.close();
-                outbuf = null;
-            }
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
-        try {
-            if (out != null) {
-                out.close();
-                out = null;
-            }
-        } catch (Exception e) {
-            FileLog.e(e);
-        }
+        set(data);
     }
 
     public SerializedData(File file) throws Exception {
         FileInputStream is = new FileInputStream(file);
-        byte[] data = new byte[(int)file.length()];
+        byte[] data = new byte[(int) file.length()];
         new DataInputStream(is).readFully(data);
         is.close();
+        set(data);
+    }
+
+    /**
+     * Serializes the object in a single pass into a reused per-thread buffer and returns
+     * an exactly sized copy, so callers no longer have to call getObjectSize() first.
+     */
+    public static byte[] serialize(TLObject object) {
+        SerializedData data = serializer.get();
+        data.rewind();
+        object.serializeToStream(data);
+        byte[] result = data.toByteArray();
+        if (data.buffer.length > MAX_REUSED_CAPACITY) {
+            data.buffer = new byte[1024];
+        }
+        data.rewind();
+        return result;
+    }
 
-        isOut = false;
-        inbuf = new ByteArrayInputStream(data);
-        in = new DataInputStream(inbuf);
+    public void cleanup() {
+        buffer = null;
+        position = 0;
+        limit = 0;
     }
 
-    public void writeInt32(int x) {
-        if (!justCalc) {
-            writeInt32(x, out);
-        } else {
-            len += 4;
-        }
+    public void rewind() {
+        position = 0;
+        len = 0;
     }
 
-    private void writeInt32(int x, DataOutputStream out) {
-        try {
-            for(int i = 0; i < 4; i++) {
-                out.write(x >> (i * 8));
+    private void ensureCapacity(int count) {
+        int required = position + count;
+        if (required > buffer.length) {
+            int newCapacity = buffer.length << 1;
+            if (newCapacity < required) {
+                newCapacity = required;
             }
-        } catch(Exception e) {
-            FileLog.e("write int32 error");
+            buffer = Arrays.copyOf(buffer, newCapacity);
         }
     }
 
-    public void writeInt64(long i) {
+    private void checkAvailable(int count) {
+        if (count < 0 || position + count > limit) {
+            throw new IndexOutOfBoundsException("read " + count + " bytes at " + position + ", limit " + limit);
+        }
+    }
+
+    public void writeInt32(int x) {
         if (!justCalc) {
-            writeInt64(i, out);
+            ensureCapacity(4);
+            byte[] b = buffer;
+            int p = position;
+            b[p] = (byte) x;
+            b[p + 1] = (byte) (x >> 8);
+            b[p + 2] = (byte) (x >> 16);
+            b[p + 3] = (byte) (x >> 24);
+            position = p + 4;
         } else {
-            len += 8;
+            len += 4;
         }
     }
 
-    private void writeInt64(long x, DataOutputStream out) {
-        try {
-            for(int i = 0; i < 8; i++) {
-                out.write((int)(x >> (i * 8)));
+    public void writeInt64(long x) {
+        if (!justCalc) {
+            ensureCapacity(8);
+            byte[] b = buffer;
+            int p = position;
+            for (int i = 0; i < 8; i++) {
+                b[p + i] = (byte) (x >> (i * 8));
             }
-        } catch(Exception e) {
-            FileLog.e("write int64 error");
+            position = p + 8;
+        } else {
+            len += 8;
         }
     }
 
     public void writeBool(boolean value) {
-        if (!justCalc) {
-            if (value) {
-                writeInt32(0x997275b5);
-            } else {
-                writeInt32(0xbc799737);
-            }
+        if (value) {
+            writeInt32(0x997275b5);
         } else {
-            len += 4;
+            writeInt32(0xbc799737);
         }
     }
 
     public void writeBytes(byte[] b) {
-        try {
-            if (!justCalc) {
-                out.write(b);
-            } else {
-                len += b.length;
-            }
-        } catch (Exception e) {
-            FileLog.e("write raw error");
-        }
+        writeBytes(b, 0, b.length);
     }
 
     public void writeBytes(byte[] b, int offset, int count) {
-        try {
-            if (!justCalc) {
-                out.write(b, offset, count);
-            } else {
-                len += count;
-            }
-        } catch (Exception e) {
-            FileLog.e("write bytes error");
+        if (!justCalc) {
+            ensureCapacity(count);
+            System.arraycopy(b, offset, buffer, position, count);
+            position += count;
+        } else {
+            len += count;
         }
     }
 
     public void writeByte(int i) {
-        try {
-            if (!justCalc) {
-                out.writeByte((byte) i);
-            } else {
-                len += 1;
-            }
-        } catch (Exception e) {
-            FileLog.e("write byte error");
-        }
+        writeByte((byte) i);
     }
 
     public void writeByte(byte b) {
-        try {
-            if (!justCalc) {
-                out.writeByte(b);
-            } else {
-                len += 1;
-            }
-        } catch (Exception e) {
-            FileLog.e("write byte error");
+        if (!justCalc) {
+            ensureCapacity(1);
+            buffer[position++] = b;
+        } else {
+            len += 1;
         }
     }
 
-    public void writeByteArray(byte[] b) {
-        try {
-            if (b.length <= 253) {
-                if (!justCalc) {
-                    out.write(b.length);
-                } else {
-                    len += 1;
-                }
-            } else {
-                if (!justCalc) {
-                    out.write(254);
-                    out.write(b.length);
-                    out.write(b.length >> 8);
-                    out.write(b.length >> 16);
-                } else {
-                    len += 4;
-                }
-            }
+    private void writeByteArrayHeader(int count) {
+        if (count <= 253) {
+            writeByte(count);
+        } else {
             if (!justCalc) {
-                out.write(b);
+                ensureCapacity(4);
+                buffer[position] = (byte) 254;
+                buffer[position + 1] = (byte) count;
+                buffer[position + 2] = (byte) (count >> 8);
+                buffer[position + 3] = (byte) (count >> 16);
+                position += 4;
             } else {
-                len += b.length;
+                len += 4;
             }
-            int i = b.length <= 253 ? 1 : 4;
-            while((b.length + i) % 4 != 0) {
-                if (!justCalc) {
-                    out.write(0);
-                } else {
-                    len += 1;
-                }
-                i++;
-            }
-        } catch (Exception e) {
-            FileLog.e("write byte array error");
         }
     }
 
-    public void writeString(String s) {
-        try {
-            writeByteArray(s.getBytes("UTF-8"));
-        } catch(Exception e) {
-            FileLog.e("write string error");
+    private void writeByteArrayPadding(int count) {
+        int i = count <= 253 ? 1 : 4;
+        int padding = (4 - (count + i) % 4) % 4;
+        if (padding == 0) {
+            return;
+        }
+        if (!justCalc) {
+            ensureCapacity(padding);
+            for (int a = 0; a < padding; a++) {
+                buffer[position++] = 0;
+            }
+        } else {
+            len += padding;
         }
     }
 
+    public void writeByteArray(byte[] b) {
+        writeByteArray(b, 0, b.length);
+    }
+
     public void writeByteArray(byte[] b, int offset, int count) {
-        try {
-            if(count <= 253) {
-                if (!justCalc) {
-                    out.write(count);
-                } else {
-                    len += 1;
-                }
+        writeByteArrayHeader(count);
+        writeBytes(b, offset, count);
+        writeByteArrayPadding(count);
+    }
+
+    public void writeString(String s) {
+        if (s == null) {
+            FileLog.e("write string error");
+            return;
+        }
+        int count = getUtf8Length(s);
+        writeByteArrayHeader(count);
+        if (!justCalc) {
+            ensureCapacity(count);
+            position = encodeUtf8(s, buffer, position);
+        } else {
+            len += count;
+        }
+        writeByteArrayPadding(count);
+    }
+
+    private static int getUtf8Length(String s) {
+        int length = s.length();
+        int count = 0;
+        for (int a = 0; a < length; a++) {
+            char c = s.charAt(a);
+            if (c < 0x80) {
+                count++;
+            } else if (c < 0x800) {
+                count += 2;
+            } else if (Character.isHighSurrogate(c) && a + 1 < length && Character.isLowSurrogate(s.charAt(a + 1))) {
+                count += 4;
+                a++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                count++;
             } else {
-                if (!justCalc) {
-                    out.write(254);
-                    out.write(count);
-                    out.write(count >> 8);
-                    out.write(count >> 16);
-                } else {
-                    len += 4;
-                }
+                count += 3;
             }
-            if (!justCalc) {
-                out.write(b, offset, count);
+        }
+        return count;
+    }
+
+    private static int encodeUtf8(String s, byte[] b, int p) {
+        int length = s.length();
+        for (int a = 0; a < length; a++) {
+            char c = s.charAt(a);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xc0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && a + 1 < length && Character.isLowSurrogate(s.charAt(a + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++a));
+                b[p++] = (byte) (0xf0 | (codePoint >> 18));
+                b[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                b[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                b[p++] = '?';
             } else {
-                len += count;
+                b[p++] = (byte) (0xe0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
             }
-            int i = count <= 253 ? 1 : 4;
-            while ((count + i) % 4 != 0) {
-                if (!justCalc) {
-                    out.write(0);
-                } else {
-                    len += 1;
-                }
-                i++;
-            }
-        } catch (Exception e) {
-            FileLog.e("write byte array error");
         }
+        return p;
     }
 
     public void writeDouble(double d) {
-        try {
-            writeInt64(Double.doubleToRawLongBits(d));
-        } catch(Exception e) {
-            FileLog.e("write double error");
-        }
+        writeInt64(Double.doubleToRawLongBits(d));
     }
 
     public int length() {
         if (!justCalc) {
-            return isOut ? outbuf.size() : inbuf.available();
+            return isOut ? position : limit - position;
         }
         return len;
     }
 
     protected void set(byte[] newData) {
         isOut = false;
-        inbuf = new ByteArrayInputStream(newData);
-        in = new DataInputStream(inbuf);
+        buffer = newData;
+        position = 0;
+        limit = newData.length;
+        len = 0;
     }
 
     public byte[] toByteArray() {
-        return outbuf.toByteArray();
+        return Arrays.copyOf(buffer, position);
     }
 
     public void skip(int count) {
@@ -306,12 +306,8 @@ public class SerializedData extends AbstractSerializedData {
             return;
         }
         if (!justCalc) {
-            if (in != null) {
-                try {
-                    in.skipBytes(count);
-                } catch (Exception e) {
-                    FileLog.e(e);
-                }
+            if (!isOut && buffer != null) {
+                position = Math.min(limit, position + count);
             }
         } else {
             len += count;
@@ -319,7 +315,7 @@ public class SerializedData extends AbstractSerializedData {
     }
 
     public int getPosition() {
-        return len;
+        return justCalc ? len : position;
     }
 
     public boolean readBool(boolean exception) {
@@ -339,8 +335,9 @@ public class SerializedData extends AbstractSerializedData {
 
     public void readBytes(byte[] b, boolean exception) {
         try {
-            in.read(b);
-            len += b.length;
+            checkAvailable(b.length);
+            System.arraycopy(buffer, position, b, 0, b.length);
+            position += b.length;
         } catch (Exception e) {
             if (exception) {
                 throw new RuntimeException("read bytes error", e);
@@ -356,26 +353,30 @@ public class SerializedData extends AbstractSerializedData {
         return arr;
     }
 
+    private int readByteArrayLength() {
+        checkAvailable(1);
+        int l = buffer[position++] & 0xff;
+        if (l >= 254) {
+            checkAvailable(3);
+            l = (buffer[position] & 0xff) | ((buffer[position + 1] & 0xff) << 8) | ((buffer[position + 2] & 0xff) << 16);
+            position += 3;
+        }
+        return l;
+    }
+
+    private void skipByteArrayPadding(int l) {
+        int sl = l <= 253 ? 1 : 4;
+        position = Math.min(limit, position + (4 - (l + sl) % 4) % 4);
+    }
+
     public String readString(boolean exception) {
         try {
-            int sl = 1;
-            int l = in.read();
-            len++;
-            if(l >= 254) {
-                l = in.read() | (in.read() << 8) | (in.read() << 16);
-                len += 3;
-                sl = 4;
-            }
-            byte[] b = new byte[l];
-            in.read(b);
-            len++;
-            int i=sl;
-            while((l + i) % 4 != 0) {
-                in.read();
-                len++;
-                i++;
-            }
-            return new String(b, "UTF-8");
+            int l = readByteArrayLength();
+            checkAvailable(l);
+            String result = new String(buffer, position, l, UTF8);
+            position += l;
+            skipByteArrayPadding(l);
+            return result;
         } catch (Exception e) {
             if (exception) {
                 throw new RuntimeException("read string error", e);
@@ -388,23 +389,12 @@ public class SerializedData extends AbstractSerializedData {
 
     public byte[] readByteArray(boolean exception) {
         try {
-            int sl = 1;
-            int l = in.read();
-            len++;
-            if (l >= 254) {
-                l = in.read() | (in.read() << 8) | (in.read() << 16);
-                len += 3;
-                sl = 4;
-            }
+            int l = readByteArrayLength();
+            checkAvailable(l);
             byte[] b = new byte[l];
-            in.read(b);
-            len++;
-            int i = sl;
-            while((l + i) % 4 != 0) {
-                in.read();
-                len++;
-                i++;
-            }
+            System.arraycopy(buffer, position, b, 0, l);
+            position += l;
+            skipByteArrayPadding(l);
             return b;
         } catch (Exception e) {
             if (exception) {
@@ -419,7 +409,7 @@ public class SerializedData extends AbstractSerializedData {
     public double readDouble(boolean exception) {
         try {
             return Double.longBitsToDouble(readInt64(exception));
-        } catch(Exception e) {
+        } catch (Exception e) {
             if (exception) {
                 throw new RuntimeException("read double error", e);
             } else {
@@ -431,13 +421,12 @@ public class SerializedData extends AbstractSerializedData {
 
     public int readInt32(boolean exception) {
         try {
-            int i = 0;
-            for(int j = 0; j < 4; j++) {
-                i |= (in.read() << (j * 8));
-                len++;
-            }
-            return i;
-        } catch(Exception e) {
+            checkAvailable(4);
+            byte[] b = buffer;
+            int p = position;
+            position = p + 4;
+            return (b[p] & 0xff) | ((b[p + 1] & 0xff) << 8) | ((b[p + 2] & 0xff) << 16) | ((b[p + 3] & 0xff) << 24);
+        } catch (Exception e) {
             if (exception) {
                 throw new RuntimeException("read int32 error", e);
             } else {
@@ -449,11 +438,14 @@ public class SerializedData extends AbstractSerializedData {
 
     public long readInt64(boolean exception) {
         try {
+            checkAvailable(8);
+            byte[] b = buffer;
+            int p = position;
             long i = 0;
-            for(int j = 0; j < 8; j++) {
-                i |= ((long)in.read() << (j * 8));
-                len++;
+            for (int j = 0; j < 8; j++) {
+                i |= ((long) (b[p + j] & 0xff) << (j * 8));
             }
+            position = p + 8;
             return i;
         } catch (Exception e) {
             if (exception) {
@@ -26,6 +26,7 @@ import org.blaez.ziosgram.LocaleController;
 import org.blaez.ZiosGram.messageObject;
 import org.blaez.ZiosGram.messagesController;
 import org.blaez.ZiosGram.messagesStorage;
+import org.blaez.ziosgram.query.PeerSearchIndex;
 import org.blaez.ziosgram.query.SearchQuery;
 import org.blaez.ziosgram.support.widget.LinearLayoutManager;
 import org.blaez.ziosgram.support.widget.RecyclerView;
@@ -172,6 +173,7 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
         dialogsType = type;
         loadRecentSearch();
         SearchQuery.loadHints(true);
+        PeerSearchIndex.getInstance().load();
     }
 
     public RecyclerListView getInnerListView() {
@@ -480,10 +482,71 @@ public class DialogsSearchAdapter extends RecyclerListView.SelectionAdapter {
         notifyDataSetChanged();
     }
 
+    private void searchDialogsIndex(String query, int searchId) {
+        String search1 = query.trim().toLowerCase();
+        if (search1.length() == 0) {
+            lastSearchId = -1;
+            updateSearchResults(new ArrayList<TLObject>(), new ArrayList<CharSequence>(), new ArrayList<TLRPC.User>(), lastSearchId);
+            return;
+        }
+        String search2 = LocaleController.getInstance().getTranslitString(search1);
+        if (search1.equals(search2) || search2.length() == 0) {
+            search2 = null;
+        }
+        String search[] = new String[1 + (search2 != null ? 1 : 0)];
+        search[0] = search1;
+        if (search2 != null) {
+            search[1] = search2;
+        }
+
+        ArrayList<PeerSearchIndex.Result> results = PeerSearchIndex.getInstance().search(search, dialogsType);
+        ArrayList<TLObject> resultArray = new ArrayList<>(results.size());
+        ArrayList<CharSequence> resultArrayNames = new ArrayList<>(results.size());
+        ArrayList<TLRPC.User> encUsers = new ArrayList<>();
+        for (int a = 0; a < results.size(); a++) {
+            PeerSearchIndex.Result result = results.get(a);
+            CharSequence name;
+            if (result.object instanceof TLRPC.User) {
+                TLRPC.User user = (TLRPC.User) result.object;
+                if (!result.byUsername) {
+                    name = AndroidUtilities.generateSearchName(user.first_name, user.last_name, result.query);
+                } else {
+                    name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + result.query);
+                }
+            } else if (result.object instanceof TLRPC.Chat) {
+                name = AndroidUtilities.generateSearchName(((TLRPC.Chat) result.object).title, null, result.query);
+            } else {
+                TLRPC.User user = result.user;
+                if (!result.byUsername) {
+                    name = new SpannableStringBuilder(ContactsController.formatName(user.first_name, user.last_name));
+                    ((SpannableStringBuilder) name).setSpan(new ForegroundColorSpan(Theme.getColor(Theme.key_chats_secretName)), 0, name.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                } else {
+                    name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + result.query);
+                }
+                encUsers.add(user);
+            }
+            resultArray.add(result.object);
+            resultArrayNames.add(name);
+        }
+        updateSearchResults(resultArray, resultArrayNames, encUsers, searchId);
+    }
+
     private void searchDialogsInternal(final String query, final int searchId) {
         if (needMessagesSearch == 2) {
             return;
         }
+        if (PeerSearchIndex.getInstance().isLoaded()) {
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (searchId == lastSearchId) {
+                        searchDialogsIndex(query, searchId);
+                    }
+                }
+            });
+            return;
+        }
+        PeerSearchIndex.getInstance().load();
         MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -30,10 +30,12 @@ import org.blaez.ziosgram.FileLoader;
 import org.blaez.ziosgram.FileLog;
 import org.blaez.ziosgram.ImageLoader;
 import org.blaez.ziosgram.LocaleController;
+import org.blaez.ziosgram.MessagesWindowCache;
 import org.blaez.ZiosGram.messagesStorage;
 import org.blaez.ziosgram.R;
 import org.blaez.ziosgram.Utilities;
 import org.blaez.ziosgram.query.BotQuery;
+import org.blaez.ziosgram.query.SharedMediaQuery;
 import org.blaez.ziosgram.support.widget.LinearLayoutManager;
 import org.blaez.ziosgram.support.widget.RecyclerView;
 import org.blaez.tgnet.NativeByteBuffer;
@@ -409,6 +411,8 @@ public class CacheControlActivity extends BaseFragment {
                                                 database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
                                                 database.executeFast("DELETE FROM media_v2 WHERE uid = " + did).stepThis().dispose();
                                                 database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
+                                                MessagesWindowCache.getInstance().invalidate(did);
+                                                SharedMediaQuery.invalidatePrefetchedMedia();
                                                 BotQuery.clearBotKeyboard(did, null);
                                                 if (messageId != -1) {
                                                     MessagesStorage.createFirstHoles(did, state5, state6, messageId);
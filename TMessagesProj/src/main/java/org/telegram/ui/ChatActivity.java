@@ -769,7 +769,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
 
         if (currentUser != null) {
-            userBlocked = MessagesController.getInstance().blockedUsers.contains(currentUser.id);
+            userBlocked = MessagesController.getInstance().isUserBlocked(currentUser.id);
         }
 
         if (AndroidUtilities.isTablet()) {
@@ -5039,9 +5039,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 if (data != null) {
                     Uri uri = data.getData();
                     if (uri != null) {
-                        FileLog.d("video record uri " + uri.toString());
+                        FileLog.d("video record uri {}", uri);
                         videoPath = AndroidUtilities.getPath(uri);
-                        FileLog.d("resolved path = " + videoPath);
+                        FileLog.d("resolved path = {}", videoPath);
                         if (!(new File(videoPath).exists())) {
                             videoPath = currentPicturePath;
                         }
@@ -6559,7 +6559,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         } else if (id == NotificationCenter.blockedUsersDidLoaded) {
             if (currentUser != null) {
                 boolean oldValue = userBlocked;
-                userBlocked = MessagesController.getInstance().blockedUsers.contains(currentUser.id);
+                userBlocked = MessagesController.getInstance().isUserBlocked(currentUser.id);
                 if (oldValue != userBlocked) {
                     updateBottomOverlay();
                 }
@@ -7669,7 +7669,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
             showReplyPanel(false, null, null, null, false);
         }
         if (replyingMessageObject == null && draftReplyMessage != null) {
-            replyingMessageObject = new MessageObject(draftReplyMessage, MessagesController.getInstance().getUsers(), false);
+            replyingMessageObject = new MessageObject(draftReplyMessage, null, false);
             showReplyPanel(true, replyingMessageObject, null, null, false);
         }
     }
@@ -27,9 +27,7 @@ import org.blaez.ziosgram.AndroidUtilities;
 import org.blaez.ziosgram.FileLog;
 
 import java.io.File;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
 
 public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
 
@@ -40,6 +38,7 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     private long lastFrameTime;
     private int lastTimeStamp;
     private int invalidateAfter = 50;
+    private static final int OFFSCREEN_TIMEOUT = 500;
     private final int[] metaData = new int[4];
     private Runnable loadFrameTask;
     private Bitmap renderingBitmap;
@@ -51,6 +50,18 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     private boolean recycleWithSecond;
 
     private long lastFrameDecodeTime;
+    private long lastFrameShowTime;
+    private long lastDrawTime;
+    private boolean pausedOffscreen;
+    private boolean isActive;
+
+    private volatile AnimatedFileScheduler.FrameSet frameSet;
+    private int frameSetIndex;
+    private Bitmap cachedFrame;
+    private boolean collectFrames;
+    private ArrayList<Bitmap> collectedFrames;
+    private ArrayList<Integer> collectedTimestamps;
+    private int collectedSize;
 
     private RectF actualDrawRect = new RectF();
 
@@ -71,7 +82,6 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     private volatile boolean isRunning;
     private volatile boolean isRecycled;
     private volatile int nativePtr;
-    private static ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new ThreadPoolExecutor.DiscardPolicy());
 
     private View parentView = null;
     private View secondParentView = null;
@@ -91,23 +101,31 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         @Override
         public void run() {
             if (destroyWhenDone && nativePtr != 0) {
-                destroyDecoder(nativePtr);
-                nativePtr = 0;
+                releaseDecoder();
             }
             if (nativePtr == 0) {
-                if (renderingBitmap != null) {
-                    renderingBitmap.recycle();
-                    renderingBitmap = null;
-                }
-                if (backgroundBitmap != null) {
-                    backgroundBitmap.recycle();
-                    backgroundBitmap = null;
-                }
+                recycleBitmaps();
                 return;
             }
             loadFrameTask = null;
-            nextRenderingBitmap = backgroundBitmap;
-            nextRenderingShader = backgroundShader;
+            if (cachedFrame != null) {
+                nextRenderingBitmap = cachedFrame;
+                nextRenderingShader = null;
+                cachedFrame = null;
+                setActive(false);
+                AnimatedFileScheduler.getInstance().onCachedFrameShown();
+            } else {
+                nextRenderingBitmap = backgroundBitmap;
+                nextRenderingShader = backgroundShader;
+            }
+            long now = System.currentTimeMillis();
+            if (lastFrameShowTime != 0 && invalidateAfter > 0) {
+                int dropped = (int) ((now - lastFrameShowTime) / invalidateAfter) - 1;
+                if (dropped > 0) {
+                    AnimatedFileScheduler.getInstance().onFramesDropped(dropped);
+                }
+            }
+            lastFrameShowTime = now;
             if (metaData[3] < lastTimeStamp) {
                 lastTimeStamp = 0;
             }
@@ -120,6 +138,12 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
             } else if (parentView != null) {
                 parentView.invalidate();
             }
+            if (now - lastDrawTime > Math.max(OFFSCREEN_TIMEOUT, invalidateAfter * 4)) {
+                pausedOffscreen = true;
+                lastFrameShowTime = 0;
+                setActive(false);
+                return;
+            }
             scheduleNextGetFrame();
         }
     };
@@ -129,8 +153,35 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         public void run() {
             if (!isRecycled) {
                 if (!decoderCreated && nativePtr == 0) {
-                    nativePtr = createDecoder(path.getAbsolutePath(), metaData);
-                    decoderCreated = true;
+                    openDecoder();
+                }
+                AnimatedFileScheduler.FrameSet currentFrameSet = frameSet;
+                if (currentFrameSet == null && nativePtr != 0) {
+                    currentFrameSet = AnimatedFileScheduler.getInstance().getFrameSet(path.getAbsolutePath());
+                    if (currentFrameSet != null) {
+                        frameSetIndex = 0;
+                        for (int a = 0; a < currentFrameSet.timestamps.length; a++) {
+                            if (currentFrameSet.timestamps[a] > metaData[3]) {
+                                frameSetIndex = a;
+                                break;
+                            }
+                        }
+                        collectFrames = false;
+                        collectedFrames = null;
+                        collectedTimestamps = null;
+                        frameSet = currentFrameSet;
+                    }
+                }
+                if (currentFrameSet != null) {
+                    if (frameSetIndex >= currentFrameSet.frames.length) {
+                        frameSetIndex = 0;
+                    }
+                    lastFrameDecodeTime = System.currentTimeMillis();
+                    cachedFrame = currentFrameSet.frames[frameSetIndex];
+                    metaData[3] = currentFrameSet.timestamps[frameSetIndex];
+                    frameSetIndex++;
+                    AndroidUtilities.runOnUIThread(uiRunnable);
+                    return;
                 }
                 try {
                     if (backgroundBitmap == null) {
@@ -145,8 +196,12 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
                     }
                     if (backgroundBitmap != null) {
                         lastFrameDecodeTime = System.currentTimeMillis();
+                        int previousTimeStamp = metaData[3];
                         getVideoFrame(nativePtr, backgroundBitmap, metaData);
-
+                        AnimatedFileScheduler.getInstance().onFrameDecoded(System.currentTimeMillis() - lastFrameDecodeTime);
+                        if (collectFrames) {
+                            collectFrame(previousTimeStamp);
+                        }
                     }
                 } catch (Throwable e) {
                     FileLog.e(e);
@@ -170,8 +225,76 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     public AnimatedFileDrawable(File file, boolean createDecoder) {
         path = file;
         if (createDecoder) {
-            nativePtr = createDecoder(file.getAbsolutePath(), metaData);
-            decoderCreated = true;
+            openDecoder();
+        }
+    }
+
+    private void openDecoder() {
+        nativePtr = AnimatedFileScheduler.getInstance().obtainDecoder(path.getAbsolutePath(), metaData);
+        if (nativePtr == 0) {
+            nativePtr = createDecoder(path.getAbsolutePath(), metaData);
+            collectFrames = AnimatedFileScheduler.getInstance().shouldCollectFrames(path.getAbsolutePath());
+        }
+        decoderCreated = true;
+    }
+
+    private void releaseDecoder() {
+        int ptr = AnimatedFileScheduler.getInstance().releaseDecoder(path.getAbsolutePath(), nativePtr, metaData);
+        if (ptr != 0) {
+            destroyDecoder(ptr);
+        }
+        nativePtr = 0;
+    }
+
+    private void recycleBitmaps() {
+        renderingBitmap = null;
+        nextRenderingBitmap = null;
+        if (backgroundBitmap != null) {
+            backgroundBitmap.recycle();
+            backgroundBitmap = null;
+        }
+    }
+
+    private void collectFrame(int previousTimeStamp) {
+        if (collectedFrames == null) {
+            collectedFrames = new ArrayList<>();
+            collectedTimestamps = new ArrayList<>();
+            collectedSize = 0;
+        }
+        AnimatedFileScheduler scheduler = AnimatedFileScheduler.getInstance();
+        if (!collectedFrames.isEmpty() && metaData[3] < previousTimeStamp) {
+            scheduler.putFrameSet(path.getAbsolutePath(), collectedFrames, collectedTimestamps, metaData);
+            collectFrames = false;
+            collectedFrames = null;
+            collectedTimestamps = null;
+            return;
+        }
+        Bitmap frame = null;
+        try {
+            frame = backgroundBitmap.copy(Bitmap.Config.ARGB_8888, false);
+        } catch (Throwable e) {
+            FileLog.e(e);
+        }
+        if (frame != null) {
+            collectedSize += frame.getByteCount();
+        }
+        if (frame == null || collectedSize > scheduler.getMaxFrameSetSize() || collectedFrames.size() >= scheduler.getMaxCachedFrames()) {
+            if (frame != null) {
+                scheduler.markUncacheable(path.getAbsolutePath());
+            }
+            collectFrames = false;
+            collectedFrames = null;
+            collectedTimestamps = null;
+            return;
+        }
+        collectedFrames.add(frame);
+        collectedTimestamps.add(metaData[3]);
+    }
+
+    private void setActive(boolean active) {
+        if (isActive != active) {
+            isActive = active;
+            AnimatedFileScheduler.getInstance().setActive(active);
         }
     }
 
@@ -193,19 +316,12 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         }
         isRunning = false;
         isRecycled = true;
+        setActive(false);
         if (loadFrameTask == null) {
             if (nativePtr != 0) {
-                destroyDecoder(nativePtr);
-                nativePtr = 0;
-            }
-            if (renderingBitmap != null) {
-                renderingBitmap.recycle();
-                renderingBitmap = null;
-            }
-            if (nextRenderingBitmap != null) {
-                nextRenderingBitmap.recycle();
-                nextRenderingBitmap = null;
+                releaseDecoder();
             }
+            recycleBitmaps();
         } else {
             destroyWhenDone = true;
         }
@@ -239,6 +355,9 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
             return;
         }
         isRunning = true;
+        lastDrawTime = System.currentTimeMillis();
+        lastFrameShowTime = 0;
+        pausedOffscreen = false;
         scheduleNextGetFrame();
         runOnUiThread(mStartTask);
     }
@@ -247,16 +366,23 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         if (loadFrameTask != null || nativePtr == 0 && decoderCreated || destroyWhenDone || !isRunning) {
             return;
         }
+        AnimatedFileScheduler scheduler = AnimatedFileScheduler.getInstance();
+        int interval = invalidateAfter;
+        if (frameSet == null) {
+            setActive(true);
+            interval = scheduler.getFrameInterval(invalidateAfter);
+        }
         long ms = 0;
         if (lastFrameDecodeTime != 0) {
-            ms = Math.min(invalidateAfter, Math.max(0, invalidateAfter - (System.currentTimeMillis() - lastFrameDecodeTime)));
+            ms = Math.min(interval, Math.max(0, interval - (System.currentTimeMillis() - lastFrameDecodeTime)));
         }
-        executor.schedule(loadFrameTask = loadFrameRunnable, ms, TimeUnit.MILLISECONDS);
+        scheduler.schedule(loadFrameTask = loadFrameRunnable, ms);
     }
 
     @Override
     public void stop() {
         isRunning = false;
+        setActive(false);
     }
 
     @Override
@@ -286,8 +412,12 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
             return;
         }
         long now = System.currentTimeMillis();
+        lastDrawTime = now;
         if (isRunning) {
-            if (renderingBitmap == null && nextRenderingBitmap == null) {
+            if (pausedOffscreen) {
+                pausedOffscreen = false;
+                scheduleNextGetFrame();
+            } else if (renderingBitmap == null && nextRenderingBitmap == null) {
                 scheduleNextGetFrame();
             } else if (Math.abs(now - lastFrameTime) >= invalidateAfter) {
                 if (nextRenderingBitmap != null) {
@@ -318,7 +448,7 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
                 float scale = Math.max(scaleX, scaleY);
 
                 if (renderingShader == null) {
-                    renderingShader = new BitmapShader(backgroundBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                    renderingShader = new BitmapShader(renderingBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
                 }
                 getPaint().setShader(renderingShader);
                 roundRect.set(dstRect);
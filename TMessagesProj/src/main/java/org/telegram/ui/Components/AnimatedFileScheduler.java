@@ -0,0 +1,232 @@
+/*
+ * This is the source code of ZiosGram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2017.
+ */
+
+package org.blaez.ui.Components;
+
+import android.graphics.Bitmap;
+
+import org.blaez.ziosgram.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared playback scheduler for all {@link AnimatedFileDrawable}s. It owns the decode threads,
+ * stretches frame intervals when the visible drawables need more decode time than the threads
+ * have, keeps a few idle decoders per file for cells that are rebound while scrolling and caches
+ * the decoded frames of short loops, so every drawable of such a file stops decoding. Files whose
+ * loop turned out too long or too big are remembered, so their frames aren't copied again.
+ */
+public class AnimatedFileScheduler {
+
+    private static final int DECODE_THREADS = 2;
+    private static final float DECODE_BUDGET = 0.75f;
+    private static final int MAX_IDLE_DECODERS = 4;
+    private static final int MAX_CACHED_FRAMES = 120;
+    private static final int MAX_UNCACHEABLE_FILES = 256;
+
+    public static class FrameSet {
+        public final Bitmap[] frames;
+        public final int[] timestamps;
+        public final int[] metaData;
+        final int size;
+
+        FrameSet(ArrayList<Bitmap> frames, ArrayList<Integer> timestamps, int[] metaData) {
+            this.frames = frames.toArray(new Bitmap[frames.size()]);
+            this.timestamps = new int[timestamps.size()];
+            for (int a = 0; a < this.timestamps.length; a++) {
+                this.timestamps[a] = timestamps.get(a);
+            }
+            this.metaData = metaData.clone();
+            int bytes = 0;
+            for (int a = 0; a < this.frames.length; a++) {
+                bytes += this.frames[a].getByteCount();
+            }
+            size = bytes;
+        }
+    }
+
+    private static class IdleDecoder {
+        String path;
+        int ptr;
+        int[] metaData;
+    }
+
+    private ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(DECODE_THREADS, new ThreadPoolExecutor.DiscardPolicy());
+    private LinkedHashMap<String, FrameSet> frameSets = new LinkedHashMap<>(8, 0.75f, true);
+    private LinkedHashMap<String, Boolean> uncacheableFiles = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_UNCACHEABLE_FILES;
+        }
+    };
+    private ArrayList<IdleDecoder> idleDecoders = new ArrayList<>();
+    private int frameSetsSize;
+    private int maxFrameSetsSize;
+
+    private int activeDrawables;
+    private float averageDecodeTime;
+    private final MetricsRegistry.Histogram decodeHistogram = MetricsRegistry.histogram("animated.decode");
+    private final MetricsRegistry.Counter droppedFrames = MetricsRegistry.counter("animated.dropped_frames");
+    private final MetricsRegistry.Counter cachedFramesShown = MetricsRegistry.counter("animated.cached_frames_shown");
+    private final MetricsRegistry.Counter uncacheableLoops = MetricsRegistry.counter("animated.uncacheable_loops");
+
+    private static volatile AnimatedFileScheduler Instance = null;
+
+    public static AnimatedFileScheduler getInstance() {
+        AnimatedFileScheduler localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (AnimatedFileScheduler.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new AnimatedFileScheduler();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public AnimatedFileScheduler() {
+        maxFrameSetsSize = (int) Math.min(12 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    public void schedule(Runnable runnable, long delay) {
+        executor.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void setActive(boolean active) {
+        if (active) {
+            activeDrawables++;
+        } else if (activeDrawables > 0) {
+            activeDrawables--;
+        }
+    }
+
+    /**
+     * Returns the interval to use for the next frame. It's the natural interval unless the
+     * decoding drawables together would need more than the decode budget, in which case all
+     * of them are slowed down by the same factor.
+     */
+    public synchronized int getFrameInterval(int invalidateAfter) {
+        if (invalidateAfter <= 0 || activeDrawables <= 1) {
+            return invalidateAfter;
+        }
+        float required = activeDrawables * averageDecodeTime;
+        float available = invalidateAfter * DECODE_THREADS * DECODE_BUDGET;
+        if (required <= available) {
+            return invalidateAfter;
+        }
+        return (int) (invalidateAfter * required / available);
+    }
+
+    public synchronized void onFrameDecoded(long decodeTime) {
+        averageDecodeTime = averageDecodeTime == 0 ? decodeTime : averageDecodeTime * 0.9f + decodeTime * 0.1f;
+        if (MetricsRegistry.enabled) {
+            decodeHistogram.record(decodeTime * 1000);
+        }
+    }
+
+    public void onFramesDropped(int count) {
+        if (MetricsRegistry.enabled) {
+            droppedFrames.add(count);
+        }
+    }
+
+    public void onCachedFrameShown() {
+        if (MetricsRegistry.enabled) {
+            cachedFramesShown.increment();
+        }
+    }
+
+    public synchronized int obtainDecoder(String path, int[] metaData) {
+        for (int a = idleDecoders.size() - 1; a >= 0; a--) {
+            IdleDecoder decoder = idleDecoders.get(a);
+            if (decoder.path.equals(path)) {
+                idleDecoders.remove(a);
+                System.arraycopy(decoder.metaData, 0, metaData, 0, metaData.length);
+                return decoder.ptr;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Keeps a decoder that is no longer used for a later drawable of the same file.
+     *
+     * @return a decoder the caller has to destroy, either the given one or an evicted one, or 0.
+     */
+    public synchronized int releaseDecoder(String path, int ptr, int[] metaData) {
+        if (ptr == 0) {
+            return 0;
+        }
+        IdleDecoder decoder = new IdleDecoder();
+        decoder.path = path;
+        decoder.ptr = ptr;
+        decoder.metaData = metaData.clone();
+        idleDecoders.add(decoder);
+        if (idleDecoders.size() > MAX_IDLE_DECODERS) {
+            return idleDecoders.remove(0).ptr;
+        }
+        return 0;
+    }
+
+    public synchronized FrameSet getFrameSet(String path) {
+        return frameSets.get(path);
+    }
+
+    /**
+     * Whether a new decoder of the file should copy its frames for a frame set.
+     */
+    public synchronized boolean shouldCollectFrames(String path) {
+        return !frameSets.containsKey(path) && !uncacheableFiles.containsKey(path);
+    }
+
+    /**
+     * Remembers a file whose loop doesn't fit into a frame set.
+     */
+    public synchronized void markUncacheable(String path) {
+        if (uncacheableFiles.put(path, true) == null && MetricsRegistry.enabled) {
+            uncacheableLoops.increment();
+        }
+    }
+
+    public int getMaxFrameSetSize() {
+        return maxFrameSetsSize / 4;
+    }
+
+    public int getMaxCachedFrames() {
+        return MAX_CACHED_FRAMES;
+    }
+
+    /**
+     * Cached frames are shared between drawables, so evicted sets are left to the garbage
+     * collector instead of being recycled while someone may still draw them.
+     */
+    public synchronized void putFrameSet(String path, ArrayList<Bitmap> frames, ArrayList<Integer> timestamps, int[] metaData) {
+        if (frames.isEmpty() || frameSets.containsKey(path)) {
+            return;
+        }
+        FrameSet frameSet = new FrameSet(frames, timestamps, metaData);
+        if (frameSet.size > getMaxFrameSetSize()) {
+            markUncacheable(path);
+            return;
+        }
+        frameSets.put(path, frameSet);
+        frameSetsSize += frameSet.size;
+        Iterator<Map.Entry<String, FrameSet>> iterator = frameSets.entrySet().iterator();
+        while (frameSetsSize > maxFrameSetsSize && iterator.hasNext()) {
+            frameSetsSize -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+}
@@ -45,6 +45,7 @@ import org.blaez.ZiosGram.messagesStorage;
 import org.blaez.ziosgram.NotificationCenter;
 import org.blaez.ziosgram.R;
 import org.blaez.ziosgram.SendMessagesHelper;
+import org.blaez.ziosgram.query.PeerSearchIndex;
 import org.blaez.ziosgram.support.widget.GridLayoutManager;
 import org.blaez.ziosgram.support.widget.RecyclerView;
 import org.blaez.tgnet.ConnectionsManager;
@@ -562,9 +563,68 @@ public class ShareAlert extends BottomSheet implements NotificationCenter.Notifi
 
         public ShareSearchAdapter(Context context) {
             this.context = context;
+            PeerSearchIndex.getInstance().load();
+        }
+
+        private void searchDialogsIndex(String query, int searchId) {
+            String search1 = query.trim().toLowerCase();
+            if (search1.length() == 0) {
+                lastSearchId = -1;
+                updateSearchResults(new ArrayList<DialogSearchResult>(), lastSearchId);
+                return;
+            }
+            String search2 = LocaleController.getInstance().getTranslitString(search1);
+            if (search1.equals(search2) || search2.length() == 0) {
+                search2 = null;
+            }
+            String search[] = new String[1 + (search2 != null ? 1 : 0)];
+            search[0] = search1;
+            if (search2 != null) {
+                search[1] = search2;
+            }
+
+            ArrayList<PeerSearchIndex.Result> results = PeerSearchIndex.getInstance().search(search, 1);
+            ArrayList<DialogSearchResult> searchResults = new ArrayList<>(results.size());
+            for (int a = 0; a < results.size(); a++) {
+                PeerSearchIndex.Result result = results.get(a);
+                DialogSearchResult dialogSearchResult = new DialogSearchResult();
+                if (result.object instanceof TLRPC.User) {
+                    TLRPC.User user = (TLRPC.User) result.object;
+                    if (!result.byUsername) {
+                        dialogSearchResult.name = AndroidUtilities.generateSearchName(user.first_name, user.last_name, result.query);
+                    } else {
+                        dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + result.query);
+                    }
+                    dialogSearchResult.dialog.id = user.id;
+                } else if (result.object instanceof TLRPC.Chat) {
+                    TLRPC.Chat chat = (TLRPC.Chat) result.object;
+                    if (ChatObject.isNotInChat(chat) || ChatObject.isChannel(chat) && !chat.creator && !chat.editor && !chat.megagroup) {
+                        continue;
+                    }
+                    dialogSearchResult.name = AndroidUtilities.generateSearchName(chat.title, null, result.query);
+                    dialogSearchResult.dialog.id = -chat.id;
+                } else {
+                    continue;
+                }
+                dialogSearchResult.object = result.object;
+                searchResults.add(dialogSearchResult);
+            }
+            updateSearchResults(searchResults, searchId);
         }
 
         private void searchDialogsInternal(final String query, final int searchId) {
+            if (PeerSearchIndex.getInstance().isLoaded()) {
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (searchId == lastSearchId) {
+                            searchDialogsIndex(query, searchId);
+                        }
+                    }
+                });
+                return;
+            }
+            PeerSearchIndex.getInstance().load();
             MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
                 @Override
                 public void run() {
@@ -15,6 +15,8 @@ import android.os.Handler;
 import android.view.TextureView;
 
 import org.blaez.ziosgram.ApplicationLoader;
+import org.blaez.ziosgram.FileStreamDataSource;
+import org.blaez.ziosgram.VideoCacheController;
 import org.blaez.ziosgram.exoplayer2.DefaultLoadControl;
 import org.blaez.ziosgram.exoplayer2.ExoPlaybackException;
 import org.blaez.ziosgram.exoplayer2.ExoPlayer;
@@ -63,6 +65,8 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
     private MappingTrackSelector trackSelector;
     private Handler mainHandler;
     private DataSource.Factory mediaDataSourceFactory;
+    private DataSource.Factory cachedDataSourceFactory;
+    private DataSource.Factory streamDataSourceFactory;
     private TextureView textureView;
     private boolean autoplay;
 
@@ -78,6 +82,8 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
 
     public VideoPlayer() {
         mediaDataSourceFactory = new DefaultDataSourceFactory(ApplicationLoader.applicationContext, BANDWIDTH_METER, new DefaultHttpDataSourceFactory("Mozilla/5.0 (X11; Linux x86_64; rv:10.0) Gecko/20150101 Firefox/47.0 (Chrome)", BANDWIDTH_METER));
+        cachedDataSourceFactory = VideoCacheController.getInstance().createDataSourceFactory(mediaDataSourceFactory);
+        streamDataSourceFactory = new FileStreamDataSource.Factory();
 
         mainHandler = new Handler();
 
@@ -97,6 +103,41 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
         }
     }
 
+    /**
+     * Factory for manifests and progressive files. Manifests of adaptive streams change and must not be cached,
+     * their segments are loaded with {@link #getMediaDataSourceFactory(Uri)}.
+     */
+    private DataSource.Factory getDataSourceFactory(Uri uri, String type) {
+        if (FileStreamDataSource.SCHEME.equals(uri.getScheme())) {
+            return streamDataSourceFactory;
+        }
+        if (VideoCacheController.isCacheableUri(uri) && !"dash".equals(type) && !"hls".equals(type) && !"ss".equals(type)) {
+            return cachedDataSourceFactory;
+        }
+        return mediaDataSourceFactory;
+    }
+
+    private DataSource.Factory getMediaDataSourceFactory(Uri uri) {
+        if (VideoCacheController.isCacheableUri(uri)) {
+            return cachedDataSourceFactory;
+        }
+        return mediaDataSourceFactory;
+    }
+
+    private MediaSource buildMediaSource(Uri uri, String type) {
+        DataSource.Factory dataSourceFactory = getDataSourceFactory(uri, type);
+        switch (type) {
+            case "dash":
+                return new DashMediaSource(uri, dataSourceFactory, new DefaultDashChunkSource.Factory(getMediaDataSourceFactory(uri)), mainHandler, null);
+            case "hls":
+                return new HlsMediaSource(uri, dataSourceFactory, getMediaDataSourceFactory(uri), mainHandler, null);
+            case "ss":
+                return new SsMediaSource(uri, dataSourceFactory, new DefaultSsChunkSource.Factory(getMediaDataSourceFactory(uri)), mainHandler, null);
+            default:
+                return new ExtractorMediaSource(uri, dataSourceFactory, new DefaultExtractorsFactory(), mainHandler, null);
+        }
+    }
+
     public void preparePlayerLoop(Uri videoUri, String videoType, Uri audioUri, String audioType) {
         ensurePleyaerCreated();
         MediaSource mediaSource1 = null, mediaSource2 = null;
@@ -111,21 +152,7 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
                 type = audioType;
                 uri = audioUri;
             }
-            switch (type) {
-                case "dash":
-                    mediaSource = new DashMediaSource(uri, mediaDataSourceFactory, new DefaultDashChunkSource.Factory(mediaDataSourceFactory), mainHandler, null);
-                    break;
-                case "hls":
-                    mediaSource = new HlsMediaSource(uri, mediaDataSourceFactory, mainHandler, null);
-                    break;
-                case "ss":
-                    mediaSource = new SsMediaSource(uri, mediaDataSourceFactory, new DefaultSsChunkSource.Factory(mediaDataSourceFactory), mainHandler, null);
-                    break;
-                default:
-                    mediaSource = new ExtractorMediaSource(uri, mediaDataSourceFactory, new DefaultExtractorsFactory(), mainHandler, null);
-                    break;
-            }
-            mediaSource = new LoopingMediaSource(mediaSource);
+            mediaSource = new LoopingMediaSource(buildMediaSource(uri, type));
             if (a == 0) {
                 mediaSource1 = mediaSource;
             } else {
@@ -138,22 +165,7 @@ public class VideoPlayer implements ExoPlayer.EventListener, SimpleExoPlayer.Vid
 
     public void preparePlayer(Uri uri, String type) {
         ensurePleyaerCreated();
-        MediaSource mediaSource;
-        switch (type) {
-            case "dash":
-                mediaSource = new DashMediaSource(uri, mediaDataSourceFactory, new DefaultDashChunkSource.Factory(mediaDataSourceFactory), mainHandler, null);
-                break;
-            case "hls":
-                mediaSource = new HlsMediaSource(uri, mediaDataSourceFactory, mainHandler, null);
-                break;
-            case "ss":
-                mediaSource = new SsMediaSource(uri, mediaDataSourceFactory, new DefaultSsChunkSource.Factory(mediaDataSourceFactory), mainHandler, null);
-                break;
-            default:
-                mediaSource = new ExtractorMediaSource(uri, mediaDataSourceFactory, new DefaultExtractorsFactory(), mainHandler, null);
-                break;
-        }
-        player.prepare(mediaSource, true, true);
+        player.prepare(buildMediaSource(uri, type), true, true);
     }
 
     public boolean isPlayerPrepared() {
@@ -180,6 +180,19 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
 
         drawerLayoutContainer = new DrawerLayoutContainer(this);
         setContentView(drawerLayoutContainer, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        drawerLayoutContainer.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                drawerLayoutContainer.getViewTreeObserver().removeOnPreDrawListener(this);
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ApplicationLoader.onFirstFrame();
+                    }
+                });
+                return true;
+            }
+        });
 
         if (AndroidUtilities.isTablet()) {
             getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE);
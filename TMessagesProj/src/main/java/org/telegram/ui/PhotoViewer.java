@@ -85,6 +85,7 @@ import org.blaez.ziosgram.query.SharedMediaQuery;
 import org.blaez.ziosgram.ApplicationLoader;
 import org.blaez.ziosgram.FileLoader;
 import org.blaez.ziosgram.FileLog;
+import org.blaez.ziosgram.FileStreamDataSource;
 import org.blaez.ziosgram.LocaleController;
 import org.blaez.ZiosGram.mediaController;
 import org.blaez.ZiosGram.messagesController;
@@ -265,6 +266,7 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
     private int currentIndex;
     private MessageObject currentMessageObject;
     private File currentPlayingVideoFile;
+    private boolean isStreaming;
     private TLRPC.BotInlineResult currentBotInlineResult;
     private TLRPC.FileLocation currentFileLocation;
     private String currentFileNames[] = new String[3];
@@ -810,7 +812,7 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
                 if (currentFileNames[a] != null && currentFileNames[a].equals(location)) {
                     photoProgressViews[a].setProgress(1.0f, true);
                     checkProgress(a, true);
-                    if (Build.VERSION.SDK_INT >= 16 && a == 0 && (currentMessageObject != null && currentMessageObject.isVideo() || currentBotInlineResult != null && (currentBotInlineResult.type.equals("video") || MessageObject.isVideoDocument(currentBotInlineResult.document)))) {
+                    if (Build.VERSION.SDK_INT >= 16 && a == 0 && !(isStreaming && videoPlayer != null) && (currentMessageObject != null && currentMessageObject.isVideo() || currentBotInlineResult != null && (currentBotInlineResult.type.equals("video") || MessageObject.isVideoDocument(currentBotInlineResult.document)))) {
                         onActionClick(false);
                     }
                     break;
@@ -2384,8 +2386,17 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
         if (!preview) {
             currentPlayingVideoFile = file;
         }
+        preparePlayer(Uri.fromFile(file), playWhenReady, preview, false);
+    }
+
+    @SuppressLint("NewApi")
+    private void preparePlayer(Uri uri, boolean playWhenReady, boolean preview, boolean stream) {
+        if (parentActivity == null) {
+            return;
+        }
         inPreview = preview;
         releasePlayer();
+        isStreaming = stream;
         if (videoTextureView == null) {
             aspectRatioFrameLayout = new AspectRatioFrameLayout(parentActivity);
             aspectRatioFrameLayout.setVisibility(View.INVISIBLE);
@@ -2497,7 +2508,7 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
             duration /= 1000;
             int size = (int) Math.ceil(videoPlayerTime.getPaint().measureText(String.format("%02d:%02d / %02d:%02d", duration / 60, duration % 60, duration / 60, duration % 60)));
         }
-        videoPlayer.preparePlayer(Uri.fromFile(file), "other");
+        videoPlayer.preparePlayer(uri, "other");
         if (videoPlayerControlFrameLayout != null) {
             if (currentBotInlineResult != null && (currentBotInlineResult.type.equals("video") || MessageObject.isVideoDocument(currentBotInlineResult.document))) {
                 bottomLayout.setVisibility(View.VISIBLE);
@@ -2520,6 +2531,7 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
             videoPlayer.releasePlayer();
             videoPlayer = null;
         }
+        isStreaming = false;
         try {
             parentActivity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
         } catch (Exception e) {
@@ -5357,10 +5369,18 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
         if (file == null) {
             if (download) {
                 if (currentMessageObject !=  null) {
+                    TLRPC.Document document = currentMessageObject.getDocument();
                     if (!FileLoader.getInstance().isLoadingFile(currentFileNames[0])) {
-                        FileLoader.getInstance().loadFile(currentMessageObject.getDocument(), true, false);
+                        if (Build.VERSION.SDK_INT >= 16 && currentMessageObject.isVideo() && FileLoader.canStreamDocument(document)) {
+                            preparePlayer(FileStreamDataSource.getStreamUri(document), true, false, true);
+                        } else {
+                            FileLoader.getInstance().loadFile(document, true, false);
+                        }
                     } else {
-                        FileLoader.getInstance().cancelLoadFile(currentMessageObject.getDocument());
+                        if (isStreaming) {
+                            releasePlayer();
+                        }
+                        FileLoader.getInstance().cancelLoadFile(document);
                     }
                 } else if (currentBotInlineResult != null) {
                     if (currentBotInlineResult.document != null) {
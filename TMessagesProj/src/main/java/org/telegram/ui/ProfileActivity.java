@@ -259,7 +259,7 @@ public class ProfileActivity extends BaseFragment implements NotificationCenter.
             if (currentEncryptedChat != null) {
                 NotificationCenter.getInstance().addObserver(this, NotificationCenter.didReceivedNewMessages);
             }
-            userBlocked = MessagesController.getInstance().blockedUsers.contains(user_id);
+            userBlocked = MessagesController.getInstance().isUserBlocked(user_id);
             if (user.bot) {
                 BotQuery.loadBotInfo(user.id, true, classGuid);
             }
@@ -1580,7 +1580,7 @@ public class ProfileActivity extends BaseFragment implements NotificationCenter.
             }
         } else if (id == NotificationCenter.blockedUsersDidLoaded) {
             boolean oldValue = userBlocked;
-            userBlocked = MessagesController.getInstance().blockedUsers.contains(user_id);
+            userBlocked = MessagesController.getInstance().isUserBlocked(user_id);
             if (oldValue != userBlocked) {
                 createActionBarMenu();
             }
@@ -61,6 +61,8 @@ import org.blaez.ziosgram.UserObject;
 import org.blaez.ziosgram.ApplicationLoader;
 import org.blaez.ziosgram.BuildVars;
 import org.blaez.ziosgram.LocaleController;
+import org.blaez.ziosgram.MessagesStorage;
+import org.blaez.ziosgram.MetricsRegistry;
 import org.blaez.ziosgram.FileLoader;
 import org.blaez.ziosgram.VideoEditedInfo;
 import org.blaez.ziosgram.browser.Browser;
@@ -69,6 +71,7 @@ import org.blaez.ziosgram.support.widget.LinearLayoutManager;
 import org.blaez.ziosgram.support.widget.RecyclerView;
 import org.blaez.tgnet.ConnectionsManager;
 import org.blaez.tgnet.RequestDelegate;
+import org.blaez.tgnet.RequestReplay;
 import org.blaez.tgnet.SerializedData;
 import org.blaez.tgnet.TLObject;
 import org.blaez.tgnet.TLRPC;
@@ -626,16 +629,55 @@ public class SettingsActivity extends BaseFragment implements NotificationCenter
                     if (pressCount >= 2) {
                         AlertDialog.Builder builder = new AlertDialog.Builder(getParentActivity());
                         builder.setTitle(LocaleController.getString("DebugMenu", R.string.DebugMenu));
-                        builder.setItems(new CharSequence[]{
-                                LocaleController.getString("DebugMenuImportContacts", R.string.DebugMenuImportContacts),
-                                LocaleController.getString("DebugMenuReloadContacts", R.string.DebugMenuReloadContacts)
-                        }, new DialogInterface.OnClickListener() {
+                        final boolean replayActive = ConnectionsManager.getInstance().getRequestReplay() != null;
+                        final boolean compressCache = MessagesStorage.isCompressCacheEnabled();
+                        CharSequence[] items;
+                        if (BuildVars.DEBUG_VERSION) {
+                            items = new CharSequence[]{
+                                    LocaleController.getString("DebugMenuImportContacts", R.string.DebugMenuImportContacts),
+                                    LocaleController.getString("DebugMenuReloadContacts", R.string.DebugMenuReloadContacts),
+                                    compressCache ? LocaleController.getString("DebugMenuDisableCompression", R.string.DebugMenuDisableCompression) : LocaleController.getString("DebugMenuEnableCompression", R.string.DebugMenuEnableCompression),
+                                    replayActive ? LocaleController.getString("DebugMenuStopSync", R.string.DebugMenuStopSync) : LocaleController.getString("DebugMenuRecordSync", R.string.DebugMenuRecordSync),
+                                    LocaleController.getString("DebugMenuReplaySync", R.string.DebugMenuReplaySync),
+                                    MetricsRegistry.enabled ? LocaleController.getString("DebugMenuDisableMetrics", R.string.DebugMenuDisableMetrics) : LocaleController.getString("DebugMenuEnableMetrics", R.string.DebugMenuEnableMetrics),
+                                    LocaleController.getString("DebugMenuDumpMetrics", R.string.DebugMenuDumpMetrics)
+                            };
+                        } else {
+                            items = new CharSequence[]{
+                                    LocaleController.getString("DebugMenuImportContacts", R.string.DebugMenuImportContacts),
+                                    LocaleController.getString("DebugMenuReloadContacts", R.string.DebugMenuReloadContacts),
+                                    compressCache ? LocaleController.getString("DebugMenuDisableCompression", R.string.DebugMenuDisableCompression) : LocaleController.getString("DebugMenuEnableCompression", R.string.DebugMenuEnableCompression)
+                            };
+                        }
+                        builder.setItems(items, new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
                                 if (which == 0) {
                                     ContactsController.getInstance().forceImportContacts();
                                 } else if (which == 1) {
                                     ContactsController.getInstance().loadContacts(false, true);
+                                } else if (which == 2) {
+                                    MessagesStorage.getInstance().setCompressCache(!compressCache);
+                                } else if (which == 3) {
+                                    if (replayActive) {
+                                        RequestReplay.stop();
+                                    } else {
+                                        RequestReplay.startRecording(RequestReplay.getDefaultFile());
+                                    }
+                                } else if (which == 4) {
+                                    RequestReplay.stop();
+                                    RequestReplay.startReplay(RequestReplay.getDefaultFile());
+                                } else if (which == 5) {
+                                    MetricsRegistry.enabled = !MetricsRegistry.enabled;
+                                } else if (which == 6) {
+                                    File file = MetricsRegistry.dump(new File(ApplicationLoader.applicationContext.getExternalFilesDir(null), "logs"));
+                                    if (file != null) {
+                                        try {
+                                            Toast.makeText(getParentActivity(), file.getName(), Toast.LENGTH_SHORT).show();
+                                        } catch (Exception e) {
+                                            FileLog.e(e);
+                                        }
+                                    }
                                 }
                             }
                         });
@@ -265,9 +265,7 @@ public class WebviewActivity extends BaseFragment {
             }
             SharedPreferences.Editor editor = sharedPreferences.edit();
             editor.putInt(hash + "_date", (int) (System.currentTimeMillis() / 1000));
-            SerializedData serializedData = new SerializedData(messageObject.messageOwner.getObjectSize());
-            messageObject.messageOwner.serializeToStream(serializedData);
-            editor.putString(hash + "_m", Utilities.bytesToHex(serializedData.toByteArray()));
+            editor.putString(hash + "_m", Utilities.bytesToHex(SerializedData.serialize(messageObject.messageOwner)));
             editor.putString(hash + "_link", "https://" + MessagesController.getInstance().linkPrefix + "/" + username + (TextUtils.isEmpty(short_name) ? "" : "?game=" + short_name));
             editor.commit();
             Browser.openUrl(parentActivity, url, false);